@@ -0,0 +1,175 @@
+package com.dancingqueen.walladog.aws.downloader.query;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares progress updates made through {@link DownloadQueueProvider#call} with updates made through
+ * {@link DownloadQueueProvider#update}, while several downloads write at once and an observer reads the
+ * queue, as the download service and its listeners do. The timings are only logged, since they depend
+ * on the device, so this doesn't gate the suite. It is skipped unless run with "-e benchmark true".
+ */
+@RunWith(AndroidJUnit4.class)
+public class DownloadQueueProviderBenchmark {
+    private static final String LOG_TAG = DownloadQueueProviderBenchmark.class.getSimpleName();
+
+    /** The number of downloads updating their progress at once. */
+    private static final int WRITER_COUNT = 4;
+    /** The number of progress updates each download makes. */
+    private static final int UPDATES_PER_WRITER = 500;
+
+    private Context context;
+    private DownloadQueueProvider provider;
+    private Uri contentUri;
+    private String[] downloadIds;
+
+    @Before
+    public void setUp() {
+        assumeTrue("Run with -e benchmark true",
+            Boolean.parseBoolean(InstrumentationRegistry.getArguments().getString("benchmark")));
+        // Keep the benchmark's database apart from the app's.
+        context = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "benchmark_");
+        context.deleteDatabase("downloadQueue");
+        final ProviderInfo providerInfo = new ProviderInfo();
+        providerInfo.authority = DownloadQueueProvider.getAuthority(context);
+        provider = new DownloadQueueProvider();
+        provider.attachInfo(context, providerInfo);
+        contentUri = DownloadQueueProvider.getDownloadContentUri(context);
+
+        downloadIds = new String[WRITER_COUNT];
+        for (int i = 0; i < WRITER_COUNT; i++) {
+            final ContentValues values = new ContentValues();
+            values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_URL, "https://example.com/file" + i);
+            values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_FILE_LOCATION, "/sdcard/file" + i);
+            values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS, DownloadState.IN_PROGRESS.getValue());
+            values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_TOTAL_SIZE, 0L);
+            values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_CURRENT_SIZE, 0L);
+            values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_CREATE_TIMESTAMP, System.currentTimeMillis());
+            downloadIds[i] = String.valueOf(ContentUris.parseId(provider.insert(contentUri, values)));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (context != null) {
+            context.deleteDatabase("downloadQueue");
+        }
+    }
+
+    /** A way of writing a download's progress. */
+    private interface ProgressWriter {
+        void write(String downloadId, long currentSize);
+    }
+
+    private final ProgressWriter updateWriter = new ProgressWriter() {
+        @Override
+        public void write(final String downloadId, final long currentSize) {
+            final ContentValues values = new ContentValues();
+            values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_CURRENT_SIZE, currentSize);
+            values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_TOTAL_SIZE, (long) UPDATES_PER_WRITER);
+            provider.update(contentUri, values, DownloadQueueProvider.COLUMN_DOWNLOAD_ID + " = ?",
+                new String[] {downloadId});
+        }
+    };
+
+    private final ProgressWriter callWriter = new ProgressWriter() {
+        @Override
+        public void write(final String downloadId, final long currentSize) {
+            final Bundle extras = new Bundle();
+            extras.putLong(DownloadQueueProvider.KEY_CURRENT_SIZE, currentSize);
+            extras.putLong(DownloadQueueProvider.KEY_TOTAL_SIZE, UPDATES_PER_WRITER);
+            provider.call(DownloadQueueProvider.METHOD_UPDATE_PROGRESS, downloadId, extras);
+        }
+    };
+
+    /**
+     * Run the writers at once with an observer reading the queue until they finish.
+     *
+     * @param writer how the writers write their progress.
+     * @return the time the writers took, in nanoseconds.
+     */
+    private long runWriters(final ProgressWriter writer) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(WRITER_COUNT);
+        for (final String downloadId : downloadIds) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        started.await();
+                        for (int i = 1; i <= UPDATES_PER_WRITER; i++) {
+                            writer.write(downloadId, i);
+                        }
+                    } catch (final InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        final AtomicBoolean isObserving = new AtomicBoolean(true);
+        final AtomicInteger readCount = new AtomicInteger();
+        final Thread observer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (isObserving.get()) {
+                    final Cursor cursor = provider.query(contentUri, null, null, null, null);
+                    cursor.getCount();
+                    cursor.close();
+                    readCount.incrementAndGet();
+                }
+            }
+        });
+        observer.start();
+
+        final long start = System.nanoTime();
+        started.countDown();
+        assertTrue(finished.await(5, TimeUnit.MINUTES));
+        final long elapsedNanos = System.nanoTime() - start;
+        isObserving.set(false);
+        observer.join();
+
+        Log.i(LOG_TAG, String.format("%d us per update, with %d reads by the observer.",
+            TimeUnit.NANOSECONDS.toMicros(elapsedNanos / (WRITER_COUNT * UPDATES_PER_WRITER)), readCount.get()));
+        return elapsedNanos;
+    }
+
+    @Test
+    public void compareCallWithUpdateUnderConcurrentWriters() throws InterruptedException {
+        // Warm up both ways first, so neither pays for opening the database or compiling statements.
+        runWriters(updateWriter);
+        runWriters(callWriter);
+
+        Log.i(LOG_TAG, "update():");
+        final long updateNanos = runWriters(updateWriter);
+        Log.i(LOG_TAG, "call():");
+        final long callNanos = runWriters(callWriter);
+
+        Log.i(LOG_TAG, String.format("call() took %.2f times as long as update().",
+            (double) callNanos / updateNanos));
+    }
+}
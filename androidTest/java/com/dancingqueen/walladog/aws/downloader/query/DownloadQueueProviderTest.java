@@ -0,0 +1,214 @@
+package com.dancingqueen.walladog.aws.downloader.query;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class DownloadQueueProviderTest {
+
+    private Context context;
+    private DownloadQueueProvider provider;
+    private Uri contentUri;
+    private String downloadId;
+
+    @Before
+    public void setUp() {
+        // Keep the test's database apart from the app's.
+        context = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "test_");
+        context.deleteDatabase("downloadQueue");
+        final ProviderInfo providerInfo = new ProviderInfo();
+        providerInfo.authority = DownloadQueueProvider.getAuthority(context);
+        provider = new DownloadQueueProvider();
+        provider.attachInfo(context, providerInfo);
+        contentUri = DownloadQueueProvider.getDownloadContentUri(context);
+        downloadId = insertDownload();
+    }
+
+    @After
+    public void tearDown() {
+        context.deleteDatabase("downloadQueue");
+    }
+
+    private String insertDownload() {
+        final ContentValues values = new ContentValues();
+        values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_URL, "https://example.com/file");
+        values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_FILE_LOCATION, "/sdcard/file");
+        values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS, DownloadState.IN_PROGRESS.getValue());
+        values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_TOTAL_SIZE, 0L);
+        values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_CURRENT_SIZE, 0L);
+        values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_CREATE_TIMESTAMP, System.currentTimeMillis());
+        return String.valueOf(ContentUris.parseId(provider.insert(contentUri, values)));
+    }
+
+    private static Bundle progress(final long currentSize, final long totalSize) {
+        final Bundle extras = new Bundle();
+        extras.putLong(DownloadQueueProvider.KEY_CURRENT_SIZE, currentSize);
+        extras.putLong(DownloadQueueProvider.KEY_TOTAL_SIZE, totalSize);
+        return extras;
+    }
+
+    private long queryLong(final String column) {
+        return queryLong(downloadId, column);
+    }
+
+    private long queryLong(final String id, final String column) {
+        final Cursor cursor = provider.query(contentUri, new String[] {column},
+            DownloadQueueProvider.COLUMN_DOWNLOAD_ID + " = ?", new String[] {id}, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String queryString(final String column) {
+        return queryString(downloadId, column);
+    }
+
+    private String queryString(final String id, final String column) {
+        final Cursor cursor = provider.query(contentUri, new String[] {column},
+            DownloadQueueProvider.COLUMN_DOWNLOAD_ID + " = ?", new String[] {id}, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void usesWriteAheadLoggingWithNormalSync() {
+        final SQLiteDatabase db = new DownloadQueueProvider.DatabaseHelper(context).getReadableDatabase();
+        try {
+            final Cursor journalMode = db.rawQuery("PRAGMA journal_mode", null);
+            try {
+                assertTrue(journalMode.moveToFirst());
+                assertEquals("wal", journalMode.getString(0).toLowerCase(Locale.US));
+            } finally {
+                journalMode.close();
+            }
+            final Cursor synchronous = db.rawQuery("PRAGMA synchronous", null);
+            try {
+                assertTrue(synchronous.moveToFirst());
+                // NORMAL is 1.
+                assertEquals(1, synchronous.getInt(0));
+            } finally {
+                synchronous.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void callUpdatesProgressAndStatus() {
+        provider.call(DownloadQueueProvider.METHOD_UPDATE_PROGRESS, downloadId, progress(300L, 1000L));
+
+        assertEquals(300L, queryLong(DownloadQueueProvider.COLUMN_DOWNLOAD_CURRENT_SIZE));
+        assertEquals(1000L, queryLong(DownloadQueueProvider.COLUMN_DOWNLOAD_TOTAL_SIZE));
+
+        final Bundle paused = new Bundle();
+        paused.putInt(DownloadQueueProvider.KEY_STATUS, DownloadState.PAUSED.getValue());
+        paused.putString(DownloadQueueProvider.KEY_STOP_REASON, "network");
+        provider.call(DownloadQueueProvider.METHOD_UPDATE_STATUS, downloadId, paused);
+
+        assertEquals(DownloadState.PAUSED.getValue(), queryLong(DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS));
+        assertEquals("network", queryString(DownloadQueueProvider.COLUMN_DOWNLOAD_STOP_REASON));
+
+        // Without a reason, the stop reason is left as it was.
+        final Bundle resumed = new Bundle();
+        resumed.putInt(DownloadQueueProvider.KEY_STATUS, DownloadState.IN_PROGRESS.getValue());
+        provider.call(DownloadQueueProvider.METHOD_UPDATE_STATUS, downloadId, resumed);
+
+        assertEquals(DownloadState.IN_PROGRESS.getValue(), queryLong(DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS));
+        assertEquals("network", queryString(DownloadQueueProvider.COLUMN_DOWNLOAD_STOP_REASON));
+    }
+
+    @Test
+    public void readsDoNotWaitForAWriteInProgress() throws InterruptedException {
+        final Uri openTransactionUri = DownloadQueueProvider.getDownloadOpenTransactionUri(context);
+        final Uri completeTransactionUri = DownloadQueueProvider.getDownloadCompleteTransactionUri(context);
+        provider.query(openTransactionUri, null, null, null, null);
+        try {
+            provider.call(DownloadQueueProvider.METHOD_UPDATE_PROGRESS, downloadId, progress(500L, 1000L));
+
+            final AtomicLong readSize = new AtomicLong(-1L);
+            final CountDownLatch read = new CountDownLatch(1);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readSize.set(queryLong(DownloadQueueProvider.COLUMN_DOWNLOAD_CURRENT_SIZE));
+                    read.countDown();
+                }
+            }).start();
+
+            // Without write-ahead logging, the read would wait until the transaction ends.
+            assertTrue(read.await(2, TimeUnit.SECONDS));
+            assertEquals(0L, readSize.get());
+        } finally {
+            provider.query(completeTransactionUri, null, null, null, null);
+        }
+
+        assertEquals(500L, queryLong(DownloadQueueProvider.COLUMN_DOWNLOAD_CURRENT_SIZE));
+    }
+
+    @Test
+    public void callReusesItsCompiledStatementsForEachDownload() {
+        final String otherDownloadId = insertDownload();
+        final SQLiteStatement progressStatement = provider.getUpdateProgressStatement();
+        for (long currentSize = 100L; currentSize <= 500L; currentSize += 100L) {
+            provider.call(DownloadQueueProvider.METHOD_UPDATE_PROGRESS, downloadId, progress(currentSize, 1000L));
+
+            assertEquals(currentSize, queryLong(DownloadQueueProvider.COLUMN_DOWNLOAD_CURRENT_SIZE));
+        }
+        // The values bound for one download don't carry over to another.
+        provider.call(DownloadQueueProvider.METHOD_UPDATE_PROGRESS, otherDownloadId, progress(7L, 70L));
+
+        assertSame(progressStatement, provider.getUpdateProgressStatement());
+        assertEquals(500L, queryLong(DownloadQueueProvider.COLUMN_DOWNLOAD_CURRENT_SIZE));
+        assertEquals(1000L, queryLong(DownloadQueueProvider.COLUMN_DOWNLOAD_TOTAL_SIZE));
+        assertEquals(7L, queryLong(otherDownloadId, DownloadQueueProvider.COLUMN_DOWNLOAD_CURRENT_SIZE));
+        assertEquals(70L, queryLong(otherDownloadId, DownloadQueueProvider.COLUMN_DOWNLOAD_TOTAL_SIZE));
+
+        final SQLiteStatement statusStatement = provider.getUpdateStatusStatement(false);
+        final SQLiteStatement statusAndReasonStatement = provider.getUpdateStatusStatement(true);
+        assertNotSame(statusStatement, statusAndReasonStatement);
+        final Bundle paused = new Bundle();
+        paused.putInt(DownloadQueueProvider.KEY_STATUS, DownloadState.PAUSED.getValue());
+        paused.putString(DownloadQueueProvider.KEY_STOP_REASON, "network");
+        provider.call(DownloadQueueProvider.METHOD_UPDATE_STATUS, downloadId, paused);
+        final Bundle resumed = new Bundle();
+        resumed.putInt(DownloadQueueProvider.KEY_STATUS, DownloadState.IN_PROGRESS.getValue());
+        provider.call(DownloadQueueProvider.METHOD_UPDATE_STATUS, otherDownloadId, resumed);
+
+        assertSame(statusStatement, provider.getUpdateStatusStatement(false));
+        assertSame(statusAndReasonStatement, provider.getUpdateStatusStatement(true));
+        assertEquals(DownloadState.PAUSED.getValue(), queryLong(DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS));
+        assertEquals(DownloadState.IN_PROGRESS.getValue(),
+            queryLong(otherDownloadId, DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS));
+        assertNull(queryString(otherDownloadId, DownloadQueueProvider.COLUMN_DOWNLOAD_STOP_REASON));
+    }
+}
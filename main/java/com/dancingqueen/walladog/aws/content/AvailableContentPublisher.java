@@ -0,0 +1,262 @@
+package com.dancingqueen.walladog.aws.content;
+
+import android.util.Log;
+
+import com.dancingqueen.walladog.aws.util.ThreadUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Publishes the available content under a prefix in pages of a fixed size, listing it from the
+ * beginning for each subscriber.
+ *
+ * Each page is read from an {@link AvailableS3ContentIterator} only once a subscriber has requested
+ * it, on an executor of its own, and delivered to the subscriber on the main thread. The iterator is
+ * only created by the first request, since its listing task holds a thread until it has listed
+ * everything or is canceled, and a subscriber that never requests would otherwise hold it for good.
+ * The iterator lists ahead only as far as its bounded queue allows, so a subscriber that stops
+ * requesting stops the requests to S3, and leaves the listing task waiting. The executor must not be
+ * shared with work that has to make progress, such as the content manager's fixed pool, since waiting
+ * listing tasks could take all of its threads. Canceling a subscription cancels its iterator, which
+ * stops listing S3 altogether.
+ */
+/* package */ class AvailableContentPublisher implements ContentFlow.Publisher<List<ContentItem>> {
+    private static final String LOG_TAG = AvailableContentPublisher.class.getSimpleName();
+
+    private final ContentManager contentManager;
+    private final String s3Prefix;
+    private final String localPrefix;
+    private final String delimiter;
+    private final int pageSize;
+    private final ExecutorService executorService;
+
+    /**
+     * @param contentManager the content manager whose content to list.
+     * @param s3Prefix the s3 object prefix.
+     * @param localPrefix the local path prefix.
+     * @param delimiter the s3 object delimiter.
+     * @param pageSize the number of items in each page, other than the last.
+     * @param executorService the executor to read and list pages on, which must be able to run a
+     *                        thread for each subscription reading or listing at once.
+     */
+    /* package */ AvailableContentPublisher(final ContentManager contentManager, final String s3Prefix,
+                                            final String localPrefix, final String delimiter,
+                                            final int pageSize, final ExecutorService executorService) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+        }
+        this.contentManager = contentManager;
+        this.s3Prefix = s3Prefix;
+        this.localPrefix = localPrefix;
+        this.delimiter = delimiter;
+        this.pageSize = pageSize;
+        this.executorService = executorService;
+    }
+
+    /**
+     * The content a subscription reads its pages from.
+     */
+    /* package */ interface ContentSource {
+        /** @see AvailableS3ContentIterator#hasNext() */
+        boolean hasNext();
+
+        /** @see AvailableS3ContentIterator#next() */
+        ContentItem next();
+
+        /** @see AvailableS3ContentIterator#willNextBlock() */
+        boolean willNextBlock();
+
+        /** @see AvailableS3ContentIterator#cancel() */
+        void cancel();
+    }
+
+    /**
+     * Start listing the content for a subscription. Called when the subscription is first requested.
+     *
+     * @return the content.
+     */
+    /* package */ ContentSource createContentSource() {
+        final AvailableS3ContentIterator contentIterator = new AvailableS3ContentIterator(contentManager,
+            s3Prefix, localPrefix, delimiter, executorService, true);
+        return new ContentSource() {
+            @Override
+            public boolean hasNext() {
+                return contentIterator.hasNext();
+            }
+
+            @Override
+            public ContentItem next() {
+                return contentIterator.next();
+            }
+
+            @Override
+            public boolean willNextBlock() {
+                return contentIterator.willNextBlock();
+            }
+
+            @Override
+            public void cancel() {
+                contentIterator.cancel();
+            }
+        };
+    }
+
+    /**
+     * Run a delivery to a subscriber on the main thread.
+     *
+     * @param runnable the delivery.
+     */
+    /* package */ void runOnUiThread(final Runnable runnable) {
+        ThreadUtils.runOnUiThread(runnable);
+    }
+
+    @Override
+    public void subscribe(final ContentFlow.Subscriber<? super List<ContentItem>> subscriber) {
+        final PageSubscription subscription = new PageSubscription(subscriber);
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                subscriber.onSubscribe(subscription);
+            }
+        });
+    }
+
+    /**
+     * A subscription that reads pages while there is demand for them. At most one task reads
+     * pages at a time, so pages are delivered in order.
+     */
+    private final class PageSubscription implements ContentFlow.Subscription, Runnable {
+        private final ContentFlow.Subscriber<? super List<ContentItem>> subscriber;
+
+        /** The content being read, or null until the first request. Guarded by this. */
+        private ContentSource contentSource;
+
+        /** The number of pages requested and not yet read. Guarded by this. */
+        private long demand;
+        /** Whether a task is reading pages. Guarded by this. */
+        private boolean isReading;
+        /** Whether the subscription has ended by completing, failing or being canceled. */
+        private volatile boolean isDone;
+        /** Whether the subscriber canceled, after which it receives nothing more. */
+        private volatile boolean isCanceled;
+
+        private PageSubscription(final ContentFlow.Subscriber<? super List<ContentItem>> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0) {
+                isDone = true;
+                cancelContentSource();
+                deliverError(new IllegalArgumentException("Requested a non-positive number of pages: " + n));
+                return;
+            }
+            synchronized (this) {
+                if (isDone) {
+                    return;
+                }
+                if (contentSource == null) {
+                    contentSource = createContentSource();
+                }
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                if (isReading) {
+                    return;
+                }
+                isReading = true;
+            }
+            executorService.execute(this);
+        }
+
+        @Override
+        public void cancel() {
+            isCanceled = true;
+            isDone = true;
+            // Stops the iterator's background listing, and with it any further requests to S3.
+            cancelContentSource();
+        }
+
+        private void cancelContentSource() {
+            final ContentSource source;
+            synchronized (this) {
+                source = contentSource;
+            }
+            if (source != null) {
+                source.cancel();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final ContentSource source;
+                    synchronized (this) {
+                        if (isDone || demand == 0) {
+                            isReading = false;
+                            return;
+                        }
+                        demand--;
+                        source = contentSource;
+                    }
+                    final List<ContentItem> page = new ArrayList<>(pageSize);
+                    while (page.size() < pageSize && source.hasNext()) {
+                        page.add(source.next());
+                    }
+                    if (!page.isEmpty()) {
+                        deliverPage(page);
+                    }
+                    // Complete once the last page is read, without waiting for more demand. Only check
+                    // for more content if doing so won't wait for it to be listed.
+                    if (page.size() < pageSize ||
+                        (!source.willNextBlock() && !source.hasNext())) {
+                        isDone = true;
+                        deliverComplete();
+                    }
+                }
+            } catch (final Exception ex) {
+                Log.e(LOG_TAG, ex.getMessage(), ex);
+                synchronized (this) {
+                    isReading = false;
+                }
+                isDone = true;
+                if (!isCanceled) {
+                    deliverError(ex);
+                }
+            }
+        }
+
+        private void deliverPage(final List<ContentItem> page) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCanceled) {
+                        subscriber.onNext(page);
+                    }
+                }
+            });
+        }
+
+        private void deliverComplete() {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCanceled) {
+                        subscriber.onComplete();
+                    }
+                }
+            });
+        }
+
+        private void deliverError(final Exception ex) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    subscriber.onError(ex);
+                }
+            });
+        }
+    }
+}
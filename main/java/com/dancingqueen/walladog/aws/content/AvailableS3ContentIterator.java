@@ -8,44 +8,30 @@ package com.dancingqueen.walladog.aws.content;
 // Source code generated from template: aws-my-sample-app-android v0.4
 //
 
-import android.os.ConditionVariable;
 import android.util.Log;
 
 import com.amazonaws.AmazonClientException;
 
-import java.io.File;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class for iterating all available content managed by a content manager as fast as possible.
  * Items are not ordered since they come back as soon as they are available.
+ *
+ * Listings with a delimiter, which list a single folder, are kept in the content manager's
+ * listing cache. A fresh cached listing is used instead of listing S3. When the content manager
+ * has loaded a content manifest, every listing is read from the manifest instead.
  */
 public class AvailableS3ContentIterator implements Iterator<ContentItem>, Iterable<ContentItem>,
     S3WholeBucketIterator.S3ListErrorHandler, Runnable {
         private static final String LOG_TAG = AvailableS3ContentIterator.class.getSimpleName();
-        /* Queue to store the available content that will be returned through the iterator. */
-        private Queue<ContentItem> availableContent = new ConcurrentLinkedQueue<>();
-
-        /** the ConcurrentLinkedQueue doesn't keep a member tracking the count, so this does. */
-        private AtomicInteger contentCount;
-
-        /** HashMap to check if a local file is available while iterating remote files. */
-        private HashMap<String, FileContent> localFiles = new HashMap<>();;
-
-        /** Condition variable to use to wait for content to be available. */
-        private ConditionVariable waitingForContent = new ConditionVariable();
-
-        /** Condition variable to use when the queue is full. */
-        private ConditionVariable waitingForReader = new ConditionVariable(true);
-
-        /** Flag for whether we are still iterating content. */
-        private volatile boolean areIteratingContent = true;
+        /** Hands the available content from the background task to the iterator. */
+        private final ListingPipeline<ContentItem> pipeline = new ListingPipeline<>(QUEUE_CAPACITY);
 
         /** The executor service to run our thread on. */
         private final ExecutorService executorService;
@@ -68,11 +54,19 @@ public class AvailableS3ContentIterator implements Iterator<ContentItem>, Iterab
         /** Whether to include directories (common prefixes). */
         private final boolean includeDirectories;
 
+        /** Whether to use a cached listing even if it is stale. */
+        private final boolean useStaleListing;
+
+        /** The query selecting which content to return, or null to return all content. */
+        private final ContentQuery query;
+
+        /** Whether the remote listing differs from the cached listing it replaced. */
+        private volatile boolean remoteListingChanged;
+
         /** The number of items to queue before blocking. */
-        private static final long QUEUED_ITEMS_FULL_THRESHOLD_VALUE = 600;
-        /** If retrieving items is blocked, once the number of items in the queue drop below
-         * this value, retrieving items in the background to fill the queue is resumed. */
-        private static final int QUEUED_ITEMS_HYSTERISIS_VALUE = 300;
+        private static final int QUEUE_CAPACITY = 600;
+        /** The most items handed to the iterator at once. */
+        private static final int MAX_BATCH_SIZE = 100;
 
         /** Keep track of whether an exception occurred while iterating. */
         private volatile AmazonClientException iteratingException;
@@ -83,17 +77,39 @@ public class AvailableS3ContentIterator implements Iterator<ContentItem>, Iterab
                                                  final String delimiter,
                                                  final ExecutorService executorService,
                                                  final boolean includeDirectories) {
+            this(contentManager, s3Prefix, localPrefix, delimiter, executorService, includeDirectories, false);
+        }
+
+        /* package */ AvailableS3ContentIterator(final ContentManager contentManager,
+                                                 final String s3Prefix,
+                                                 final String localPrefix,
+                                                 final String delimiter,
+                                                 final ExecutorService executorService,
+                                                 final boolean includeDirectories,
+                                                 final boolean useStaleListing) {
+            this(contentManager, s3Prefix, localPrefix, delimiter, executorService, includeDirectories,
+                useStaleListing, null);
+        }
+
+        /* package */ AvailableS3ContentIterator(final ContentManager contentManager,
+                                                 final String s3Prefix,
+                                                 final String localPrefix,
+                                                 final String delimiter,
+                                                 final ExecutorService executorService,
+                                                 final boolean includeDirectories,
+                                                 final boolean useStaleListing,
+                                                 final ContentQuery query) {
 
             iteratingException = null;
             this.contentManager = contentManager;
             this.executorService = executorService;
-            contentCount = new AtomicInteger();
-            contentCount.set(0);
 
             this.prefix = s3Prefix;
             this.localPrefix = localPrefix == null ? "" : localPrefix;
             this.delimiter = delimiter;
             this.includeDirectories = includeDirectories;
+            this.useStaleListing = useStaleListing;
+            this.query = query;
 
             // Start the background task to begin listing objects.
             iteratingFuture = executorService.submit(this);
@@ -101,103 +117,140 @@ public class AvailableS3ContentIterator implements Iterator<ContentItem>, Iterab
 
         @Override
         public void run() {
-            final LocalContentCache localContentCache = contentManager.getLocalContentCache();
-            // Get an iterator for S3 content.  This starts obtaining content from the bucket in
-            // parallel.
-            final S3WholeBucketIterator s3Iter = new S3WholeBucketIterator(
-                contentManager.getS3Client(), contentManager.getS3bucket(), contentManager.getS3DirPrefix(),
-                prefix, delimiter, includeDirectories, this);
-
-            // Iterate the local content.
-            for (final File file : localContentCache.getIterableForDirectory(localPrefix)) {
-                if (file.exists()) {
-                    final String relativePath =
-                        localContentCache.absolutePathToRelativePath(file.getAbsolutePath());
-                    localFiles.put(relativePath, new FileContent(file, relativePath));
-                }
+            final ListingCache listingCache = contentManager.getListingCache();
+            final Iterable<S3ContentSummary> remoteSummaries;
+            final S3WholeBucketIterator s3Iter;
+            // The listed summaries to cache, or null if not caching them.
+            List<S3ContentSummary> listedSummaries = null;
+            final ContentManifest manifest = contentManager.getContentManifest();
+            final List<S3ContentSummary> cachedSummaries;
+            if (manifest != null) {
+                cachedSummaries = null;
+            } else if (delimiter != null &&
+                (useStaleListing || listingCache.isFresh(prefix, delimiter, includeDirectories))) {
+                cachedSummaries = listingCache.get(prefix, delimiter, includeDirectories);
+            } else {
+                cachedSummaries = null;
             }
 
-            // Iterate the remote content.
-            for (final S3ContentSummary summary : s3Iter) {
-                if (contentCount.incrementAndGet() >= QUEUED_ITEMS_FULL_THRESHOLD_VALUE) {
-                    waitingForReader.close();
+            if (manifest != null) {
+                // The manifest lists the content as it was published, without listing S3.
+                remoteSummaries = manifest.list(localPrefix, delimiter, includeDirectories);
+                s3Iter = null;
+            } else if (cachedSummaries != null) {
+                remoteSummaries = cachedSummaries;
+                s3Iter = null;
+            } else {
+                // Get an iterator for S3 content.  This starts obtaining content from the bucket in
+                // parallel. Listings of everything under the prefix are sharded, since they may be large.
+                s3Iter = new S3WholeBucketIterator(
+                    contentManager.getS3Client(), contentManager.getS3bucket(), contentManager.getS3DirPrefix(),
+                    prefix, delimiter, includeDirectories, delimiter == null, null, this);
+                remoteSummaries = s3Iter;
+                if (delimiter != null) {
+                    listedSummaries = new ArrayList<>();
                 }
-                if (!areIteratingContent) {
-                    // Iteration was canceled.  We must cancel iterating S3WholeBucketIterator
-                    // to stop it from making any further service calls to get content.
+            }
+
+            try {
+                iterateContent(remoteSummaries, s3Iter, listedSummaries);
+            } catch (final InterruptedException ex) {
+                Log.d(LOG_TAG, "Iterating content interrupted.");
+            } finally {
+                // Stop the S3WholeBucketIterator making any further service calls to get content if
+                // iteration was canceled.
+                if (s3Iter != null) {
                     s3Iter.cancel();
-                    waitingForContent.open();
-                    return;
                 }
-                final FileContent fileContent = localFiles.remove(summary.getFilePath());
-                // if file content exists for this item.
-                if (fileContent != null) {
-                    // if the remote content is different. (Note: we could use summary.getETag() and
-                    // check that against the file's MD5SUM to detect modified content, but it would
-                    // be significantly slower since we aren't persistantly caching local file
-                    // metadata such as MD5SUM.)
-                    if (fileContent.getLastModifiedTime() < summary.getLastModifiedTime() ||
-                        fileContent.getSize() != summary.getSize()) {
-                        fileContent.setContentState(ContentState.CACHED_WITH_NEWER_VERSION_AVAILABLE);
-                    }
-                    availableContent.add(fileContent);
-                } else {
-                    if (!ContentState.REMOTE_DIRECTORY.equals(summary.getContentState())) {
-                        summary.setContentState(contentManager
-                            .getContentStateForTransfer(summary.getFilePath()));
-                    }
-                    availableContent.add(summary);
+                pipeline.close();
+            }
+        }
+
+        /**
+         * Merge the remote content with the local content and hand it to the iterator.
+         * @param remoteSummaries the remote content.
+         * @param s3Iter the iterator listing the remote content from S3, or null if it is cached or
+         *               read from the content manifest.
+         * @param listedSummaries receives the remote content to cache, or null if not caching it.
+         * @throws InterruptedException if interrupted while waiting for the iterator.
+         */
+        private void iterateContent(final Iterable<S3ContentSummary> remoteSummaries,
+                                    final S3WholeBucketIterator s3Iter,
+                                    final List<S3ContentSummary> listedSummaries) throws InterruptedException {
+            // Look up the transfers once, rather than for each remote file.
+            final Map<String, ContentState> transferStates = contentManager.getContentStatesForTransfers();
+            // Join the remote content with the local content in listing order.
+            final ContentDiff diff = new ContentDiff(remoteSummaries.iterator(),
+                contentManager.getLocalContentCache(), localPrefix, delimiter);
+            List<ContentItem> batch = new ArrayList<>();
+
+            while (diff.next()) {
+                final S3ContentSummary summary = diff.getRemote();
+                if (summary != null && listedSummaries != null) {
+                    listedSummaries.add(summary);
                 }
-                waitingForContent.open();
-                if (contentCount.get() >= QUEUED_ITEMS_FULL_THRESHOLD_VALUE) {
-                    waitingForReader.block();
+                final ContentItem contentItem = diff.getContentItem(transferStates);
+                // Everything listed is made searchable, whether or not it matches the query.
+                contentManager.getSearchIndex().add(contentItem);
+                addIfMatching(batch, contentItem);
+                // Hand off the batch when it is full, or before waiting for more remote content.
+                if (batch.size() >= MAX_BATCH_SIZE || (s3Iter != null && s3Iter.willNextBlock())) {
+                    if (!pipeline.put(batch)) {
+                        // Iteration was canceled.
+                        return;
+                    }
+                    batch = new ArrayList<>();
                 }
             }
 
-            // Add the remaining content.
-            for (final FileContent fileContent : localFiles.values()) {
-                availableContent.add(fileContent);
+            // Keep the listing if it completed.
+            if (listedSummaries != null && iteratingException == null) {
+                remoteListingChanged = contentManager.getListingCache().put(prefix, delimiter, includeDirectories,
+                    listedSummaries);
             }
-            waitingForContent.open();
 
-            areIteratingContent = false;
+            if (!pipeline.put(batch)) {
+                return;
+            }
+            if (iteratingException != null) {
+                pipeline.fail(iteratingException);
+            }
         }
 
+    private void addIfMatching(final List<ContentItem> batch, final ContentItem contentItem) {
+        if (query == null || query.matches(contentItem)) {
+            batch.add(contentItem);
+        }
+    }
+
+    /**
+     * Call this once the iterator is exhausted to see whether listing S3 found anything different from
+     * the cached listing it replaced.
+     * @return true if S3 was listed and the listing differed, false if it was unchanged or the cached
+     * listing was used.
+     */
+    /* package */ boolean hasRemoteListingChanged() {
+        return remoteListingChanged;
+    }
+
     /**
      * Call this while iterating to see if the subsequent call to next() will block.  This can
      * also be called in an enhanced for loop.
      * @return true if calling next() will block, otherwise return false.
      */
     public boolean willNextBlock() {
-        return (availableContent.isEmpty() && areIteratingContent);
+        return pipeline.willNextBlock();
     }
 
     @Override
     public boolean hasNext() {
-        waitingForContent.close();
-        if (availableContent.isEmpty() && !areIteratingContent) {
-            return false;
-        } else if (!availableContent.isEmpty()) {
-            return true;
-        }
-        waitingForContent.block();
-        if (iteratingException != null) {
-            throw iteratingException;
-        }
-        return !availableContent.isEmpty();
+        return pipeline.hasNext();
     }
 
     @Override
     public ContentItem next() {
-        final ContentItem next;
         if (hasNext()) {
-            next = availableContent.poll();
-            if (contentCount.decrementAndGet() == QUEUED_ITEMS_HYSTERISIS_VALUE) {
-                waitingForReader.open();
-            }
-            return next;
-        } else if (iteratingException != null) {
-            throw iteratingException;
+            return pipeline.next();
         }
         return null;
     }
@@ -209,16 +262,12 @@ public class AvailableS3ContentIterator implements Iterator<ContentItem>, Iterab
      * remaining items that had been read in the background using next().
      */
     public void cancel() {
-        if (areIteratingContent) {
-            if (iteratingFuture.isDone()) {
-                return;
-            }
-
-            areIteratingContent = false;
-            waitingForReader.open();
-            // indicate we must shut down.
-            iteratingFuture.cancel(true);
+        if (iteratingFuture.isDone()) {
+            return;
         }
+        pipeline.cancel();
+        // indicate we must shut down.
+        iteratingFuture.cancel(true);
     }
 
     @Override
@@ -0,0 +1,276 @@
+package com.dancingqueen.walladog.aws.content;
+
+import android.util.Log;
+
+import com.dancingqueen.walladog.aws.util.ThreadUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Unpacks the files in a bundle into the local content cache.
+ *
+ * The first pass reads a stream of the bundle as it downloads, so each file is in the cache as soon as
+ * its bytes have arrived rather than once the whole bundle has. If that pass is cut short, for example
+ * because the download paused, the files it didn't reach are unpacked from the bundle file once the
+ * download completes. The unpacker deletes the bundle file once it is done with it.
+ */
+/* package */ class BundleUnpacker {
+    private static final String LOG_TAG = BundleUnpacker.class.getSimpleName();
+
+    /** Size of the buffer for copying files out of the bundle. */
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    /** Prefix for the temporary files being unpacked. */
+    private static final String TEMP_FILE_PREFIX = "bundle";
+
+    /** Suffix for the temporary files being unpacked. */
+    private static final String TEMP_FILE_SUFFIX = ".part";
+
+    private final String bundleFilePath;
+    private final List<ContentBundle.Entry> entries;
+    private final long startOffset;
+    private final File incomingDir;
+    private final LocalContentCache localContentCache;
+    private final ContentProgressListener listener;
+    private final ExecutorService executor;
+
+    /** The index of the next entry to unpack. */
+    private int nextEntry;
+
+    /** The stream being read by the running pass, or null if no pass is running. */
+    private InputStream source;
+
+    /** The completed bundle file, once the download has completed. */
+    private File completedBundle;
+
+    /** Why the download failed, if it did. */
+    private Exception failure;
+
+    /**
+     * @param bundleFilePath the relative path and file name of the bundle.
+     * @param entries the entries to unpack, in order of their offsets.
+     * @param startOffset the offset in the bundle of the first byte downloaded, since only a range of
+     *                    the bundle may be downloaded.
+     * @param incomingDir the directory for files being unpacked, on the same mount as the cache.
+     * @param localContentCache the cache to unpack into.
+     * @param listener listener to receive each file as it is cached.
+     * @param executor the executor to unpack on.
+     */
+    /* package */ BundleUnpacker(final String bundleFilePath, final List<ContentBundle.Entry> entries,
+                                 final long startOffset, final File incomingDir,
+                                 final LocalContentCache localContentCache, final ContentProgressListener listener,
+                                 final ExecutorService executor) {
+        this.bundleFilePath = bundleFilePath;
+        this.entries = entries;
+        this.startOffset = startOffset;
+        this.incomingDir = incomingDir;
+        this.localContentCache = localContentCache;
+        this.listener = listener;
+        this.executor = executor;
+    }
+
+    /**
+     * Start unpacking from a stream of the bundle as it downloads.
+     *
+     * @param stream the stream, which this closes when done with it.
+     */
+    /* package */ synchronized void start(final InputStream stream) {
+        startPass(stream);
+    }
+
+    /**
+     * Report that the bundle download completed. Any files the first pass didn't reach are unpacked
+     * from the bundle file.
+     *
+     * @param bundleFile the completed bundle file.
+     */
+    /* package */ synchronized void bundleCompleted(final File bundleFile) {
+        completedBundle = bundleFile;
+        if (source == null) {
+            continueOrFinish();
+        }
+    }
+
+    /**
+     * Report that the bundle download failed, which fails any files not yet unpacked.
+     *
+     * @param ex the reason.
+     */
+    /* package */ synchronized void bundleFailed(final Exception ex) {
+        failure = ex;
+        if (source != null) {
+            // Stop the running pass, which fails the remaining files when it ends.
+            closeQuietly(source);
+        } else {
+            continueOrFinish();
+        }
+    }
+
+    private void startPass(final InputStream stream) {
+        source = stream;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                unpack(stream);
+            }
+        });
+    }
+
+    /**
+     * Decide what to do once no pass is running. Called synchronized.
+     */
+    private void continueOrFinish() {
+        if (nextEntry < entries.size()) {
+            if (failure != null) {
+                for (int i = nextEntry; i < entries.size(); i++) {
+                    reportError(entries.get(i).getFilePath(), failure);
+                }
+                nextEntry = entries.size();
+            } else if (completedBundle != null) {
+                try {
+                    startPass(new FileInputStream(completedBundle));
+                    return;
+                } catch (final IOException ex) {
+                    Log.e(LOG_TAG, String.format("Couldn't read completed bundle '%s'.", bundleFilePath), ex);
+                    failure = ex;
+                    continueOrFinish();
+                    return;
+                }
+            } else {
+                // Wait for the download to complete or fail.
+                return;
+            }
+        }
+        if (completedBundle != null && completedBundle.exists() && !completedBundle.delete()) {
+            Log.w(LOG_TAG, String.format("Couldn't delete bundle '%s' after unpacking.", bundleFilePath));
+        }
+    }
+
+    /**
+     * Unpack entries from a stream of the downloaded part of the bundle, from its beginning.
+     *
+     * @param stream the stream.
+     */
+    private void unpack(final InputStream stream) {
+        long position = startOffset;
+        try {
+            while (true) {
+                final ContentBundle.Entry entry;
+                synchronized (this) {
+                    if (nextEntry >= entries.size()) {
+                        break;
+                    }
+                    entry = entries.get(nextEntry);
+                }
+                position = skipTo(stream, position, entry.getOffset());
+                final File unpackedFile = File.createTempFile(TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX, incomingDir);
+                try {
+                    copy(stream, unpackedFile, entry.getLength());
+                } catch (final IOException ex) {
+                    deleteQuietly(unpackedFile);
+                    throw ex;
+                }
+                position += entry.getLength();
+                synchronized (this) {
+                    nextEntry++;
+                }
+                addToCache(entry.getFilePath(), unpackedFile);
+            }
+        } catch (final IOException ex) {
+            // The download paused or failed; what happens next depends on how it ends.
+            Log.d(LOG_TAG, String.format("Stopped unpacking bundle '%s' at byte %d.", bundleFilePath, position), ex);
+        } finally {
+            closeQuietly(stream);
+            synchronized (this) {
+                source = null;
+                continueOrFinish();
+            }
+        }
+    }
+
+    private void addToCache(final String filePath, final File unpackedFile) {
+        final File cachedFile;
+        try {
+            cachedFile = localContentCache.addByMoving(filePath, unpackedFile);
+        } catch (final IOException ex) {
+            Log.e(LOG_TAG, String.format("Can't add file(%s) from bundle into the local cache.", filePath), ex);
+            reportError(filePath, ex);
+            return;
+        }
+        if (listener != null) {
+            ThreadUtils.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onSuccess(new FileContent(cachedFile, filePath));
+                }
+            });
+        }
+    }
+
+    private void reportError(final String filePath, final Exception ex) {
+        if (listener != null) {
+            ThreadUtils.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onError(filePath, ex);
+                }
+            });
+        }
+    }
+
+    private static long skipTo(final InputStream stream, final long position, final long offset)
+        throws IOException {
+        long current = position;
+        while (current < offset) {
+            final long skipped = stream.skip(offset - current);
+            if (skipped <= 0) {
+                if (stream.read() < 0) {
+                    throw new IOException("Bundle ended before offset " + offset);
+                }
+                current++;
+            } else {
+                current += skipped;
+            }
+        }
+        return current;
+    }
+
+    private static void copy(final InputStream stream, final File file, final long length) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                final int count = stream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (count < 0) {
+                    throw new IOException("Bundle ended in the middle of a file.");
+                }
+                out.write(buffer, 0, count);
+                remaining -= count;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void closeQuietly(final InputStream stream) {
+        try {
+            stream.close();
+        } catch (final IOException ex) {
+            Log.d(LOG_TAG, "Couldn't close bundle stream.", ex);
+        }
+    }
+
+    private static void deleteQuietly(final File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(LOG_TAG, "Couldn't delete partly unpacked file: " + file.getAbsolutePath());
+        }
+    }
+}
@@ -18,6 +18,7 @@ import com.dancingqueen.walladog.aws.downloader.HttpDownloadObserver;
 import com.dancingqueen.walladog.aws.downloader.HttpDownloadUtility;
 import com.dancingqueen.walladog.aws.downloader.ResponseHandler;
 import com.dancingqueen.walladog.aws.downloader.query.DownloadState;
+import com.dancingqueen.walladog.aws.downloader.service.DownloadStream;
 import com.dancingqueen.walladog.aws.util.StringFormatUtils;
 import com.dancingqueen.walladog.aws.util.ThreadUtils;
 
@@ -27,9 +28,18 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class CloudFrontTransferHelper implements TransferHelper, HttpDownloadListener {
     private static final String LOG_TAG = CloudFrontTransferHelper.class.getSimpleName();
+
+    /** The directory under the transfer path that bundles are downloaded to, so they aren't cached. */
+    private static final String BUNDLE_DIR = ".bundles" + DIR_DELIMITER;
+
+    /** How many bundles may be unpacked at once. */
+    private static final int MAX_CONCURRENT_UNPACKS = 2;
     /** Manages Http downloads. */
     private final HttpDownloadUtility downloadUtility;
 
@@ -42,6 +52,12 @@ public class CloudFrontTransferHelper implements TransferHelper, HttpDownloadLis
     /** Map from the download ID to the progress listener. */
     private final HashMap<Long, ContentProgressListener> progressListeners;
 
+    /** Map from the transfer's relative file path to the unpacker, for bundles being downloaded. */
+    private final HashMap<String, BundleUnpacker> bundleUnpackers;
+
+    /** Runs bundle unpackers. */
+    private final ExecutorService unpackExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_UNPACKS);
+
     /** http domain for retrieving content. */
     private final String cloudFrontDomain;
 
@@ -72,6 +88,7 @@ public class CloudFrontTransferHelper implements TransferHelper, HttpDownloadLis
         downloadsInProgress = new HashMap<>();
         managedFilesToDownloads = new HashMap<>();
         progressListeners = new HashMap<>();
+        bundleUnpackers = new HashMap<>();
 
         pollAndCleanUpTransfers();
     }
@@ -107,6 +124,14 @@ public class CloudFrontTransferHelper implements TransferHelper, HttpDownloadLis
 
                     // Add the completed item into our cache.
                     final String filePath = getRelativeFilePath(absolutePath);
+                    if (isBundleTransfer(filePath)) {
+                        // Nothing is waiting to unpack a bundle from before a restart.
+                        if (!completedFile.delete()) {
+                            Log.w(LOG_TAG, String.format("Couldn't delete bundle '%s'.", filePath));
+                        }
+                        downloadUtility.removeFinishedDownload(observer.getId(), null);
+                        break;
+                    }
                     try {
                         localContentCache.addByMoving(filePath, completedFile);
                     } catch (IOException ex) {
@@ -167,8 +192,22 @@ public class CloudFrontTransferHelper implements TransferHelper, HttpDownloadLis
         }
     }
 
-    private boolean startTransfer(final String relativeFilePath, final long fileSize,
+    private boolean startTransfer(final String relativeFilePath, final long fileSize, final boolean background,
                                   final ContentProgressListener listener) {
+        return startTransfer(relativeFilePath, -1, fileSize, background, listener);
+    }
+
+    /**
+     * Start downloading a file, or a range of its bytes.
+     * @param relativeFilePath the relative path and name of the file.
+     * @param rangeFirst the offset of the first byte of the range to download, or -1 for the whole file.
+     * @param fileSize the size of the file, or of the range, which is counted as transferring.
+     * @param background whether the download only gets the bandwidth interactive downloads leave unused.
+     * @param listener the progress listener.
+     * @return true if the download was requested.
+     */
+    private boolean startTransfer(final String relativeFilePath, final long rangeFirst, final long fileSize,
+                                  final boolean background, final ContentProgressListener listener) {
         sizeTransferring += fileSize;
 
         final URI uri;
@@ -185,37 +224,43 @@ public class CloudFrontTransferHelper implements TransferHelper, HttpDownloadLis
             return false;
         }
 
-        downloadUtility.download(uri, localTransferPath + relativeFilePath, relativeFilePath,
-            new ResponseHandler() {
-                @Override
-                public void onSuccess(long downloadId) {
-                    final HttpDownloadObserver observer
-                        = downloadUtility.getDownloadById(downloadId);
-                    synchronized (this) {
-                        // Set the progress listener for the transfer
-                        progressListeners.put(downloadId, listener);
-
-                        downloadsInProgress.put(downloadId, observer);
-                        managedFilesToDownloads.put(relativeFilePath, downloadId);
-                    }
-                    observer.setDownloadListener(CloudFrontTransferHelper.this);
-
-                    // Transfers get created in a NOT_STARTED state, which doesn't initially cause
-                    // a state change.
-                    onStateChanged(downloadId, observer.getState());
+        final ResponseHandler responseHandler = new ResponseHandler() {
+            @Override
+            public void onSuccess(long downloadId) {
+                final HttpDownloadObserver observer
+                    = downloadUtility.getDownloadById(downloadId);
+                synchronized (this) {
+                    // Set the progress listener for the transfer
+                    progressListeners.put(downloadId, listener);
+
+                    downloadsInProgress.put(downloadId, observer);
+                    managedFilesToDownloads.put(relativeFilePath, downloadId);
                 }
+                observer.setDownloadListener(CloudFrontTransferHelper.this);
 
-                @Override
-                public void onError(final String errorMessage) {
-                    Log.d(LOG_TAG, errorMessage);
-                    ThreadUtils.runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            listener.onError(relativeFilePath, new IOException(errorMessage));
-                        }
-                    });
-                }
-            }, this);
+                // Transfers get created in a NOT_STARTED state, which doesn't initially cause
+                // a state change.
+                onStateChanged(downloadId, observer.getState());
+            }
+
+            @Override
+            public void onError(final String errorMessage) {
+                Log.d(LOG_TAG, errorMessage);
+                ThreadUtils.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onError(relativeFilePath, new IOException(errorMessage));
+                    }
+                });
+            }
+        };
+        if (rangeFirst >= 0) {
+            downloadUtility.downloadRange(uri, rangeFirst, rangeFirst + fileSize - 1,
+                localTransferPath + relativeFilePath, relativeFilePath, !background, responseHandler, this);
+        } else {
+            downloadUtility.download(uri, localTransferPath + relativeFilePath, relativeFilePath, !background,
+                responseHandler, this);
+        }
 
         return true;
     }
@@ -225,14 +270,27 @@ public class CloudFrontTransferHelper implements TransferHelper, HttpDownloadLis
      * @param fileSize file size of the object. Pass 0 if the file size is unknown.
      * @param listener the progress listener.
      */
+    public void download(final String relativeFilePath, final long fileSize,
+                         final ContentProgressListener listener) {
+        download(relativeFilePath, fileSize, false, listener);
+    }
+
+    /**
+     * Download a file to be placed in the local content cache upon completion.
+     * @param relativeFilePath the relative path and name of the file to download.
+     * @param fileSize file size of the object. Pass 0 if the file size is unknown.
+     * @param background true to download using only bandwidth that interactive downloads leave unused.
+     * @param listener the progress listener.
+     */
+    @Override
     public synchronized void download(final String relativeFilePath, final long fileSize,
-                                      final ContentProgressListener listener) {
+                                      final boolean background, final ContentProgressListener listener) {
         final Long downloadId = managedFilesToDownloads.get(relativeFilePath);
         // if this item is not in the currently managed transfers.
         if (downloadId == null) {
             try {
                 // download the item.
-                if (!startTransfer(relativeFilePath, fileSize, listener)) {
+                if (!startTransfer(relativeFilePath, fileSize, background, listener)) {
                     return;
                 }
             } catch (final IllegalStateException ex) {
@@ -251,6 +309,111 @@ public class CloudFrontTransferHelper implements TransferHelper, HttpDownloadLis
         downloadUtility.resume(downloadId, null);
     }
 
+    /**
+     * Open a stream of a file's bytes as they are downloaded, so it can be decoded progressively. Call
+     * this before or just after download(), since a stream opened once the download has finished never
+     * receives any bytes.
+     * The file still goes into the local content cache once complete.
+     * @param relativeFilePath the relative path and name of the file being downloaded.
+     * @return the stream, which must be closed by the caller.
+     */
+    public DownloadStream openStream(final String relativeFilePath) {
+        return downloadUtility.openStream(localTransferPath + relativeFilePath);
+    }
+
+    /**
+     * Download a bundle of small files with one request, and unpack them into the local content cache
+     * as the bundle's bytes arrive. Only the range of the bundle from the first file's bytes to the last
+     * file's is requested. The bundle itself isn't cached. The listener's onSuccess is called
+     * for each file once it is cached, and its onProgressUpdate with the progress of the whole bundle.
+     * @param bundleFilePath the relative path and name of the bundle.
+     * @param entries the files to unpack from the bundle, in order of their offsets.
+     * @param listener the progress listener.
+     */
+    public synchronized void downloadBundle(final String bundleFilePath, final List<ContentBundle.Entry> entries,
+                                            final ContentProgressListener listener) {
+        final String transferFilePath = BUNDLE_DIR + bundleFilePath;
+        if (bundleUnpackers.containsKey(transferFilePath)) {
+            // The bundle is already being downloaded for another request, so fetch these files on their own.
+            Log.d(LOG_TAG, String.format("Bundle '%s' is already downloading, downloading files separately.",
+                bundleFilePath));
+            for (final ContentBundle.Entry entry : entries) {
+                download(entry.getFilePath(), entry.getLength(), listener);
+            }
+            return;
+        }
+
+        final long rangeFirst = entries.get(0).getOffset();
+        long rangeEnd = rangeFirst;
+        for (final ContentBundle.Entry entry : entries) {
+            rangeEnd = Math.max(rangeEnd, entry.getOffset() + entry.getLength());
+        }
+        if (rangeEnd == rangeFirst) {
+            // Only empty files are missing, which leaves no range of the bundle to ask for.
+            for (final ContentBundle.Entry entry : entries) {
+                download(entry.getFilePath(), entry.getLength(), listener);
+            }
+            return;
+        }
+
+        final BundleUnpacker unpacker = new BundleUnpacker(bundleFilePath, entries, rangeFirst,
+            new File(localTransferPath), localContentCache, listener, unpackExecutor);
+        bundleUnpackers.put(transferFilePath, unpacker);
+        // Open the stream before the download starts, so that no bytes are missed.
+        unpacker.start(openStream(transferFilePath));
+        startTransfer(transferFilePath, rangeFirst, rangeEnd - rangeFirst, false,
+            new BundleTransferListener(transferFilePath, bundleFilePath, listener));
+    }
+
+    /**
+     * @param relativeFilePath the relative file path of a transfer.
+     * @return true if the transfer is of a bundle.
+     */
+    private static boolean isBundleTransfer(final String relativeFilePath) {
+        return relativeFilePath.startsWith(BUNDLE_DIR);
+    }
+
+    private synchronized BundleUnpacker removeBundleUnpacker(final String transferFilePath) {
+        return bundleUnpackers.remove(transferFilePath);
+    }
+
+    /**
+     * Reports a bundle download's progress as the bundle's, and its failure to the bundle's unpacker.
+     */
+    private class BundleTransferListener implements ContentProgressListener {
+        private final String transferFilePath;
+        private final String bundleFilePath;
+        private final ContentProgressListener listener;
+
+        BundleTransferListener(final String transferFilePath, final String bundleFilePath,
+                               final ContentProgressListener listener) {
+            this.transferFilePath = transferFilePath;
+            this.bundleFilePath = bundleFilePath;
+            this.listener = listener;
+        }
+
+        @Override
+        public void onSuccess(final ContentItem contentItem) {
+            // Bundles aren't cached, their files are reported by the unpacker.
+        }
+
+        @Override
+        public void onProgressUpdate(final String filePath, final boolean isWaiting, final long bytesCurrent,
+                                     final long bytesTotal) {
+            if (listener != null) {
+                listener.onProgressUpdate(bundleFilePath, isWaiting, bytesCurrent, bytesTotal);
+            }
+        }
+
+        @Override
+        public void onError(final String filePath, final Exception ex) {
+            final BundleUnpacker unpacker = removeBundleUnpacker(transferFilePath);
+            if (unpacker != null) {
+                unpacker.bundleFailed(ex);
+            }
+        }
+    }
+
     @Override
     public void upload(final File file, final String filePath, final ContentProgressListener listener) {
         throw new UnsupportedOperationException("Upload unsupported.");
@@ -270,7 +433,7 @@ public class CloudFrontTransferHelper implements TransferHelper, HttpDownloadLis
                 progressListeners.put(downloadId, listener);
 
                 if (currentListener != listener) {
-                    observer.refresh();
+                    // The observer is kept current by the download utility, so this needs no query.
                     final DownloadState downloadState = observer.getState();
 
                     if (downloadState == DownloadState.PAUSED ||
@@ -304,14 +467,25 @@ public class CloudFrontTransferHelper implements TransferHelper, HttpDownloadLis
         if (downloadId == null) {
             return null;
         }
-        final HttpDownloadObserver observer = downloadsInProgress.get(downloadId);
-        observer.refresh();
-        return observer.getState();
+        // The observer is kept current by the download utility, so this needs no query.
+        return downloadsInProgress.get(downloadId).getState();
     }
 
     public boolean isTransferWaiting(final String relativeFilePath) {
         final DownloadState state = getTransferState(relativeFilePath);
-        return (DownloadState.PAUSED.equals(state) || DownloadState.NOT_STARTED.equals(state));
+        return isWaiting(state);
+    }
+
+    private static boolean isWaiting(final DownloadState state) {
+        return DownloadState.PAUSED.equals(state) || DownloadState.NOT_STARTED.equals(state);
+    }
+
+    public synchronized Map<String, Boolean> getTransfersWaiting() {
+        final Map<String, Boolean> transfersWaiting = new HashMap<>(managedFilesToDownloads.size());
+        for (final Map.Entry<String, Long> entry : managedFilesToDownloads.entrySet()) {
+            transfersWaiting.put(entry.getKey(), isWaiting(downloadsInProgress.get(entry.getValue()).getState()));
+        }
+        return transfersWaiting;
     }
 
     public synchronized void clearProgressListeners() {
@@ -351,6 +525,16 @@ public class CloudFrontTransferHelper implements TransferHelper, HttpDownloadLis
             // Add the completed item to our cache.
             final File cachedFile;
             final String relativeFilePath = getRelativeFilePath(absolutePath);
+            if (isBundleTransfer(relativeFilePath)) {
+                // Hand the bundle to its unpacker, which deletes it once done.
+                final BundleUnpacker unpacker = removeBundleUnpacker(relativeFilePath);
+                if (unpacker != null) {
+                    unpacker.bundleCompleted(completedFile);
+                } else if (!completedFile.delete()) {
+                    Log.w(LOG_TAG, String.format("Couldn't delete bundle '%s'.", relativeFilePath));
+                }
+                return;
+            }
             try {
                 cachedFile = localContentCache.addByMoving(relativeFilePath, completedFile);
             } catch (final IOException ex) {
@@ -381,7 +565,6 @@ public class CloudFrontTransferHelper implements TransferHelper, HttpDownloadLis
             final ContentProgressListener listener = progressListeners.get(id);
             if (listener != null) {
                 final HttpDownloadObserver observer = downloadsInProgress.get(id);
-                observer.refresh();
                 final String filePath = getRelativeFilePath(observer.getAbsoluteFilePath());
                 // Ensure this happens from the UI thread.
                 ThreadUtils.runOnUiThread(new Runnable() {
@@ -482,5 +665,6 @@ public class CloudFrontTransferHelper implements TransferHelper, HttpDownloadLis
         deRegisterObservers();
         downloadsInProgress.clear();
         managedFilesToDownloads.clear();
+        unpackExecutor.shutdownNow();
     }
 }
@@ -0,0 +1,132 @@
+package com.dancingqueen.walladog.aws.content;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A bundle is a single remote file holding many small files, such as thumbnails, one after another,
+ * so that they can all be fetched with one request. The files in it are described by a manifest stored
+ * next to the bundle, with the same name plus {@link #MANIFEST_SUFFIX}.
+ *
+ * The manifest is UTF-8 text with a line for each file: its offset in the bundle, its length, and its
+ * relative path and file name, separated by single spaces. Blank lines and lines starting with '#'
+ * are ignored.
+ */
+/* package */ final class ContentBundle {
+
+    /** The suffix of a bundle's manifest file name. */
+    /* package */ static final String MANIFEST_SUFFIX = ".manifest";
+
+    /** The character starting a comment line. */
+    private static final String COMMENT_PREFIX = "#";
+
+    /** A file in a bundle. */
+    /* package */ static final class Entry {
+        private final String filePath;
+        private final long offset;
+        private final long length;
+
+        /* package */ Entry(final String filePath, final long offset, final long length) {
+            this.filePath = filePath;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /** @return the relative path and file name. */
+        /* package */ String getFilePath() {
+            return filePath;
+        }
+
+        /** @return the offset of the file's first byte in the bundle. */
+        /* package */ long getOffset() {
+            return offset;
+        }
+
+        /** @return the length of the file in bytes. */
+        /* package */ long getLength() {
+            return length;
+        }
+    }
+
+    /** Orders entries by where they are in the bundle. */
+    private static final Comparator<Entry> compareEntriesByOffset = new Comparator<Entry>() {
+        @Override
+        public int compare(final Entry lhs, final Entry rhs) {
+            if (lhs.offset != rhs.offset) {
+                return lhs.offset < rhs.offset ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
+    /**
+     * Constructor, not called.
+     */
+    private ContentBundle() {
+    }
+
+    /**
+     * @param bundleFilePath the relative path and file name of a bundle.
+     * @return the relative path and file name of its manifest.
+     */
+    /* package */ static String getManifestFilePath(final String bundleFilePath) {
+        return bundleFilePath + MANIFEST_SUFFIX;
+    }
+
+    /**
+     * Read a bundle's manifest.
+     *
+     * @param manifestFile the manifest.
+     * @return the entries in order of their offsets in the bundle.
+     * @throws IOException if the manifest can't be read, is malformed, or has overlapping entries.
+     */
+    /* package */ static List<Entry> parseManifest(final File manifestFile) throws IOException {
+        final List<Entry> entries = new ArrayList<>();
+        final BufferedReader reader = new BufferedReader(
+            new InputStreamReader(new FileInputStream(manifestFile), "UTF-8"));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || line.startsWith(COMMENT_PREFIX)) {
+                    continue;
+                }
+                final String[] fields = line.split(" ", 3);
+                if (fields.length != 3 || fields[2].isEmpty()) {
+                    throw new IOException(String.format("Malformed bundle manifest line %d.", lineNumber));
+                }
+                try {
+                    final long offset = Long.parseLong(fields[0]);
+                    final long length = Long.parseLong(fields[1]);
+                    if (offset < 0 || length < 0) {
+                        throw new IOException(String.format("Negative offset or length on bundle manifest line %d.",
+                            lineNumber));
+                    }
+                    entries.add(new Entry(fields[2], offset, length));
+                } catch (final NumberFormatException ex) {
+                    throw new IOException(String.format("Malformed bundle manifest line %d.", lineNumber), ex);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        Collections.sort(entries, compareEntriesByOffset);
+        for (int i = 1; i < entries.size(); i++) {
+            final Entry previous = entries.get(i - 1);
+            if (previous.offset + previous.length > entries.get(i).offset) {
+                throw new IOException(String.format("Bundle manifest entries for '%s' and '%s' overlap.",
+                    previous.filePath, entries.get(i).filePath));
+            }
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,290 @@
+package com.dancingqueen.walladog.aws.content;
+
+import android.util.Log;
+
+import com.dancingqueen.walladog.aws.util.S3Utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The remote files managed by a content manager as of the last sync, kept in memory in the order S3
+ * lists keys and saved to disk, so that content can be listed locally instead of from S3.
+ *
+ * The catalog is saved as a UTF-8 text file whose first line is a version header, followed by a line
+ * for each file in the same form as a {@link ListingCache} listing. The time of the last sync is the
+ * file's last modified time.
+ */
+/* package */ class ContentCatalog {
+    private static final String LOG_TAG = ContentCatalog.class.getSimpleName();
+
+    /** The first line of a catalog file. */
+    private static final String CATALOG_HEADER = "catalog\t1";
+
+    /** Separates the fields of a line. */
+    private static final String FIELD_SEPARATOR = "\t";
+
+    /** Marks the line of an object. */
+    private static final String OBJECT_ENTRY = "F";
+
+    /** A remote file's attributes. Entries are never changed, so they may be shared with readers. */
+    private static final class Entry {
+        private final long size;
+        private final long lastModifiedTime;
+        private final String eTag;
+
+        private Entry(final long size, final long lastModifiedTime, final String eTag) {
+            this.size = size;
+            this.lastModifiedTime = lastModifiedTime;
+            this.eTag = eTag;
+        }
+
+        private boolean isSame(final Entry other) {
+            return size == other.size && lastModifiedTime == other.lastModifiedTime &&
+                (eTag == null ? other.eTag == null : eTag.equals(other.eTag));
+        }
+    }
+
+    /** The changes a sync made to the catalog, by relative file path. */
+    /* package */ static final class Changes {
+        /* package */ final List<String> addedFilePaths = new ArrayList<>();
+        /* package */ final List<String> changedFilePaths = new ArrayList<>();
+        /* package */ final List<String> removedFilePaths = new ArrayList<>();
+
+        /* package */ boolean isEmpty() {
+            return addedFilePaths.isEmpty() && changedFilePaths.isEmpty() && removedFilePaths.isEmpty();
+        }
+    }
+
+    private final File catalogFile;
+
+    /** The files by relative path. Replaced as a whole by each sync, and never changed once published. */
+    private volatile TreeMap<String, Entry> entries = new TreeMap<>(S3Utils.KEY_ORDER);
+
+    /** Whether the catalog has been synced, now or before the content manager was created. */
+    private volatile boolean isSynced;
+
+    /**
+     * Construct an empty catalog. {@link #load()} reads the last sync's catalog.
+     *
+     * @param catalogFilePath the file to keep the catalog in.
+     */
+    /* package */ ContentCatalog(final String catalogFilePath) {
+        catalogFile = new File(catalogFilePath);
+    }
+
+    /**
+     * Read the last sync's catalog, if there is one. This reads the file system, so it should be
+     * called off of the main thread.
+     *
+     * @throws IOException if the catalog couldn't be read, in which case the catalog stays empty.
+     */
+    /* package */ void load() throws IOException {
+        if (catalogFile.exists()) {
+            entries = readCatalog(catalogFile);
+            isSynced = true;
+        }
+    }
+
+    /**
+     * @return true if the catalog has been synced, so that listing it reflects the remote content.
+     */
+    /* package */ boolean isSynced() {
+        return isSynced;
+    }
+
+    /**
+     * @return the time in milliseconds of the last sync, or zero if there hasn't been one.
+     */
+    /* package */ long getSyncTime() {
+        return isSynced ? catalogFile.lastModified() : 0;
+    }
+
+    /**
+     * Get the ETag a file had as of the last sync. This only reads memory.
+     *
+     * @param filePath the relative path of the file.
+     * @return the ETag, or null if the file isn't in the catalog or its ETag isn't known.
+     */
+    /* package */ String getETag(final String filePath) {
+        final Entry entry = entries.get(filePath);
+        return entry == null ? null : entry.eTag;
+    }
+
+    /**
+     * Check whether a file was in the remote content as of the last sync. This only reads memory.
+     *
+     * @param filePath the relative path of the file.
+     * @return true if the file is in the catalog.
+     */
+    /* package */ boolean contains(final String filePath) {
+        return entries.containsKey(filePath);
+    }
+
+    /**
+     * List the catalog under a prefix, as S3 would list it. This only reads memory.
+     *
+     * @param prefix the relative path prefix.
+     * @param delimiter the delimiter, or null to list everything under the prefix.
+     * @param includeDirectories whether to include directories.
+     * @return new summaries for the files and directories, in order of their paths.
+     */
+    /* package */ List<S3ContentSummary> list(final String prefix, final String delimiter,
+                                              final boolean includeDirectories) {
+        final TreeMap<String, Entry> catalog = entries;
+        final String listPrefix = prefix == null ? "" : prefix;
+        final List<S3ContentSummary> summaries = new ArrayList<>();
+        Map.Entry<String, Entry> entry = catalog.ceilingEntry(listPrefix);
+        while (entry != null && entry.getKey().startsWith(listPrefix)) {
+            final String filePath = entry.getKey();
+            final int delimiterIndex = delimiter == null ? -1 : filePath.indexOf(delimiter, listPrefix.length());
+            if (delimiterIndex >= 0) {
+                // Everything under the sub-folder is summarized by the folder.
+                final String folder = filePath.substring(0, delimiterIndex + delimiter.length());
+                if (includeDirectories) {
+                    summaries.add(new S3ContentSummary(folder));
+                }
+                final int last = folder.length() - 1;
+                entry = catalog.ceilingEntry(folder.substring(0, last) + (char) (folder.charAt(last) + 1));
+                continue;
+            }
+            final Entry file = entry.getValue();
+            summaries.add(new S3ContentSummary(filePath, file.size, file.lastModifiedTime, file.eTag));
+            entry = catalog.higherEntry(filePath);
+        }
+        return summaries;
+    }
+
+    /**
+     * Replace the catalog with a complete listing, and save it.
+     *
+     * @param summaries every remote file. Directories are ignored.
+     * @return the changes from the catalog that was replaced.
+     */
+    /* package */ synchronized Changes replace(final Iterable<S3ContentSummary> summaries) {
+        final TreeMap<String, Entry> newEntries = new TreeMap<>(S3Utils.KEY_ORDER);
+        for (final S3ContentSummary summary : summaries) {
+            if (!ContentState.REMOTE_DIRECTORY.equals(summary.getContentState())) {
+                newEntries.put(summary.getFilePath(),
+                    new Entry(summary.getSize(), summary.getLastModifiedTime(), summary.getETag()));
+            }
+        }
+
+        final Changes changes = compare(entries, newEntries);
+        entries = newEntries;
+        isSynced = true;
+        if (changes.isEmpty() && catalogFile.exists()) {
+            // Only record the time of the sync.
+            if (!catalogFile.setLastModified(System.currentTimeMillis())) {
+                Log.w(LOG_TAG, "Couldn't update the time of catalog: " + catalogFile.getAbsolutePath());
+            }
+            return changes;
+        }
+
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile("catalog", ".tmp", catalogFile.getParentFile());
+            writeCatalog(newEntries, tempFile);
+            if (!tempFile.renameTo(catalogFile)) {
+                throw new IOException("Couldn't rename catalog to: " + catalogFile.getAbsolutePath());
+            }
+        } catch (final IOException ex) {
+            Log.w(LOG_TAG, "Couldn't save catalog.", ex);
+            if (tempFile != null && !tempFile.delete()) {
+                Log.w(LOG_TAG, "Couldn't delete: " + tempFile.getAbsolutePath());
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Compare two catalogs in a single pass, since both are in the same order.
+     */
+    private static Changes compare(final TreeMap<String, Entry> oldEntries, final TreeMap<String, Entry> newEntries) {
+        final Changes changes = new Changes();
+        final Iterator<Map.Entry<String, Entry>> oldIter = oldEntries.entrySet().iterator();
+        final Iterator<Map.Entry<String, Entry>> newIter = newEntries.entrySet().iterator();
+        Map.Entry<String, Entry> oldEntry = oldIter.hasNext() ? oldIter.next() : null;
+        Map.Entry<String, Entry> newEntry = newIter.hasNext() ? newIter.next() : null;
+        while (oldEntry != null || newEntry != null) {
+            final int comparison;
+            if (oldEntry == null) {
+                comparison = 1;
+            } else if (newEntry == null) {
+                comparison = -1;
+            } else {
+                comparison = S3Utils.KEY_ORDER.compare(oldEntry.getKey(), newEntry.getKey());
+            }
+            if (comparison < 0) {
+                changes.removedFilePaths.add(oldEntry.getKey());
+                oldEntry = oldIter.hasNext() ? oldIter.next() : null;
+            } else if (comparison > 0) {
+                changes.addedFilePaths.add(newEntry.getKey());
+                newEntry = newIter.hasNext() ? newIter.next() : null;
+            } else {
+                if (!oldEntry.getValue().isSame(newEntry.getValue())) {
+                    changes.changedFilePaths.add(newEntry.getKey());
+                }
+                oldEntry = oldIter.hasNext() ? oldIter.next() : null;
+                newEntry = newIter.hasNext() ? newIter.next() : null;
+            }
+        }
+        return changes;
+    }
+
+    private static void writeCatalog(final TreeMap<String, Entry> catalog, final File file) throws IOException {
+        final BufferedWriter writer = new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            writer.write(CATALOG_HEADER);
+            writer.newLine();
+            for (final Map.Entry<String, Entry> entry : catalog.entrySet()) {
+                final Entry fileEntry = entry.getValue();
+                writer.write(OBJECT_ENTRY + FIELD_SEPARATOR + fileEntry.size + FIELD_SEPARATOR +
+                    fileEntry.lastModifiedTime + FIELD_SEPARATOR + (fileEntry.eTag == null ? "" : fileEntry.eTag) +
+                    FIELD_SEPARATOR + entry.getKey());
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static TreeMap<String, Entry> readCatalog(final File file) throws IOException {
+        final BufferedReader reader = new BufferedReader(
+            new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            if (!CATALOG_HEADER.equals(reader.readLine())) {
+                throw new IOException("Unknown catalog version.");
+            }
+            final TreeMap<String, Entry> catalog = new TreeMap<>(S3Utils.KEY_ORDER);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(FIELD_SEPARATOR, 5);
+                if (fields.length != 5 || !OBJECT_ENTRY.equals(fields[0])) {
+                    throw new IOException("Malformed catalog line: " + line);
+                }
+                try {
+                    catalog.put(fields[4], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                        fields[3].isEmpty() ? null : fields[3]));
+                } catch (final NumberFormatException ex) {
+                    throw new IOException("Malformed catalog line: " + line, ex);
+                }
+            }
+            return catalog;
+        } finally {
+            reader.close();
+        }
+    }
+}
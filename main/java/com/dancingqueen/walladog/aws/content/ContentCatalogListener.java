@@ -0,0 +1,25 @@
+package com.dancingqueen.walladog.aws.content;
+
+import java.util.List;
+
+/** Listener for changes found by syncing a content manager's catalog with the remote content. */
+public interface ContentCatalogListener {
+    /**
+     * Called on the main thread after a sync that changed the catalog. Listing the catalog already
+     * reflects the changes when this is called.
+     *
+     * @param addedFilePaths the relative paths of files that are new.
+     * @param changedFilePaths the relative paths of files that have a new version.
+     * @param removedFilePaths the relative paths of files that are no longer available.
+     */
+    void onCatalogChanged(List<String> addedFilePaths, List<String> changedFilePaths,
+                          List<String> removedFilePaths);
+
+    /**
+     * Called on the main thread if a sync fails. The catalog is left as it was, and the next
+     * scheduled sync tries again.
+     *
+     * @param ex the error.
+     */
+    void onSyncError(Exception ex);
+}
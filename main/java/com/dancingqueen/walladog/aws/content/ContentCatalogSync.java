@@ -0,0 +1,212 @@
+package com.dancingqueen.walladog.aws.content;
+
+import android.util.Log;
+
+import com.amazonaws.AmazonClientException;
+import com.dancingqueen.walladog.aws.util.ThreadUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Syncs a content manager's catalog with the remote content, on a schedule or on demand, and tells
+ * listeners what changed. Syncs run one at a time on their own thread.
+ *
+ * A sync reads the content manifest if the content manager has one, refreshing it first, and otherwise
+ * lists everything under the content manager's folder in S3. The catalog is only replaced by a
+ * complete listing, so a failed sync leaves it as it was.
+ */
+/* package */ class ContentCatalogSync implements Runnable {
+    private static final String LOG_TAG = ContentCatalogSync.class.getSimpleName();
+
+    /** The longest a sync waits for the content manifest to be refreshed, in milliseconds. */
+    private static final long MANIFEST_REFRESH_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
+    private final ContentManager contentManager;
+    private final ContentCatalog catalog;
+    private final ScheduledExecutorService syncExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final Set<ContentCatalogListener> listeners = new CopyOnWriteArraySet<>();
+
+    /** The scheduled syncs, or null if syncs aren't scheduled. Guarded by this. */
+    private ScheduledFuture<?> scheduledSync;
+
+    /**
+     * @param contentManager the content manager whose content to sync.
+     * @param catalog the catalog to sync.
+     */
+    /* package */ ContentCatalogSync(final ContentManager contentManager, final ContentCatalog catalog) {
+        this.contentManager = contentManager;
+        this.catalog = catalog;
+    }
+
+    /**
+     * Sync now and then repeatedly, replacing any schedule already started.
+     * @param interval the time in milliseconds from the end of one sync to the start of the next.
+     */
+    /* package */ synchronized void start(final long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Sync interval must be positive: " + interval);
+        }
+        stop();
+        scheduledSync = syncExecutor.scheduleWithFixedDelay(this, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop scheduled syncs. A sync that has started is allowed to finish.
+     */
+    /* package */ synchronized void stop() {
+        if (scheduledSync != null) {
+            scheduledSync.cancel(false);
+            scheduledSync = null;
+        }
+    }
+
+    /**
+     * Sync once, after any sync that is running.
+     */
+    /* package */ void syncNow() {
+        syncExecutor.execute(this);
+    }
+
+    /**
+     * Stop syncing for good.
+     */
+    /* package */ void shutdown() {
+        stop();
+        syncExecutor.shutdownNow();
+    }
+
+    /* package */ void addListener(final ContentCatalogListener listener) {
+        listeners.add(listener);
+    }
+
+    /* package */ void removeListener(final ContentCatalogListener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public void run() {
+        // Nothing may escape, since an exception would cancel the scheduled syncs.
+        try {
+            final List<S3ContentSummary> summaries = contentManager.isContentManifestSet() ?
+                listManifest() : listBucket();
+            final ContentCatalog.Changes changes = catalog.replace(summaries);
+            updateSearchIndex(summaries);
+            Log.d(LOG_TAG, String.format("Synced catalog: %d added, %d changed, %d removed.",
+                changes.addedFilePaths.size(), changes.changedFilePaths.size(), changes.removedFilePaths.size()));
+            if (!changes.isEmpty()) {
+                notifyChanged(changes);
+            }
+        } catch (final InterruptedException ex) {
+            Log.d(LOG_TAG, "Catalog sync interrupted.");
+        } catch (final Exception ex) {
+            Log.e(LOG_TAG, "Couldn't sync catalog: " + ex.getMessage(), ex);
+            notifyError(ex);
+        }
+    }
+
+    /**
+     * Make the synced content searchable, and stop finding content that is no longer available.
+     */
+    private void updateSearchIndex(final List<S3ContentSummary> summaries) {
+        final ContentSearchIndex searchIndex = contentManager.getSearchIndex();
+        // Files already indexed with the same attributes are skipped by the index.
+        for (final S3ContentSummary summary : summaries) {
+            searchIndex.add(summary);
+        }
+        // This also drops files that were only listed, and were deleted before they reached the catalog.
+        for (final String filePath : searchIndex.getFilePaths()) {
+            contentManager.removeFromSearchIndex(filePath);
+        }
+    }
+
+    private List<S3ContentSummary> listBucket() {
+        final AmazonClientException[] listingException = new AmazonClientException[1];
+        final String s3DirPrefix = contentManager.getS3DirPrefix();
+        final S3WholeBucketIterator s3Iter = new S3WholeBucketIterator(contentManager.getS3Client(),
+            contentManager.getS3bucket(), s3DirPrefix, s3DirPrefix, null, false, true, null,
+            new S3WholeBucketIterator.S3ListErrorHandler() {
+                @Override
+                public void onError(final AmazonClientException ex) {
+                    listingException[0] = ex;
+                }
+            });
+        final List<S3ContentSummary> summaries = new ArrayList<>();
+        for (final S3ContentSummary summary : s3Iter) {
+            summaries.add(summary);
+        }
+        if (listingException[0] != null) {
+            throw listingException[0];
+        }
+        return summaries;
+    }
+
+    private List<S3ContentSummary> listManifest() throws Exception {
+        final CountDownLatch refreshed = new CountDownLatch(1);
+        final Exception[] refreshException = new Exception[1];
+        contentManager.refreshContentManifest(new ContentProgressListener() {
+            @Override
+            public void onSuccess(final ContentItem contentItem) {
+                refreshed.countDown();
+            }
+
+            @Override
+            public void onProgressUpdate(final String filePath, final boolean isWaiting,
+                                         final long bytesCurrent, final long bytesTotal) {
+            }
+
+            @Override
+            public void onError(final String filePath, final Exception ex) {
+                refreshException[0] = ex;
+                refreshed.countDown();
+            }
+        });
+        if (!refreshed.await(MANIFEST_REFRESH_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            throw new TimeoutException(String.format("The content manifest wasn't refreshed within %d seconds.",
+                TimeUnit.MILLISECONDS.toSeconds(MANIFEST_REFRESH_TIMEOUT)));
+        }
+        if (refreshException[0] != null) {
+            throw refreshException[0];
+        }
+        final ContentManifest manifest = contentManager.getContentManifest();
+        if (manifest == null) {
+            throw new IllegalStateException("The content manifest was removed while syncing.");
+        }
+        final List<S3ContentSummary> summaries = new ArrayList<>();
+        for (final S3ContentSummary summary : manifest.list("", null, false)) {
+            summaries.add(summary);
+        }
+        return summaries;
+    }
+
+    private void notifyChanged(final ContentCatalog.Changes changes) {
+        ThreadUtils.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                for (final ContentCatalogListener listener : listeners) {
+                    listener.onCatalogChanged(changes.addedFilePaths, changes.changedFilePaths,
+                        changes.removedFilePaths);
+                }
+            }
+        });
+    }
+
+    private void notifyError(final Exception ex) {
+        ThreadUtils.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                for (final ContentCatalogListener listener : listeners) {
+                    listener.onSyncError(ex);
+                }
+            }
+        });
+    }
+}
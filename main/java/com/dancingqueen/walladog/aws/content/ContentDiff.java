@@ -0,0 +1,217 @@
+package com.dancingqueen.walladog.aws.content;
+
+import com.dancingqueen.walladog.aws.util.S3Utils;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Compares a remote listing with the local content cache under the same prefix, one file at a time.
+ *
+ * The remote listing and the cache's index are both walked in the order S3 lists keys, and joined as
+ * they go, so neither side is collected first. The local side is read from the sizes and times the
+ * cache recorded, without checking the file system, so a file removed behind the cache's back is
+ * still reported until the cache notices it is missing.
+ *
+ * The files in the remote listing must be in the order S3 lists them. Directories in the listing may
+ * come in any order, since they are passed through without being joined.
+ */
+/* package */ final class ContentDiff {
+
+    /** How a file differs between the remote listing and the local cache. */
+    /* package */ enum Change {
+        /** The file is only remote, or is a remote directory. */
+        ADDED,
+        /** The file is cached and the remote file is different. */
+        CHANGED,
+        /** The file is only cached. */
+        REMOVED,
+        /** The file is cached and the remote file is the same. */
+        UNCHANGED
+    }
+
+    /** The cached files a diff joins the remote listing with, which the local content cache provides. */
+    /* package */ interface LocalIndex {
+        /**
+         * Get the cached file at or after a path, in the order S3 lists keys.
+         * @param filePath the path to start from.
+         * @param isInclusive whether to return the file at the path itself, if it is cached.
+         * @return the file, or null if there are no more cached files.
+         */
+        FileContent getNextFile(String filePath, boolean isInclusive);
+
+        /**
+         * @param filePath the relative path of a cached file.
+         * @return the ETag the file was cached with, or null if it isn't known.
+         */
+        String getETag(String filePath);
+    }
+
+    private final Iterator<S3ContentSummary> remoteSummaries;
+    private final LocalIndex localIndex;
+    private final String prefix;
+    private final String delimiter;
+
+    /** The next remote summary, read but not yet joined, or null. */
+    private S3ContentSummary nextRemote;
+    /** The next cached file under the prefix, or null if there are no more. */
+    private FileContent nextLocal;
+
+    private Change change;
+    private S3ContentSummary remote;
+    private FileContent local;
+
+    /**
+     * @param remoteSummaries the remote listing, relative to the same folder as the cache.
+     * @param localIndex the cached files, usually the local content cache.
+     * @param prefix the relative path prefix that was listed.
+     * @param delimiter the delimiter the listing used, or null if it lists everything under the prefix.
+     */
+    /* package */ ContentDiff(final Iterator<S3ContentSummary> remoteSummaries,
+                              final LocalIndex localIndex, final String prefix,
+                              final String delimiter) {
+        this.remoteSummaries = remoteSummaries;
+        this.localIndex = localIndex;
+        this.prefix = prefix == null ? "" : prefix;
+        this.delimiter = delimiter;
+        nextLocal = findLocal(localIndex.getNextFile(this.prefix, true));
+    }
+
+    /**
+     * Advance to the next file. This may wait for the remote listing.
+     * @return true if there is another file, false if both sides are exhausted.
+     */
+    /* package */ boolean next() {
+        if (nextRemote == null && remoteSummaries.hasNext()) {
+            nextRemote = remoteSummaries.next();
+        }
+        if (nextRemote != null && ContentState.REMOTE_DIRECTORY.equals(nextRemote.getContentState())) {
+            return emit(Change.ADDED, takeRemote(), null);
+        }
+        if (nextRemote == null && nextLocal == null) {
+            change = null;
+            remote = null;
+            local = null;
+            return false;
+        }
+
+        final int comparison;
+        if (nextRemote == null) {
+            comparison = 1;
+        } else if (nextLocal == null) {
+            comparison = -1;
+        } else {
+            comparison = S3Utils.KEY_ORDER.compare(nextRemote.getFilePath(), nextLocal.getFilePath());
+        }
+        if (comparison < 0) {
+            return emit(Change.ADDED, takeRemote(), null);
+        }
+        if (comparison > 0) {
+            return emit(Change.REMOVED, null, takeLocal());
+        }
+        final S3ContentSummary summary = takeRemote();
+        final FileContent fileContent = takeLocal();
+        return emit(isDifferent(summary, fileContent) ? Change.CHANGED : Change.UNCHANGED, summary, fileContent);
+    }
+
+    /**
+     * @return how the current file differs.
+     */
+    /* package */ Change getChange() {
+        return change;
+    }
+
+    /**
+     * @return the current file's remote summary, or null if it is only cached.
+     */
+    /* package */ S3ContentSummary getRemote() {
+        return remote;
+    }
+
+    /**
+     * @return the current file's cached content, or null if it is only remote.
+     */
+    /* package */ FileContent getLocal() {
+        return local;
+    }
+
+    /**
+     * Get the current file as a content item, with its state set from the change.
+     * @param transferStates the content states of the files being transferred, by relative file path.
+     * @return the remote summary if the file is only remote, otherwise the cached content.
+     */
+    /* package */ ContentItem getContentItem(final Map<String, ContentState> transferStates) {
+        switch (change) {
+            case ADDED:
+                if (!ContentState.REMOTE_DIRECTORY.equals(remote.getContentState())) {
+                    final ContentState transferState = transferStates.get(remote.getFilePath());
+                    remote.setContentState(transferState == null ? ContentState.REMOTE : transferState);
+                }
+                return remote;
+            case CHANGED:
+                local.setContentState(ContentState.CACHED_WITH_NEWER_VERSION_AVAILABLE);
+                return local;
+            default:
+                return local;
+        }
+    }
+
+    private boolean emit(final Change change, final S3ContentSummary remote, final FileContent local) {
+        this.change = change;
+        this.remote = remote;
+        this.local = local;
+        return true;
+    }
+
+    private S3ContentSummary takeRemote() {
+        final S3ContentSummary summary = nextRemote;
+        nextRemote = null;
+        return summary;
+    }
+
+    private FileContent takeLocal() {
+        final FileContent fileContent = nextLocal;
+        nextLocal = findLocal(localIndex.getNextFile(fileContent.getFilePath(), false));
+        return fileContent;
+    }
+
+    /**
+     * Find the first cached file from the one given that the listing would include.
+     * @param fileContent the candidate file, or null.
+     * @return the file, or null if there are no more files under the prefix.
+     */
+    private FileContent findLocal(final FileContent fileContent) {
+        FileContent candidate = fileContent;
+        while (candidate != null && candidate.getFilePath().startsWith(prefix)) {
+            final int delimiterIndex = delimiter == null ? -1 :
+                candidate.getFilePath().indexOf(delimiter, prefix.length());
+            if (delimiterIndex < 0) {
+                return candidate;
+            }
+            // Files in sub-folders aren't in a delimited listing, so skip past the sub-folder.
+            final String folder = candidate.getFilePath().substring(0, delimiterIndex + delimiter.length());
+            candidate = localIndex.getNextFile(getSuccessor(folder), true);
+        }
+        return null;
+    }
+
+    /**
+     * @return the first path after every path beginning with the folder, given the folder ends with
+     *         a delimiter such as "/".
+     */
+    private static String getSuccessor(final String folder) {
+        final int last = folder.length() - 1;
+        return folder.substring(0, last) + (char) (folder.charAt(last) + 1);
+    }
+
+    private boolean isDifferent(final S3ContentSummary summary, final FileContent fileContent) {
+        // Compare ETags if the cached file's is known, since the times differ for content that was
+        // revalidated rather than downloaded again.
+        final String cachedETag = localIndex.getETag(summary.getFilePath());
+        if (cachedETag != null && summary.getETag() != null) {
+            return !cachedETag.equals(summary.getETag());
+        }
+        return fileContent.getLastModifiedTime() < summary.getLastModifiedTime() ||
+            fileContent.getSize() != summary.getSize();
+    }
+}
@@ -0,0 +1,88 @@
+package com.dancingqueen.walladog.aws.content;
+
+/**
+ * Interfaces for publishing content to subscribers that control how much they receive, following the
+ * same protocol as java.util.concurrent.Flow, which isn't available on all the platform versions this
+ * supports.
+ *
+ * A subscriber receives nothing until it requests items from its subscription, and then receives no more
+ * than it has requested. It may cancel the subscription at any time, which stops the work producing the
+ * items. All of a subscriber's methods are called on the main thread, one at a time.
+ */
+public final class ContentFlow {
+
+    /**
+     * Constructor, not called.
+     */
+    private ContentFlow() {
+    }
+
+    /**
+     * A producer of items for subscribers.
+     *
+     * @param <T> the type of item.
+     */
+    public interface Publisher<T> {
+
+        /**
+         * Add a subscriber, which is first given its subscription through
+         * {@link Subscriber#onSubscribe(Subscription)}.
+         *
+         * @param subscriber the subscriber.
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * A receiver of items from a publisher.
+     *
+     * @param <T> the type of item.
+     */
+    public interface Subscriber<T> {
+
+        /**
+         * Receive the subscription, before any other method is called.
+         *
+         * @param subscription the subscription, with which to request items.
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * Receive a requested item.
+         *
+         * @param item the item.
+         */
+        void onNext(T item);
+
+        /**
+         * Receive the error that ended the subscription. No other methods are called afterwards.
+         *
+         * @param ex the error.
+         */
+        void onError(Exception ex);
+
+        /**
+         * Receive notice that there are no more items. No other methods are called afterwards.
+         */
+        void onComplete();
+    }
+
+    /**
+     * The link between a publisher and a subscriber.
+     */
+    public interface Subscription {
+
+        /**
+         * Request more items. Requests add up, until they exceed Long.MAX_VALUE, after which
+         * demand is unbounded.
+         *
+         * @param n the number of items to add to the demand, which must be positive.
+         */
+        void request(long n);
+
+        /**
+         * Stop receiving items. Some items may still be received if they were already on their way.
+         */
+        void cancel();
+    }
+}
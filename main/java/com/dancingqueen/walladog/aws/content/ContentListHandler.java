@@ -17,7 +17,9 @@ public interface ContentListHandler {
     /**
      * Handler to receive content listed using
      * {@link ContentManager#listAvailableContent(String,ContentListHandler)}.
-     * Listing may be aborted by returning false.
+     * Listing may be aborted by returning false. If a folder's cached listing is shown while
+     * it is refreshed and the refreshed listing differs, all of the content is received again
+     * starting at index zero, replacing what was received before.
      * @param startIndex the index of the first item to retrieve.
      * @param partialResults the list of results received.
      * @param hasMoreResults flag indicating whether more results exist.
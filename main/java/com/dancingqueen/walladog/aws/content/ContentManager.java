@@ -21,10 +21,14 @@ import com.amazonaws.services.s3.model.ObjectMetadata;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.TreeSet;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -55,6 +59,21 @@ public class ContentManager implements Iterable<ContentItem> {
      */
     private static final String LOCAL_CONTENT_XFER_DIR_SUFFIX = "/incoming";
 
+    /**
+     * The path suffix for storing remote listings.
+     */
+    private static final String LOCAL_LISTING_DIR_SUFFIX = "/listings";
+
+    /**
+     * The path suffix for storing the decompressed content manifest.
+     */
+    private static final String LOCAL_MANIFEST_DIR_SUFFIX = "/manifest";
+
+    /**
+     * The path suffix for storing the content catalog.
+     */
+    private static final String LOCAL_CATALOG_FILE_SUFFIX = "/catalog";
+
     private static final String DIR_DELIMITER = "/" ;
 
     /**
@@ -87,6 +106,51 @@ public class ContentManager implements Iterable<ContentItem> {
      */
     private final LocalContentCache localContentCache;
 
+    /**
+     * Checks whether cached content is current with conditional requests.
+     */
+    private final ContentRevalidator contentRevalidator;
+
+    /**
+     * The remote listings of folders.
+     */
+    private final ListingCache listingCache;
+
+    /**
+     * The remote content as of the last catalog sync.
+     */
+    private final ContentCatalog contentCatalog;
+
+    /**
+     * Syncs the catalog with the remote content.
+     */
+    private final ContentCatalogSync catalogSync;
+
+    /**
+     * Indexes the names of the content seen so far, for searching.
+     */
+    private final ContentSearchIndex searchIndex = new ContentSearchIndex();
+
+    /**
+     * The listener for content removed from the cache, or null if none is set.
+     */
+    private volatile ContentRemovedListener contentRemovedListener;
+
+    /**
+     * The local path to the decompressed content manifest.
+     */
+    private final String localManifestPath;
+
+    /**
+     * The relative path of the content manifest, or null if content is listed from S3.
+     */
+    private volatile String manifestFilePath;
+
+    /**
+     * The loaded content manifest, or null if none is loaded.
+     */
+    private volatile ContentManifest contentManifest;
+
     /**
      * The local path to downloaded content.
      */
@@ -100,6 +164,13 @@ public class ContentManager implements Iterable<ContentItem> {
     /** The thread that handles iterating through the content and adding it to the queue. */
     protected final ExecutorService executorService = Executors.newFixedThreadPool(4);
 
+    /**
+     * The threads that read and list pages for available content publishers. These are kept off
+     * {@link #executorService}, since a subscriber that stops requesting pages without canceling leaves
+     * its listing task waiting, and a few such subscribers would otherwise hold every thread of the pool.
+     */
+    private final ExecutorService publisherExecutorService = Executors.newCachedThreadPool();
+
     public interface BuilderResultHandler {
         void onComplete(ContentManager contentManager);
     }
@@ -239,6 +310,46 @@ public class ContentManager implements Iterable<ContentItem> {
 
         localContentCache = new LocalContentCache(context, "com.amazonaws.mobile.content.cache.s3."
             + bucket + localDirPrefix.replace("/", "."), localContentPath);
+        contentRevalidator = new ContentRevalidator(s3Client, bucket, this.s3DirPrefix, localContentCache);
+        listingCache = new ListingCache(baseContentPath + LOCAL_LISTING_DIR_SUFFIX);
+        localManifestPath = baseContentPath + LOCAL_MANIFEST_DIR_SUFFIX;
+        contentCatalog = new ContentCatalog(baseContentPath + LOCAL_CATALOG_FILE_SUFFIX);
+        try {
+            contentCatalog.load();
+        } catch (final IOException ex) {
+            Log.w(LOG_TAG, "Couldn't read the content catalog, it will be synced again.", ex);
+        }
+        catalogSync = new ContentCatalogSync(this, contentCatalog);
+
+        // Seed the search index with the cached content and the last synced catalog. Listings and
+        // syncs add to it from then on.
+        FileContent cachedFile = localContentCache.getNextFile("", true);
+        while (cachedFile != null) {
+            searchIndex.add(cachedFile);
+            cachedFile = localContentCache.getNextFile(cachedFile.getFilePath(), false);
+        }
+        for (final S3ContentSummary summary : contentCatalog.list("", null, false)) {
+            searchIndex.add(summary);
+        }
+        Log.d(LOG_TAG, String.format("Search index seeded with %d files.", searchIndex.size()));
+        localContentCache.setContentRemovedListener(new ContentRemovedListener() {
+            @Override
+            public void onFileRemoved(final File removedItem) {
+                removeFromSearchIndex(localContentCache.absolutePathToRelativePath(removedItem.getAbsolutePath()));
+                final ContentRemovedListener listener = contentRemovedListener;
+                if (listener != null) {
+                    listener.onFileRemoved(removedItem);
+                }
+            }
+
+            @Override
+            public void onRemoveError(final File file) {
+                final ContentRemovedListener listener = contentRemovedListener;
+                if (listener != null) {
+                    listener.onRemoveError(file);
+                }
+            }
+        });
 
         if (cloudFrontDomainName == null) {
             transferHelper = S3TransferHelper.build(context, s3Client, bucket,
@@ -281,6 +392,128 @@ public class ContentManager implements Iterable<ContentItem> {
         localContentCache.setMaxCacheSize(maxCacheSize);
     }
 
+    /**
+     * @return how long a folder's listing is used in place of listing S3 again, in milliseconds.
+     */
+    public long getListingTimeToLive() {
+        return listingCache.getTimeToLive();
+    }
+
+    /**
+     * Set how long a folder's listing is used in place of listing S3 again. Until then, listing the
+     * folder doesn't make any requests. Afterwards, {@link #listAvailableContent(String, ContentListHandler)}
+     * still shows the old listing right away, while it is refreshed. This is zero by default, so the
+     * listing is always refreshed.
+     *
+     * @param timeToLive the time in milliseconds.
+     */
+    public void setListingTimeToLive(final long timeToLive) {
+        listingCache.setTimeToLive(timeToLive);
+    }
+
+    /**
+     * Set the content manifest, an index of the content published next to it, see {@link ContentManifest}.
+     * Once the manifest has been loaded with {@link #refreshContentManifest(ContentProgressListener)},
+     * content is listed from it instead of from S3.
+     *
+     * @param manifestFilePath the relative path and file name of the manifest, or null to list content
+     *                         from S3.
+     */
+    public void setContentManifest(final String manifestFilePath) {
+        this.manifestFilePath = manifestFilePath;
+        contentManifest = null;
+    }
+
+    /**
+     * Download the content manifest if it has changed, and load it. The manifest is only downloaded
+     * again when its ETag changes, and is pinned so that it stays in the cache. Calls the listener's
+     * onSuccess method once the manifest is loaded, after which content is listed from it.
+     *
+     * @param listener listener to receive the results, which may be null.
+     */
+    public void refreshContentManifest(final ContentProgressListener listener) {
+        final String filePath = manifestFilePath;
+        if (filePath == null) {
+            throw new IllegalStateException("No content manifest has been set.");
+        }
+        getContent(filePath, 0, ContentDownloadPolicy.DOWNLOAD_IF_NEWER_EXIST, true,
+            new ContentProgressListener() {
+                @Override
+                public void onSuccess(final ContentItem contentItem) {
+                    executorService.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            loadContentManifest(filePath, contentItem, listener);
+                        }
+                    });
+                }
+
+                @Override
+                public void onProgressUpdate(final String filePath, final boolean isWaiting,
+                                             final long bytesCurrent, final long bytesTotal) {
+                    if (listener != null) {
+                        listener.onProgressUpdate(filePath, isWaiting, bytesCurrent, bytesTotal);
+                    }
+                }
+
+                @Override
+                public void onError(final String filePath, final Exception ex) {
+                    if (listener != null) {
+                        listener.onError(filePath, ex);
+                    }
+                }
+            });
+    }
+
+    /**
+     * Load the content manifest once it is cached, unless the same version is already loaded. Called
+     * on the executor.
+     *
+     * @param filePath the relative path and file name of the manifest.
+     * @param contentItem the cached manifest.
+     * @param listener listener to receive the results, which may be null.
+     */
+    private void loadContentManifest(final String filePath, final ContentItem contentItem,
+                                     final ContentProgressListener listener) {
+        final String eTag = localContentCache.getETag(filePath);
+        final ContentManifest loadedManifest = contentManifest;
+        // The manifest's ETag isn't known when it was first downloaded, so this may compare its file.
+        if (loadedManifest == null || !loadedManifest.isLoadedFrom(contentItem.getFile(), eTag)) {
+            try {
+                final File manifestDir = new File(localManifestPath);
+                if (!manifestDir.exists() && !manifestDir.mkdirs()) {
+                    throw new IOException("Couldn't create directory: " + localManifestPath);
+                }
+                final ContentManifest manifest = ContentManifest.load(contentItem.getFile(),
+                    new File(manifestDir, "index"), eTag);
+                // Don't load a manifest that was replaced while this one was downloading.
+                if (!filePath.equals(manifestFilePath)) {
+                    return;
+                }
+                contentManifest = manifest;
+            } catch (final IOException ex) {
+                Log.e(LOG_TAG, String.format("Can't load the content manifest '%s'.", filePath), ex);
+                if (listener != null) {
+                    ThreadUtils.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onError(filePath, ex);
+                        }
+                    });
+                }
+                return;
+            }
+        }
+        if (listener != null) {
+            ThreadUtils.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onSuccess(contentItem);
+                }
+            });
+        }
+    }
+
     /**
      * Remove local content from the cache.
      * @param filePath the path to the content to remove.
@@ -309,14 +542,25 @@ public class ContentManager implements Iterable<ContentItem> {
         return localContentPath;
     }
 
-    /* package */ ContentState getContentStateForTransfer(final String filePath) {
-        if (!transferHelper.isTransferring(filePath)) {
-            return ContentState.REMOTE;
+    /**
+     * Get the states of all the content being transferred at once, which is much cheaper than getting
+     * the state of each file in a listing. Files that aren't in the map are remote, as of the snapshot.
+     *
+     * @return the content state of each file being transferred, by relative file path.
+     */
+    /* package */ Map<String, ContentState> getContentStatesForTransfers() {
+        final Map<String, Boolean> transfersWaiting = transferHelper.getTransfersWaiting();
+        final Map<String, ContentState> contentStates = new HashMap<>(transfersWaiting.size());
+        for (final Map.Entry<String, Boolean> entry : transfersWaiting.entrySet()) {
+            contentStates.put(entry.getKey(), getContentStateForTransfer(entry.getKey(), entry.getValue()));
         }
+        return contentStates;
+    }
 
+    private ContentState getContentStateForTransfer(final String filePath, final boolean isTransferWaiting) {
         boolean localContentAvailable = localContentCache.contains(filePath);
 
-        if (transferHelper.isTransferWaiting(filePath)) {
+        if (isTransferWaiting) {
             if (localContentAvailable) {
                 return ContentState.CACHED_NEW_VERSION_TRANSFER_WAITING;
             }
@@ -332,6 +576,22 @@ public class ContentManager implements Iterable<ContentItem> {
         return localContentCache;
     }
 
+    /* package */ ListingCache getListingCache() {
+        return listingCache;
+    }
+
+    /* package */ ContentManifest getContentManifest() {
+        return contentManifest;
+    }
+
+    /* package */ ContentSearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    /* package */ boolean isContentManifestSet() {
+        return manifestFilePath != null;
+    }
+
     /* package */ String getS3bucket() {
         return bucket;
     }
@@ -352,7 +612,7 @@ public class ContentManager implements Iterable<ContentItem> {
      */
     public void clearAllListeners() {
         clearProgressListeners();
-        localContentCache.setContentRemovedListener(null);
+        contentRemovedListener = null;
     }
 
     /**
@@ -360,7 +620,24 @@ public class ContentManager implements Iterable<ContentItem> {
      * @param listener the listening handler.
      */
     public void setContentRemovedListener(final ContentRemovedListener listener) {
-        localContentCache.setContentRemovedListener(listener);
+        contentRemovedListener = listener;
+    }
+
+    /**
+     * Stop finding a file, unless it is still in the catalog, the content manifest or the cache.
+     *
+     * @param filePath the relative path of the file.
+     */
+    /* package */ void removeFromSearchIndex(final String filePath) {
+        final ContentManifest manifest = contentManifest;
+        if (contentCatalog.contains(filePath) || (manifest != null && manifest.find(filePath) != null)) {
+            return;
+        }
+        final FileContent cachedFile = localContentCache.getNextFile(filePath, true);
+        if (cachedFile != null && cachedFile.getFilePath().equals(filePath)) {
+            return;
+        }
+        searchIndex.remove(filePath);
     }
 
     /**
@@ -449,6 +726,22 @@ public class ContentManager implements Iterable<ContentItem> {
                            final ContentDownloadPolicy policy,
                            final boolean pinOnCompletion,
                            final ContentProgressListener listener) {
+        getContent(filePath, optionalFileSize, policy, pinOnCompletion, false, listener);
+    }
+
+    /**
+     * Get content by file name, optionally as a background download which only uses bandwidth that
+     * interactive downloads leave unused.
+     *
+     * @param background true to download in the background, if a download is needed.
+     * @see #getContent(String, long, ContentDownloadPolicy, boolean, ContentProgressListener)
+     */
+    private void getContent(final String filePath,
+                            final long optionalFileSize,
+                            final ContentDownloadPolicy policy,
+                            final boolean pinOnCompletion,
+                            final boolean background,
+                            final ContentProgressListener listener) {
         executorService.execute(new Runnable() {
             @Override
             public void run() {
@@ -506,21 +799,39 @@ public class ContentManager implements Iterable<ContentItem> {
                     policy == ContentDownloadPolicy.DOWNLOAD_IF_NEWER_EXIST;
 
                 final long fileSize;
+                ContentProgressListener downloadListener = listener;
 
-                if (localFile != null && (isPolicyDownloadIfNewer || optionalFileSize == 0)) {
+                if (localFile != null && isPolicyDownloadIfNewer) {
+                    // Ask for the content only if it differs from the cached file.
+                    final ContentRevalidator.Result result = contentRevalidator.revalidate(filePath, localFile);
+                    final Exception ex = result.getException();
+                    if (ex != null) {
+                        if (listener != null) {
+                            ThreadUtils.runOnUiThread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    listener.onError(filePath, ex);
+                                }
+                            });
+                        }
+                        return;
+                    }
+                    fileSize = result.getSize();
+                    if (result.isModified()) {
+                        // Ignore the local file and force a download.
+                        localFile = null;
+                        downloadListener = new ETagRecordingListener(result.getETag(), listener);
+                    } else {
+                        localContentCache.markRevalidated(
+                            Collections.singletonMap(filePath, result.getETag()));
+                    }
+                } else if (localFile != null && optionalFileSize == 0) {
                     try {
                         final String s3Key = s3DirPrefix != null ? s3DirPrefix + filePath : filePath;
                         final ObjectMetadata objectMeta =
                             s3Client.getObjectMetadata(bucket,  s3Key);
                         // Set the file size from the retrieved meta data.
                         fileSize = objectMeta.getContentLength();
-
-                        // If the remote file is newer.
-                        if (isPolicyDownloadIfNewer &&
-                            localFile.lastModified() < objectMeta.getLastModified().getTime()) {
-                            // Ignore the local file and force a download.
-                            localFile = null;
-                        }
                     } catch (final AmazonServiceException ex) {
                         Log.d(LOG_TAG, ex.getMessage(), ex);
                         if (listener != null) {
@@ -584,12 +895,228 @@ public class ContentManager implements Iterable<ContentItem> {
                         return;
                     }
                 }
+                if (downloadListener == listener) {
+                    // Store the ETag the content was listed with, so that it can be revalidated with it.
+                    final String listedETag = getListedETag(filePath);
+                    if (listedETag != null) {
+                        downloadListener = new ETagRecordingListener(listedETag, listener);
+                    }
+                }
                 // Begin downloading content.
-                transferHelper.download(filePath, fileSize, listener);
+                transferHelper.download(filePath, fileSize, background, downloadListener);
             }
         });
     }
 
+    /**
+     * Get the files packed in a bundle, a single remote file holding many small files such as
+     * thumbnails, which are fetched together with one request instead of one each. The bundle is
+     * described by a manifest stored next to it, see {@link ContentBundle}. Files already in the cache
+     * are returned from it, and the rest are unpacked into the cache as the bundle downloads. Calls
+     * the listener's onSuccess method for each file once it is ready to be accessed.
+     *
+     * @param bundleFilePath the relative path and file name of the bundle.
+     * @param listener listener to receive the results.
+     */
+    public void getBundledContent(final String bundleFilePath, final ContentProgressListener listener) {
+        final String manifestFilePath = ContentBundle.getManifestFilePath(bundleFilePath);
+        getContent(manifestFilePath, 0, ContentDownloadPolicy.DOWNLOAD_IF_NEWER_EXIST, false,
+            new ContentProgressListener() {
+                @Override
+                public void onSuccess(final ContentItem contentItem) {
+                    executorService.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            getBundledContent(bundleFilePath, contentItem.getFile(), listener);
+                        }
+                    });
+                }
+
+                @Override
+                public void onProgressUpdate(final String filePath, final boolean isWaiting,
+                                             final long bytesCurrent, final long bytesTotal) {
+                    // The manifest is small, so only the bundle's progress is reported.
+                }
+
+                @Override
+                public void onError(final String filePath, final Exception ex) {
+                    if (listener != null) {
+                        listener.onError(bundleFilePath, ex);
+                    }
+                }
+            });
+    }
+
+    /**
+     * Get the files in a bundle once its manifest is cached. Called on the executor.
+     *
+     * @param bundleFilePath the relative path and file name of the bundle.
+     * @param manifestFile the bundle's manifest.
+     * @param listener listener to receive the results.
+     */
+    private void getBundledContent(final String bundleFilePath, final File manifestFile,
+                                   final ContentProgressListener listener) {
+        final List<ContentBundle.Entry> entries;
+        try {
+            entries = ContentBundle.parseManifest(manifestFile);
+        } catch (final IOException ex) {
+            Log.e(LOG_TAG, String.format("Can't read the manifest of bundle '%s'.", bundleFilePath), ex);
+            if (listener != null) {
+                ThreadUtils.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onError(bundleFilePath, ex);
+                    }
+                });
+            }
+            return;
+        }
+
+        final List<ContentBundle.Entry> missingEntries = new ArrayList<>();
+        for (final ContentBundle.Entry entry : entries) {
+            final String filePath = entry.getFilePath();
+            final File localFile = localContentCache.get(filePath);
+            if (localFile == null) {
+                missingEntries.add(entry);
+            } else if (listener != null) {
+                ThreadUtils.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onSuccess(new FileContent(localFile, filePath));
+                    }
+                });
+            }
+        }
+        if (missingEntries.isEmpty()) {
+            return;
+        }
+
+        if (transferHelper instanceof CloudFrontTransferHelper) {
+            ((CloudFrontTransferHelper) transferHelper).downloadBundle(bundleFilePath, missingEntries, listener);
+        } else {
+            // Bundles are only fetched over http, so download the files on their own.
+            for (final ContentBundle.Entry entry : missingEntries) {
+                transferHelper.download(entry.getFilePath(), entry.getLength(), listener);
+            }
+        }
+    }
+
+    /**
+     * Check whether cached content is still current, and download a new version of any that isn't.
+     * The checks are conditional requests, which transfer nothing for content that hasn't changed.
+     * Calls the listener's onSuccess method for each file that is current, and for each new version
+     * once it is downloaded. Files that aren't cached are skipped.
+     *
+     * @param filePaths the relative paths and file names of the content to revalidate.
+     * @param listener listener to receive the results.
+     */
+    public void revalidateContent(final Collection<String> filePaths, final ContentProgressListener listener) {
+        executorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Map<String, File> localFilesByPath = new HashMap<>();
+                for (final String filePath : filePaths) {
+                    final File localFile = localContentCache.get(filePath);
+                    if (localFile != null) {
+                        localFilesByPath.put(filePath, localFile);
+                    }
+                }
+
+                final Map<String, String> revalidated = new HashMap<>();
+                for (final ContentRevalidator.Result result : contentRevalidator.revalidateAll(localFilesByPath)) {
+                    final String filePath = result.getFilePath();
+                    final Exception ex = result.getException();
+                    if (ex != null) {
+                        if (listener != null) {
+                            ThreadUtils.runOnUiThread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    listener.onError(filePath, ex);
+                                }
+                            });
+                        }
+                    } else if (result.isModified()) {
+                        Log.d(LOG_TAG, "Downloading new version of cached file: " + filePath);
+                        transferHelper.download(filePath, result.getSize(), true,
+                            new ETagRecordingListener(result.getETag(), listener));
+                    } else {
+                        revalidated.put(filePath, result.getETag());
+                    }
+                }
+
+                // Record all the files confirmed to be current together.
+                localContentCache.markRevalidated(revalidated);
+                if (listener != null) {
+                    for (final String filePath : revalidated.keySet()) {
+                        final File localFile = localFilesByPath.get(filePath);
+                        ThreadUtils.runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onSuccess(new FileContent(localFile, filePath));
+                            }
+                        });
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the ETag of remote content from the content manifest or the catalog, without a request.
+     *
+     * @param filePath the relative path and file name.
+     * @return the ETag, or null if the content hasn't been listed in either.
+     */
+    private String getListedETag(final String filePath) {
+        final ContentManifest manifest = contentManifest;
+        if (manifest != null) {
+            final S3ContentSummary summary = manifest.find(filePath);
+            if (summary != null && summary.getETag() != null) {
+                return summary.getETag();
+            }
+        }
+        return contentCatalog.getETag(filePath);
+    }
+
+    /**
+     * Records the ETag of a new version of content once it has been downloaded into the cache, so
+     * that it can be revalidated later.
+     */
+    private class ETagRecordingListener implements ContentProgressListener {
+        private final String eTag;
+        private final ContentProgressListener listener;
+
+        ETagRecordingListener(final String eTag, final ContentProgressListener listener) {
+            this.eTag = eTag;
+            this.listener = listener;
+        }
+
+        @Override
+        public void onSuccess(final ContentItem contentItem) {
+            if (eTag != null) {
+                localContentCache.setETag(contentItem.getFilePath(), eTag);
+            }
+            if (listener != null) {
+                listener.onSuccess(contentItem);
+            }
+        }
+
+        @Override
+        public void onProgressUpdate(final String filePath, final boolean isWaiting, final long bytesCurrent,
+                                     final long bytesTotal) {
+            if (listener != null) {
+                listener.onProgressUpdate(filePath, isWaiting, bytesCurrent, bytesTotal);
+            }
+        }
+
+        @Override
+        public void onError(final String filePath, final Exception ex) {
+            if (listener != null) {
+                listener.onError(filePath, ex);
+            }
+        }
+    }
+
     private Exception getExceptionIfNoSpace(final String filePath, final long fileSize, final long sizeTransferring) {
         // if this file can't fit in our cache.
         if (fileSize > localContentCache.getMaxCacheSize()) {
@@ -644,13 +1171,15 @@ public class ContentManager implements Iterable<ContentItem> {
         public void run() {
             final AvailableS3ContentIterator contentIterator = new AvailableS3ContentIterator(
                 ContentManager.this, s3Prefix, localPathPrefix, null, executorService, false);
-            final TreeSet<ContentItem> sortedItems =
-                new TreeSet<>(compareContentItemsByDateAndName);
+            // Select the most recent items that fit in the cache as they are listed, so only those are held.
+            final NewestContentSelector selector = new NewestContentSelector(Integer.MAX_VALUE,
+                localContentCache.getMaxCacheSize(), compareContentItemsByDateAndName);
 
             try {
-                // Retrieve all content items and sort by most recent using TreeSet.
                 for (final ContentItem contentItem : contentIterator) {
-                    sortedItems.add(contentItem);
+                    // Pinned content doesn't count against the cache size.
+                    selector.offer(contentItem, localContentCache.shouldPinFile(contentItem.getFilePath()) ?
+                        0 : contentItem.getSize());
                 }
             } catch (final Exception ex) {
                 Log.e(LOG_TAG, ex.getMessage(), ex);
@@ -663,23 +1192,15 @@ public class ContentManager implements Iterable<ContentItem> {
                 return;
             }
 
-            long availableSpaceInCache = localContentCache.getMaxCacheSize();
-
             // Load the cache with all items that can fit.
-            for (final ContentItem contentItem : sortedItems) {
-                if (contentItem.getSize() > availableSpaceInCache) {
-                    break;
-                }
-                final String filePath = contentItem.getFilePath();
-                if (!localContentCache.shouldPinFile(filePath)) {
-                    availableSpaceInCache -= contentItem.getSize();
-                }
+            for (final ContentItem contentItem : selector.getSelected()) {
                 if (contentItem.getContentState() ==
                     ContentState.CACHED_WITH_NEWER_VERSION_AVAILABLE ||
                     contentItem.getContentState() == ContentState.REMOTE) {
                     Log.d(LOG_TAG, "Downloading recent content for file: " + contentItem.getFilePath());
+                    // Prefetch in the background, so that content someone is waiting for comes first.
                     getContent(contentItem.getFilePath(), contentItem.getSize(),
-                        ContentDownloadPolicy.DOWNLOAD_ALWAYS, false, listener);
+                        ContentDownloadPolicy.DOWNLOAD_ALWAYS, false, true, listener);
                 }
             }
         }
@@ -769,11 +1290,28 @@ public class ContentManager implements Iterable<ContentItem> {
             DIR_DELIMITER, executorService, includeDirectories);
     }
 
+    /**
+     * Get a publisher of all files beginning with a specified prefix, in pages. Unlike
+     * {@link #listAvailableContent(String, ContentListHandler)}, a subscriber receives only as many
+     * pages as it requests, and S3 is listed only as far ahead as needed to provide them. Each
+     * subscriber lists the content from the beginning.
+     *
+     * @param filePathPrefix the prefix for all file names that will be included.
+     * @param pageSize the number of items in each page, other than the last.
+     * @return the publisher.
+     */
+    public ContentFlow.Publisher<List<ContentItem>> getAvailableContentPublisher(final String filePathPrefix,
+                                                                                 final int pageSize) {
+        return new AvailableContentPublisher(this, getS3PathPrefix(filePathPrefix), filePathPrefix,
+            DIR_DELIMITER, pageSize, publisherExecutorService);
+    }
+
     private class ContentLister implements Runnable {
         final ContentListHandler listHandler;
         final String prefix;
         int startIndex;
-        AvailableS3ContentIterator availableS3ContentIterator;
+        volatile AvailableS3ContentIterator availableS3ContentIterator;
+        volatile boolean isCanceled;
 
         ContentLister(final String prefix, final ContentListHandler listHandler) {
             this.listHandler = listHandler;
@@ -781,14 +1319,15 @@ public class ContentManager implements Iterable<ContentItem> {
             startIndex = 0;
         }
 
-        private void addContentItems(final int startIndex,
-                                     final List<ContentItem> contentItems,
-                                     final boolean hasMoreResults) {
+        void addContentItems(final int startIndex,
+                             final List<ContentItem> contentItems,
+                             final boolean hasMoreResults) {
             ThreadUtils.runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
                     if (!listHandler.onContentReceived(startIndex, contentItems, hasMoreResults)) {
                         // if the user has requested to cancel listing content.
+                        isCanceled = true;
                         availableS3ContentIterator.cancel();
                     }
                 }
@@ -797,38 +1336,115 @@ public class ContentManager implements Iterable<ContentItem> {
 
         @Override
         public void run() {
-            availableS3ContentIterator = getAvailableContentIterator(prefix);
-
+            final String s3Prefix = getS3PathPrefix(prefix);
             try {
-                ArrayList<ContentItem> contentItems = new ArrayList<>();
-                for (final ContentItem contentItem : availableS3ContentIterator) {
-                    Log.d(LOG_TAG, "Found file: " + contentItem.getFilePath());
-
-                    contentItems.add(contentItem);
-                    // When we determine getting more content will block
-                    if (availableS3ContentIterator.willNextBlock()) {
-                        final int itemCount = contentItems.size();
-                        // Add items so far to the UI.
-                        addContentItems(startIndex, contentItems, true);
-                        // Start a new list of items to add.
-                        contentItems = new ArrayList<>();
-                        startIndex += itemCount;
+                if (!listingCache.isFresh(s3Prefix, DIR_DELIMITER, true) &&
+                    listingCache.contains(s3Prefix, DIR_DELIMITER, true)) {
+                    // Show the stale listing right away, then refresh it.
+                    availableS3ContentIterator = new AvailableS3ContentIterator(ContentManager.this, s3Prefix,
+                        prefix, DIR_DELIMITER, executorService, true, true);
+                    listContent();
+                    if (isCanceled) {
+                        return;
                     }
+                    refreshContent(s3Prefix);
+                } else {
+                    availableS3ContentIterator = getAvailableContentIterator(prefix);
+                    listContent();
+                }
+            } catch (final Exception ex) {
+                reportError(ex);
+            }
+        }
+
+        /**
+         * Report an error listing content.
+         * @param ex the exception.
+         */
+        void reportError(final Exception ex) {
+            Log.e(LOG_TAG, ex.getMessage(), ex);
+            ThreadUtils.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    listHandler.onError(ex);
                 }
+            });
+        }
 
+        /**
+         * List the content again from S3, and if the listing changed, deliver all of it again from index zero.
+         * @param s3Prefix the s3 object prefix.
+         */
+        private void refreshContent(final String s3Prefix) {
+            final AvailableS3ContentIterator refreshIterator = new AvailableS3ContentIterator(ContentManager.this,
+                s3Prefix, prefix, DIR_DELIMITER, executorService, true, false);
+            availableS3ContentIterator = refreshIterator;
+            final ArrayList<ContentItem> contentItems = new ArrayList<>();
+            for (final ContentItem contentItem : refreshIterator) {
+                contentItems.add(contentItem);
+            }
+            if (!isCanceled && refreshIterator.hasRemoteListingChanged()) {
+                Log.d(LOG_TAG, "Listing changed for prefix: " + s3Prefix);
+                startIndex = 0;
                 addContentItems(startIndex, contentItems, false);
-            } catch (final Exception ex) {
-                Log.e(LOG_TAG, ex.getMessage(), ex);
-                ThreadUtils.runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        listHandler.onError(ex);
-                    }
-                });
             }
         }
+
+        /** List the content from the current iterator, delivering it in batches. */
+        void listContent() {
+            ArrayList<ContentItem> contentItems = new ArrayList<>();
+            for (final ContentItem contentItem : availableS3ContentIterator) {
+                Log.d(LOG_TAG, "Found file: " + contentItem.getFilePath());
+
+                contentItems.add(contentItem);
+                // When we determine getting more content will block
+                if (availableS3ContentIterator.willNextBlock()) {
+                    final int itemCount = contentItems.size();
+                    // Add items so far to the UI.
+                    addContentItems(startIndex, contentItems, true);
+                    // Start a new list of items to add.
+                    contentItems = new ArrayList<>();
+                    startIndex += itemCount;
+                }
+            }
+
+            addContentItems(startIndex, contentItems, false);
+        }
     };
 
+    /**
+     * Lists the content matching a query, including content in sub-folders.
+     */
+    private class ContentQueryLister extends ContentLister {
+        final ContentQuery query;
+
+        ContentQueryLister(final String prefix, final ContentQuery query, final ContentListHandler listHandler) {
+            super(prefix, listHandler);
+            this.query = query;
+        }
+
+        @Override
+        public void run() {
+            // The query is applied as content is listed, so content it doesn't match is never queued.
+            availableS3ContentIterator = new AvailableS3ContentIterator(ContentManager.this,
+                getS3PathPrefix(prefix), prefix, null, executorService, false, false, query);
+            try {
+                if (query.getNewestLimit() > 0) {
+                    final NewestContentSelector selector = new NewestContentSelector(query.getNewestLimit(),
+                        Long.MAX_VALUE, compareContentItemsByDateAndName);
+                    for (final ContentItem contentItem : availableS3ContentIterator) {
+                        selector.offer(contentItem, contentItem.getSize());
+                    }
+                    addContentItems(0, selector.getSelected(), false);
+                } else {
+                    listContent();
+                }
+            } catch (final Exception ex) {
+                reportError(ex);
+            }
+        }
+    }
+
     /**
      * List all available content on the UI thread in batches of results.
      * @param handler the handler for receiving results.
@@ -851,11 +1467,134 @@ public class ContentManager implements Iterable<ContentItem> {
                                       final ContentListHandler handler) {
         executorService.execute(new ContentLister(filePathPrefix, handler));
     }
+
+    /**
+     * List the files whose names begin with a specified prefix and that match a query, including
+     * files in sub-folders. Content the query doesn't match is dropped as it is listed. If the query
+     * limits the listing to the newest files, they are received in one batch, newest first; otherwise
+     * content is received in batches as with {@link #listAvailableContent(String, ContentListHandler)}.
+     * S3 can only filter a listing by prefix, so the rest of the query is applied on the device.
+     * @param filePathPrefix the path and file name prefix for listing.
+     * @param query the query.
+     * @param handler the handler for receiving results.
+     */
+    public void listAvailableContent(final String filePathPrefix, final ContentQuery query,
+                                     final ContentListHandler handler) {
+        executorService.execute(new ContentQueryLister(filePathPrefix, query, handler));
+    }
 	
+    /**
+     * Sync the content catalog with the remote content now, and then periodically, until
+     * {@link #stopCatalogSync()} is called. The catalog is read from the content manifest if one has
+     * been set, and otherwise by listing S3. Registered {@link ContentCatalogListener}s are told of the
+     * changes each sync finds.
+     *
+     * @param interval the time in milliseconds between the end of one sync and the start of the next.
+     */
+    public void startCatalogSync(final long interval) {
+        catalogSync.start(interval);
+    }
+
+    /**
+     * Stop syncing the content catalog periodically. A sync in progress is allowed to finish.
+     */
+    public void stopCatalogSync() {
+        catalogSync.stop();
+    }
+
+    /**
+     * Sync the content catalog with the remote content once, after any sync in progress.
+     */
+    public void syncCatalog() {
+        catalogSync.syncNow();
+    }
+
+    /**
+     * @param listener the listener to be told of changes found by syncing the catalog.
+     */
+    public void addCatalogListener(final ContentCatalogListener listener) {
+        catalogSync.addListener(listener);
+    }
+
+    /**
+     * @param listener the listener to stop telling of catalog changes.
+     */
+    public void removeCatalogListener(final ContentCatalogListener listener) {
+        catalogSync.removeListener(listener);
+    }
+
+    /**
+     * @return the time in milliseconds of the last catalog sync, including one made before this content
+     *         manager was created, or zero if the catalog has never been synced.
+     */
+    public long getCatalogSyncTime() {
+        return contentCatalog.getSyncTime();
+    }
+
+    /**
+     * List the content in a folder from the content catalog, as of the last sync, joined with the local
+     * cache. This makes no network requests and doesn't read the file system, but the states of content
+     * being transferred may be read from the transfer database, so this should be called off of the main
+     * thread. Until the catalog has been synced, only cached content is listed.
+     *
+     * @param filePathPrefix the path of the folder, ending with the delimiter, or "" for the top folder.
+     * @return the content and sub-folders of the folder, in order of their paths.
+     */
+    public List<ContentItem> listCatalogContent(final String filePathPrefix) {
+        final String prefix = filePathPrefix == null ? "" : filePathPrefix;
+        final Map<String, ContentState> transferStates = getContentStatesForTransfers();
+        final ContentDiff diff = new ContentDiff(contentCatalog.list(prefix, DIR_DELIMITER, true).iterator(),
+            localContentCache, prefix, DIR_DELIMITER);
+        final List<ContentItem> contentItems = new ArrayList<>();
+        while (diff.next()) {
+            contentItems.add(diff.getContentItem(transferStates));
+        }
+        return contentItems;
+    }
+
+    /**
+     * Search the content by the words in its file and folder names. This searches the content that has
+     * been cached, listed or synced into the catalog, without making any network requests, but the states
+     * of content being transferred may be read from the transfer database, so this should be called off
+     * of the main thread. Each word of the query must be a whole word of a file's path, or the beginning
+     * of one. Files are ranked by how well they match, with whole words ranking above the beginnings of
+     * words and words in the file name ranking above words in its folders, then newest first.
+     *
+     * @param query the words to search for.
+     * @param offset the number of best matching files to skip, for paging through the results.
+     * @param limit the most files to return.
+     * @return the matching files, best first. Fewer than the limit means there are no more.
+     */
+    public List<ContentItem> searchContent(final String query, final int offset, final int limit) {
+        final List<ContentSearchIndex.Document> documents = searchIndex.search(query, offset, limit);
+        final Map<String, ContentState> transferStates = getContentStatesForTransfers();
+        final List<ContentItem> contentItems = new ArrayList<>(documents.size());
+        for (final ContentSearchIndex.Document document : documents) {
+            final String filePath = document.getFilePath();
+            final FileContent cachedFile = localContentCache.getNextFile(filePath, true);
+            if (cachedFile != null && cachedFile.getFilePath().equals(filePath)) {
+                contentItems.add(cachedFile);
+                continue;
+            }
+            final S3ContentSummary summary = new S3ContentSummary(filePath, document.getSize(),
+                document.getLastModifiedTime(), null);
+            final ContentState transferState = transferStates.get(filePath);
+            if (transferState != null) {
+                summary.setContentState(transferState);
+            }
+            contentItems.add(summary);
+        }
+        return contentItems;
+    }
+
     /** This must should be called once the content manager is no longer needed.  No methods should be called
      * on the ContentManager once this method has been called.
      */
     public synchronized void destroy() {
+        catalogSync.shutdown();
         transferHelper.destroy();
+        contentRevalidator.shutdown();
+        // Stops the listing of any subscriptions left open.
+        publisherExecutorService.shutdownNow();
     }
 }
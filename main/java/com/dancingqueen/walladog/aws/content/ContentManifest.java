@@ -0,0 +1,405 @@
+package com.dancingqueen.walladog.aws.content;
+
+import com.dancingqueen.walladog.aws.util.S3Utils;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A precomputed index of the content managed by a content manager, published with the content so
+ * that the content can be listed without listing S3. The index is memory mapped, and a listing
+ * binary searches it for the prefix, skipping past whole sub-folders in a delimited listing.
+ *
+ * The index is a binary file, in big-endian byte order, which may be gzip compressed:
+ * <pre>
+ *   int     magic, 0x57444958 ("WDIX")
+ *   int     version, 1
+ *   int     entry count
+ *   int[]   offset of each entry from the end of this table, in order of the entries' paths
+ *   entries
+ * </pre>
+ * Each entry is an object's path relative to the content manager's S3 folder, as an unsigned short
+ * byte count and that many bytes of UTF-8, followed by the object's size as a long, its last modified
+ * time in milliseconds as a long, and its ETag as an unsigned byte count and that many bytes of ASCII.
+ * Entries are sorted by their paths' UTF-8 bytes, which is the order S3 lists keys in.
+ */
+/* package */ final class ContentManifest {
+    /** The first four bytes of an index. */
+    /* package */ static final int MAGIC = 0x57444958;
+
+    /** The version of the index format this reads. */
+    /* package */ static final int VERSION = 1;
+
+    /** The size of the header before the offset table. */
+    private static final int HEADER_SIZE = 12;
+
+    /** The size of an entry's fields between its path and its ETag: size, time and ETag length. */
+    private static final int ATTRIBUTES_SIZE = 17;
+
+    /** The first two bytes of a gzip stream. */
+    private static final int GZIP_MAGIC = 0x1f8b;
+
+    /** Size of the buffer for decompressing an index. */
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** The mapped index. Only absolute reads are made of it, or of duplicates, so it may be shared. */
+    private final ByteBuffer index;
+    private final int entryCount;
+    private final int entriesStart;
+    private final String eTag;
+    private final long fileSize;
+    private final long fileLastModified;
+
+    private ContentManifest(final ByteBuffer index, final int entryCount, final String eTag, final File file) {
+        this.index = index;
+        this.entryCount = entryCount;
+        this.entriesStart = HEADER_SIZE + 4 * entryCount;
+        this.eTag = eTag;
+        this.fileSize = file.length();
+        this.fileLastModified = file.lastModified();
+    }
+
+    /**
+     * Load an index, decompressing it first if it is compressed.
+     *
+     * @param file the downloaded index.
+     * @param uncompressedFile where to keep the index if it must be decompressed. This is replaced,
+     *                         which doesn't affect a manifest already loaded from it.
+     * @param eTag the ETag of the downloaded index, if known.
+     * @return the manifest.
+     * @throws IOException if the index can't be read or isn't valid.
+     */
+    /* package */ static ContentManifest load(final File file, final File uncompressedFile, final String eTag)
+        throws IOException {
+        File indexFile = file;
+        if (isCompressed(file)) {
+            decompress(file, uncompressedFile);
+            indexFile = uncompressedFile;
+        }
+
+        final ByteBuffer index;
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(indexFile, "r");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            // The mapping stays valid after the file is closed.
+            index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            randomAccessFile.close();
+        }
+
+        if (index.limit() < HEADER_SIZE || index.getInt(0) != MAGIC) {
+            throw new IOException("Not a content index: " + file.getName());
+        }
+        if (index.getInt(4) != VERSION) {
+            throw new IOException(String.format("Unsupported content index version %d.", index.getInt(4)));
+        }
+        final int entryCount = index.getInt(8);
+        if (entryCount < 0 || HEADER_SIZE + 4L * entryCount > index.limit()) {
+            throw new IOException("Content index is truncated: " + file.getName());
+        }
+        checkEntries(index, entryCount, file);
+        return new ContentManifest(index, entryCount, eTag, file);
+    }
+
+    /**
+     * Check that every entry lies within the index, so that reading one can't fail later.
+     */
+    private static void checkEntries(final ByteBuffer index, final int entryCount, final File file)
+        throws IOException {
+        final long entriesStart = HEADER_SIZE + 4L * entryCount;
+        final long limit = index.limit();
+        for (int entry = 0; entry < entryCount; entry++) {
+            final int offset = index.getInt(HEADER_SIZE + 4 * entry);
+            final long position = entriesStart + offset;
+            if (offset < 0 || position + 2 > limit) {
+                throw new IOException(String.format("Content index entry %d is out of bounds: %s",
+                    entry, file.getName()));
+            }
+            final long eTagLengthPosition = position + 2 + (index.getShort((int) position) & 0xffff) +
+                ATTRIBUTES_SIZE - 1;
+            if (eTagLengthPosition + 1 > limit ||
+                eTagLengthPosition + 1 + (index.get((int) eTagLengthPosition) & 0xff) > limit) {
+                throw new IOException(String.format("Content index entry %d is out of bounds: %s",
+                    entry, file.getName()));
+            }
+        }
+    }
+
+    private static boolean isCompressed(final File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            final int first = in.read();
+            final int second = in.read();
+            return first >= 0 && second >= 0 && ((first << 8) | second) == GZIP_MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void decompress(final File file, final File uncompressedFile) throws IOException {
+        final File tempFile = new File(uncompressedFile.getPath() + ".tmp");
+        final InputStream in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            final OutputStream out = new FileOutputStream(tempFile);
+            try {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!tempFile.renameTo(uncompressedFile)) {
+            throw new IOException("Couldn't rename decompressed content index to: " + uncompressedFile.getPath());
+        }
+    }
+
+    /**
+     * @return the ETag of the index this was loaded from, or null if it isn't known.
+     */
+    /* package */ String getETag() {
+        return eTag;
+    }
+
+    /**
+     * Check whether this was loaded from the same version of the downloaded index. The versions are
+     * compared by ETag if both are known, and otherwise by the file's size and last modified time.
+     *
+     * @param file the downloaded index.
+     * @param fileETag the ETag of the downloaded index, if known.
+     * @return true if loading the file again would load the same index.
+     */
+    /* package */ boolean isLoadedFrom(final File file, final String fileETag) {
+        if (eTag != null && fileETag != null) {
+            return eTag.equals(fileETag);
+        }
+        return fileSize == file.length() && fileLastModified == file.lastModified();
+    }
+
+    /**
+     * List the content under a prefix, as S3 would list it.
+     *
+     * @param prefix the relative path prefix.
+     * @param delimiter the delimiter, or null to list everything under the prefix.
+     * @param includeDirectories whether to include directories.
+     * @return the summaries, in order of their paths, read from the index as they are iterated.
+     */
+    /* package */ Iterable<S3ContentSummary> list(final String prefix, final String delimiter,
+                                                  final boolean includeDirectories) {
+        return new Iterable<S3ContentSummary>() {
+            @Override
+            public Iterator<S3ContentSummary> iterator() {
+                return new ListingIterator(prefix == null ? "" : prefix, delimiter, includeDirectories);
+            }
+        };
+    }
+
+    /**
+     * Look up a file in the index.
+     *
+     * @param filePath the relative path of the file.
+     * @return the file's summary, or null if it isn't in the index.
+     */
+    /* package */ S3ContentSummary find(final String filePath) {
+        final byte[] key = filePath.getBytes(UTF_8);
+        final int entry = lowerBound(0, key);
+        if (entry >= entryCount || comparePath(entry, key) != 0) {
+            return null;
+        }
+        return getSummary(entry, filePath);
+    }
+
+    private int getEntryPosition(final int entry) {
+        return entriesStart + index.getInt(HEADER_SIZE + 4 * entry);
+    }
+
+    private int getPathLength(final int position) {
+        return index.getShort(position) & 0xffff;
+    }
+
+    /**
+     * Compare an entry's path with a key, byte by byte.
+     *
+     * @return less than zero, zero or greater than zero as the path is before, the same as or after the key.
+     */
+    private int comparePath(final int entry, final byte[] key) {
+        final int position = getEntryPosition(entry);
+        final int length = getPathLength(position);
+        final int count = Math.min(length, key.length);
+        for (int i = 0; i < count; i++) {
+            final int difference = (index.get(position + 2 + i) & 0xff) - (key[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - key.length;
+    }
+
+    private boolean pathStartsWith(final int entry, final byte[] prefix) {
+        final int position = getEntryPosition(entry);
+        if (getPathLength(position) < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (index.get(position + 2 + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the first entry whose path isn't before the key.
+     */
+    private int lowerBound(final int from, final byte[] key) {
+        int low = from;
+        int high = entryCount;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (comparePath(middle, key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the first entry whose path doesn't begin with the prefix.
+     */
+    private int skipPrefix(final int from, final byte[] prefix) {
+        // Find the shortest key after every path beginning with the prefix.
+        int length = prefix.length;
+        while (length > 0 && prefix[length - 1] == (byte) 0xff) {
+            length--;
+        }
+        if (length == 0) {
+            return entryCount;
+        }
+        final byte[] after = new byte[length];
+        System.arraycopy(prefix, 0, after, 0, length);
+        after[length - 1]++;
+        return lowerBound(from, after);
+    }
+
+    private String getPath(final int entry) {
+        final int position = getEntryPosition(entry);
+        final byte[] path = new byte[getPathLength(position)];
+        final ByteBuffer view = index.duplicate();
+        view.position(position + 2);
+        view.get(path);
+        return new String(path, UTF_8);
+    }
+
+    private S3ContentSummary getSummary(final int entry, final String path) {
+        final int position = getEntryPosition(entry) + 2 + getPathLength(getEntryPosition(entry));
+        final long size = index.getLong(position);
+        final long lastModified = index.getLong(position + 8);
+        final byte[] eTagBytes = new byte[index.get(position + ATTRIBUTES_SIZE - 1) & 0xff];
+        final ByteBuffer view = index.duplicate();
+        view.position(position + ATTRIBUTES_SIZE);
+        view.get(eTagBytes);
+        return new S3ContentSummary(path, size, lastModified,
+            eTagBytes.length == 0 ? null : new String(eTagBytes, UTF_8));
+    }
+
+    /** Reads a listing from the index as it is iterated. */
+    private final class ListingIterator implements Iterator<S3ContentSummary> {
+        private final byte[] prefix;
+        private final byte[] delimiter;
+        private final boolean includeDirectories;
+        private int nextEntry;
+        private S3ContentSummary next;
+
+        private ListingIterator(final String prefix, final String delimiter, final boolean includeDirectories) {
+            this.prefix = prefix.getBytes(UTF_8);
+            this.delimiter = delimiter == null ? null : delimiter.getBytes(UTF_8);
+            this.includeDirectories = includeDirectories;
+            nextEntry = lowerBound(0, this.prefix);
+            next = findNext();
+        }
+
+        private S3ContentSummary findNext() {
+            while (nextEntry < entryCount && pathStartsWith(nextEntry, prefix)) {
+                final int entry = nextEntry;
+                final String path = getPath(entry);
+                final byte[] pathBytes = path.getBytes(UTF_8);
+                final int delimiterIndex = delimiter == null ? -1 : indexOf(pathBytes, delimiter, prefix.length);
+                if (delimiterIndex >= 0) {
+                    // Everything under the sub-folder is summarized by the folder.
+                    final byte[] folder = new byte[delimiterIndex + delimiter.length];
+                    System.arraycopy(pathBytes, 0, folder, 0, folder.length);
+                    nextEntry = skipPrefix(entry, folder);
+                    if (includeDirectories) {
+                        return new S3ContentSummary(new String(folder, UTF_8));
+                    }
+                    continue;
+                }
+                nextEntry++;
+                if (path.isEmpty()) {
+                    continue;
+                }
+                if (S3Utils.isDirectory(path)) {
+                    if (includeDirectories) {
+                        return new S3ContentSummary(path);
+                    }
+                    continue;
+                }
+                return getSummary(entry, path);
+            }
+            return null;
+        }
+
+        private int indexOf(final byte[] bytes, final byte[] target, final int from) {
+            for (int i = from; i <= bytes.length - target.length; i++) {
+                int j = 0;
+                while (j < target.length && bytes[i + j] == target[j]) {
+                    j++;
+                }
+                if (j == target.length) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public S3ContentSummary next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            final S3ContentSummary current = next;
+            next = findNext();
+            return current;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Remove not supported.");
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.dancingqueen.walladog.aws.content;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Selects which files a content listing returns, so that content that isn't wanted is dropped as it
+ * is listed rather than being returned to the caller. A query matches files only, never directories.
+ *
+ * A query may also limit the listing to the newest files. Those are selected as the content is listed
+ * while holding no more files than the limit, and are returned newest first.
+ */
+public final class ContentQuery {
+    private final long modifiedAfter;
+    private final long minSize;
+    private final long maxSize;
+    private final List<String> suffixes;
+    private final int newestLimit;
+
+    /** Builder for convenience of instantiation. */
+    public static final class Builder {
+        private long modifiedAfter = Long.MIN_VALUE;
+        private long minSize = 0;
+        private long maxSize = Long.MAX_VALUE;
+        private List<String> suffixes = Collections.emptyList();
+        private int newestLimit = 0;
+
+        /**
+         * @param time the time in milliseconds since the epoch after which files must have been modified.
+         * @return this builder.
+         */
+        public Builder withModifiedAfter(final long time) {
+            this.modifiedAfter = time;
+            return this;
+        }
+
+        /**
+         * @param minSize the smallest size in bytes a file may have.
+         * @param maxSize the largest size in bytes a file may have.
+         * @return this builder.
+         */
+        public Builder withSizeRange(final long minSize, final long maxSize) {
+            if (minSize > maxSize) {
+                throw new IllegalArgumentException(String.format("Size range %d-%d is empty.", minSize, maxSize));
+            }
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        /**
+         * @param suffixes the suffixes, such as file extensions, one of which the file name must end with.
+         * @return this builder.
+         */
+        public Builder withSuffixes(final String... suffixes) {
+            this.suffixes = new ArrayList<>(Arrays.asList(suffixes));
+            return this;
+        }
+
+        /**
+         * @param limit the number of newest files to return, or zero for all files, in any order.
+         * @return this builder.
+         */
+        public Builder withNewest(final int limit) {
+            if (limit < 0) {
+                throw new IllegalArgumentException("Newest limit must not be negative: " + limit);
+            }
+            this.newestLimit = limit;
+            return this;
+        }
+
+        public ContentQuery build() {
+            return new ContentQuery(this);
+        }
+    }
+
+    private ContentQuery(final Builder builder) {
+        modifiedAfter = builder.modifiedAfter;
+        minSize = builder.minSize;
+        maxSize = builder.maxSize;
+        suffixes = builder.suffixes;
+        newestLimit = builder.newestLimit;
+    }
+
+    /**
+     * @return the number of newest files to return, or zero for all files.
+     */
+    public int getNewestLimit() {
+        return newestLimit;
+    }
+
+    /**
+     * @param contentItem a content item.
+     * @return true if the query matches the item.
+     */
+    public boolean matches(final ContentItem contentItem) {
+        if (ContentState.REMOTE_DIRECTORY.equals(contentItem.getContentState())) {
+            return false;
+        }
+        if (contentItem.getLastModifiedTime() <= modifiedAfter ||
+            contentItem.getSize() < minSize || contentItem.getSize() > maxSize) {
+            return false;
+        }
+        if (suffixes.isEmpty()) {
+            return true;
+        }
+        for (final String suffix : suffixes) {
+            if (contentItem.getFilePath().endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
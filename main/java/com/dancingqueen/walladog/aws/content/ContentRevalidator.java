@@ -0,0 +1,196 @@
+package com.dancingqueen.walladog.aws.content;
+
+import android.util.Log;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks whether cached content is still current with conditional GET requests, so that content which
+ * hasn't changed is confirmed without transferring it again.
+ *
+ * A request is made with the ETag stored for the cached file. S3 answers 304 Not Modified without a
+ * body if the content is unchanged. Otherwise the response body is abandoned, and the caller downloads
+ * the new version as usual. If no ETag is stored for the file yet, its metadata is requested instead
+ * and compared with the time the file was cached, which gives the ETag to store for next time.
+ */
+/* package */ class ContentRevalidator {
+    private static final String LOG_TAG = ContentRevalidator.class.getSimpleName();
+
+    /** The number of requests a batch may have outstanding at once. */
+    private static final int MAX_CONCURRENT_REQUESTS = 4;
+
+    private final AmazonS3Client s3Client;
+    private final String bucket;
+    private final String s3DirPrefix;
+    private final LocalContentCache localContentCache;
+
+    /** Runs the requests of a batch. */
+    private final ExecutorService requestExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_REQUESTS);
+
+    /** The result of revalidating a cached file. */
+    /* package */ static final class Result {
+        private final String filePath;
+        private final boolean modified;
+        private final String eTag;
+        private final long size;
+        private final AmazonClientException exception;
+
+        private Result(final String filePath, final boolean modified, final String eTag, final long size,
+                       final AmazonClientException exception) {
+            this.filePath = filePath;
+            this.modified = modified;
+            this.eTag = eTag;
+            this.size = size;
+            this.exception = exception;
+        }
+
+        /** @return the relative path and file name. */
+        /* package */ String getFilePath() {
+            return filePath;
+        }
+
+        /** @return true if the remote content differs from the cached file. */
+        /* package */ boolean isModified() {
+            return modified;
+        }
+
+        /** @return the remote content's ETag, or null if it isn't known. */
+        /* package */ String getETag() {
+            return eTag;
+        }
+
+        /** @return the remote content's size in bytes. */
+        /* package */ long getSize() {
+            return size;
+        }
+
+        /** @return the exception if the request failed, otherwise null. */
+        /* package */ AmazonClientException getException() {
+            return exception;
+        }
+    }
+
+    /* package */ ContentRevalidator(final AmazonS3Client s3Client, final String bucket, final String s3DirPrefix,
+                                     final LocalContentCache localContentCache) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.s3DirPrefix = s3DirPrefix;
+        this.localContentCache = localContentCache;
+    }
+
+    /**
+     * Revalidate a cached file. This makes a network request, so must be called on a background thread.
+     *
+     * @param filePath the relative path and file name.
+     * @param localFile the cached file.
+     * @return the result, which holds the exception if the request failed.
+     */
+    /* package */ Result revalidate(final String filePath, final File localFile) {
+        final String s3Key = s3DirPrefix != null ? s3DirPrefix + filePath : filePath;
+        final String eTag = localContentCache.getETag(filePath);
+        if (eTag == null) {
+            return revalidateByMetadata(filePath, s3Key, localFile);
+        }
+        final GetObjectRequest request = new GetObjectRequest(bucket, s3Key)
+            .withNonmatchingETagConstraint(eTag);
+
+        final S3Object s3Object;
+        try {
+            s3Object = s3Client.getObject(request);
+        } catch (final AmazonClientException ex) {
+            Log.d(LOG_TAG, String.format("Couldn't revalidate '%s'.", filePath), ex);
+            return new Result(filePath, false, eTag, localFile.length(), ex);
+        }
+        if (s3Object == null) {
+            // The constraint wasn't met, meaning S3 answered 304 Not Modified.
+            return new Result(filePath, false, eTag, localFile.length(), null);
+        }
+        try {
+            final ObjectMetadata objectMeta = s3Object.getObjectMetadata();
+            Log.d(LOG_TAG, String.format("Cached file '%s' has a newer version.", filePath));
+            return new Result(filePath, true, objectMeta.getETag(), objectMeta.getContentLength(), null);
+        } finally {
+            // Don't read the body, it will be downloaded through the transfer helper.
+            s3Object.getObjectContent().abort();
+        }
+    }
+
+    /**
+     * Revalidate a cached file that has no stored ETag by its remote metadata, as an If-Modified-Since
+     * request would, but learning the ETag whether or not the content changed. A 304 answer to a
+     * conditional GET carries no ETag the SDK returns.
+     */
+    private Result revalidateByMetadata(final String filePath, final String s3Key, final File localFile) {
+        final ObjectMetadata objectMeta;
+        try {
+            objectMeta = s3Client.getObjectMetadata(bucket, s3Key);
+        } catch (final AmazonClientException ex) {
+            Log.d(LOG_TAG, String.format("Couldn't revalidate '%s'.", filePath), ex);
+            return new Result(filePath, false, null, localFile.length(), ex);
+        }
+        final Date lastModified = objectMeta.getLastModified();
+        final boolean modified = lastModified != null && lastModified.getTime() > localFile.lastModified();
+        if (modified) {
+            Log.d(LOG_TAG, String.format("Cached file '%s' has a newer version.", filePath));
+        }
+        return new Result(filePath, modified, objectMeta.getETag(),
+            modified ? objectMeta.getContentLength() : localFile.length(), null);
+    }
+
+    /**
+     * Revalidate a batch of cached files, with several requests outstanding at once. This makes
+     * network requests, so must be called on a background thread.
+     *
+     * @param localFilesByPath the cached files by relative path and file name.
+     * @return the results, in no particular order.
+     */
+    /* package */ List<Result> revalidateAll(final Map<String, File> localFilesByPath) {
+        final Map<String, Future<Result>> futures = new HashMap<>();
+        for (final Map.Entry<String, File> entry : localFilesByPath.entrySet()) {
+            futures.put(entry.getKey(), requestExecutor.submit(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return revalidate(entry.getKey(), entry.getValue());
+                }
+            }));
+        }
+
+        final List<Result> results = new ArrayList<>(futures.size());
+        for (final Map.Entry<String, Future<Result>> entry : futures.entrySet()) {
+            try {
+                results.add(entry.getValue().get());
+            } catch (final ExecutionException ex) {
+                results.add(new Result(entry.getKey(), false, null, 0,
+                    new AmazonClientException(ex.getCause().getMessage(), ex.getCause())));
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                results.add(new Result(entry.getKey(), false, null, 0,
+                    new AmazonClientException("Interrupted while revalidating.", ex)));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Stop running requests.
+     */
+    /* package */ void shutdown() {
+        requestExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,265 @@
+package com.dancingqueen.walladog.aws.content;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An inverted index over the paths of the content a content manager has seen, for searching content by
+ * the words in its file and folder names without listing S3.
+ *
+ * A path is split into lower case tokens at every character that isn't a letter or a digit. Each token
+ * maps to the files whose names or folders contain it, in a sorted map, so that the files containing
+ * any token beginning with a prefix are found with one range of the map. A file matches a query if every
+ * word of the query is a token of its path, or a prefix of one. Files are ranked by how well they match,
+ * with exact words scoring above prefixes and words in the file name above words in its folders, then by
+ * newest first.
+ */
+/* package */ class ContentSearchIndex {
+
+    /** Marks a token that is in a file's folders. */
+    private static final int IN_FOLDER = 1;
+
+    /** Marks a token that is in a file's name. */
+    private static final int IN_NAME = 2;
+
+    /** The score of a query word that is a whole token, by where the token is. */
+    private static final int EXACT_NAME_SCORE = 4;
+    private static final int EXACT_FOLDER_SCORE = 2;
+
+    /** The score of a query word that is a prefix of a token, by where the token is. */
+    private static final int PREFIX_NAME_SCORE = 2;
+    private static final int PREFIX_FOLDER_SCORE = 1;
+
+    /** A file in the index. */
+    /* package */ static final class Document {
+        private final String filePath;
+        private final long size;
+        private final long lastModifiedTime;
+        private final String[] tokens;
+
+        private Document(final String filePath, final long size, final long lastModifiedTime,
+                         final String[] tokens) {
+            this.filePath = filePath;
+            this.size = size;
+            this.lastModifiedTime = lastModifiedTime;
+            this.tokens = tokens;
+        }
+
+        /* package */ String getFilePath() {
+            return filePath;
+        }
+
+        /* package */ long getSize() {
+            return size;
+        }
+
+        /* package */ long getLastModifiedTime() {
+            return lastModifiedTime;
+        }
+    }
+
+    /** A matching file and its score. */
+    private static final class Hit {
+        private final Document document;
+        private int score;
+
+        private Hit(final Document document) {
+            this.document = document;
+        }
+    }
+
+    private static final Comparator<Hit> BEST_FIRST = new Comparator<Hit>() {
+        @Override
+        public int compare(final Hit lhs, final Hit rhs) {
+            if (lhs.score != rhs.score) {
+                return lhs.score > rhs.score ? -1 : 1;
+            }
+            if (lhs.document.lastModifiedTime != rhs.document.lastModifiedTime) {
+                return lhs.document.lastModifiedTime > rhs.document.lastModifiedTime ? -1 : 1;
+            }
+            return lhs.document.filePath.compareTo(rhs.document.filePath);
+        }
+    };
+
+    /** The indexed files by relative path. */
+    private final Map<String, Document> documentsByPath = new HashMap<>();
+
+    /** For each token, where it is in each file containing it, by relative path. */
+    private final TreeMap<String, Map<String, Integer>> postingsByToken = new TreeMap<>();
+
+    /**
+     * Index a file, replacing what was indexed for the same path. Directories are ignored.
+     *
+     * @param contentItem the file.
+     */
+    /* package */ void add(final ContentItem contentItem) {
+        if (ContentState.REMOTE_DIRECTORY.equals(contentItem.getContentState())) {
+            return;
+        }
+        add(contentItem.getFilePath(), contentItem.getSize(), contentItem.getLastModifiedTime());
+    }
+
+    /**
+     * Index a file, replacing what was indexed for the same path.
+     *
+     * @param filePath the relative path of the file.
+     * @param size the size of the file.
+     * @param lastModifiedTime the last modified time of the file.
+     */
+    /* package */ synchronized void add(final String filePath, final long size, final long lastModifiedTime) {
+        final Document existing = documentsByPath.get(filePath);
+        if (existing != null) {
+            if (existing.size == size && existing.lastModifiedTime == lastModifiedTime) {
+                return;
+            }
+            // The tokens come from the path, so only the attributes change.
+            documentsByPath.put(filePath, new Document(filePath, size, lastModifiedTime, existing.tokens));
+            return;
+        }
+
+        final int nameStart = filePath.lastIndexOf(TransferHelper.DIR_DELIMITER) + 1;
+        final Map<String, Integer> fieldsByToken = new HashMap<>();
+        for (final String token : tokenize(filePath.substring(0, nameStart))) {
+            fieldsByToken.put(token, IN_FOLDER);
+        }
+        for (final String token : tokenize(filePath.substring(nameStart))) {
+            final Integer fields = fieldsByToken.get(token);
+            fieldsByToken.put(token, fields == null ? IN_NAME : fields | IN_NAME);
+        }
+
+        for (final Map.Entry<String, Integer> entry : fieldsByToken.entrySet()) {
+            Map<String, Integer> postings = postingsByToken.get(entry.getKey());
+            if (postings == null) {
+                postings = new HashMap<>();
+                postingsByToken.put(entry.getKey(), postings);
+            }
+            postings.put(filePath, entry.getValue());
+        }
+        documentsByPath.put(filePath, new Document(filePath, size, lastModifiedTime,
+            fieldsByToken.keySet().toArray(new String[fieldsByToken.size()])));
+    }
+
+    /**
+     * Remove a file from the index.
+     *
+     * @param filePath the relative path of the file.
+     */
+    /* package */ synchronized void remove(final String filePath) {
+        final Document document = documentsByPath.remove(filePath);
+        if (document == null) {
+            return;
+        }
+        for (final String token : document.tokens) {
+            final Map<String, Integer> postings = postingsByToken.get(token);
+            postings.remove(filePath);
+            if (postings.isEmpty()) {
+                postingsByToken.remove(token);
+            }
+        }
+    }
+
+    /**
+     * @return a new list of the relative paths of the files indexed.
+     */
+    /* package */ synchronized List<String> getFilePaths() {
+        return new ArrayList<>(documentsByPath.keySet());
+    }
+
+    /**
+     * @return the number of files indexed.
+     */
+    /* package */ synchronized int size() {
+        return documentsByPath.size();
+    }
+
+    /**
+     * Search the index.
+     *
+     * @param query words, each of which must be a token of a file's path, or a prefix of one.
+     * @param offset the number of best matching files to skip.
+     * @param limit the most files to return.
+     * @return the matching files, best first.
+     */
+    /* package */ synchronized List<Document> search(final String query, final int offset, final int limit) {
+        final List<String> words = tokenize(query);
+        if (words.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        // Score the files matching the first word, then narrow them to those matching each other word.
+        Map<String, Hit> hits = null;
+        for (final String word : words) {
+            final Map<String, Hit> wordHits = new HashMap<>();
+            final String end = word + Character.MAX_VALUE;
+            for (final Map.Entry<String, Map<String, Integer>> entry :
+                postingsByToken.subMap(word, true, end, true).entrySet()) {
+                final boolean isExact = entry.getKey().equals(word);
+                for (final Map.Entry<String, Integer> posting : entry.getValue().entrySet()) {
+                    final String filePath = posting.getKey();
+                    if (hits != null && !hits.containsKey(filePath)) {
+                        continue;
+                    }
+                    Hit hit = wordHits.get(filePath);
+                    if (hit == null) {
+                        hit = new Hit(documentsByPath.get(filePath));
+                        wordHits.put(filePath, hit);
+                    }
+                    hit.score = Math.max(hit.score, getScore(isExact, posting.getValue()));
+                }
+            }
+            if (hits != null) {
+                for (final Map.Entry<String, Hit> entry : wordHits.entrySet()) {
+                    entry.getValue().score += hits.get(entry.getKey()).score;
+                }
+            }
+            hits = wordHits;
+            if (hits.isEmpty()) {
+                return Collections.emptyList();
+            }
+        }
+
+        final List<Hit> rankedHits = new ArrayList<>(hits.values());
+        Collections.sort(rankedHits, BEST_FIRST);
+        final List<Document> page = new ArrayList<>(Math.min(limit, Math.max(rankedHits.size() - offset, 0)));
+        for (int i = Math.max(offset, 0); i < rankedHits.size() && page.size() < limit; i++) {
+            page.add(rankedHits.get(i).document);
+        }
+        return page;
+    }
+
+    private static int getScore(final boolean isExact, final int fields) {
+        if ((fields & IN_NAME) != 0) {
+            return isExact ? EXACT_NAME_SCORE : PREFIX_NAME_SCORE;
+        }
+        return isExact ? EXACT_FOLDER_SCORE : PREFIX_FOLDER_SCORE;
+    }
+
+    /**
+     * Split text into lower case tokens of letters and digits.
+     *
+     * @param text the text.
+     * @return the tokens, in order, with duplicates.
+     */
+    /* package */ static List<String> tokenize(final String text) {
+        final List<String> tokens = new ArrayList<>();
+        final StringBuilder token = new StringBuilder();
+        int i = 0;
+        while (i <= text.length()) {
+            final int codePoint = i < text.length() ? text.codePointAt(i) : -1;
+            if (codePoint >= 0 && Character.isLetterOrDigit(codePoint)) {
+                token.appendCodePoint(codePoint);
+            } else if (token.length() > 0) {
+                tokens.add(token.toString().toLowerCase(Locale.ROOT));
+                token.setLength(0);
+            }
+            i += codePoint >= 0 ? Character.charCount(codePoint) : 1;
+        }
+        return tokens;
+    }
+}
@@ -31,6 +31,19 @@ public class FileContent implements ContentItem {
         refresh();
     }
 
+    /**
+     * Construct from a snapshot of the file's size and last modified time, without reading them
+     * from the file system.
+     */
+    /* package */ FileContent(final File file, final String relativePath, final long size,
+                              final long lastModified) {
+        this.file = file;
+        this.relativePath = relativePath;
+        this.state = ContentState.CACHED;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
     /** {@inheritDoc} */
     @Override
     public long getLastModifiedTime() {
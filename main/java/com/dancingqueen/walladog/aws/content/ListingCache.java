@@ -0,0 +1,266 @@
+package com.dancingqueen.walladog.aws.content;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the most recent remote listing of each folder on disk, so that browsing a folder can show its
+ * content right away, without waiting for S3, while the listing is refreshed.
+ *
+ * A listing is fresh until it is older than the time to live, during which it is used in place of
+ * listing S3. A stale listing is still shown while it is refreshed. Each listing is a UTF-8 text file
+ * whose first line is the listing's key, followed by a line for each object or directory. The time it
+ * was listed is the file's last modified time.
+ */
+/* package */ class ListingCache {
+    private static final String LOG_TAG = ListingCache.class.getSimpleName();
+
+    /** The suffix of listing file names. */
+    private static final String LISTING_FILE_SUFFIX = ".listing";
+
+    /** Listings with more entries than this aren't kept. */
+    private static final int MAX_LISTING_SIZE = 2000;
+
+    /** Separates the fields of a line. */
+    private static final String FIELD_SEPARATOR = "\t";
+
+    /** Marks the line of an object. */
+    private static final String OBJECT_ENTRY = "F";
+
+    /** Marks the line of a directory. */
+    private static final String DIRECTORY_ENTRY = "D";
+
+    /** The directory holding the listing files. */
+    private final File listingDir;
+
+    /** How long a listing is used in place of listing S3, in milliseconds. */
+    private volatile long timeToLive;
+
+    /**
+     * @param listingPath the directory to keep listings in, which is created if it doesn't exist.
+     */
+    /* package */ ListingCache(final String listingPath) {
+        listingDir = new File(listingPath);
+        if (!listingDir.exists() && !listingDir.mkdirs()) {
+            Log.e(LOG_TAG, "Can't create directory for listings: " + listingPath);
+        }
+    }
+
+    /**
+     * @param timeToLive how long a listing is used in place of listing S3, in milliseconds.
+     */
+    /* package */ void setTimeToLive(final long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @return how long a listing is used in place of listing S3, in milliseconds.
+     */
+    /* package */ long getTimeToLive() {
+        return timeToLive;
+    }
+
+    private static String getListingKey(final String prefix, final String delimiter,
+                                        final boolean includeDirectories) {
+        return String.format("%s%s%s%s%s", delimiter, FIELD_SEPARATOR, includeDirectories, FIELD_SEPARATOR,
+            prefix == null ? "" : prefix);
+    }
+
+    private File getListingFile(final String listingKey) {
+        return new File(listingDir, String.format("%08x%s", listingKey.hashCode(), LISTING_FILE_SUFFIX));
+    }
+
+    /**
+     * @param prefix the s3 object prefix; may be null.
+     * @param delimiter the s3 object delimiter.
+     * @param includeDirectories whether the listing includes directories.
+     * @return true if a listing is kept, whether or not it is fresh.
+     */
+    /* package */ boolean contains(final String prefix, final String delimiter, final boolean includeDirectories) {
+        return getListingFile(getListingKey(prefix, delimiter, includeDirectories)).exists();
+    }
+
+    /**
+     * @param prefix the s3 object prefix; may be null.
+     * @param delimiter the s3 object delimiter.
+     * @param includeDirectories whether the listing includes directories.
+     * @return true if a listing is kept and is younger than the time to live.
+     */
+    /* package */ boolean isFresh(final String prefix, final String delimiter, final boolean includeDirectories) {
+        final File listingFile = getListingFile(getListingKey(prefix, delimiter, includeDirectories));
+        return listingFile.exists() && System.currentTimeMillis() - listingFile.lastModified() < timeToLive;
+    }
+
+    /**
+     * Read a listing.
+     *
+     * @param prefix the s3 object prefix; may be null.
+     * @param delimiter the s3 object delimiter.
+     * @param includeDirectories whether the listing includes directories.
+     * @return the summaries in the listing in the order they were listed, or null if no listing is kept.
+     */
+    /* package */ List<S3ContentSummary> get(final String prefix, final String delimiter,
+                                             final boolean includeDirectories) {
+        final String listingKey = getListingKey(prefix, delimiter, includeDirectories);
+        final File listingFile = getListingFile(listingKey);
+        if (!listingFile.exists()) {
+            return null;
+        }
+        try {
+            return readListing(listingKey, listingFile);
+        } catch (final IOException ex) {
+            Log.w(LOG_TAG, "Couldn't read listing: " + listingFile.getAbsolutePath(), ex);
+            return null;
+        }
+    }
+
+    /**
+     * Keep a listing, replacing the one kept for the same prefix.
+     *
+     * @param prefix the s3 object prefix; may be null.
+     * @param delimiter the s3 object delimiter.
+     * @param includeDirectories whether the listing includes directories.
+     * @param summaries the summaries in the listing in the order they were listed.
+     * @return true if the listing differs from the one that was kept.
+     */
+    /* package */ synchronized boolean put(final String prefix, final String delimiter,
+                                           final boolean includeDirectories,
+                                           final List<S3ContentSummary> summaries) {
+        final String listingKey = getListingKey(prefix, delimiter, includeDirectories);
+        final File listingFile = getListingFile(listingKey);
+        if (summaries.size() > MAX_LISTING_SIZE) {
+            deleteListingFile(listingFile);
+            return true;
+        }
+
+        final List<S3ContentSummary> keptSummaries = get(prefix, delimiter, includeDirectories);
+        if (keptSummaries != null && isSameListing(keptSummaries, summaries)) {
+            // Only restart the time to live.
+            if (!listingFile.setLastModified(System.currentTimeMillis())) {
+                Log.w(LOG_TAG, "Couldn't update the time of listing: " + listingFile.getAbsolutePath());
+            }
+            return false;
+        }
+
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile("listing", LISTING_FILE_SUFFIX + ".tmp", listingDir);
+            writeListing(listingKey, summaries, tempFile);
+            if (!tempFile.renameTo(listingFile)) {
+                throw new IOException("Couldn't rename listing to: " + listingFile.getAbsolutePath());
+            }
+        } catch (final IOException ex) {
+            Log.w(LOG_TAG, "Couldn't keep listing for prefix: " + prefix, ex);
+            if (tempFile != null) {
+                deleteListingFile(tempFile);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove all kept listings.
+     */
+    /* package */ synchronized void clear() {
+        final File[] listingFiles = listingDir.listFiles();
+        if (listingFiles != null) {
+            for (final File listingFile : listingFiles) {
+                deleteListingFile(listingFile);
+            }
+        }
+    }
+
+    private static boolean isSameListing(final List<S3ContentSummary> lhs, final List<S3ContentSummary> rhs) {
+        if (lhs.size() != rhs.size()) {
+            return false;
+        }
+        for (int i = 0; i < lhs.size(); i++) {
+            final S3ContentSummary left = lhs.get(i);
+            final S3ContentSummary right = rhs.get(i);
+            if (!left.getFilePath().equals(right.getFilePath()) ||
+                isDirectory(left) != isDirectory(right) ||
+                left.getSize() != right.getSize() ||
+                left.getLastModifiedTime() != right.getLastModifiedTime() ||
+                !(left.getETag() == null ? right.getETag() == null : left.getETag().equals(right.getETag()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDirectory(final S3ContentSummary summary) {
+        return ContentState.REMOTE_DIRECTORY.equals(summary.getContentState());
+    }
+
+    private static void writeListing(final String listingKey, final List<S3ContentSummary> summaries,
+                                     final File file) throws IOException {
+        final BufferedWriter writer = new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            writer.write(listingKey);
+            writer.newLine();
+            for (final S3ContentSummary summary : summaries) {
+                if (isDirectory(summary)) {
+                    writer.write(DIRECTORY_ENTRY + FIELD_SEPARATOR + summary.getFilePath());
+                } else {
+                    writer.write(OBJECT_ENTRY + FIELD_SEPARATOR + summary.getSize() + FIELD_SEPARATOR +
+                        summary.getLastModifiedTime() + FIELD_SEPARATOR +
+                        (summary.getETag() == null ? "" : summary.getETag()) + FIELD_SEPARATOR +
+                        summary.getFilePath());
+                }
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static List<S3ContentSummary> readListing(final String listingKey, final File file)
+        throws IOException {
+        final BufferedReader reader = new BufferedReader(
+            new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            if (!listingKey.equals(reader.readLine())) {
+                // A listing for another prefix whose key has the same hash.
+                return null;
+            }
+            final List<S3ContentSummary> summaries = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(DIRECTORY_ENTRY + FIELD_SEPARATOR)) {
+                    summaries.add(new S3ContentSummary(line.substring(DIRECTORY_ENTRY.length() + 1)));
+                    continue;
+                }
+                final String[] fields = line.split(FIELD_SEPARATOR, 5);
+                if (fields.length != 5 || !OBJECT_ENTRY.equals(fields[0])) {
+                    throw new IOException("Malformed listing line: " + line);
+                }
+                try {
+                    summaries.add(new S3ContentSummary(fields[4], Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2]), fields[3].isEmpty() ? null : fields[3]));
+                } catch (final NumberFormatException ex) {
+                    throw new IOException("Malformed listing line: " + line, ex);
+                }
+            }
+            return summaries;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void deleteListingFile(final File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(LOG_TAG, "Couldn't delete listing: " + file.getAbsolutePath());
+        }
+    }
+}
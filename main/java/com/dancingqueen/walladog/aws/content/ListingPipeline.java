@@ -0,0 +1,203 @@
+package com.dancingqueen.walladog.aws.content;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded hand-off of listed items from a background producer to a single consumer iterating them.
+ *
+ * Items are handed off in batches, such as a page of a listing, so the lock is taken once a batch
+ * rather than once an item. The producer waits while the batches it has queued hold at least the
+ * capacity in items. The producer ends the pipeline by closing it, or by failing it, in which case the
+ * consumer gets the failure once it has iterated the items queued before it. The consumer may cancel
+ * the pipeline, which stops the producer but still lets the consumer iterate the items already queued.
+ *
+ * @param <T> the type of item.
+ */
+/* package */ final class ListingPipeline<T> {
+
+    /** The most items the queued batches may hold before the producer waits. */
+    private final int capacity;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Signaled when a batch is queued or the pipeline ends. */
+    private final Condition notEmpty = lock.newCondition();
+    /** Signaled when the consumer takes a batch or cancels. */
+    private final Condition notFull = lock.newCondition();
+
+    /** Batches queued by the producer. Guarded by the lock. */
+    private final Queue<List<T>> batches = new ArrayDeque<>();
+    /** The number of items in the queued batches. Guarded by the lock. */
+    private int queuedCount;
+    /** Whether the producer is done. Guarded by the lock. */
+    private boolean isClosed;
+    /** Why the producer stopped, if it failed. Guarded by the lock. */
+    private RuntimeException failure;
+    /** Whether the consumer canceled. */
+    private volatile boolean isCanceled;
+
+    /** The batch the consumer is iterating, accessed only by the consumer. */
+    private List<T> currentBatch = Collections.emptyList();
+    /** The index of the consumer's next item in the current batch. */
+    private int currentIndex;
+
+    /**
+     * @param capacity the most items the queued batches may hold before the producer waits.
+     */
+    /* package */ ListingPipeline(final int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Queue a batch, waiting while the pipeline is full. Called by the producer.
+     *
+     * @param batch the batch, which the producer must not change afterwards.
+     * @return false if the consumer canceled, so the producer should stop.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    /* package */ boolean put(final List<T> batch) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (!isCanceled && queuedCount >= capacity) {
+                notFull.await();
+            }
+            if (isCanceled) {
+                return false;
+            }
+            if (!batch.isEmpty()) {
+                batches.add(batch);
+                queuedCount += batch.size();
+                notEmpty.signalAll();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * End the pipeline once the queued items have been iterated. Called by the producer.
+     */
+    /* package */ void close() {
+        lock.lock();
+        try {
+            isClosed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * End the pipeline with a failure, which the consumer gets once it has iterated the queued items.
+     * Called by the producer.
+     *
+     * @param ex the failure.
+     */
+    /* package */ void fail(final RuntimeException ex) {
+        lock.lock();
+        try {
+            failure = ex;
+            isClosed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop the producer. The items already queued may still be iterated. Called by the consumer.
+     */
+    /* package */ void cancel() {
+        lock.lock();
+        try {
+            isCanceled = true;
+            notFull.signalAll();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the consumer canceled.
+     */
+    /* package */ boolean isCanceled() {
+        return isCanceled;
+    }
+
+    /**
+     * @return true if the producer has closed or failed the pipeline.
+     */
+    /* package */ boolean isClosed() {
+        lock.lock();
+        try {
+            return isClosed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for an item. Called by the consumer.
+     *
+     * @return true if there is another item, false if the pipeline has ended.
+     * @throws RuntimeException the producer's failure, once the items queued before it are iterated.
+     */
+    /* package */ boolean hasNext() {
+        if (currentIndex < currentBatch.size()) {
+            return true;
+        }
+        lock.lock();
+        try {
+            while (batches.isEmpty()) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (isClosed || isCanceled) {
+                    return false;
+                }
+                notEmpty.awaitUninterruptibly();
+            }
+            currentBatch = batches.poll();
+            currentIndex = 0;
+            if (queuedCount >= capacity && queuedCount - currentBatch.size() < capacity) {
+                notFull.signalAll();
+            }
+            queuedCount -= currentBatch.size();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the next item. Called by the consumer after {@link #hasNext()} returned true.
+     *
+     * @return the item.
+     */
+    /* package */ T next() {
+        return currentBatch.get(currentIndex++);
+    }
+
+    /**
+     * Check whether {@link #hasNext()} would wait. Called by the consumer.
+     *
+     * @return true if no item is queued but the pipeline hasn't ended.
+     */
+    /* package */ boolean willNextBlock() {
+        if (currentIndex < currentBatch.size()) {
+            return false;
+        }
+        lock.lock();
+        try {
+            return batches.isEmpty() && failure == null && !isClosed && !isCanceled;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
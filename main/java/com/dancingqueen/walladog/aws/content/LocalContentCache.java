@@ -12,12 +12,12 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.util.Log;
 
+import com.dancingqueen.walladog.aws.util.S3Utils;
 import com.dancingqueen.walladog.aws.util.ThreadUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
@@ -26,12 +26,12 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
-/* package */ class LocalContentCache implements Iterable<File> {
+/* package */ class LocalContentCache implements Iterable<File>, ContentDiff.LocalIndex {
     private static final String LOG_TAG = LocalContentCache.class.getSimpleName();
     private static final String PREF_KEY_MAX_CACHE_SIZE = "maxCacheSize";
 
-    /** A map for cached files accounting. */
-    private final Map<String, CachedFileEntry> cachedFilesByRelativeFilePath;
+    /** A map for cached files accounting, ordered by path the way S3 lists keys. */
+    private final TreeMap<String, CachedFileEntry> cachedFilesByRelativeFilePath;
 
     private final TreeMap<CachedFileEntry, File> orderedCachedFileEntries;
 
@@ -49,6 +49,9 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 
     private final SharedPreferences pinnedFilePrefs;
 
+    /** The ETags of cached files by relative file path, for revalidating them. */
+    private final SharedPreferences eTagPrefs;
+
     /** Listener handlers for when content is removed or an error occurs removing content. */
     private ContentRemovedListener contentRemovedListener;
 
@@ -119,7 +122,7 @@ import java.util.concurrent.ConcurrentLinkedQueue;
                              final String sharedPrefName,
                              final String localContentPath) {
         this.localContentPath = localContentPath;
-        cachedFilesByRelativeFilePath = new HashMap<>();
+        cachedFilesByRelativeFilePath = new TreeMap<>(S3Utils.KEY_ORDER);
         orderedCachedFileEntries = new TreeMap<>(cachedEntriesComparator);
         contentRemovedListener = null;
         bytesUsed = 0;
@@ -129,6 +132,8 @@ import java.util.concurrent.ConcurrentLinkedQueue;
             Context.MODE_PRIVATE);
         pinnedFilePrefs = context.getSharedPreferences(sharedPrefName + "_pinned_files",
             Context.MODE_PRIVATE);
+        eTagPrefs = context.getSharedPreferences(sharedPrefName + "_etags",
+            Context.MODE_PRIVATE);
 
         // Initially the cache size starts with the maximum possible size.  Once it is set it is
         // from then on loaded from shared preferences.
@@ -255,6 +260,7 @@ import java.util.concurrent.ConcurrentLinkedQueue;
             bytesPinned -= cachedFileEntry.size;
         }
         cachedFilesByRelativeFilePath.remove(cachedFileEntry.relativeFilePath);
+        eTagPrefs.edit().remove(cachedFileEntry.relativeFilePath).apply();
     }
 
     /**
@@ -275,6 +281,27 @@ import java.util.concurrent.ConcurrentLinkedQueue;
         return null;
     }
 
+    /**
+     * Get the cached file at or after a path, in the order S3 lists keys. This reads the size and last
+     * modified time recorded by the cache rather than checking the file system, so walking the cache
+     * with it makes no system calls, and holds no more than the current file.
+     * @param filePath the path to start from.
+     * @param isInclusive whether to return the file at the path itself, if it is cached.
+     * @return the file, or null if there are no more cached files.
+     */
+    @Override
+    public synchronized FileContent getNextFile(final String filePath, final boolean isInclusive) {
+        final Map.Entry<String, CachedFileEntry> entry = isInclusive ?
+            cachedFilesByRelativeFilePath.ceilingEntry(filePath) :
+            cachedFilesByRelativeFilePath.higherEntry(filePath);
+        if (entry == null) {
+            return null;
+        }
+        final CachedFileEntry cachedFileEntry = entry.getValue();
+        return new FileContent(cachedFileEntry.file, cachedFileEntry.relativeFilePath,
+            cachedFileEntry.size, cachedFileEntry.lastModifiedTime);
+    }
+
     /**
      * Check if the cache contains a particular file object.
      * @param filePath the file name.
@@ -297,6 +324,8 @@ import java.util.concurrent.ConcurrentLinkedQueue;
      */
     public synchronized File addByMoving(final String relativeFilePath, final File incommingFile) throws IOException {
         final File cachedFile = new File(localContentPath + "/" + relativeFilePath);
+        // The ETag of whatever was cached before doesn't describe the new file.
+        eTagPrefs.edit().remove(relativeFilePath).apply();
         final CachedFileEntry entry = cachedFilesByRelativeFilePath.get(relativeFilePath);
         // if this item is in our cache.
         if (entry != null) {
@@ -343,6 +372,60 @@ import java.util.concurrent.ConcurrentLinkedQueue;
         return cachedFile;
     }
 
+    /**
+     * @param filePath the relative path and file name.
+     * @return the ETag of the cached file, or null if it isn't known.
+     */
+    @Override
+    public String getETag(final String filePath) {
+        return eTagPrefs.getString(filePath, null);
+    }
+
+    /**
+     * Record the ETag of a cached file, so that it can be revalidated.
+     * @param filePath the relative path and file name.
+     * @param eTag the ETag.
+     */
+    public synchronized void setETag(final String filePath, final String eTag) {
+        if (cachedFilesByRelativeFilePath.containsKey(filePath)) {
+            eTagPrefs.edit().putString(filePath, eTag).apply();
+        }
+    }
+
+    /**
+     * Mark cached files as confirmed to be current, as if they had just been downloaded, and record
+     * their ETags. This takes a batch so that the ETags are written together.
+     * @param eTagsByFilePath the ETags by relative path and file name. An ETag may be null if it isn't
+     *                        known.
+     */
+    public synchronized void markRevalidated(final Map<String, String> eTagsByFilePath) {
+        final long now = System.currentTimeMillis();
+        final SharedPreferences.Editor editor = eTagPrefs.edit();
+        for (final Map.Entry<String, String> entry : eTagsByFilePath.entrySet()) {
+            final String filePath = entry.getKey();
+            final CachedFileEntry cachedFileEntry = cachedFilesByRelativeFilePath.get(filePath);
+            if (cachedFileEntry == null) {
+                continue;
+            }
+            final File file = cachedFileEntry.file;
+            // The last modified time is how fresh the file is taken to be, and its age in the cache.
+            if (!file.setLastModified(now)) {
+                Log.w(LOG_TAG, "Couldn't update the last modified time of " + filePath);
+            } else {
+                orderedCachedFileEntries.remove(cachedFileEntry);
+                final CachedFileEntry refreshedEntry = new CachedFileEntry(file, filePath,
+                    cachedFileEntry.size, file.lastModified());
+                refreshedEntry.isPinned = cachedFileEntry.isPinned;
+                orderedCachedFileEntries.put(refreshedEntry, file);
+                cachedFilesByRelativeFilePath.put(filePath, refreshedEntry);
+            }
+            if (entry.getValue() != null) {
+                editor.putString(filePath, entry.getValue());
+            }
+        }
+        editor.apply();
+    }
+
 
     /**
      * Pin a file in the cache but don't count it toward the used cache size.
@@ -451,6 +534,7 @@ import java.util.concurrent.ConcurrentLinkedQueue;
         // iterate through the cached files by last accessed ascending (oldest first)
         Iterator<CachedFileEntry> fileEntryIterator = orderedCachedFileEntries.keySet().iterator();
         int removedCount = 0;
+        final SharedPreferences.Editor eTagEditor = eTagPrefs.edit();
 
         while (fileEntryIterator.hasNext()) {
             final CachedFileEntry fileEntry = fileEntryIterator.next();
@@ -459,6 +543,7 @@ import java.util.concurrent.ConcurrentLinkedQueue;
             if (!fileEntry.isPinned) {
                 bytesUsed -= fileEntry.size;
                 cachedFilesByRelativeFilePath.remove(fileEntry.relativeFilePath);
+                eTagEditor.remove(fileEntry.relativeFilePath);
                 fileEntryIterator.remove();
                 remainingBytesToRemove -= fileEntry.size;
                 removedCount++;
@@ -489,6 +574,7 @@ import java.util.concurrent.ConcurrentLinkedQueue;
                 }
             }
         }
+        eTagEditor.apply();
         return removedCount;
     }
 
@@ -511,6 +597,7 @@ import java.util.concurrent.ConcurrentLinkedQueue;
                 final File file = fileEntry.file;
                 cachedFilesByRelativeFilePath.remove(fileEntry.relativeFilePath);
                 orderedCachedFileEntries.remove(fileEntry);
+                eTagPrefs.edit().remove(filePath).apply();
                 // if the file is pinned
                 if (pinnedFilePrefs.contains(filePath)) {
                     // unpin the file.
@@ -0,0 +1,93 @@
+package com.dancingqueen.walladog.aws.content;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Selects the newest content items offered to it, up to a number of items and a total size, holding
+ * only the items selected so far rather than all the items offered.
+ *
+ * Items are selected from newest to oldest, stopping at the first item that doesn't fit in the size
+ * left over by the newer items. The selection is kept in a heap with its oldest item first. When an
+ * item is offered, the oldest items are removed while the selection is too large. Once an item has
+ * been removed it can never fit again, so an item that is older is rejected as soon as it is offered.
+ */
+/* package */ class NewestContentSelector {
+
+    /** An offered item and how much of the total size it uses. */
+    private static final class Candidate {
+        private final ContentItem contentItem;
+        private final long weight;
+
+        private Candidate(final ContentItem contentItem, final long weight) {
+            this.contentItem = contentItem;
+            this.weight = weight;
+        }
+    }
+
+    private final int maxCount;
+    private final long maxTotalSize;
+    private final Comparator<ContentItem> newestFirst;
+    private final PriorityQueue<Candidate> oldestFirst;
+
+    /** The total weight of the selected items. */
+    private long totalWeight;
+
+    /** The newest item removed from the selection, or null if none has been. */
+    private ContentItem newestRemoved;
+
+    /**
+     * @param maxCount the most items to select.
+     * @param maxTotalSize the most bytes the selected items may use.
+     * @param newestFirst orders items from newest to oldest.
+     */
+    /* package */ NewestContentSelector(final int maxCount, final long maxTotalSize,
+                                        final Comparator<ContentItem> newestFirst) {
+        this.maxCount = maxCount;
+        this.maxTotalSize = maxTotalSize;
+        this.newestFirst = newestFirst;
+        oldestFirst = new PriorityQueue<>(Math.min(Math.max(maxCount, 1), 1024), new Comparator<Candidate>() {
+            @Override
+            public int compare(final Candidate lhs, final Candidate rhs) {
+                return newestFirst.compare(rhs.contentItem, lhs.contentItem);
+            }
+        });
+    }
+
+    /**
+     * Offer an item.
+     *
+     * @param contentItem the item.
+     * @param weight how many bytes of the total size the item uses, which may be less than its size,
+     *               such as for pinned content that doesn't count against the cache size.
+     */
+    /* package */ void offer(final ContentItem contentItem, final long weight) {
+        if (newestRemoved != null && newestFirst.compare(contentItem, newestRemoved) >= 0) {
+            return;
+        }
+        oldestFirst.add(new Candidate(contentItem, weight));
+        totalWeight += weight;
+        while (!oldestFirst.isEmpty() && (oldestFirst.size() > maxCount || totalWeight > maxTotalSize)) {
+            final Candidate oldest = oldestFirst.poll();
+            totalWeight -= oldest.weight;
+            if (newestRemoved == null || newestFirst.compare(oldest.contentItem, newestRemoved) < 0) {
+                newestRemoved = oldest.contentItem;
+            }
+        }
+    }
+
+    /**
+     * @return the selected items, newest first.
+     */
+    /* package */ List<ContentItem> getSelected() {
+        final List<ContentItem> selected = new ArrayList<>(oldestFirst.size());
+        for (final Candidate candidate : oldestFirst) {
+            selected.add(candidate.contentItem);
+        }
+        Collections.sort(selected, newestFirst);
+        return selected;
+    }
+}
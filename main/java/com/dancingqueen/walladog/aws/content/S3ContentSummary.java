@@ -20,28 +20,47 @@ public class S3ContentSummary implements ContentItem {
     private final String path;
     private final long size;
     private final long lastModifiedTime;
+    private final String eTag;
     private ContentState contentState;
 
     public S3ContentSummary(final String dirName) {
         this.path = dirName;
         this.size = 0;
         this.lastModifiedTime = 0;
+        this.eTag = null;
         contentState = ContentState.REMOTE_DIRECTORY;
     }
 
     public S3ContentSummary(final S3ObjectSummary objectSummary, final String filePath) {
         lastModifiedTime = objectSummary.getLastModified().getTime();
         size = objectSummary.getSize();
+        eTag = objectSummary.getETag();
         path = filePath;
         this.contentState = ContentState.REMOTE;
     }
 
+    /* package */ S3ContentSummary(final String filePath, final long size, final long lastModifiedTime,
+                                   final String eTag) {
+        this.path = filePath;
+        this.size = size;
+        this.lastModifiedTime = lastModifiedTime;
+        this.eTag = eTag;
+        this.contentState = ContentState.REMOTE;
+    }
+
     /** {@inheritDoc} */
     @Override
     public long getLastModifiedTime() {
         return lastModifiedTime;
     }
 
+    /**
+     * @return the object's ETag, or null for a directory.
+     */
+    public String getETag() {
+        return eTag;
+    }
+
     /** {@inheritDoc} */
     @Override
     public String getFilePath() {
@@ -27,6 +27,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Manages S3 Transfers that will be placed into a local cache.
@@ -134,6 +135,20 @@ import java.util.List;
         return observer;
     }
 
+    /**
+     * Download a file to be placed in the local content cache upon completion. The S3 transfer utility
+     * has no notion of background transfers, so these are downloaded like any other.
+     * @param filePath the relative path and file name of the item to download.
+     * @param fileSize file size of the object. Pass 0 if the file size is unknown.
+     * @param background ignored.
+     * @param listener the progress listener.
+     */
+    @Override
+    public void download(final String filePath, final long fileSize, final boolean background,
+                         final ContentProgressListener listener) {
+        download(filePath, fileSize, listener);
+    }
+
     /**
      * Download a file to be placed in the local content cache upon completion.
      * @param filePath the relative path and file name of the item to download.
@@ -272,6 +287,17 @@ import java.util.List;
         return WAITING_FOR_CONTENT_STATES.contains(xferState);
     }
 
+    public synchronized Map<String, Boolean> getTransfersWaiting() {
+        // Refreshes each transfer in progress once, rather than once for each file it is asked about.
+        final Map<String, Boolean> transfersWaiting = new HashMap<>(managedFilesToTransfers.size());
+        for (final Map.Entry<String, Integer> entry : managedFilesToTransfers.entrySet()) {
+            final TransferObserver observer = transfersInProgress.get(entry.getValue());
+            observer.refresh();
+            transfersWaiting.put(entry.getKey(), WAITING_FOR_CONTENT_STATES.contains(observer.getState()));
+        }
+        return transfersWaiting;
+    }
+
 
     /**
      * Polls for all download transfers from the transfer utility and handles each appropraitely.
@@ -8,7 +8,6 @@
 //
 package com.dancingqueen.walladog.aws.content;
 
-import android.os.ConditionVariable;
 import android.util.Log;
 
 import com.amazonaws.AmazonClientException;
@@ -18,10 +17,15 @@ import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * An iterator that provides all object summaries from an S3 bucket. It handles streaming
@@ -29,6 +33,11 @@ import java.util.concurrent.atomic.AtomicInteger;
  * latency to retrieve the next object, while also limiting the queue from growing too large
  * due to back pressure.  Creating the iterator also accepts an error handler to
  * receive any exception that may occur while attempting to list objects.
+ *
+ * A listing without a delimiter may be sharded, so that the keyspace is listed as several ranges at
+ * once rather than one page after another. The shards are the prefixes one level below the listed prefix,
+ * found with a delimited listing, or prefixes known to the caller. Summaries are still returned in key
+ * order: shards other than the one being returned list a few pages ahead and then wait their turn.
  **/
 public class S3WholeBucketIterator implements Iterator<S3ContentSummary>, Iterable<S3ContentSummary>, Runnable {
     /** Logging tag for this class. */
@@ -41,16 +50,8 @@ public class S3WholeBucketIterator implements Iterator<S3ContentSummary>, Iterab
     /** The thread for listing objects. */
     private final Thread listingThread;
 
-    /** flag indicating we are in the progress of listing objects. */
-    private volatile boolean areListingObjects;
-    /** Condition variable to use when waiting for objects. */
-    private ConditionVariable waitingForObjects;
-    /** Condition variable to use when Queue full. */
-    private ConditionVariable waitingForReader;
-    /** Thread safe queue of object summaries. */
-    private final ConcurrentLinkedQueue<S3ContentSummary> summaries;
-    /** the ConcurrentLinkedQueue doesn't keep a member tracking the count, so this does. */
-    private AtomicInteger summaryCount;
+    /** Hands pages of object summaries from the listing thread to the reader. */
+    private final ListingPipeline<S3ContentSummary> pipeline;
     /** Error Handler to call on un-recoverable, un-expected errors while listing. */
     private final S3ListErrorHandler errorHandler;
 
@@ -61,13 +62,26 @@ public class S3WholeBucketIterator implements Iterator<S3ContentSummary>, Iterab
     private final String delimiter;
     /** Whether include directories (common prefixes). */
     private final boolean includeDirectories;
-    /** Once the queue has filled beyond this threshold, further retrieval is suspended. */
-    private static final int QUEUED_ITEMS_FULL_THRESHOLD_VALUE = 1200;
-    /** If retrieving items is suspended, once the number of items in the queue, drop below
-     * this value, retrieving items in the background to fill the queue is resumed. */
-    private static final int QUEUED_ITEMS_HYSTERISIS_VALUE = 900;
+    /** Whether to list the keyspace as shards at once. */
+    private final boolean shardListing;
+    /** The prefixes to shard the listing by, in key order, or null to discover them. */
+    private final List<String> knownShardPrefixes;
+    /** Once the queue holds this many items, further retrieval is suspended until the reader takes a page. */
+    private static final int QUEUE_CAPACITY = 1200;
     /** Max keys to retrieve per service call to list objects. */
     private static final int MAX_KEYS_PER_REQUEST = 300;
+    /** Max keys to retrieve per service call when discovering shards, which is the most S3 returns. */
+    private static final int DISCOVERY_MAX_KEYS_PER_REQUEST = 1000;
+    /** The delimiter used to discover shards. */
+    private static final String SHARD_DELIMITER = "/";
+    /** The fewest discovered shards worth listing at once. */
+    private static final int MIN_DISCOVERED_SHARDS = 2;
+    /** Max shards listing at once. */
+    private static final int MAX_CONCURRENT_SHARDS = 4;
+    /** Max pages a shard lists ahead of the one being returned. */
+    private static final int MAX_SHARD_PAGES_AHEAD = 4;
+    /** Marks the end of a shard's pages. */
+    private static final List<S3ObjectSummary> END_OF_SHARD = new ArrayList<>(0);
 
     public interface S3ListErrorHandler {
         void onError(AmazonClientException ex);
@@ -87,6 +101,28 @@ public class S3WholeBucketIterator implements Iterator<S3ContentSummary>, Iterab
     public S3WholeBucketIterator(final AmazonS3 s3Client, final String bucketName, final String s3ContentPrefix,
                                  final String prefix, final String delimiter, final boolean includeDirectories,
                                  final S3ListErrorHandler errorHandler) {
+        this(s3Client, bucketName, s3ContentPrefix, prefix, delimiter, includeDirectories, false, null,
+            errorHandler);
+    }
+
+    /**
+     * Constructs this iterator, optionally listing shards of the keyspace at once.
+     * @param s3Client the S3 client.
+     * @param bucketName the S3 bucket name.
+     * @param s3ContentPrefix the portion of the s3 object prefix that should be omitted from the relative path
+     *                        of the S3ContentSummary objects this iterator returns.
+     * @param prefix the s3 object prefix; may be null.
+     * @param delimiter the s3 object delimiter; may be null. Listings with a delimiter are never sharded.
+     * @param includeDirectories whether to include directories (common prefixes)
+     * @param shardListing whether to list shards of the keyspace at once.
+     * @param shardPrefixes the prefixes to shard by, or null to discover them. Every key under the
+     *                      s3 object prefix must begin with one of them, since keys that don't aren't listed.
+     * @param errorHandler an error handler.
+     */
+    public S3WholeBucketIterator(final AmazonS3 s3Client, final String bucketName, final String s3ContentPrefix,
+                                 final String prefix, final String delimiter, final boolean includeDirectories,
+                                 final boolean shardListing, final Collection<String> shardPrefixes,
+                                 final S3ListErrorHandler errorHandler) {
         this.s3Client = s3Client;
         this.bucketName = bucketName;
         this.errorHandler = errorHandler;
@@ -94,12 +130,9 @@ public class S3WholeBucketIterator implements Iterator<S3ContentSummary>, Iterab
         this.prefix = prefix;
         this.delimiter = delimiter;
         this.includeDirectories = includeDirectories;
-        summaries = new ConcurrentLinkedQueue<>();
-        summaryCount = new AtomicInteger();
-        summaryCount.set(0);
-        waitingForObjects = new ConditionVariable();
-        waitingForReader = new ConditionVariable(true);
-        areListingObjects = true;
+        this.shardListing = shardListing && delimiter == null;
+        this.knownShardPrefixes = shardPrefixes == null ? null : normalizeShardPrefixes(prefix, shardPrefixes);
+        pipeline = new ListingPipeline<>(QUEUE_CAPACITY);
 
         // Start the background thread to begin listing objects.
         listingThread = new Thread(this);
@@ -132,8 +165,82 @@ public class S3WholeBucketIterator implements Iterator<S3ContentSummary>, Iterab
         return s3Key.substring(s3ContentPrefix.length());
     }
 
+    /**
+     * Sort shard prefixes, dropping any outside the prefix or within another shard.
+     * @param prefix the s3 object prefix; may be null.
+     * @param shardPrefixes the shard prefixes.
+     * @return the shard prefixes in key order.
+     */
+    private static List<String> normalizeShardPrefixes(final String prefix, final Collection<String> shardPrefixes) {
+        final List<String> sorted = new ArrayList<>(shardPrefixes);
+        Collections.sort(sorted, S3Utils.KEY_ORDER);
+        final List<String> normalized = new ArrayList<>(sorted.size());
+        for (final String shardPrefix : sorted) {
+            if (prefix != null && !shardPrefix.startsWith(prefix)) {
+                Log.w(LOG_TAG, String.format("Ignoring shard prefix '%s' outside of prefix '%s'.",
+                    shardPrefix, prefix));
+                continue;
+            }
+            // Drop prefixes within another shard, so no key is listed twice.
+            if (normalized.isEmpty() || !shardPrefix.startsWith(normalized.get(normalized.size() - 1))) {
+                normalized.add(shardPrefix);
+            }
+        }
+        return normalized;
+    }
+
+    /**
+     * Report an error listing objects, unless it was due to the listing being canceled.
+     * @param ex the exception.
+     */
+    private void onListingError(final AmazonClientException ex) {
+        Log.e(LOG_TAG, ex.getMessage());
+        if (!isThrowableDueToInterrupt(ex) && errorHandler != null) {
+            errorHandler.onError(ex);
+        }
+    }
+
+    /**
+     * Convert a page of object summaries.
+     * @param objectSummaries the object summaries.
+     * @return the content summaries, to which a page's directories may be added.
+     */
+    private List<S3ContentSummary> toContentSummaries(final List<S3ObjectSummary> objectSummaries) {
+        final List<S3ContentSummary> page = new ArrayList<>(objectSummaries.size());
+        for (final S3ObjectSummary objectSummary : objectSummaries) {
+            final String relativeS3Path = getRelativeS3Path(objectSummary.getKey());
+            if (!relativeS3Path.isEmpty()) {
+                if (S3Utils.isDirectory(relativeS3Path)) {
+                    if (includeDirectories) {
+                        page.add(new S3ContentSummary(relativeS3Path));
+                    } // else intentionally skip this item.
+                } else {
+                    page.add(new S3ContentSummary(objectSummary, relativeS3Path));
+                }
+            }
+        }
+        return page;
+    }
+
     /** The worker method to list objects and add them to the queue. */
     public void run() {
+        try {
+            if (!shardListing || !listShards()) {
+                listPages();
+            }
+        } catch (final InterruptedException ex) {
+            // The listing was canceled.
+            Log.d(LOG_TAG, "Listing interrupted.");
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    /**
+     * List objects one page after another.
+     * @throws InterruptedException if interrupted while waiting for the reader.
+     */
+    private void listPages() throws InterruptedException {
         ObjectListing objListing;
         ListObjectsRequest request = new ListObjectsRequest()
             .withBucketName(bucketName)
@@ -144,54 +251,181 @@ public class S3WholeBucketIterator implements Iterator<S3ContentSummary>, Iterab
 
         do {
             request.setMarker(nextMarker);
-            final List<S3ObjectSummary> resultSummaries;
             try {
                 objListing = s3Client.listObjects(request);
             } catch (final AmazonClientException ex) {
-                Log.e(LOG_TAG, ex.getMessage());
-                if (isThrowableDueToInterrupt(ex)) {
-                    break;
-                }
-                if (errorHandler != null) {
-                    errorHandler.onError(ex);
-                }
+                onListingError(ex);
                 break;
             }
-            resultSummaries = objListing.getObjectSummaries();
-            if (summaryCount.addAndGet(resultSummaries.size()) >= QUEUED_ITEMS_FULL_THRESHOLD_VALUE) {
-                waitingForReader.close();
-            }
-            for (final S3ObjectSummary objectSummary : objListing.getObjectSummaries()) {
-                final String relativeS3Path = getRelativeS3Path(objectSummary.getKey());
-                if (!relativeS3Path.isEmpty()) {
-                    if (S3Utils.isDirectory(relativeS3Path)) {
-                        if (includeDirectories) {
-                            summaries.add(new S3ContentSummary(relativeS3Path));
-                        } // else intentionally skip this item.
-                    } else {
-                        summaries.add(new S3ContentSummary(objectSummary, relativeS3Path));
-                    }
-                }
-            }
+            final List<S3ContentSummary> page = toContentSummaries(objListing.getObjectSummaries());
 
             if (includeDirectories && !objListing.getCommonPrefixes().isEmpty()) {
                 for (final String commonPrefix : objListing.getCommonPrefixes()) {
                     final String relativeS3Path = getRelativeS3Path(commonPrefix);
                     if (!relativeS3Path.isEmpty()) {
-                        summaries.add(new S3ContentSummary(relativeS3Path));
+                        page.add(new S3ContentSummary(relativeS3Path));
                     }
                 }
             }
-            // Open the condition to waken hasNext() or next() if they are blocked.
-            waitingForObjects.open();
-            if (summaryCount.get() >= QUEUED_ITEMS_FULL_THRESHOLD_VALUE) {
-                waitingForReader.block();
+            if (!pipeline.put(page)) {
+                break;
             }
-        } while (((nextMarker = objListing.getNextMarker()) != null) && areListingObjects);
+        } while ((nextMarker = objListing.getNextMarker()) != null);
+    }
 
-        // Open the condition to waken hasNext() or next() if they are blocked.
-        waitingForObjects.open();
-        areListingObjects = false;
+    /**
+     * List shards of the keyspace at once, and add their objects to the queue in key order.
+     * @return false if the keyspace doesn't split into enough shards to be worth it, in which case
+     *         nothing was added to the queue.
+     * @throws InterruptedException if interrupted while waiting for a shard or the reader.
+     */
+    private boolean listShards() throws InterruptedException {
+        final List<String> shardPrefixes;
+        final List<S3ObjectSummary> topLevelSummaries = new ArrayList<>();
+        if (knownShardPrefixes != null) {
+            shardPrefixes = knownShardPrefixes;
+        } else {
+            shardPrefixes = new ArrayList<>();
+            try {
+                if (!discoverShards(shardPrefixes, topLevelSummaries)) {
+                    return false;
+                }
+            } catch (final AmazonClientException ex) {
+                onListingError(ex);
+                return true;
+            }
+        }
+
+        final ExecutorService shardExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_SHARDS);
+        try {
+            // Shards start in key order, so the one being returned has always started.
+            final List<Shard> shards = new ArrayList<>(shardPrefixes.size());
+            for (final String shardPrefix : shardPrefixes) {
+                final Shard shard = new Shard(shardPrefix);
+                shards.add(shard);
+                shardExecutor.execute(shard);
+            }
+
+            // Each shard's keys follow the keys of the shards before it, so only the objects
+            // above the shards need to be merged between them.
+            int nextTopLevel = 0;
+            for (final Shard shard : shards) {
+                int end = nextTopLevel;
+                while (end < topLevelSummaries.size() &&
+                    S3Utils.KEY_ORDER.compare(topLevelSummaries.get(end).getKey(), shard.shardPrefix) < 0) {
+                    end++;
+                }
+                if (end > nextTopLevel) {
+                    if (!pipeline.put(toContentSummaries(topLevelSummaries.subList(nextTopLevel, end)))) {
+                        return true;
+                    }
+                    nextTopLevel = end;
+                }
+                if (!shard.addPages()) {
+                    return true;
+                }
+            }
+            if (nextTopLevel < topLevelSummaries.size()) {
+                pipeline.put(toContentSummaries(topLevelSummaries.subList(nextTopLevel, topLevelSummaries.size())));
+            }
+        } finally {
+            // Stop any shards still listing.
+            shardExecutor.shutdownNow();
+        }
+        return true;
+    }
+
+    /**
+     * Find the shards by listing one level below the prefix.
+     * @param shardPrefixes receives the prefixes one level below the prefix, in key order.
+     * @param topLevelSummaries receives the objects at that level, in key order.
+     * @return false if there are too few shards to be worth listing them at once, or too many objects
+     *         at the top level to hold while the shards are listed.
+     * @throws AmazonClientException if listing fails.
+     */
+    private boolean discoverShards(final List<String> shardPrefixes, final List<S3ObjectSummary> topLevelSummaries) {
+        ObjectListing objListing;
+        final ListObjectsRequest request = new ListObjectsRequest()
+            .withBucketName(bucketName)
+            .withPrefix(prefix)
+            .withDelimiter(SHARD_DELIMITER)
+            .withMaxKeys(DISCOVERY_MAX_KEYS_PER_REQUEST);
+        String nextMarker = null;
+
+        do {
+            request.setMarker(nextMarker);
+            objListing = s3Client.listObjects(request);
+            shardPrefixes.addAll(objListing.getCommonPrefixes());
+            topLevelSummaries.addAll(objListing.getObjectSummaries());
+            if (shardPrefixes.size() < MIN_DISCOVERED_SHARDS ||
+                topLevelSummaries.size() > QUEUE_CAPACITY) {
+                Log.d(LOG_TAG, "Not sharding the listing of prefix: " + prefix);
+                return false;
+            }
+        } while (((nextMarker = objListing.getNextMarker()) != null) && !pipeline.isCanceled());
+        return true;
+    }
+
+    /** Lists the objects under a shard prefix, a few pages ahead of them being added to the queue. */
+    private final class Shard implements Runnable {
+        private final String shardPrefix;
+        private final BlockingQueue<List<S3ObjectSummary>> pages =
+            new ArrayBlockingQueue<>(MAX_SHARD_PAGES_AHEAD);
+        private volatile AmazonClientException listingException;
+
+        private Shard(final String shardPrefix) {
+            this.shardPrefix = shardPrefix;
+        }
+
+        @Override
+        public void run() {
+            ObjectListing objListing;
+            final ListObjectsRequest request = new ListObjectsRequest()
+                .withBucketName(bucketName)
+                .withPrefix(shardPrefix)
+                .withMaxKeys(MAX_KEYS_PER_REQUEST);
+            String nextMarker = null;
+
+            try {
+                do {
+                    request.setMarker(nextMarker);
+                    try {
+                        objListing = s3Client.listObjects(request);
+                    } catch (final AmazonClientException ex) {
+                        if (isThrowableDueToInterrupt(ex)) {
+                            return;
+                        }
+                        listingException = ex;
+                        break;
+                    }
+                    pages.put(objListing.getObjectSummaries());
+                } while (((nextMarker = objListing.getNextMarker()) != null) && !pipeline.isCanceled());
+                pages.put(END_OF_SHARD);
+            } catch (final InterruptedException ex) {
+                // The listing was canceled or stopped.
+            }
+        }
+
+        /**
+         * Add this shard's pages to the queue as they are listed.
+         * @return false if listing the shard failed or the listing was canceled.
+         * @throws InterruptedException if interrupted while waiting for a page.
+         */
+        private boolean addPages() throws InterruptedException {
+            while (true) {
+                final List<S3ObjectSummary> page = pages.take();
+                if (page == END_OF_SHARD) {
+                    if (listingException != null) {
+                        onListingError(listingException);
+                        return false;
+                    }
+                    return true;
+                }
+                if (!pipeline.put(toContentSummaries(page))) {
+                    return false;
+                }
+            }
+        }
     }
 
     /**
@@ -199,14 +433,7 @@ public class S3WholeBucketIterator implements Iterator<S3ContentSummary>, Iterab
      */
     @Override
     public boolean hasNext() {
-        waitingForObjects.close();
-        if (summaries.isEmpty() && !areListingObjects) {
-            return false;
-        } else if (!summaries.isEmpty()) {
-            return true;
-        }
-        waitingForObjects.block();
-        return !summaries.isEmpty();
+        return pipeline.hasNext();
     }
 
     /**
@@ -218,30 +445,18 @@ public class S3WholeBucketIterator implements Iterator<S3ContentSummary>, Iterab
     @Override
     public S3ContentSummary next() {
         if (hasNext()) {
-            return getNext();
+            return pipeline.next();
         }
         return null;
     }
 
-    /**
-     * Retrieves the next item and unblocks the writer if necessary.
-     * @return the next object summary.
-     */
-    private S3ContentSummary getNext() {
-        final S3ContentSummary next = summaries.poll();
-        if (summaryCount.decrementAndGet() == QUEUED_ITEMS_HYSTERISIS_VALUE) {
-            waitingForReader.open();
-        }
-        return next;
-    }
-
     /**
      * Call this while iterating to see if the subsequent call to next() will block.  This can
      * also be called in an enhanced for loop.
      * @return true if calling next() will block, otherwise return false.
      */
     public boolean willNextBlock() {
-        return (summaries.isEmpty() && areListingObjects);
+        return pipeline.willNextBlock();
     }
 
     /**
@@ -251,11 +466,10 @@ public class S3WholeBucketIterator implements Iterator<S3ContentSummary>, Iterab
      * remaining items that had been read in the background using next().
      */
     public void cancel() {
-        if (!areListingObjects) {
+        if (pipeline.isClosed()) {
             return;
         }
-        areListingObjects = false;
-        waitingForReader.open();
+        pipeline.cancel();
         listingThread.interrupt();
     }
 
@@ -9,16 +9,24 @@ package com.dancingqueen.walladog.aws.content;
 //
 
 import java.io.File;
+import java.util.Map;
 
 public interface TransferHelper {
     String DIR_DELIMITER = "/" ;
 
     void download(String filePath, long fileSize, ContentProgressListener listener);
+    void download(String filePath, long fileSize, boolean background, ContentProgressListener listener);
     void upload(File file, String filePath, ContentProgressListener listener);
     void setProgressListener(String filePath, ContentProgressListener listener);
     void clearProgressListeners();
     long getSizeTransferring();
     boolean isTransferring(String filePath);
     boolean isTransferWaiting(String filePath);
+
+    /**
+     * @return for each file being transferred, by relative file path, whether its transfer is waiting,
+     *         all taken at the same time.
+     */
+    Map<String, Boolean> getTransfersWaiting();
     void destroy();
 }
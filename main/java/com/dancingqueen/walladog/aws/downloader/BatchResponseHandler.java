@@ -0,0 +1,19 @@
+package com.dancingqueen.walladog.aws.downloader;
+
+public interface BatchResponseHandler {
+    /**
+     * Called once the batch has been processed.
+     *
+     * @param downloadIds The download ids in request order. Requests that were not enqueued, such as
+     *                    those for a location that is already being downloaded, have
+     *                    DownloadService.INVALID_ID.
+     */
+    void onSuccess(long[] downloadIds);
+
+    /**
+     * Called if the batch could not be enqueued. None of the downloads were enqueued.
+     *
+     * @param errorMessage A description of the failure.
+     */
+    void onError(String errorMessage);
+}
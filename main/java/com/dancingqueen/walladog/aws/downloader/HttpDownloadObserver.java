@@ -2,6 +2,7 @@ package com.dancingqueen.walladog.aws.downloader;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.Intent;
 import android.database.Cursor;
 import android.util.Log;
 
@@ -13,6 +14,11 @@ import com.dancingqueen.walladog.aws.downloader.service.DownloadService;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * A view of a download in the queue. Observers obtained from HttpDownloadUtility are kept current by
+ * the status and progress pushed from the DownloadService, so reading their state never touches the
+ * database.
+ */
 public class HttpDownloadObserver {
     private final Context context;
 
@@ -23,10 +29,10 @@ public class HttpDownloadObserver {
     private long id;
 
     /** Bytes transferred so far. */
-    private long bytesTransferred;
+    private volatile long bytesTransferred;
 
     /** File size of the download in bytes. */
-    private long totalBytes;
+    private volatile long totalBytes;
 
     /** Destination file location. */
     private String fileLocation;
@@ -34,8 +40,8 @@ public class HttpDownloadObserver {
     /** Download url. */
     private String downloadUrl;
 
-    /** The state of the download the last time this object was refreshed. */
-    private DownloadState downloadState;
+    /** The state of the download, as last pushed by the DownloadService or read from the database. */
+    private volatile DownloadState downloadState;
 
     /** The time at which this download was created. */
     private long creationTimestamp;
@@ -135,7 +141,7 @@ public class HttpDownloadObserver {
         fileLocation = row.getString(ColumnType.COL_FILE_LOCATION.ordinal());
         bytesTransferred = row.getLong(ColumnType.COL_BYTES_TRANSFERRED.ordinal());
         totalBytes = row.getLong(ColumnType.COL_FILE_SIZE.ordinal());
-        downloadState = DownloadState.valueOf(row.getString(ColumnType.COL_DOWNLOAD_STATE.ordinal()));
+        downloadState = DownloadState.fromValue(row.getInt(ColumnType.COL_DOWNLOAD_STATE.ordinal()));
         mimeType = row.getString(ColumnType.COL_MIME_TYPE.ordinal());
         long startTime;
         try {
@@ -205,7 +211,39 @@ public class HttpDownloadObserver {
     }
 
     /**
-     * Refresh fields from the database.
+     * Apply a state change pushed by the DownloadService.
+     *
+     * @param state the new state.
+     * @param details the status intent for the change, which may carry the progress at that point.
+     */
+    /* package */ void applyStateChange(final DownloadState state, final Intent details) {
+        if (details != null) {
+            final long current = details.getLongExtra(DownloadService.EXTRA_LONG_PROGRESS_CUMULATIVE, -1L);
+            if (current >= 0) {
+                bytesTransferred = current;
+            }
+            final long total = details.getLongExtra(DownloadService.EXTRA_LONG_PROGRESS_TOTAL_SIZE, 0L);
+            if (total > 0) {
+                totalBytes = total;
+            }
+        }
+        downloadState = state;
+    }
+
+    /**
+     * Apply progress pushed by the DownloadService.
+     *
+     * @param bytesCurrent the bytes downloaded so far.
+     * @param bytesTotal the total bytes to download.
+     */
+    /* package */ void applyProgress(final long bytesCurrent, final long bytesTotal) {
+        totalBytes = bytesTotal;
+        bytesTransferred = bytesCurrent;
+    }
+
+    /**
+     * Refresh fields from the database. This is not needed for observers obtained from
+     * HttpDownloadUtility, which are kept current as the download changes.
      */
     public boolean refresh() {
         final Cursor row;
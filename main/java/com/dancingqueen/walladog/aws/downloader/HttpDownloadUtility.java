@@ -4,15 +4,22 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.content.LocalBroadcastManager;
+import android.support.v4.util.LongSparseArray;
 import android.util.Log;
 
 import com.dancingqueen.walladog.aws.downloader.query.DownloadState;
 import com.dancingqueen.walladog.aws.downloader.request.DownloadAddRequest;
+import com.dancingqueen.walladog.aws.downloader.request.DownloadBatchAddRequest;
+import com.dancingqueen.walladog.aws.downloader.service.DownloadEventBus;
 import com.dancingqueen.walladog.aws.downloader.service.DownloadService;
+import com.dancingqueen.walladog.aws.downloader.service.DownloadStream;
 import com.dancingqueen.walladog.aws.util.ThreadUtils;
 
 import java.net.URI;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -31,24 +38,23 @@ public class HttpDownloadUtility extends BroadcastReceiver {
     private static HttpDownloadUtility singleton;
     private final Context appContext;
 
-    // The download intent actions we are interested in.
+    // The download intent actions we are interested in. Status and progress arrive through the
+    // DownloadEventBus instead.
     private static final String[] downloadIntentActions = new String[] {
         DownloadService.ACTION_DOWNLOAD_ENQUEUED, DownloadService.ACTION_DOWNLOAD_ENQUEUE_FAILED,
-        DownloadService.ACTION_DOWNLOAD_STARTED, DownloadService.ACTION_DOWNLOAD_PROGRESS,
         DownloadService.ACTION_DOWNLOAD_REMOVED, DownloadService.ACTION_DOWNLOAD_REMOVE_FAILED,
         DownloadService.ACTION_REQUEST_PAUSE_SUCCEEDED, DownloadService.ACTION_REQUEST_PAUSE_FAILED,
         DownloadService.ACTION_DOWNLOAD_RESUMED, DownloadService.ACTION_DOWNLOAD_RESUME_FAILED,
-        DownloadService.ACTION_DOWNLOAD_COMPLETE, DownloadService.ACTION_DOWNLOAD_FAILED,
-        DownloadService.ACTION_DOWNLOAD_PAUSED
+        DownloadService.ACTION_DOWNLOAD_BATCH_ENQUEUED, DownloadService.ACTION_DOWNLOAD_BATCH_ENQUEUE_FAILED
     };
 
     private static final HashSet<String> addResponseIntentActions;
+    private static final HashSet<String> batchAddResponseIntentActions;
     private static final HashSet<String> removeResponseIntentActions;
     private static final HashSet<String> pauseResponseIntentActions;
     private static final HashSet<String> resumeResponseIntentActions;
     private static final HashSet<String> operationIntentActions;
 
-    private static final HashSet<String> progressIntentActions;
     static {
         // ***********************************************************************
         // *****  The Following Actions are returned to the ResponseHandler,  *****
@@ -58,6 +64,10 @@ public class HttpDownloadUtility extends BroadcastReceiver {
         addResponseIntentActions.add(DownloadService.ACTION_DOWNLOAD_ENQUEUED);
         addResponseIntentActions.add(DownloadService.ACTION_DOWNLOAD_ENQUEUE_FAILED);
 
+        batchAddResponseIntentActions = new HashSet<>();
+        batchAddResponseIntentActions.add(DownloadService.ACTION_DOWNLOAD_BATCH_ENQUEUED);
+        batchAddResponseIntentActions.add(DownloadService.ACTION_DOWNLOAD_BATCH_ENQUEUE_FAILED);
+
         removeResponseIntentActions = new HashSet<>();
         removeResponseIntentActions.add(DownloadService.ACTION_DOWNLOAD_REMOVED);
         removeResponseIntentActions.add(DownloadService.ACTION_DOWNLOAD_REMOVE_FAILED);
@@ -75,19 +85,181 @@ public class HttpDownloadUtility extends BroadcastReceiver {
         operationIntentActions.addAll(removeResponseIntentActions);
         operationIntentActions.addAll(pauseResponseIntentActions);
         operationIntentActions.addAll(resumeResponseIntentActions);
+    }
 
-        // ***********************************************************************
-        // ***** The Following Actions are returned to the HttpDownloadListener, *****
-        // *****     the ResultsListener is not concerned with them.         *****
-        // ***********************************************************************
-        progressIntentActions = new HashSet<>();
-        progressIntentActions.add(DownloadService.ACTION_DOWNLOAD_STARTED);
-        progressIntentActions.add(DownloadService.ACTION_DOWNLOAD_PAUSED);
-        progressIntentActions.add(DownloadService.ACTION_DOWNLOAD_PROGRESS);
-        progressIntentActions.add(DownloadService.ACTION_DOWNLOAD_COMPLETE);
-        progressIntentActions.add(DownloadService.ACTION_DOWNLOAD_FAILED);
+    /** Used to deliver status and progress to HttpDownloadListeners on the UI thread. */
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /** An event waiting to be delivered to HttpDownloadListeners on the UI thread. */
+    private abstract static class MainThreadEvent {
+        abstract void deliver();
     }
 
+    /**
+     * Events waiting to be delivered on the UI thread, in the order they happened. They are delivered
+     * by a single runnable which is only posted when the queue has no drain pending, so that events
+     * don't each post a runnable of their own. Guarded by itself.
+     */
+    private final ArrayDeque<MainThreadEvent> mainThreadEvents = new ArrayDeque<>();
+
+    /** The latest progress of each download, reused for every update. Guarded by mainThreadEvents. */
+    private final LongSparseArray<PendingProgress> pendingProgress = new LongSparseArray<>();
+
+    /** Whether the drain has been posted and hasn't yet emptied the queue. Guarded by mainThreadEvents. */
+    private boolean isDrainPosted = false;
+
+    /** Delivers the queued events on the UI thread. */
+    private final Runnable drainMainThreadEvents = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                final MainThreadEvent event;
+                synchronized (mainThreadEvents) {
+                    event = mainThreadEvents.poll();
+                    if (event == null) {
+                        isDrainPosted = false;
+                        return;
+                    }
+                }
+                event.deliver();
+            }
+        }
+    };
+
+    /**
+     * A download's latest progress. While it is queued, newer progress only updates it, so a UI thread
+     * that falls behind is told only about the latest progress.
+     */
+    private final class PendingProgress extends MainThreadEvent {
+        private final long downloadId;
+        private final String fileLocation;
+        private long bytesCurrent;
+        private long bytesTotal;
+        private boolean isQueued = false;
+
+        private PendingProgress(final long downloadId, final String fileLocation) {
+            this.downloadId = downloadId;
+            this.fileLocation = fileLocation;
+        }
+
+        @Override
+        void deliver() {
+            final long current;
+            final long total;
+            synchronized (mainThreadEvents) {
+                isQueued = false;
+                current = bytesCurrent;
+                total = bytesTotal;
+            }
+            final List<HttpDownloadListener> listeners = getDownloadListeners(fileLocation);
+            if (listeners == null) {
+                return;
+            }
+            for (HttpDownloadListener listener : listeners) {
+                listener.onProgressChanged(downloadId, current, total);
+            }
+        }
+    }
+
+    /** A state change, with the listeners registered when it happened. */
+    private final class PendingStateChange extends MainThreadEvent {
+        private final long downloadId;
+        private final String fileLocation;
+        private final DownloadState state;
+        private final Intent details;
+        private final List<HttpDownloadListener> listeners;
+
+        private PendingStateChange(final long downloadId, final String fileLocation, final DownloadState state,
+                                   final Intent details, final List<HttpDownloadListener> listeners) {
+            this.downloadId = downloadId;
+            this.fileLocation = fileLocation;
+            this.state = state;
+            this.details = details;
+            this.listeners = listeners;
+        }
+
+        @Override
+        void deliver() {
+            handleStateChanged(downloadId, state, details, listeners);
+            if (DownloadState.COMPLETE == state || DownloadState.FAILED == state) {
+                final String opId = details.getStringExtra(INTENT_EXTRA_DOWNLOAD_OPERATION_ID);
+                removeDownloadListenerSetAtDownloadRequest(opId, fileLocation);
+            }
+        }
+    }
+
+    /**
+     * Queue an event for the UI thread, posting the drain if it isn't already pending.
+     * Must be called holding mainThreadEvents.
+     */
+    private void queueMainThreadEvent(final MainThreadEvent event) {
+        mainThreadEvents.add(event);
+        if (!isDrainPosted) {
+            isDrainPosted = true;
+            mainHandler.post(drainMainThreadEvents);
+        }
+    }
+
+    /**
+     * Receives status and progress for all downloads directly from the DownloadService, and hands them
+     * to the HttpDownloadListeners registered for the download's location.
+     */
+    private final DownloadEventBus.DownloadEventListener downloadEventListener =
+        new DownloadEventBus.DownloadEventListener() {
+            @Override
+            public void onDownloadStateChanged(final long downloadId, final String fileLocation,
+                                               final DownloadState state, final Intent details) {
+                synchronized (observers) {
+                    final HttpDownloadObserver observer = observers.get(downloadId);
+                    if (observer != null) {
+                        observer.applyStateChange(state, details);
+                        // A finished download won't change again, so stop keeping its observer current.
+                        if (isFinished(state)) {
+                            observers.remove(downloadId);
+                        }
+                    }
+                }
+                final List<HttpDownloadListener> listeners = getDownloadListeners(fileLocation);
+                synchronized (mainThreadEvents) {
+                    if (isFinished(state)) {
+                        // Progress already queued is still delivered ahead of the change.
+                        pendingProgress.remove(downloadId);
+                    }
+                    if (listeners != null) {
+                        queueMainThreadEvent(new PendingStateChange(downloadId, fileLocation, state, details,
+                            listeners));
+                    }
+                }
+            }
+
+            @Override
+            public void onDownloadProgress(final long downloadId, final String fileLocation,
+                                           final long bytesCurrent, final long bytesTotal) {
+                synchronized (observers) {
+                    final HttpDownloadObserver observer = observers.get(downloadId);
+                    if (observer != null) {
+                        observer.applyProgress(bytesCurrent, bytesTotal);
+                    }
+                }
+                if (!hasDownloadListeners(fileLocation)) {
+                    return;
+                }
+                synchronized (mainThreadEvents) {
+                    PendingProgress progress = pendingProgress.get(downloadId);
+                    if (progress == null) {
+                        progress = new PendingProgress(downloadId, fileLocation);
+                        pendingProgress.put(downloadId, progress);
+                    }
+                    progress.bytesCurrent = bytesCurrent;
+                    progress.bytesTotal = bytesTotal;
+                    if (!progress.isQueued) {
+                        progress.isQueued = true;
+                        queueMainThreadEvent(progress);
+                    }
+                }
+            }
+        };
+
     /** Handlers for receiving results for request operations made to the DownloadService. */
     private final Map<String, ResponseHandler> resultsHandlerMap;
 
@@ -99,6 +271,30 @@ public class HttpDownloadUtility extends BroadcastReceiver {
     /** Listeners for receiving download status changes. */
     private final Map<String, Set<HttpDownloadListener>> downloadListeners;
 
+    /** Batch download requests awaiting their response from the DownloadService, by request id. */
+    private final Map<String, PendingBatch> pendingBatches;
+
+    /**
+     * Observers handed out so far for downloads that haven't finished, by download id. These are kept
+     * current by the events from the DownloadService, and dropped once their download completes, fails
+     * or is removed. Loading an observer and delivering an event to it both hold this map's lock, so
+     * an observer can't miss an event that happens while it is being read from the database.
+     */
+    private final Map<Long, HttpDownloadObserver> observers;
+
+    /** What we need to remember about a batch download request until it has been acknowledged. */
+    private static final class PendingBatch {
+        private final BatchResponseHandler handler;
+        private final String[] itemRequestIds;
+        private final String[] fileLocations;
+        private PendingBatch(final BatchResponseHandler handler, final String[] itemRequestIds,
+                             final String[] fileLocations) {
+            this.handler = handler;
+            this.itemRequestIds = itemRequestIds;
+            this.fileLocations = fileLocations;
+        }
+    }
+
     public static HttpDownloadUtility getInstance(final Context context) {
         synchronized (singletonLock) {
             if (singleton == null) {
@@ -129,6 +325,10 @@ public class HttpDownloadUtility extends BroadcastReceiver {
         resultsHandlerMap = new ConcurrentHashMap<>();
         requestToDownloadListenerMap = new ConcurrentHashMap<>();
         downloadListeners = new HashMap<>();
+        pendingBatches = new ConcurrentHashMap<>();
+        observers = new HashMap<>();
+
+        DownloadEventBus.getInstance().register(downloadEventListener);
     }
 
     private long getDownloadId(final Intent intent) {
@@ -144,35 +344,33 @@ public class HttpDownloadUtility extends BroadcastReceiver {
     public void onReceive(final Context context, final Intent intent) {
         final String action = intent.getAction();
 
-        // Check if we are receiving a progress update.
-        if (progressIntentActions.contains(action)) {
-            final String downloadLocation = intent.getStringExtra(DownloadService.EXTRA_LOCATION);
-            if (downloadLocation == null) {
-                Log.e(LOG_TAG, "No download location present for received action: " + action);
+        // Check if we are receiving the DownloadService response to a batch download request.
+        if (batchAddResponseIntentActions.contains(action)) {
+            final String opId = intent.getStringExtra(INTENT_EXTRA_DOWNLOAD_OPERATION_ID);
+            final PendingBatch batch = opId == null ? null : pendingBatches.remove(opId);
+            if (batch == null) {
+                Log.d(LOG_TAG, "No batch request found. Ignoring response.");
                 return;
             }
-            synchronized (downloadListeners) {
-                // Look up the handlers registered for this download.
-                final Set<HttpDownloadListener> listeners = downloadListeners.get(downloadLocation);
-                if (listeners != null) {
-                    // Make a copy to be used outside this thread.
-                    final List<HttpDownloadListener> copiedListeners = new ArrayList<>(listeners);
-                    ThreadUtils.runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            handleProgressActions(intent, copiedListeners);
-                            if (DownloadService.ACTION_DOWNLOAD_COMPLETE.equals(action) ||
-                                    DownloadService.ACTION_DOWNLOAD_FAILED.equals(action)) {
-                                final String opId = intent.getStringExtra(INTENT_EXTRA_DOWNLOAD_OPERATION_ID);
-                                removeDownloadListenerSetAtDownloadRequest(opId, downloadLocation);
-                            }
-                        }
-                    });
+            ThreadUtils.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    handleResponseForBatchAdd(intent, batch);
                 }
-            }
+            });
             return;
         }
 
+        // A removed download won't change again, so stop keeping its observer current.
+        if (DownloadService.ACTION_DOWNLOAD_REMOVED.equals(action)) {
+            synchronized (observers) {
+                observers.remove(getDownloadId(intent));
+            }
+            synchronized (mainThreadEvents) {
+                pendingProgress.remove(getDownloadId(intent));
+            }
+        }
+
         // Check if we are receiving a DownloadService response.
         if (operationIntentActions.contains(action)) {
             // Get the operation request id and look up the response listener.
@@ -208,6 +406,37 @@ public class HttpDownloadUtility extends BroadcastReceiver {
         Log.w(LOG_TAG, "Unexpected intent Received with action = " + action);
     }
 
+    /**
+     * @param downloadLocation the download location.
+     * @return true if any listeners are registered for the location.
+     */
+    private boolean hasDownloadListeners(final String downloadLocation) {
+        if (downloadLocation == null) {
+            return false;
+        }
+        synchronized (downloadListeners) {
+            return downloadListeners.containsKey(downloadLocation);
+        }
+    }
+
+    /**
+     * Look up the listeners registered for a download location.
+     * @param downloadLocation the download location.
+     * @return a copy of the listeners, safe to use outside this thread, or null if there are none.
+     */
+    private List<HttpDownloadListener> getDownloadListeners(final String downloadLocation) {
+        if (downloadLocation == null) {
+            return null;
+        }
+        synchronized (downloadListeners) {
+            final Set<HttpDownloadListener> listeners = downloadListeners.get(downloadLocation);
+            if (listeners == null) {
+                return null;
+            }
+            return new ArrayList<>(listeners);
+        }
+    }
+
     private void removeDownloadListenerSetAtDownloadRequest(final String requestId, final String downloadLocation) {
         // Remove the listener that was set in the download request..
         final HttpDownloadListener listener = requestToDownloadListenerMap.remove(requestId);
@@ -236,6 +465,33 @@ public class HttpDownloadUtility extends BroadcastReceiver {
         }
     }
 
+    private void handleResponseForBatchAdd(final Intent intent, final PendingBatch batch) {
+        final long[] downloadIds = intent.getLongArrayExtra(DownloadService.EXTRA_LONG_ARRAY_IDS);
+        if (DownloadService.ACTION_DOWNLOAD_BATCH_ENQUEUE_FAILED.equals(intent.getAction())
+            || downloadIds == null) {
+            for (int i = 0; i < batch.itemRequestIds.length; i++) {
+                removeDownloadListenerSetAtDownloadRequest(batch.itemRequestIds[i], batch.fileLocations[i]);
+            }
+            final String errMsg = String.format("Download Failed. Could not add a batch of %d downloads.",
+                batch.itemRequestIds.length);
+            Log.e(LOG_TAG, errMsg);
+            if (batch.handler != null) {
+                batch.handler.onError(errMsg);
+            }
+            return;
+        }
+
+        for (int i = 0; i < downloadIds.length; i++) {
+            if (downloadIds[i] == DownloadService.INVALID_ID) {
+                Log.e(LOG_TAG, String.format("Could not add download to location='%s'", batch.fileLocations[i]));
+                removeDownloadListenerSetAtDownloadRequest(batch.itemRequestIds[i], batch.fileLocations[i]);
+            }
+        }
+        if (batch.handler != null) {
+            batch.handler.onSuccess(downloadIds);
+        }
+    }
+
     private void handleResponseForRemoveRecord(final Intent intent, final ResponseHandler handler) {
         if (DownloadService.ACTION_DOWNLOAD_REMOVE_FAILED.equals(intent.getAction())) {
             final String errMsg = String.format("Remove Failed. No failed or complete download found with id(%d)",
@@ -279,48 +535,20 @@ public class HttpDownloadUtility extends BroadcastReceiver {
         }
     }
 
-    private void handleProgressActions(final Intent intent, final List<HttpDownloadListener> listeners) {
-        final long downloadId = getDownloadId(intent);
-        switch(intent.getAction()) {
-            case DownloadService.ACTION_DOWNLOAD_STARTED:
-                for (HttpDownloadListener listener : listeners) {
-                    listener.onStateChanged(getDownloadId(intent), DownloadState.IN_PROGRESS);
-                }
-                break;
-
-            case DownloadService.ACTION_DOWNLOAD_PROGRESS:
-                final long bytesTransferred = intent.getLongExtra(DownloadService.EXTRA_LONG_PROGRESS_CUMULATIVE, 0);
-                final long bytesTotal = intent.getLongExtra(DownloadService.EXTRA_LONG_PROGRESS_TOTAL_SIZE, 0);
-                for (HttpDownloadListener listener : listeners) {
-                    listener.onProgressChanged(downloadId, bytesTransferred, bytesTotal);
-                }
-                break;
-
-            case DownloadService.ACTION_DOWNLOAD_PAUSED:
-                for (HttpDownloadListener listener : listeners) {
-                    listener.onStateChanged(getDownloadId(intent), DownloadState.PAUSED);
-                }
-                break;
-
-            case DownloadService.ACTION_DOWNLOAD_COMPLETE:
-                for (HttpDownloadListener listener : listeners) {
-                    listener.onStateChanged(downloadId, DownloadState.COMPLETE);
-                }
-                break;
-
-            case DownloadService.ACTION_DOWNLOAD_FAILED:
-                // Get the error code and error description from the intent.
-                final String errorCode = intent.getStringExtra(DownloadService.EXTRA_DOWNLOAD_ERROR);
-                final String errorDescription = intent.getStringExtra(DownloadService.EXTRA_COMPLETION_MESSAGE);
-                Log.e(LOG_TAG, String.format("Download Failed. errorCode='%s' errorDescription='%s'",
-                    errorCode, errorDescription));
-                for (HttpDownloadListener listener : listeners) {
-                    listener.onError(getDownloadId(intent), new HttpDownloadException(errorCode, errorDescription));
-                }
-                for (HttpDownloadListener listener : listeners) {
-                    listener.onStateChanged(downloadId, DownloadState.FAILED);
-                }
-                break;
+    private void handleStateChanged(final long downloadId, final DownloadState state, final Intent details,
+                                    final List<HttpDownloadListener> listeners) {
+        if (DownloadState.FAILED == state) {
+            // Get the error code and error description from the intent.
+            final String errorCode = details.getStringExtra(DownloadService.EXTRA_DOWNLOAD_ERROR);
+            final String errorDescription = details.getStringExtra(DownloadService.EXTRA_COMPLETION_MESSAGE);
+            Log.e(LOG_TAG, String.format("Download Failed. errorCode='%s' errorDescription='%s'",
+                errorCode, errorDescription));
+            for (HttpDownloadListener listener : listeners) {
+                listener.onError(downloadId, new HttpDownloadException(errorCode, errorDescription));
+            }
+        }
+        for (HttpDownloadListener listener : listeners) {
+            listener.onStateChanged(downloadId, state);
         }
     }
 
@@ -341,11 +569,22 @@ public class HttpDownloadUtility extends BroadcastReceiver {
         return randomRequestId;
     }
 
+    /**
+     * Start an interactive download. See
+     * {@link #download(URI, String, String, boolean, ResponseHandler, HttpDownloadListener)}.
+     */
+    public void download(final URI url, final String fileLocation, final String downloadTitle,
+                  final ResponseHandler responseHandler, final HttpDownloadListener downloadListener) {
+        download(url, fileLocation, downloadTitle, true, responseHandler, downloadListener);
+    }
+
     /**
      * If starting the download fails the passed listener will receive the onError callback.
      * @param url the download url.
      * @param fileLocation the location to save the file as it is being downloaded.
      * @param downloadTitle An arbitrary string to associate a title with the download.
+     * @param interactive true if someone is waiting for this download, false for a background download
+     *                    which only gets the bandwidth interactive downloads leave unused.
      * @param responseHandler listener to receive the result of this attempt to enqueue a download.
      * @param downloadListener Optional listener to receive status and progress updates for this
      *                         download. Null may be passed to not register a listener, otherwise
@@ -354,8 +593,35 @@ public class HttpDownloadUtility extends BroadcastReceiver {
      *                         the adding the request fails.
      */
     public void download(final URI url, final String fileLocation, final String downloadTitle,
-                  final ResponseHandler responseHandler, final HttpDownloadListener downloadListener) {
+                         final boolean interactive, final ResponseHandler responseHandler,
+                         final HttpDownloadListener downloadListener) {
+        download(new DownloadAddRequest.Builder(url, fileLocation), fileLocation, downloadTitle, interactive,
+            responseHandler, downloadListener);
+    }
+
+    /**
+     * Download a range of a file's bytes, rather than the whole file. The file saved holds only those
+     * bytes, and its total size is the length of the range. Otherwise this is the same as
+     * {@link #download(URI, String, String, boolean, ResponseHandler, HttpDownloadListener)}.
+     * @param url the download url.
+     * @param firstByte the offset in the remote file of the first byte to download.
+     * @param lastByte the offset in the remote file of the last byte to download, inclusive.
+     * @param fileLocation the location to save the range to as it is being downloaded.
+     * @param downloadTitle An arbitrary string to associate a title with the download.
+     * @param interactive true if someone is waiting for this download, false for a background download.
+     * @param responseHandler listener to receive the result of this attempt to enqueue a download.
+     * @param downloadListener Optional listener to receive status and progress updates for this download.
+     */
+    public void downloadRange(final URI url, final long firstByte, final long lastByte, final String fileLocation,
+                              final String downloadTitle, final boolean interactive,
+                              final ResponseHandler responseHandler, final HttpDownloadListener downloadListener) {
+        download(new DownloadAddRequest.Builder(url, fileLocation).setByteRange(firstByte, lastByte), fileLocation,
+            downloadTitle, interactive, responseHandler, downloadListener);
+    }
 
+    private void download(final DownloadAddRequest.Builder requestBuilder, final String fileLocation,
+                          final String downloadTitle, final boolean interactive,
+                          final ResponseHandler responseHandler, final HttpDownloadListener downloadListener) {
         final String randomRequestId = generateRequestIdAndRegisterHandler(responseHandler);
         // Keep track that this request add this listener, so it can be removed if the request fails.
         requestToDownloadListenerMap.put(randomRequestId, downloadListener);
@@ -363,8 +629,8 @@ public class HttpDownloadUtility extends BroadcastReceiver {
         addDownloadListener(fileLocation, downloadListener);
 
         // Attempt to add the download. It will fail if the file is already downloading to the specified location.
-        DownloadAddRequest downloadAddRequest = new DownloadAddRequest.Builder(url, fileLocation)
-            .setForeground(false)
+        DownloadAddRequest downloadAddRequest = requestBuilder
+            .setForeground(interactive)
             .setSilent(false)
             .setWifiLock(true)
             .setDescription(DESCRIPTION)
@@ -378,6 +644,72 @@ public class HttpDownloadUtility extends BroadcastReceiver {
         appContext.startService(downloadIntent);
     }
 
+    /**
+     * Start many downloads with a single request to the DownloadService. The downloads are checked for
+     * duplicates together, inserted into the queue in a single transaction and acknowledged with a
+     * single response, which makes this much cheaper than calling download() for each file. The
+     * downloads run in the background, using only the bandwidth interactive downloads leave unused.
+     * @param urls the download urls.
+     * @param fileLocations the locations to save the files to, one per url.
+     * @param downloadTitles titles to associate with the downloads, one per url.
+     * @param responseHandler listener to receive the result of this attempt to enqueue the downloads.
+     * @param downloadListener Optional listener to receive status and progress updates for all of these
+     *                         downloads. Null may be passed to not register a listener. The listener
+     *                         will automatically be cleared for any download that could not be added.
+     */
+    public void download(final List<URI> urls, final List<String> fileLocations, final List<String> downloadTitles,
+                         final BatchResponseHandler responseHandler, final HttpDownloadListener downloadListener) {
+        if (urls.size() != fileLocations.size() || urls.size() != downloadTitles.size()) {
+            throw new IllegalArgumentException("A file location and title are required for each url.");
+        }
+
+        final String batchRequestId = UUID.randomUUID().toString();
+        final String[] itemRequestIds = new String[urls.size()];
+        final List<DownloadAddRequest> requests = new ArrayList<>(urls.size());
+        for (int i = 0; i < urls.size(); i++) {
+            final String fileLocation = fileLocations.get(i);
+            itemRequestIds[i] = UUID.randomUUID().toString();
+            if (downloadListener != null) {
+                // Keep track that this request add this listener, so it can be removed if the request fails.
+                requestToDownloadListenerMap.put(itemRequestIds[i], downloadListener);
+                addDownloadListener(fileLocation, downloadListener);
+            }
+
+            // Status intents carry the extras of the intent persisted with each download, so give each
+            // download its own request ID, as download() does.
+            final Intent itemIntent = new Intent();
+            itemIntent.putExtra(INTENT_EXTRA_DOWNLOAD_OPERATION_ID, itemRequestIds[i]);
+            itemIntent.putExtra(DownloadService.EXTRA_DOWNLOAD_TITLE, downloadTitles.get(i));
+            requests.add(new DownloadAddRequest.Builder(urls.get(i), fileLocation)
+                .setForeground(false)
+                .setSilent(false)
+                .setWifiLock(true)
+                .setDescription(DESCRIPTION)
+                .setMobileNetworkProhibited(false)
+                .setTitle(downloadTitles.get(i))
+                .setIntentURI(itemIntent.toUri(0))
+                .build());
+        }
+        pendingBatches.put(batchRequestId, new PendingBatch(responseHandler, itemRequestIds,
+            fileLocations.toArray(new String[fileLocations.size()])));
+
+        final Intent batchIntent = new DownloadBatchAddRequest(requests).toIntent(appContext);
+        batchIntent.putExtra(INTENT_EXTRA_DOWNLOAD_OPERATION_ID, batchRequestId);
+        appContext.startService(batchIntent);
+    }
+
+    /**
+     * Open a stream of the bytes of the download to a file location as they arrive. This may be called
+     * before or after starting the download. The file is still written as usual. The stream ends when
+     * the download completes, and fails if the download fails or pauses.
+     *
+     * @param fileLocation the location the file is being downloaded to.
+     * @return the stream, which must be closed by the caller.
+     */
+    public DownloadStream openStream(final String fileLocation) {
+        return DownloadStream.open(fileLocation);
+    }
+
     // Set download listener based on file location.
     /* package */ boolean addDownloadListener(final String fileLocation, final HttpDownloadListener listener) {
         synchronized (downloadListeners) {
@@ -462,8 +794,24 @@ public class HttpDownloadUtility extends BroadcastReceiver {
         sendUserRequestAction(id, DownloadService.ACTION_REMOVE_DOWNLOAD, responseHandler);
     }
 
+    /**
+     * Get the observer for a download. The observer is read from the database the first time it is
+     * requested, and is kept current from then on.
+     *
+     * @param id the download id.
+     * @return the observer, or null if there is no such download.
+     */
     public HttpDownloadObserver getDownloadById(final long id) {
-        return HttpDownloadObserver.getDownloadById(appContext, id);
+        synchronized (observers) {
+            HttpDownloadObserver observer = observers.get(id);
+            if (observer == null) {
+                observer = HttpDownloadObserver.getDownloadById(appContext, id);
+                if (observer != null && !isFinished(observer.getState())) {
+                    observers.put(id, observer);
+                }
+            }
+            return observer;
+        }
     }
 
     public List<HttpDownloadObserver> getAllDownloadsByDownloadState(final DownloadState... downloadStates) {
@@ -471,7 +819,31 @@ public class HttpDownloadUtility extends BroadcastReceiver {
     }
 
     public List<HttpDownloadObserver> getAllDownloads() {
-        // run a query over all downloads
-        return HttpDownloadObserver.getAllDownloads(appContext);
+        synchronized (observers) {
+            // run a query over all downloads
+            final List<HttpDownloadObserver> loaded = HttpDownloadObserver.getAllDownloads(appContext);
+            final List<HttpDownloadObserver> result = new ArrayList<>(loaded.size());
+            for (final HttpDownloadObserver observer : loaded) {
+                // Observers already handed out are current, while the database may lag behind them.
+                final HttpDownloadObserver existing = observers.get(observer.getId());
+                if (existing != null) {
+                    result.add(existing);
+                } else {
+                    if (!isFinished(observer.getState())) {
+                        observers.put(observer.getId(), observer);
+                    }
+                    result.add(observer);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @param state a download state.
+     * @return true if a download in the state won't change again.
+     */
+    private static boolean isFinished(final DownloadState state) {
+        return DownloadState.COMPLETE == state || DownloadState.FAILED == state;
     }
 }
@@ -84,18 +84,7 @@ public final class BasicDownloadInfo {
      * @param row Row containing download info for this download Id
      */
     private BasicDownloadInfo(final Context context, final String localDownloadId, final Cursor row) {
-        final String intentURI = row.getString(ColumnType.COL_INTENT_URI.ordinal());
-        Intent deserialzedIntent;
-        try {
-            deserialzedIntent = Intent.parseUri(intentURI, 0);
-        } catch (URISyntaxException ex) {
-            Log.e(LOG_TAG, String.format(
-                "Could not deserialize intent for download with localDownloadId = %s. Using new intent.",
-                localDownloadId), ex);
-            deserialzedIntent = new Intent();
-        }
-        this.intent = deserialzedIntent;
-
+        this.intent = deserializeIntent(localDownloadId, row.getString(ColumnType.COL_INTENT_URI.ordinal()));
 
         downloadUrl = row.getString(ColumnType.COL_URL.ordinal());
         destinationFileUri = row.getString(ColumnType.COL_FILE_LOCATION.ordinal());
@@ -120,6 +109,46 @@ public final class BasicDownloadInfo {
         creationTimestamp = startTime;
     }
 
+    /**
+     * Constructs download info from values already known to the caller.
+     * @param localDownloadId ID of download.
+     * @param intentURI the serialized intent.
+     * @param downloadUrl the download url.
+     * @param destinationFileUri the destination file location.
+     * @param mimeType the mime type.
+     * @param downloadSize the download size.
+     * @param creationTimestamp the creation time stamp.
+     */
+    private BasicDownloadInfo(final String localDownloadId, final String intentURI, final String downloadUrl,
+                              final String destinationFileUri, final String mimeType, final long downloadSize,
+                              final long creationTimestamp) {
+        this.intent = deserializeIntent(localDownloadId, intentURI);
+        this.downloadUrl = downloadUrl;
+        this.destinationFileUri = destinationFileUri;
+        this.mimeType = mimeType;
+        this.downloadSize = downloadSize;
+        this.creationTimestamp = creationTimestamp;
+    }
+
+    /**
+     * Deserializes the intent stored with a download.
+     * @param localDownloadId ID of download, for logging.
+     * @param intentURI the serialized intent.
+     * @return the intent, or a new intent if it could not be deserialized.
+     */
+    private static Intent deserializeIntent(final String localDownloadId, final String intentURI) {
+        Intent deserialzedIntent;
+        try {
+            deserialzedIntent = Intent.parseUri(intentURI, 0);
+        } catch (URISyntaxException ex) {
+            Log.e(LOG_TAG, String.format(
+                "Could not deserialize intent for download with localDownloadId = %s. Using new intent.",
+                localDownloadId), ex);
+            deserialzedIntent = new Intent();
+        }
+        return deserialzedIntent;
+    }
+
     /**
      * Queries the database and retrieves the download info for the localDownloadId.
      * @param context Context for the Download Queue Provider.
@@ -140,6 +169,25 @@ public final class BasicDownloadInfo {
         return downloadInfo;
     }
 
+    /**
+     * Creates download info from values the caller already holds, without querying the database.
+     * @param localDownloadId ID of download.
+     * @param intentURI the serialized intent.
+     * @param downloadUrl the download url.
+     * @param destinationFileUri the destination file location.
+     * @param mimeType the mime type.
+     * @param downloadSize the download size.
+     * @param creationTimestamp the creation time stamp.
+     * @return new download info.
+     */
+    public static BasicDownloadInfo fromValues(final String localDownloadId, final String intentURI,
+                                               final String downloadUrl, final String destinationFileUri,
+                                               final String mimeType, final long downloadSize,
+                                               final long creationTimestamp) {
+        return new BasicDownloadInfo(localDownloadId, intentURI, downloadUrl, destinationFileUri, mimeType,
+            downloadSize, creationTimestamp);
+    }
+
     /**
      * Get intent retrieved from the db.
      * @return the intent
@@ -1,16 +1,23 @@
 package com.dancingqueen.walladog.aws.downloader.query;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
 import android.util.Log;
 
+import java.util.ArrayList;
+
 /**
  * A class which implements a content provider that gives access to
  * the download queue. Note that we only support querying. Updates,
@@ -123,9 +130,63 @@ public class DownloadQueueProvider extends ContentProvider {
     /** The column containing the download title. */
     public static final String COLUMN_DOWNLOAD_TITLE = "title";
 
+    /**
+     * The column containing the byte range to download, as "first-last" in the form of an HTTP
+     * range, or null to download the whole file.
+     */
+    public static final String COLUMN_DOWNLOAD_BYTE_RANGE = "byteRange";
+
+    /**
+     * The {@link #call(String, String, Bundle)} method to update the progress of a download.
+     * The arg is the download id, and the extras contain {@link #KEY_CURRENT_SIZE} and {@link #KEY_TOTAL_SIZE}.
+     */
+    public static final String METHOD_UPDATE_PROGRESS = "updateProgress";
+
+    /**
+     * The {@link #call(String, String, Bundle)} method to update the status of a download.
+     * The arg is the download id, and the extras contain {@link #KEY_STATUS} and
+     * optionally {@link #KEY_STOP_REASON}.
+     */
+    public static final String METHOD_UPDATE_STATUS = "updateStatus";
+
+    /** The extras key for the amount downloaded so far. */
+    public static final String KEY_CURRENT_SIZE = COLUMN_DOWNLOAD_CURRENT_SIZE;
+
+    /** The extras key for the size of the thing being downloaded. */
+    public static final String KEY_TOTAL_SIZE = COLUMN_DOWNLOAD_TOTAL_SIZE;
+
+    /** The extras key for the status, as {@link DownloadState#getValue()}. */
+    public static final String KEY_STATUS = COLUMN_DOWNLOAD_STATUS;
+
+    /** The extras key for the pause/fail reason. */
+    public static final String KEY_STOP_REASON = COLUMN_DOWNLOAD_STOP_REASON;
+
+    /** SQL to update the progress of a download. */
+    private static final String UPDATE_PROGRESS_SQL = "UPDATE " + TABLE_NAME + " SET "
+        + COLUMN_DOWNLOAD_CURRENT_SIZE + " = ?, " + COLUMN_DOWNLOAD_TOTAL_SIZE + " = ? WHERE "
+        + COLUMN_DOWNLOAD_ID + " = ?";
+
+    /** SQL to update the status of a download. */
+    private static final String UPDATE_STATUS_SQL = "UPDATE " + TABLE_NAME + " SET "
+        + COLUMN_DOWNLOAD_STATUS + " = ? WHERE " + COLUMN_DOWNLOAD_ID + " = ?";
+
+    /** SQL to update the status of a download along with the reason it stopped. */
+    private static final String UPDATE_STATUS_AND_REASON_SQL = "UPDATE " + TABLE_NAME + " SET "
+        + COLUMN_DOWNLOAD_STATUS + " = ?, " + COLUMN_DOWNLOAD_STOP_REASON + " = ? WHERE "
+        + COLUMN_DOWNLOAD_ID + " = ?";
+
     /** An instance of our helper class used to access the DB. */
     private DatabaseHelper helper;
 
+    /** Compiled statement for {@link #UPDATE_PROGRESS_SQL}, guarded by itself once compiled. */
+    private SQLiteStatement updateProgressStatement;
+
+    /** Compiled statement for {@link #UPDATE_STATUS_SQL}, guarded by itself once compiled. */
+    private SQLiteStatement updateStatusStatement;
+
+    /** Compiled statement for {@link #UPDATE_STATUS_AND_REASON_SQL}, guarded by itself once compiled. */
+    private SQLiteStatement updateStatusAndReasonStatement;
+
     /**
      * Called when a the content provider is created by the Android system.
      *
@@ -224,6 +285,125 @@ public class DownloadQueueProvider extends ContentProvider {
         return db.delete(TABLE_NAME, selection, selectionArgs);
     }
 
+    /**
+     * Apply a batch of operations in a single transaction, so that a batch of inserts is committed
+     * together, or not at all.
+     *
+     * @param operations
+     *            the operations to apply
+     * @return the results of the operations
+     * @throws OperationApplicationException if any operation fails
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(final ArrayList<ContentProviderOperation> operations)
+        throws OperationApplicationException {
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            final ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Handle the frequent updates made while downloads are running. These bypass building
+     * ContentValues and SQL for every update by binding to statements compiled once.
+     *
+     * @param method
+     *            {@link #METHOD_UPDATE_PROGRESS} or {@link #METHOD_UPDATE_STATUS}
+     * @param arg
+     *            the download id
+     * @param extras
+     *            the values to update
+     * @return null
+     */
+    @Override
+    public Bundle call(final String method, final String arg, final Bundle extras) {
+        if (METHOD_UPDATE_PROGRESS.equals(method)) {
+            updateProgress(Long.parseLong(arg), extras.getLong(KEY_CURRENT_SIZE),
+                extras.getLong(KEY_TOTAL_SIZE));
+            return null;
+        }
+        if (METHOD_UPDATE_STATUS.equals(method)) {
+            updateStatus(Long.parseLong(arg), extras.getInt(KEY_STATUS),
+                extras.getString(KEY_STOP_REASON));
+            return null;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Update the progress columns for a download.
+     *
+     * @param downloadId the download id.
+     * @param currentSize the amount downloaded so far.
+     * @param totalSize the size of the thing being downloaded.
+     */
+    private void updateProgress(final long downloadId, final long currentSize, final long totalSize) {
+        final SQLiteStatement statement = getUpdateProgressStatement();
+        synchronized (statement) {
+            statement.bindLong(1, currentSize);
+            statement.bindLong(2, totalSize);
+            statement.bindLong(3, downloadId);
+            statement.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Update the status column, and optionally the stop reason, for a download.
+     *
+     * @param downloadId the download id.
+     * @param status the new status as {@link DownloadState#getValue()}.
+     * @param stopReason the pause/fail reason, or null to leave it unchanged.
+     */
+    private void updateStatus(final long downloadId, final int status, final String stopReason) {
+        final SQLiteStatement statement = getUpdateStatusStatement(stopReason != null);
+        synchronized (statement) {
+            int index = 1;
+            statement.bindLong(index++, status);
+            if (stopReason != null) {
+                statement.bindString(index++, stopReason);
+            }
+            statement.bindLong(index, downloadId);
+            statement.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Get the statement that updates the progress of a download, compiling it the first time.
+     *
+     * @return the statement for {@link #UPDATE_PROGRESS_SQL}.
+     */
+    /* package */ synchronized SQLiteStatement getUpdateProgressStatement() {
+        if (updateProgressStatement == null) {
+            updateProgressStatement = helper.getWritableDatabase().compileStatement(UPDATE_PROGRESS_SQL);
+        }
+        return updateProgressStatement;
+    }
+
+    /**
+     * Get the statement that updates the status of a download, compiling it the first time.
+     *
+     * @param withStopReason whether the statement also updates the stop reason.
+     * @return the statement for {@link #UPDATE_STATUS_AND_REASON_SQL} or {@link #UPDATE_STATUS_SQL}.
+     */
+    /* package */ synchronized SQLiteStatement getUpdateStatusStatement(final boolean withStopReason) {
+        if (withStopReason) {
+            if (updateStatusAndReasonStatement == null) {
+                updateStatusAndReasonStatement =
+                    helper.getWritableDatabase().compileStatement(UPDATE_STATUS_AND_REASON_SQL);
+            }
+            return updateStatusAndReasonStatement;
+        }
+        if (updateStatusStatement == null) {
+            updateStatusStatement = helper.getWritableDatabase().compileStatement(UPDATE_STATUS_SQL);
+        }
+        return updateStatusStatement;
+    }
+
     /**
      * Get the mime type of this content.
      *
@@ -252,12 +432,34 @@ public class DownloadQueueProvider extends ContentProvider {
         private static final String LOG_TAG = DatabaseHelper.class.getSimpleName();
 
         /** Current database version. */
-        private static final int VERSION = 1;
+        private static final int VERSION = 3;
 
         /** Database name. */
         private static final String NAME = "downloadQueue";
 
-        /** SQL to create table. */
+        /** Name of the index used to look up downloads by status and age. */
+        /* package */ static final String INDEX_STATUS_TIMESTAMP = TABLE_NAME + "_status_timestamp_idx";
+
+        /** Name of the index used to look up downloads by file location. */
+        /* package */ static final String INDEX_FILE_LOCATION = TABLE_NAME + "_file_location_idx";
+
+        /** The columns which exist in every version of the schema, excluding the status column. */
+        private static final String COMMON_COLUMNS =
+            DownloadQueueProvider.COLUMN_DOWNLOAD_ID + ", "
+            + DownloadQueueProvider.COLUMN_DOWNLOAD_URL + ", "
+            + DownloadQueueProvider.COLUMN_DOWNLOAD_FILE_LOCATION + ", "
+            + DownloadQueueProvider.COLUMN_DOWNLOAD_DESCRIPTION + ", "
+            + DownloadQueueProvider.COLUMN_DOWNLOAD_USER_FLAGS + ", "
+            + DownloadQueueProvider.COLUMN_DOWNLOAD_MIME_TYPE + ", "
+            + DownloadQueueProvider.COLUMN_DOWNLOAD_INTENT_URI + ", "
+            + DownloadQueueProvider.COLUMN_DOWNLOAD_ETAG + ", "
+            + DownloadQueueProvider.COLUMN_DOWNLOAD_TOTAL_SIZE + ", "
+            + DownloadQueueProvider.COLUMN_DOWNLOAD_CURRENT_SIZE + ", "
+            + DownloadQueueProvider.COLUMN_DOWNLOAD_STOP_REASON + ", "
+            + DownloadQueueProvider.COLUMN_DOWNLOAD_CREATE_TIMESTAMP + ", "
+            + DownloadQueueProvider.COLUMN_DOWNLOAD_TITLE;
+
+        /** SQL to create table. The status column holds {@link DownloadState#getValue()}. */
         public static final String CREATE_TABLE = "CREATE TABLE "
             + DownloadQueueProvider.TABLE_NAME
             + "("
@@ -269,14 +471,41 @@ public class DownloadQueueProvider extends ContentProvider {
             + DownloadQueueProvider.COLUMN_DOWNLOAD_MIME_TYPE + " TEXT, "
             + DownloadQueueProvider.COLUMN_DOWNLOAD_INTENT_URI + " TEXT, "
             + DownloadQueueProvider.COLUMN_DOWNLOAD_ETAG + " TEXT, "
-            + DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS + " TEXT, "
+            + DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS + " INTEGER, "
             + DownloadQueueProvider.COLUMN_DOWNLOAD_TOTAL_SIZE + " INTEGER, "
             + DownloadQueueProvider.COLUMN_DOWNLOAD_CURRENT_SIZE + " INTEGER, "
             + DownloadQueueProvider.COLUMN_DOWNLOAD_STOP_REASON + " TEXT, "
             + DownloadQueueProvider.COLUMN_DOWNLOAD_CREATE_TIMESTAMP + " INTEGER, "
-            + DownloadQueueProvider.COLUMN_DOWNLOAD_TITLE + " TEXT "
+            + DownloadQueueProvider.COLUMN_DOWNLOAD_TITLE + " TEXT, "
+            + DownloadQueueProvider.COLUMN_DOWNLOAD_BYTE_RANGE + " TEXT "
             + ")";
 
+        /**
+         * SQL to create the index on status and creation time. This serves the queue reader, the
+         * queue cleanup and lookups of active downloads.
+         */
+        public static final String CREATE_INDEX_STATUS_TIMESTAMP = "CREATE INDEX IF NOT EXISTS "
+            + INDEX_STATUS_TIMESTAMP + " ON " + DownloadQueueProvider.TABLE_NAME + "("
+            + DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS + ", "
+            + DownloadQueueProvider.COLUMN_DOWNLOAD_CREATE_TIMESTAMP + ")";
+
+        /**
+         * SQL to create the index on file location. This serves duplicate detection, lookups by
+         * file location and finding downloads beneath a path.
+         */
+        public static final String CREATE_INDEX_FILE_LOCATION = "CREATE INDEX IF NOT EXISTS "
+            + INDEX_FILE_LOCATION + " ON " + DownloadQueueProvider.TABLE_NAME + "("
+            + DownloadQueueProvider.COLUMN_DOWNLOAD_FILE_LOCATION + ")";
+
+        /**
+         * The schema migrations. The migration at index i upgrades the schema from
+         * version i + 1 to version i + 2.
+         */
+        private static final Migration[] MIGRATIONS = {
+            new StatusAsIntegerMigration(),
+            new ByteRangeMigration()
+        };
+
         /**
          * Create a new instance.
          *
@@ -287,6 +516,22 @@ public class DownloadQueueProvider extends ContentProvider {
             super(context, NAME, null, VERSION);
         }
 
+        /**
+         * Configure the database connection. Write-ahead logging lets the observers and the
+         * queue reader read while downloads are writing progress and status updates, and
+         * NORMAL synchronization is durable in WAL mode except across power loss, which only
+         * costs the latest progress checkpoint.
+         *
+         * @param db
+         *            the database being configured.
+         */
+        @Override
+        public void onConfigure(final SQLiteDatabase db) {
+            super.onConfigure(db);
+            db.enableWriteAheadLogging();
+            db.execSQL("PRAGMA synchronous = NORMAL");
+        }
+
         /**
          * Create a database schema.
          *
@@ -297,13 +542,16 @@ public class DownloadQueueProvider extends ContentProvider {
         public void onCreate(final SQLiteDatabase db) {
             try {
                 db.execSQL(CREATE_TABLE);
+                createIndexes(db);
             } catch (SQLiteException e) {
                 Log.e(LOG_TAG, "Error trying to create table", e);
             }
         }
 
         /**
-         * Upgrade a database schema.
+         * Upgrade a database schema. Each migration between the current version and the new
+         * version is applied in order. This is called within a transaction, so if any migration
+         * fails, the database is left at its previous version.
          *
          * @param db
          *            the database to upgrade.
@@ -316,7 +564,92 @@ public class DownloadQueueProvider extends ContentProvider {
         public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
             Log.i(LOG_TAG, "upgrading db from v" + oldVersion + " to v" + newVersion);
 
-            // No versions yet except version 1.
+            for (int version = oldVersion; version < newVersion; version++) {
+                final Migration migration = MIGRATIONS[version - 1];
+                Log.d(LOG_TAG, "applying migration to v" + (version + 1));
+                migration.migrate(db);
+            }
+        }
+
+        /**
+         * Create the indexes for the current schema.
+         *
+         * @param db the database in which to create the indexes.
+         */
+        private static void createIndexes(final SQLiteDatabase db) {
+            db.execSQL(CREATE_INDEX_STATUS_TIMESTAMP);
+            db.execSQL(CREATE_INDEX_FILE_LOCATION);
+        }
+
+        /**
+         * A single step of a schema upgrade.
+         */
+        private interface Migration {
+            /**
+             * Upgrade the schema by one version.
+             *
+             * @param db the database to upgrade.
+             */
+            void migrate(final SQLiteDatabase db);
+        }
+
+        /**
+         * Version 2 stores the status column as {@link DownloadState#getValue()} instead of the
+         * state's name, and adds indexes for the columns that the download service filters on.
+         */
+        private static final class StatusAsIntegerMigration implements Migration {
+            /** Temporary name for the version 1 table while its rows are copied. */
+            private static final String OLD_TABLE_NAME = DownloadQueueProvider.TABLE_NAME + "_v1";
+
+            @Override
+            public void migrate(final SQLiteDatabase db) {
+                final StringBuilder statusCase = new StringBuilder("CASE ")
+                    .append(DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS);
+                for (final DownloadState state : DownloadState.values()) {
+                    statusCase.append(" WHEN '").append(state.name())
+                        .append("' THEN ").append(state.getValue());
+                }
+                // Rows with an unrecognized status were unusable before; mark them failed so cleanup removes them.
+                statusCase.append(" ELSE ").append(DownloadState.FAILED.getValue()).append(" END");
+
+                db.execSQL("ALTER TABLE " + DownloadQueueProvider.TABLE_NAME + " RENAME TO " + OLD_TABLE_NAME);
+                db.execSQL(CREATE_TABLE);
+                db.execSQL("INSERT INTO " + DownloadQueueProvider.TABLE_NAME
+                    + " (" + COMMON_COLUMNS + ", " + DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS + ")"
+                    + " SELECT " + COMMON_COLUMNS + ", " + statusCase
+                    + " FROM " + OLD_TABLE_NAME);
+                db.execSQL("DROP TABLE " + OLD_TABLE_NAME);
+                createIndexes(db);
+            }
+        }
+
+        /**
+         * Version 3 adds the byte range column. Existing downloads are of whole files.
+         */
+        private static final class ByteRangeMigration implements Migration {
+            @Override
+            public void migrate(final SQLiteDatabase db) {
+                // Upgrading from version 1 recreates the table with the current schema, which has the column.
+                if (!hasColumn(db, DownloadQueueProvider.COLUMN_DOWNLOAD_BYTE_RANGE)) {
+                    db.execSQL("ALTER TABLE " + DownloadQueueProvider.TABLE_NAME + " ADD COLUMN "
+                        + DownloadQueueProvider.COLUMN_DOWNLOAD_BYTE_RANGE + " TEXT");
+                }
+            }
+
+            private static boolean hasColumn(final SQLiteDatabase db, final String columnName) {
+                final Cursor cursor = db.rawQuery("PRAGMA table_info(" + DownloadQueueProvider.TABLE_NAME + ")", null);
+                try {
+                    final int nameIndex = cursor.getColumnIndexOrThrow("name");
+                    while (cursor.moveToNext()) {
+                        if (columnName.equals(cursor.getString(nameIndex))) {
+                            return true;
+                        }
+                    }
+                    return false;
+                } finally {
+                    cursor.close();
+                }
+            }
         }
     }
 }
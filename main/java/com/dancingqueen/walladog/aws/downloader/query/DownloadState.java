@@ -3,17 +3,80 @@ package com.dancingqueen.walladog.aws.downloader.query;
 /** An enum of possible states. */
 public enum DownloadState {
     /** Download task for the download is queued and waiting to start. */
-    NOT_STARTED,
+    NOT_STARTED(0),
 
     /** Download in progress. */
-    IN_PROGRESS,
+    IN_PROGRESS(1),
 
     /** Download paused either by the user request or network lost. */
-    PAUSED,
+    PAUSED(2),
 
     /** Download failed and the downloading file was removed. */
-    FAILED,
+    FAILED(3),
 
     /** Completed successfully. */
-    COMPLETE
+    COMPLETE(4);
+
+    /**
+     * The value persisted in the status column of the download queue. These values are stored
+     * in the database, so they must never be changed or reused.
+     */
+    private final int value;
+
+    /**
+     * Instantiates a new download state enum object.
+     *
+     * @param value the value stored in the download queue for this state.
+     */
+    DownloadState(final int value) {
+        this.value = value;
+    }
+
+    /**
+     * @return the value stored in the download queue's status column for this state.
+     */
+    public int getValue() {
+        return value;
+    }
+
+    /**
+     * @return the status column value as a string, suitable for use as a selection argument.
+     */
+    public String getColumnValue() {
+        return String.valueOf(value);
+    }
+
+    /**
+     * Look up a state from the value stored in the download queue's status column.
+     *
+     * @param value the stored value.
+     * @return the matching state.
+     * @throws IllegalArgumentException if no state has the given value.
+     */
+    public static DownloadState fromValue(final int value) {
+        for (final DownloadState state : values()) {
+            if (state.value == value) {
+                return state;
+            }
+        }
+        throw new IllegalArgumentException("Unknown download state value: " + value);
+    }
+
+    /**
+     * Look up a state from the status column value as read back from a cursor as a string.
+     *
+     * @param columnValue the stored value, may be null.
+     * @return the matching state, or null if the value is null or not a known state.
+     */
+    public static DownloadState fromColumnValue(final String columnValue) {
+        if (columnValue == null) {
+            return null;
+        }
+        try {
+            return fromValue(Integer.parseInt(columnValue));
+        } catch (final IllegalArgumentException ex) {
+            // NumberFormatException is an IllegalArgumentException.
+            return null;
+        }
+    }
 }
@@ -46,6 +46,9 @@ public class DownloadAddRequest implements Serializable {
     /** The title of this request if any. */
     private final String title;
 
+    /** The byte range to download, as "first-last", or null to download the whole file. */
+    private final String byteRange;
+
     /**
      * Build a new instance from an intent.
      * throws IllegalArgumentException if the intent is not suitable
@@ -60,6 +63,7 @@ public class DownloadAddRequest implements Serializable {
         final String description = intent.getStringExtra(DownloadService.EXTRA_DESCRIPTION);
         final int downloadFlags = intent.getIntExtra(DownloadService.EXTRA_DOWNLOAD_FLAGS, 0);
         final String title = intent.getStringExtra(DownloadService.EXTRA_DOWNLOAD_TITLE);
+        final String byteRange = intent.getStringExtra(DownloadService.EXTRA_BYTE_RANGE);
 
         if (null == url || null == location) {
             throw new IllegalArgumentException(MSG);
@@ -88,7 +92,7 @@ public class DownloadAddRequest implements Serializable {
         final String intentURI = intentCopy.toUri(0);
 
         return new DownloadAddRequest(urlObject, description, location, intentURI, downloadFlags,
-            title != null ? title : "");
+            title != null ? title : "", byteRange);
     }
 
     /**
@@ -118,6 +122,7 @@ public class DownloadAddRequest implements Serializable {
 
         downloadFlags = flags;
         this.title = builder.title;
+        this.byteRange = builder.byteRange;
     }
 
     /**
@@ -129,15 +134,18 @@ public class DownloadAddRequest implements Serializable {
      * @param intentURI an intent URI to persist along with this download.
      * @param downloadFlags the download flags.
      * @param title the title for the download.
+     * @param byteRange the byte range to download, or null for the whole file.
      */
     private DownloadAddRequest(final URI url, final String description, final String fileLocation,
-                               final String intentURI, final int downloadFlags, final String title) {
+                               final String intentURI, final int downloadFlags, final String title,
+                               final String byteRange) {
         this.url = url;
         this.description = description;
         this.fileLocation = fileLocation;
         this.intentURI = intentURI;
         this.downloadFlags = downloadFlags;
         this.title = title;
+        this.byteRange = byteRange;
     }
     
     /**
@@ -173,6 +181,9 @@ public class DownloadAddRequest implements Serializable {
         if (title != null) {
             intent.putExtra(DownloadService.EXTRA_DOWNLOAD_TITLE, title);
         }
+        if (byteRange != null) {
+            intent.putExtra(DownloadService.EXTRA_BYTE_RANGE, byteRange);
+        }
 
         return intent;
     }
@@ -199,6 +210,7 @@ public class DownloadAddRequest implements Serializable {
         values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_TITLE, title);
         values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_USER_FLAGS, downloadFlags);
         values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_INTENT_URI, intentURI);
+        values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_BYTE_RANGE, byteRange);
         return values;
     }
 
@@ -232,6 +244,9 @@ public class DownloadAddRequest implements Serializable {
         /** The title. */
         private String title = "";
 
+        /** The byte range. */
+        private String byteRange = null;
+
         /**
          * Create a new builder.
          * 
@@ -327,6 +342,25 @@ public class DownloadAddRequest implements Serializable {
             return this;
         }
 
+        /**
+         * Set the range of bytes to download, rather than the whole file. The file downloaded holds
+         * only those bytes.
+         *
+         * @param firstByte
+         *            the offset of the first byte.
+         * @param lastByte
+         *            the offset of the last byte, inclusive.
+         * @return returns this for fluent coding
+         */
+        public Builder setByteRange(final long firstByte, final long lastByte) {
+            if (firstByte < 0 || lastByte < firstByte) {
+                throw new IllegalArgumentException(
+                    String.format("Invalid byte range: %d-%d", firstByte, lastByte));
+            }
+            this.byteRange = firstByte + "-" + lastByte;
+            return this;
+        }
+
         /**
          * Build an actual request.
          * 
@@ -0,0 +1,87 @@
+package com.dancingqueen.walladog.aws.downloader.request;
+
+import android.content.Context;
+import android.content.Intent;
+
+import com.dancingqueen.walladog.aws.downloader.service.DownloadService;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A class to represent a request to start many downloads at once. The downloads are checked for
+ * duplicates together, inserted into the queue in a single transaction and acknowledged with a
+ * single broadcast.
+ */
+public class DownloadBatchAddRequest implements Serializable {
+
+    /** A string for exceptions. */
+    private static final String MSG = "At least one download request is required.";
+
+    /** Serialization id. */
+    private static final long serialVersionUID = -4214087385032316271L;
+
+    /** The requests in this batch. */
+    private final ArrayList<DownloadAddRequest> requests;
+
+    /**
+     * Build a new instance from an intent.
+     * throws IllegalArgumentException if the intent is not suitable
+     *
+     * @param intent
+     *            the Intent to use
+     * @return the new instance
+     */
+    public static DownloadBatchAddRequest fromIntent(final Intent intent) {
+        final Serializable extra = intent.getSerializableExtra(DownloadService.EXTRA_BATCH_REQUESTS);
+        if (!(extra instanceof ArrayList)) {
+            throw new IllegalArgumentException(MSG);
+        }
+        final List<?> list = (List<?>) extra;
+        final ArrayList<DownloadAddRequest> requests = new ArrayList<DownloadAddRequest>(list.size());
+        for (final Object item : list) {
+            if (!(item instanceof DownloadAddRequest)) {
+                throw new IllegalArgumentException(MSG);
+            }
+            requests.add((DownloadAddRequest) item);
+        }
+        return new DownloadBatchAddRequest(requests);
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param requests
+     *            the requests to add, in order.
+     */
+    public DownloadBatchAddRequest(final List<DownloadAddRequest> requests) {
+        if (null == requests || requests.isEmpty()) {
+            throw new IllegalArgumentException(MSG);
+        }
+        this.requests = new ArrayList<DownloadAddRequest>(requests);
+    }
+
+    /**
+     * Convert this request to an intent.
+     * @param context context used to set class on intent.
+     * @return the intent.
+     */
+    public Intent toIntent(final Context context) {
+        final Intent intent = new Intent();
+        if (null != context) {
+            intent.setClass(context, DownloadService.class);
+        }
+        intent.setAction(DownloadService.ACTION_REQUEST_DOWNLOAD_BATCH);
+        intent.putExtra(DownloadService.EXTRA_BATCH_REQUESTS, requests);
+        return intent;
+    }
+
+    /**
+     * @return the requests in this batch, in order.
+     */
+    public List<DownloadAddRequest> getRequests() {
+        return Collections.unmodifiableList(requests);
+    }
+}
@@ -0,0 +1,211 @@
+package com.dancingqueen.walladog.aws.downloader.service;
+
+import android.util.Log;
+
+/**
+ * Shares download bandwidth between interactive and background downloads.
+ *
+ * Download tasks report every read here. Interactive downloads are never held back. Background
+ * downloads draw from a token bucket, and run unthrottled while nothing interactive is running so that
+ * they soak up idle capacity, but while an interactive download is running the bucket only refills
+ * with the part of the measured link throughput which the interactive downloads leave unused, minus a
+ * reserve, so that they don't slow down what the user is waiting for.
+ *
+ * The link throughput is measured from the bytes all downloads read while background downloads are
+ * unthrottled. While they are throttled, the bytes read are held down by the throttling itself, so
+ * they only ever raise the estimate, when the downloads together read more than it.
+ */
+/* package */ class BandwidthScheduler {
+
+    /** Our logger, for informational and error messages. */
+    private static final String LOG_TAG = BandwidthScheduler.class.getSimpleName();
+
+    /** How often to update the throughput measurements. */
+    private static final long MEASUREMENT_INTERVAL = 500000000L; // 500 ms in ns
+
+    /** Intervals longer than this included idle time, so they aren't used to measure throughput. */
+    private static final long MAX_MEASUREMENT_INTERVAL = 2000000000L; // 2 s in ns
+
+    /** How much weight each new measurement has in the throughput estimates. */
+    private static final double MEASUREMENT_WEIGHT = 0.3;
+
+    /** The share of the link held back from background downloads while interactive ones run. */
+    private static final double INTERACTIVE_RESERVE = 0.5;
+
+    /** The rate background downloads may always use, so that they never stall completely. */
+    private static final long MIN_BACKGROUND_RATE = 16 * 1024; // bytes per second
+
+    /** How long a bucket may save up tokens for, which bounds the size of bursts. */
+    private static final long MAX_BURST_TIME = 250000000L; // 250 ms in ns
+
+    /** Nanoseconds per second. */
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    /** Nanoseconds per millisecond. */
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    /**
+     * The traffic classes a download may belong to.
+     */
+    /* package */ enum TrafficClass {
+        /** Downloads someone is waiting for. */
+        INTERACTIVE,
+        /** Downloads made ahead of need, such as prefetching recent content. */
+        BACKGROUND;
+
+        /**
+         * @param downloadFlags the download's flags.
+         * @return the traffic class for a download with the given flags.
+         */
+        /* package */ static TrafficClass fromDownloadFlags(final int downloadFlags) {
+            return DownloadFlags.isForegroundFlagSet(downloadFlags) ? INTERACTIVE : BACKGROUND;
+        }
+    }
+
+    /** The number of interactive downloads currently transferring. */
+    private int activeInteractive;
+
+    /** The background token bucket's balance in bytes, which goes negative to make readers wait. */
+    private double backgroundTokens;
+
+    /** When the background bucket was last refilled. */
+    private long backgroundRefillTime = System.nanoTime();
+
+    /** The estimated throughput of the link, in bytes per second, or 0 if not yet known. */
+    private double linkRate;
+
+    /** The estimated throughput of interactive downloads, in bytes per second. */
+    private double interactiveRate;
+
+    /** When the current measurement interval started. */
+    private long intervalStart = System.nanoTime();
+
+    /** Bytes read by all downloads in the current measurement interval. */
+    private long intervalBytes;
+
+    /** Bytes read by interactive downloads in the current measurement interval. */
+    private long intervalInteractiveBytes;
+
+    /** Whether background downloads were throttled at any time in the current measurement interval. */
+    private boolean intervalThrottled;
+
+    /**
+     * Report that a download is starting to transfer.
+     *
+     * @param trafficClass the download's traffic class.
+     */
+    /* package */ synchronized void transferStarted(final TrafficClass trafficClass) {
+        if (TrafficClass.INTERACTIVE == trafficClass) {
+            activeInteractive++;
+            intervalThrottled = true;
+        }
+    }
+
+    /**
+     * Report that a download stopped transferring.
+     *
+     * @param trafficClass the download's traffic class.
+     */
+    /* package */ synchronized void transferStopped(final TrafficClass trafficClass) {
+        if (TrafficClass.INTERACTIVE == trafficClass && activeInteractive > 0) {
+            activeInteractive--;
+            if (0 == activeInteractive) {
+                interactiveRate = 0;
+            }
+        }
+    }
+
+    /**
+     * Account for bytes a download has read, waiting if its traffic class is over its rate. The wait
+     * ends early if the thread is interrupted, leaving the thread's interrupted status set.
+     *
+     * @param trafficClass the download's traffic class.
+     * @param bytes the number of bytes read.
+     */
+    /* package */ void acquire(final TrafficClass trafficClass, final int bytes) {
+        final long waitNanos;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            measure(trafficClass, bytes, now);
+            if (TrafficClass.INTERACTIVE == trafficClass) {
+                return;
+            }
+            final double rate = getBackgroundRate();
+            refillBackgroundTokens(rate, now);
+            backgroundTokens -= bytes;
+            if (backgroundTokens >= 0 || Double.isInfinite(rate)) {
+                return;
+            }
+            waitNanos = (long) (-backgroundTokens / rate * NANOS_PER_SECOND);
+        }
+
+        try {
+            Thread.sleep(waitNanos / NANOS_PER_MILLI, (int) (waitNanos % NANOS_PER_MILLI));
+        } catch (final InterruptedException ex) {
+            // Let the download task see the interruption.
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the current rate for background downloads in bytes per second, which is infinite if they
+     *         may run unthrottled.
+     */
+    private double getBackgroundRate() {
+        if (0 == activeInteractive) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Math.max(MIN_BACKGROUND_RATE, linkRate * (1.0 - INTERACTIVE_RESERVE) - interactiveRate);
+    }
+
+    private void refillBackgroundTokens(final double rate, final long now) {
+        if (Double.isInfinite(rate)) {
+            backgroundTokens = 0;
+        } else {
+            final double maxTokens = rate * MAX_BURST_TIME / NANOS_PER_SECOND;
+            backgroundTokens = Math.min(maxTokens,
+                backgroundTokens + rate * (now - backgroundRefillTime) / NANOS_PER_SECOND);
+        }
+        backgroundRefillTime = now;
+    }
+
+    private void measure(final TrafficClass trafficClass, final int bytes, final long now) {
+        intervalBytes += bytes;
+        if (TrafficClass.INTERACTIVE == trafficClass) {
+            intervalInteractiveBytes += bytes;
+        }
+
+        final long elapsed = now - intervalStart;
+        if (elapsed < MEASUREMENT_INTERVAL) {
+            return;
+        }
+        if (elapsed > MAX_MEASUREMENT_INTERVAL) {
+            startInterval(now);
+            return;
+        }
+        final double measuredRate = intervalBytes * NANOS_PER_SECOND / elapsed;
+        final double measuredInteractiveRate = intervalInteractiveBytes * NANOS_PER_SECOND / elapsed;
+        if (intervalThrottled) {
+            // What the downloads read while throttled is only a lower bound on what the link can do.
+            linkRate = Math.max(linkRate, measuredRate);
+        } else if (0 == linkRate) {
+            linkRate = measuredRate;
+        } else {
+            linkRate += MEASUREMENT_WEIGHT * (measuredRate - linkRate);
+        }
+        if (activeInteractive > 0) {
+            interactiveRate += MEASUREMENT_WEIGHT * (measuredInteractiveRate - interactiveRate);
+        }
+        Log.v(LOG_TAG, String.format("Estimated link rate %.0f B/s, interactive rate %.0f B/s.",
+            linkRate, interactiveRate));
+
+        startInterval(now);
+    }
+
+    private void startInterval(final long now) {
+        intervalStart = now;
+        intervalBytes = 0;
+        intervalInteractiveBytes = 0;
+        intervalThrottled = activeInteractive > 0;
+    }
+}
@@ -2,25 +2,24 @@ package com.dancingqueen.walladog.aws.downloader.service;
 
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.net.Uri;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiManager.WifiLock;
 import android.support.v4.util.LongSparseArray;
 import android.util.Log;
 
 import com.dancingqueen.walladog.aws.downloader.policy.DownloadPolicyProvider;
-import com.dancingqueen.walladog.aws.downloader.query.DownloadQueueProvider;
 import com.dancingqueen.walladog.aws.downloader.query.DownloadState;
-import com.dancingqueen.walladog.aws.downloader.query.QueryHelper;
 
 import java.io.File;
 import java.net.HttpURLConnection;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This classes handles downloading files using DownloadTasks
@@ -31,9 +30,6 @@ public class BasicDownloader implements DownloadTask.DownloadListener,
     /** Logging tag for this class. */
     private static final String LOG_TAG = BasicDownloader.class.getSimpleName();
 
-    /** How many threads in the download pool by default. */
-    private static final int MAX_DOWNLOAD_THREADS = 2;
-
     /** Minimum Android SDK that support WIFI_MODE_FULL_HIGH_PERF. */
     private static final int ANDROID_SDK_VERSION_12 = 12;
 
@@ -43,17 +39,29 @@ public class BasicDownloader implements DownloadTask.DownloadListener,
     /** The executor which is going to download the files for us. */
     private final ExecutorService downloader;
 
+    /** Waits to resubmit download tasks which are to be retried, so no download thread has to. */
+    private final ScheduledExecutorService retryScheduler;
+
     /** The context to use. */
     private final Context context;
 
     /** The DownloadStatusUpdater to use. */
     private final DownloadStatusUpdater statusUpdater;
 
+    /** The in-memory download queue. */
+    private final DownloadTable downloadTable;
+
     /** The download policy which is in force. */
     private final DownloadPolicyProvider policyProvider;
 
+    /** Shares bandwidth between interactive and background downloads. */
+    private final BandwidthScheduler bandwidthScheduler;
+
+    /** Holds back downloads from hosts which keep failing. */
+    private final HostCircuitBreaker circuitBreaker;
+
     /** The in-memory list of downloads queued to run. The number of these tasks that are actually running
-     * is limited by {@link #MAX_DOWNLOAD_THREADS} . */
+     * is limited by the {@link DownloadExecutionMode}, unless it runs each on a virtual thread of its own. */
     private final LongSparseArray<DLTaskInfo> runningDownloads;
 
     /** Keeps track of whether downloads are using wifi locks .*/
@@ -64,10 +72,14 @@ public class BasicDownloader implements DownloadTask.DownloadListener,
 
     private class DLTaskInfo {
         private final DownloadTask downloadTask;
-        private final Future<Boolean> runningDownload;
-        private DLTaskInfo(final DownloadTask downloadTask, final Future<Boolean> runningDownload) {
+        /** The running task, or the scheduled resubmission of a task waiting to retry. */
+        private final Future<?> runningDownload;
+        private final boolean waitingToRetry;
+        private DLTaskInfo(final DownloadTask downloadTask, final Future<?> runningDownload,
+                           final boolean waitingToRetry) {
             this.downloadTask = downloadTask;
             this.runningDownload = runningDownload;
+            this.waitingToRetry = waitingToRetry;
         }
     }
 
@@ -80,19 +92,28 @@ public class BasicDownloader implements DownloadTask.DownloadListener,
      *            the download policy provider to use
      * @param aStatusUpdater
      *            the download status updater to use
+     * @param aDownloadTable
+     *            the in-memory download queue to use
+     * @param executionMode
+     *            how to run download tasks
      */
-    public BasicDownloader(final Context aContext,
+    /* package */ BasicDownloader(final Context aContext,
         final DownloadPolicyProvider aPolicyProvider,
-        final DownloadStatusUpdater aStatusUpdater) {
+        final DownloadStatusUpdater aStatusUpdater,
+        final DownloadTable aDownloadTable,
+        final DownloadExecutionMode executionMode) {
         Log.d(LOG_TAG, "BasicDownloader()");
 
-        downloader = Executors.newFixedThreadPool(MAX_DOWNLOAD_THREADS,
-            new MinPriorityThreadFactory(this.getClass()
-                .getSimpleName()));
+        downloader = executionMode.createExecutor(this.getClass().getSimpleName());
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(
+            new MinPriorityThreadFactory(this.getClass().getSimpleName() + " retry"));
 
         context = aContext;
         statusUpdater = aStatusUpdater;
+        downloadTable = aDownloadTable;
         policyProvider = aPolicyProvider;
+        bandwidthScheduler = new BandwidthScheduler();
+        circuitBreaker = new HostCircuitBreaker();
 
         runningDownloads = new LongSparseArray<>();
         wifiLocks = new LongSparseArray<>();
@@ -138,7 +159,7 @@ public class BasicDownloader implements DownloadTask.DownloadListener,
                 return false;
             }
             final Future<Boolean> receipt = downloader.submit(downloadTask);
-            runningDownloads.put(id, new DLTaskInfo(downloadTask, receipt));
+            runningDownloads.put(id, new DLTaskInfo(downloadTask, receipt, false));
         }
         return true;
     }
@@ -146,7 +167,7 @@ public class BasicDownloader implements DownloadTask.DownloadListener,
     private boolean stopDownloadTask(final long downloadId,
                                      final DownloadTask.TaskCancelReason cancelReason) {
         final DLTaskInfo dlTaskInfo;
-        final Future<Boolean> receipt;
+        final Future<?> receipt;
         synchronized (runningDownloads) {
             dlTaskInfo = runningDownloads.get(downloadId);
             if (dlTaskInfo == null) {
@@ -157,9 +178,20 @@ public class BasicDownloader implements DownloadTask.DownloadListener,
             runningDownloads.delete(downloadId);
         }
 
+        if (dlTaskInfo.waitingToRetry) {
+            // The task isn't running, so it can't notice being stopped and has to be finished here.
+            // Now that it is out of runningDownloads, it won't be resubmitted even if the wait is over.
+            receipt.cancel(false);
+            dlTaskInfo.downloadTask.setCancelReason(cancelReason);
+            dlTaskInfo.downloadTask.finishStopped();
+            Log.d(LOG_TAG, String.format("Stopped task waiting to retry for id (%d)", downloadId));
+            return true;
+        }
+
         if (!receipt.isDone()) {
             dlTaskInfo.downloadTask.setCancelReason(cancelReason);
             final boolean result = receipt.cancel(true);
+            dlTaskInfo.downloadTask.endStreams();
             Log.d(LOG_TAG, String.format("Cancelled task by pausing for id (%d) result = %s",
                 downloadId, Boolean.toString(result)));
             return true;
@@ -193,7 +225,8 @@ public class BasicDownloader implements DownloadTask.DownloadListener,
      */
     @Override
     public void shutdownNow() {
-        // Shut the executor service down
+        // Shut the executor services down
+        retryScheduler.shutdownNow();
         downloader.shutdownNow();
         synchronized (runningDownloads) {
             // Clear the runningDownloads map.
@@ -230,55 +263,6 @@ public class BasicDownloader implements DownloadTask.DownloadListener,
             DownloadTask.TaskCancelReason.CANCELED_BY_USER);
     }
 
-    /** Download Task column types for DB query. */
-    private enum DownloadTaskColumns {
-        /** url. */
-        COL_URL(DownloadQueueProvider.COLUMN_DOWNLOAD_URL),
-
-        /** file location. */
-        COL_FILE_LOCATION(DownloadQueueProvider.COLUMN_DOWNLOAD_FILE_LOCATION),
-
-        /** the download ETAG. */
-        COL_TAG(DownloadQueueProvider.COLUMN_DOWNLOAD_ETAG),
-
-        /** Current size.  */
-        COL_CURRENT_SIZE(DownloadQueueProvider.COLUMN_DOWNLOAD_CURRENT_SIZE),
-
-        /** user flags. */
-        COL_USER_FLAGS(DownloadQueueProvider.COLUMN_DOWNLOAD_USER_FLAGS),
-
-        /** download status. */
-        COL_DOWNLOAD_STATUS(DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS),
-
-        /** Total size of download. */
-        COL_TOTAL_SIZE(DownloadQueueProvider.COLUMN_DOWNLOAD_TOTAL_SIZE);
-
-        /** Name of the column. */
-        String columnName;
-
-        /**
-         * Set column name.
-         * @param s the column name.
-         */
-        DownloadTaskColumns(final String s) {
-            columnName = s;
-        }
-        /** Array of column names for db query. */
-        private static final String[] COLUMNS;
-        static {
-            COLUMNS = new String[DownloadTaskColumns.values().length];
-            for (DownloadTaskColumns colType : DownloadTaskColumns.values()) {
-                COLUMNS[colType.ordinal()] = colType.columnName;
-            }
-        }
-
-        /**
-         * @return column names.
-         */
-        public static String[] getColumnNames() {
-            return COLUMNS;
-        }
-    }
     /**
      * Get a callable to download a given ID.
      * 
@@ -288,30 +272,28 @@ public class BasicDownloader implements DownloadTask.DownloadListener,
      */
     public DownloadTask createDownloadTask(final long id) {
         Log.d(LOG_TAG, "createDownloadTask()");
-            final String query = DownloadQueueProvider.COLUMN_DOWNLOAD_ID + " = ?";
-        final String[] args = new String[] {String.valueOf(id)};
-
-        final String[] cols = QueryHelper.runDownloadQueryForRow(context,
-            DownloadTaskColumns.getColumnNames(), query, args);
-
-        if (null != cols) {
-            final int userFlags = DownloadFlags.parseUserFlags(
-                cols[DownloadTaskColumns.COL_USER_FLAGS.ordinal()]);
-
-            final boolean ars = DownloadState.PAUSED.toString()
-                .equals(cols[DownloadTaskColumns.COL_DOWNLOAD_STATUS.ordinal()]);
-
-            final DownloadTask.Builder builder = new DownloadTask.Builder(id)
-                .withListener(this)
-                .withNetworkStatusProvider(this)
-                .withProvider(policyProvider)
-                .withUri(cols[DownloadTaskColumns.COL_URL.ordinal()])
-                .withDestination(cols[DownloadTaskColumns.COL_FILE_LOCATION.ordinal()])
-                .withTag(cols[DownloadTaskColumns.COL_TAG.ordinal()])
-                .withOffset(cols[DownloadTaskColumns.COL_CURRENT_SIZE.ordinal()])
-                .withDownloadFlags(userFlags)
-                .withAutoRestart(ars)
-                .withTotalBytes(cols[DownloadTaskColumns.COL_TOTAL_SIZE.ordinal()]);
+        final DownloadRecord record = downloadTable.get(id);
+
+        if (null != record) {
+            final DownloadTask.Builder builder;
+            synchronized (record) {
+                final boolean ars = DownloadState.PAUSED == record.getStatus();
+
+                builder = new DownloadTask.Builder(id)
+                    .withListener(this)
+                    .withNetworkStatusProvider(this)
+                    .withProvider(policyProvider)
+                    .withBandwidthScheduler(bandwidthScheduler)
+                    .withCircuitBreaker(circuitBreaker)
+                    .withUri(record.getUrl())
+                    .withDestination(record.getFileLocation())
+                    .withByteRange(record.getByteRange())
+                    .withTag(record.getETag())
+                    .withOffset(String.valueOf(record.getCurrentSize()))
+                    .withDownloadFlags(record.getUserFlags())
+                    .withAutoRestart(ars)
+                    .withTotalBytes(String.valueOf(record.getTotalSize()));
+            }
 
             return builder.build();
         }
@@ -320,23 +302,14 @@ public class BasicDownloader implements DownloadTask.DownloadListener,
     }
 
     private int getFlagsForDownloadById(final long id) {
-        final String[] projection = new String[] {
-            DownloadQueueProvider.COLUMN_DOWNLOAD_USER_FLAGS
-        };
-
-        final String query = DownloadQueueProvider.COLUMN_DOWNLOAD_ID + " = ?";
-        final String[] args = new String[] {
-            Long.toString(id)
-        };
-
-        final String[] cols = QueryHelper.runDownloadQueryForRow(context, projection, query, args);
-        // This query is expected to always succeed in finding a row.
-        if (cols == null) {
+        final DownloadRecord record = downloadTable.get(id);
+        // This lookup is expected to always succeed in finding a record.
+        if (record == null) {
             Log.e(LOG_TAG, String.format(
                 "Couldn't find download id (%d) in the queue to check download flags.", id));
             return 0;
         }
-        return DownloadFlags.parseUserFlags(cols[0]);
+        return record.getUserFlags();
     }
     /**
      * Indicates whether a Wifi lock is required or not for a specific download request.
@@ -402,6 +375,68 @@ public class BasicDownloader implements DownloadTask.DownloadListener,
         statusUpdater.sendProgress(longDownloadId, bytesRead, totalBytes);
     }
 
+    /**
+     * Receive a request to run a download task again after a delay. The task stays in
+     * runningDownloads while it waits, so that it can still be paused or cancelled, and so that we
+     * don't look idle.
+     *
+     * @param downloadId
+     *            the id
+     * @param delay
+     *            the delay in milliseconds
+     * @return true if the task will be run again
+     */
+    @Override
+    public boolean scheduleRetry(final long downloadId, final long delay) {
+        synchronized (runningDownloads) {
+            final DLTaskInfo dlTaskInfo = runningDownloads.get(downloadId);
+            if (dlTaskInfo == null) {
+                // The task was stopped while it ran.
+                return false;
+            }
+            final DownloadTask downloadTask = dlTaskInfo.downloadTask;
+            final Future<?> wait;
+            try {
+                wait = retryScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        resubmitDownloadTask(downloadId, downloadTask);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException ex) {
+                Log.w(LOG_TAG, "Couldn't schedule retry, since the downloader is shutting down.");
+                return false;
+            }
+            runningDownloads.put(downloadId, new DLTaskInfo(downloadTask, wait, true));
+        }
+        Log.d(LOG_TAG, String.format("Scheduled retry for id (%d) in %d ms", downloadId, delay));
+        return true;
+    }
+
+    /**
+     * Run a task which was waiting to retry, unless it has been stopped meanwhile.
+     *
+     * @param downloadId
+     *            the id
+     * @param downloadTask
+     *            the task
+     */
+    private void resubmitDownloadTask(final long downloadId, final DownloadTask downloadTask) {
+        synchronized (runningDownloads) {
+            final DLTaskInfo dlTaskInfo = runningDownloads.get(downloadId);
+            if (dlTaskInfo == null || dlTaskInfo.downloadTask != downloadTask) {
+                return;
+            }
+            try {
+                final Future<Boolean> receipt = downloader.submit(downloadTask);
+                runningDownloads.put(downloadId, new DLTaskInfo(downloadTask, receipt, false));
+            } catch (final RejectedExecutionException ex) {
+                Log.w(LOG_TAG, "Couldn't resubmit download task, since the downloader is shutting down.");
+                runningDownloads.remove(downloadId);
+            }
+        }
+    }
+
     /**
      * Receive notification that the download terminated, whether sucessfully or not.
      * 
@@ -460,32 +495,18 @@ public class BasicDownloader implements DownloadTask.DownloadListener,
      * @param downloadId long DownloadId.
      */
     private void cleanUpPartialFile(final long downloadId) {
-        final Uri downloadQueueContentUri = DownloadQueueProvider.getDownloadContentUri(context);
-        final Cursor downloadCursor = context.getContentResolver().query(downloadQueueContentUri,
-            new String[]{
-                DownloadQueueProvider.COLUMN_DOWNLOAD_FILE_LOCATION
-            },
-            DownloadQueueProvider.COLUMN_DOWNLOAD_ID
-                + " = " + downloadId,
-            null,
-            null);
-        if (downloadCursor != null) {
-            downloadCursor.moveToFirst();
-            if (!downloadCursor.isAfterLast()) {
-                final String filePath = downloadCursor.getString(
-                    downloadCursor.getColumnIndex(
-                        DownloadQueueProvider.COLUMN_DOWNLOAD_FILE_LOCATION));
-                File downloadedFile = new File(filePath);
-                if (downloadedFile.exists()) {
-                    Log.d(LOG_TAG, String.format("Cleaning up partial failed download: %s",
-                        filePath));
-                    if (!downloadedFile.delete()) {
-                        Log.e(LOG_TAG, String.format(
-                                 "Unable to delete failed partially downloaded file: %s", filePath));
-                    }
+        final DownloadRecord record = downloadTable.get(downloadId);
+        if (record != null) {
+            final String filePath = record.getFileLocation();
+            File downloadedFile = new File(filePath);
+            if (downloadedFile.exists()) {
+                Log.d(LOG_TAG, String.format("Cleaning up partial failed download: %s",
+                    filePath));
+                if (!downloadedFile.delete()) {
+                    Log.e(LOG_TAG, String.format(
+                             "Unable to delete failed partially downloaded file: %s", filePath));
                 }
             }
-            downloadCursor.close();
         }
     }
 
@@ -567,7 +588,7 @@ public class BasicDownloader implements DownloadTask.DownloadListener,
      */
     /* package */void startReadingQueueFromContentProvider() {
         Log.i(LOG_TAG, "start reading queue");
-        downloader.submit(new QueueReaderTask(this, this.context));
+        downloader.submit(new QueueReaderTask(this, downloadTable));
         Log.i(LOG_TAG, "queue read job submitted");
     }
 
@@ -0,0 +1,86 @@
+package com.dancingqueen.walladog.aws.downloader.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A stream which counts the bytes read through it, so that a download can tell how much came over the
+ * wire when what it writes is decoded from it. It can also hash those bytes, since an ETag is the hash
+ * of the content as it was sent rather than as it was decoded.
+ */
+/* package */ class CountingInputStream extends FilterInputStream {
+
+    /** The most bytes to read at a time when skipping bytes that have to be hashed. */
+    private static final int SKIP_BUFFER_SIZE = 8 * 1024;
+
+    /** The number of bytes read so far. */
+    private long count;
+
+    /** Hashes the bytes read, if set. */
+    private DownloadDigest digest;
+
+    /**
+     * @param in the stream to count.
+     */
+    /* package */ CountingInputStream(final InputStream in) {
+        super(in);
+    }
+
+    /**
+     * @return the number of bytes read so far.
+     */
+    /* package */ long getCount() {
+        return count;
+    }
+
+    /**
+     * Hash the bytes read from now on.
+     *
+     * @param digest the digest to update, or null to stop hashing.
+     */
+    /* package */ void setDigest(final DownloadDigest digest) {
+        this.digest = digest;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int result = super.read();
+        if (result >= 0) {
+            count++;
+            if (null != digest) {
+                digest.update(new byte[] {(byte) result}, 0, 1);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+        final int result = super.read(buffer, offset, length);
+        if (result > 0) {
+            count += result;
+            if (null != digest) {
+                digest.update(buffer, offset, result);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        if (null != digest) {
+            // Skipped bytes still have to be hashed.
+            final int result = read(new byte[(int) Math.min(n, SKIP_BUFFER_SIZE)]);
+            return Math.max(result, 0);
+        }
+        final long result = super.skip(n);
+        count += result;
+        return result;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
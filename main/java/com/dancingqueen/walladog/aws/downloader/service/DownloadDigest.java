@@ -0,0 +1,181 @@
+package com.dancingqueen.walladog.aws.downloader.service;
+
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * Verifies a download against its ETag as the bytes are written, so that a corrupted file is caught
+ * without reading it again.
+ *
+ * S3, and CloudFront in front of it, give objects which weren't uploaded in parts an ETag which is the
+ * MD5 of their content. Other ETags are opaque and can't be verified this way. The digest is kept
+ * across retries of the same download task, and when a download resumes from a partial file it is
+ * rebuilt by hashing just that partial file.
+ */
+/* package */ final class DownloadDigest {
+
+    /** Our logger, for informational and error messages. */
+    private static final String LOG_TAG = DownloadDigest.class.getSimpleName();
+
+    /** The digest algorithm for S3 ETags. */
+    private static final String ALGORITHM = "MD5";
+
+    /** The length of an MD5 in hex. */
+    private static final int MD5_HEX_LENGTH = 32;
+
+    /** Prefix of a weak ETag. */
+    private static final String WEAK_PREFIX = "W/";
+
+    /** Size of the buffer for hashing a partial file. */
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    /** Hex digits. */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** The ETag as sent by the server. */
+    private final String eTag;
+
+    /** The expected MD5 in lower case hex. */
+    private final String expectedMd5;
+
+    /** The digest of the bytes so far. */
+    private final MessageDigest digest;
+
+    /** The number of bytes hashed so far. */
+    private long offset;
+
+    /**
+     * Create a digest for verifying against an ETag.
+     *
+     * @param eTag the ETag from the response, may be null.
+     * @return the digest, or null if the ETag isn't an MD5 of the content.
+     */
+    /* package */ static DownloadDigest forETag(final String eTag) {
+        final String md5 = getMd5FromETag(eTag);
+        if (null == md5) {
+            return null;
+        }
+        try {
+            return new DownloadDigest(eTag, md5, MessageDigest.getInstance(ALGORITHM));
+        } catch (final NoSuchAlgorithmException ex) {
+            Log.e(LOG_TAG, "MD5 is not available, downloads won't be verified.", ex);
+            return null;
+        }
+    }
+
+    private DownloadDigest(final String eTag, final String expectedMd5, final MessageDigest digest) {
+        this.eTag = eTag;
+        this.expectedMd5 = expectedMd5;
+        this.digest = digest;
+    }
+
+    /**
+     * @param eTag an ETag.
+     * @return the MD5 in lower case hex if the ETag is a strong ETag holding one, otherwise null.
+     */
+    private static String getMd5FromETag(final String eTag) {
+        if (null == eTag || eTag.startsWith(WEAK_PREFIX)) {
+            return null;
+        }
+        String value = eTag.trim();
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            value = value.substring(1, value.length() - 1);
+        }
+        if (value.length() != MD5_HEX_LENGTH) {
+            // Multipart uploads have ETags like "<md5 of part md5s>-<part count>".
+            return null;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.digit(value.charAt(i), 16) < 0) {
+                return null;
+            }
+        }
+        return value.toLowerCase(Locale.US);
+    }
+
+    /**
+     * @param otherETag an ETag.
+     * @return true if this digest verifies against the given ETag.
+     */
+    /* package */ boolean isFor(final String otherETag) {
+        return eTag.equals(otherETag);
+    }
+
+    /**
+     * Make the digest cover exactly the first bytes of a file, ready to continue from there. This
+     * costs nothing if the digest is already there, and otherwise hashes the partial file. Failures are
+     * left to the caller to log.
+     *
+     * @param fileLocation the download file.
+     * @param position the number of bytes of the file to cover.
+     * @return true if the digest is ready, false if the partial file couldn't be read.
+     */
+    /* package */ boolean seekTo(final String fileLocation, final long position) {
+        if (position == offset) {
+            return true;
+        }
+        digest.reset();
+        offset = 0L;
+        if (0L == position) {
+            return true;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(fileLocation);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            while (offset < position) {
+                final int count = in.read(buffer, 0, (int) Math.min(buffer.length, position - offset));
+                if (count < 0) {
+                    return false;
+                }
+                update(buffer, 0, count);
+            }
+            return true;
+        } catch (final IOException ex) {
+            return false;
+        } finally {
+            if (null != in) {
+                try {
+                    in.close();
+                } catch (final IOException ex) {
+                    Log.e(LOG_TAG, "Caught exception trying to close stream", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add bytes to the digest.
+     *
+     * @param buffer the bytes.
+     * @param start the offset of the first byte in the buffer.
+     * @param count the number of bytes.
+     */
+    /* package */ void update(final byte[] buffer, final int start, final int count) {
+        digest.update(buffer, start, count);
+        offset += count;
+    }
+
+    /**
+     * Check the bytes so far against the ETag. This finishes the digest, which has to be seeked again
+     * before it is used any more.
+     *
+     * @return true if they match.
+     */
+    /* package */ boolean verify() {
+        final byte[] md5 = digest.digest();
+        offset = 0L;
+        final char[] hex = new char[md5.length * 2];
+        for (int i = 0; i < md5.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(md5[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX_DIGITS[md5[i] & 0xF];
+        }
+        return expectedMd5.equals(new String(hex));
+    }
+}
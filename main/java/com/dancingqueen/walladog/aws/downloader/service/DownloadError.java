@@ -38,6 +38,12 @@ public enum DownloadError {
     /** The error name for download error caused by IOException. */
     IO_EXCEPTION("IOException"),
 
+    /** The error name when a download is shorter than its length or doesn't match its ETag. */
+    INTEGRITY_ERROR("IntegrityError"),
+
+    /** The error name when downloads from a host are held back after repeated failures. */
+    HOST_UNAVAILABLE("HostUnavailable"),
+
     /** The error name for download error caused by IOException. */
     DOWNLOAD_INTERRUPTED("DownloadInterrupted"),
     
@@ -0,0 +1,131 @@
+package com.dancingqueen.walladog.aws.downloader.service;
+
+import android.content.Intent;
+import android.util.Log;
+
+import com.dancingqueen.walladog.aws.downloader.query.DownloadState;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers download status and progress directly to listeners in this process, without building and
+ * broadcasting an Intent for every update.
+ *
+ * Events are delivered on the download service's writer thread, in the order they happened and only
+ * once the download queue reflects them. Listeners must return quickly and hand off any real work.
+ * Progress is coalesced: if a listener falls behind, it is told only about the latest progress.
+ */
+public final class DownloadEventBus {
+
+    /** Our logger, for informational and error messages. */
+    private static final String LOG_TAG = DownloadEventBus.class.getSimpleName();
+
+    /** The single instance. */
+    private static final DownloadEventBus INSTANCE = new DownloadEventBus();
+
+    /** The registered listeners. Copy on write, since events are far more frequent than registration. */
+    private final CopyOnWriteArrayList<DownloadEventListener> listeners =
+        new CopyOnWriteArrayList<DownloadEventListener>();
+
+    /**
+     * A listener for download events.
+     */
+    public interface DownloadEventListener {
+        /**
+         * Called when a download changes state.
+         *
+         * @param downloadId the download id.
+         * @param fileLocation the destination file location.
+         * @param state the new state.
+         * @param details the status intent which was also broadcast for this change, holding extras
+         *                such as the completion message and the extras of the original request.
+         */
+        void onDownloadStateChanged(long downloadId, String fileLocation, DownloadState state, Intent details);
+
+        /**
+         * Called when more bytes have been downloaded.
+         *
+         * @param downloadId the download id.
+         * @param fileLocation the destination file location.
+         * @param bytesCurrent the bytes downloaded so far.
+         * @param bytesTotal the total bytes to download.
+         */
+        void onDownloadProgress(long downloadId, String fileLocation, long bytesCurrent, long bytesTotal);
+    }
+
+    /**
+     * @return the event bus.
+     */
+    public static DownloadEventBus getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Construct the single instance.
+     */
+    private DownloadEventBus() {
+    }
+
+    /**
+     * Register a listener. Registering the same listener twice has no effect.
+     *
+     * @param listener the listener.
+     */
+    public void register(final DownloadEventListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Unregister a listener.
+     *
+     * @param listener the listener.
+     */
+    public void unregister(final DownloadEventListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return true if any listener is registered.
+     */
+    /* package */ boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * Deliver a state change to all listeners.
+     *
+     * @param downloadId the download id.
+     * @param fileLocation the destination file location.
+     * @param state the new state.
+     * @param details the status intent for this change.
+     */
+    /* package */ void postStateChanged(final long downloadId, final String fileLocation,
+                                        final DownloadState state, final Intent details) {
+        for (final DownloadEventListener listener : listeners) {
+            try {
+                listener.onDownloadStateChanged(downloadId, fileLocation, state, details);
+            } catch (final RuntimeException ex) {
+                Log.e(LOG_TAG, "Download event listener failed handling a state change.", ex);
+            }
+        }
+    }
+
+    /**
+     * Deliver progress to all listeners.
+     *
+     * @param downloadId the download id.
+     * @param fileLocation the destination file location.
+     * @param bytesCurrent the bytes downloaded so far.
+     * @param bytesTotal the total bytes to download.
+     */
+    /* package */ void postProgress(final long downloadId, final String fileLocation,
+                                    final long bytesCurrent, final long bytesTotal) {
+        for (final DownloadEventListener listener : listeners) {
+            try {
+                listener.onDownloadProgress(downloadId, fileLocation, bytesCurrent, bytesTotal);
+            } catch (final RuntimeException ex) {
+                Log.e(LOG_TAG, "Download event listener failed handling progress.", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.dancingqueen.walladog.aws.downloader.service;
+
+import android.util.Log;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The ways download tasks may be run.
+ *
+ * A download task spends most of its time blocked reading from its connection. With platform threads
+ * each running download holds a thread for all that time, so only a few run at once. Where the runtime
+ * has virtual threads, a blocked download holds only a small heap object rather than an OS thread,
+ * so each download is started on a virtual thread of its own, without a limit on how many run at once.
+ *
+ * Android's runtime doesn't have virtual threads, and there is no non-blocking download engine, so on
+ * Android every running download still holds a platform thread in either mode. There
+ * {@link #VIRTUAL_THREADS} only runs more downloads at once, on a larger pool of platform threads.
+ */
+public enum DownloadExecutionMode {
+    /** Run downloads on a small pool of low priority platform threads. */
+    BLOCKING,
+
+    /**
+     * Run many downloads at once, for example to fetch lots of small files. Where the runtime has
+     * virtual threads, each download runs on one of its own. Otherwise, as on Android, downloads run on a
+     * pool of platform threads several times the size of {@link #BLOCKING}'s.
+     */
+    VIRTUAL_THREADS;
+
+    /** Our logger, for informational and error messages. */
+    private static final String LOG_TAG = DownloadExecutionMode.class.getSimpleName();
+
+    /** How many platform threads run downloads. */
+    private static final int MAX_DOWNLOAD_THREADS = 2;
+
+    /**
+     * How many platform threads run downloads when virtual threads aren't available. Each costs a
+     * thread stack, so this stays well below the number of virtual threads.
+     */
+    private static final int MAX_CONCURRENT_DOWNLOAD_THREADS = 8;
+
+    /**
+     * Create the executor to run download tasks in this mode.
+     *
+     * @param name the name for the executor's threads.
+     * @return the executor.
+     */
+    /* package */ ExecutorService createExecutor(final String name) {
+        if (VIRTUAL_THREADS == this) {
+            final ThreadFactory virtualThreadFactory = getVirtualThreadFactory(name);
+            if (null != virtualThreadFactory) {
+                final ExecutorService executor = newThreadPerTaskExecutor(virtualThreadFactory);
+                if (null != executor) {
+                    Log.d(LOG_TAG, "Running each download on a virtual thread of its own.");
+                    return executor;
+                }
+            }
+            Log.i(LOG_TAG, "Virtual threads aren't available, running downloads on platform threads.");
+            return Executors.newFixedThreadPool(MAX_CONCURRENT_DOWNLOAD_THREADS, new MinPriorityThreadFactory(name));
+        }
+        return Executors.newFixedThreadPool(MAX_DOWNLOAD_THREADS, new MinPriorityThreadFactory(name));
+    }
+
+    /**
+     * Get a factory for virtual threads, if the runtime has them. This looks the API up by reflection,
+     * since it isn't in the platform this is built against.
+     *
+     * @param name the prefix for the threads' names.
+     * @return the factory, or null if virtual threads aren't available.
+     */
+    private static ThreadFactory getVirtualThreadFactory(final String name) {
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Object namedBuilder = builderClass.getMethod("name", String.class, long.class)
+                .invoke(builder, name + " #", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(namedBuilder);
+        } catch (final ClassNotFoundException | NoSuchMethodException ex) {
+            return null;
+        } catch (final IllegalAccessException | InvocationTargetException ex) {
+            Log.w(LOG_TAG, "Couldn't create a virtual thread factory.", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Create an executor that starts a thread for each task, looked up by reflection like the factory.
+     *
+     * @param threadFactory the factory for the threads.
+     * @return the executor, or null if the runtime doesn't have one.
+     */
+    private static ExecutorService newThreadPerTaskExecutor(final ThreadFactory threadFactory) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                .invoke(null, threadFactory);
+        } catch (final NoSuchMethodException ex) {
+            return null;
+        } catch (final IllegalAccessException | InvocationTargetException ex) {
+            Log.w(LOG_TAG, "Couldn't create a thread-per-task executor.", ex);
+            return null;
+        }
+    }
+}
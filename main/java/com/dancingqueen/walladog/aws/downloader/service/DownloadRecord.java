@@ -0,0 +1,307 @@
+package com.dancingqueen.walladog.aws.downloader.service;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.dancingqueen.walladog.aws.downloader.query.BasicDownloadInfo;
+import com.dancingqueen.walladog.aws.downloader.query.DownloadQueueProvider;
+import com.dancingqueen.walladog.aws.downloader.query.DownloadState;
+
+/**
+ * The in-memory copy of a row in the download queue. The download service keeps one of these for
+ * each download it is working with, so that it never has to read the row back from the database.
+ * All access is synchronized on the record.
+ */
+/* package */ final class DownloadRecord {
+    /** Log tag. */
+    private static final String LOG_TAG = DownloadRecord.class.getSimpleName();
+
+    /** The download id. */
+    private final long id;
+
+    /** The download url. */
+    private final String url;
+
+    /** The destination file location. */
+    private final String fileLocation;
+
+    /** The serialized intent passed in. */
+    private final String intentUri;
+
+    /** The time at which the download was created. */
+    private final long createTimestamp;
+
+    /** The byte range to download, or null for the whole file. */
+    private final String byteRange;
+
+    /** The user interaction flags. */
+    private int userFlags;
+
+    /** The status of the download. */
+    private DownloadState status;
+
+    /** The MIME type. */
+    private String mimeType;
+
+    /** The eTag. */
+    private String eTag;
+
+    /** The size of the thing being downloaded. */
+    private long totalSize;
+
+    /** The amount downloaded so far. */
+    private long currentSize;
+
+    /***
+     * This enum of column indexes of the fields of the request to the data source.
+     */
+    private enum ColumnType {
+        /** ID. */
+        COL_ID(DownloadQueueProvider.COLUMN_DOWNLOAD_ID),
+        /** Download url. */
+        COL_URL(DownloadQueueProvider.COLUMN_DOWNLOAD_URL),
+        /** File location. */
+        COL_FILE_LOCATION(DownloadQueueProvider.COLUMN_DOWNLOAD_FILE_LOCATION),
+        /** Intent. */
+        COL_INTENT_URI(DownloadQueueProvider.COLUMN_DOWNLOAD_INTENT_URI),
+        /** Creation Time Stamp. */
+        COL_CREATION_TIME_STAMP(DownloadQueueProvider.COLUMN_DOWNLOAD_CREATE_TIMESTAMP),
+        /** User flags. */
+        COL_USER_FLAGS(DownloadQueueProvider.COLUMN_DOWNLOAD_USER_FLAGS),
+        /** Download status. */
+        COL_DOWNLOAD_STATUS(DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS),
+        /** Mime type. */
+        COL_MIME_TYPE(DownloadQueueProvider.COLUMN_DOWNLOAD_MIME_TYPE),
+        /** The download ETAG. */
+        COL_TAG(DownloadQueueProvider.COLUMN_DOWNLOAD_ETAG),
+        /** Total file size. */
+        COL_TOTAL_SIZE(DownloadQueueProvider.COLUMN_DOWNLOAD_TOTAL_SIZE),
+        /** Current size. */
+        COL_CURRENT_SIZE(DownloadQueueProvider.COLUMN_DOWNLOAD_CURRENT_SIZE),
+        /** Byte range. */
+        COL_BYTE_RANGE(DownloadQueueProvider.COLUMN_DOWNLOAD_BYTE_RANGE);
+
+        /** name of the column. */
+        private final String columnName;
+
+        /**
+         * Set column name.
+         * @param s the column name.
+         */
+        ColumnType(final String s) {
+            columnName = s;
+        }
+
+        /** Array of column names for the db query. */
+        private static final String[] COLUMNS;
+        static {
+            COLUMNS = new String[ColumnType.values().length];
+            for (ColumnType columnType : ColumnType.values()) {
+                COLUMNS[columnType.ordinal()] = columnType.columnName;
+            }
+        }
+    }
+
+    /**
+     * @return the columns which must be queried to construct a record with {@link #fromCursor(Cursor)}.
+     */
+    /* package */ static String[] getColumnNames() {
+        return ColumnType.COLUMNS;
+    }
+
+    /**
+     * Construct a record for a row that was just inserted.
+     *
+     * @param id the id of the inserted row.
+     * @param values the values that were inserted.
+     */
+    /* package */ DownloadRecord(final long id, final ContentValues values) {
+        this.id = id;
+        url = values.getAsString(DownloadQueueProvider.COLUMN_DOWNLOAD_URL);
+        fileLocation = values.getAsString(DownloadQueueProvider.COLUMN_DOWNLOAD_FILE_LOCATION);
+        intentUri = values.getAsString(DownloadQueueProvider.COLUMN_DOWNLOAD_INTENT_URI);
+        createTimestamp = asLong(values.getAsLong(DownloadQueueProvider.COLUMN_DOWNLOAD_CREATE_TIMESTAMP));
+        final Integer flags = values.getAsInteger(DownloadQueueProvider.COLUMN_DOWNLOAD_USER_FLAGS);
+        userFlags = flags == null ? 0 : flags;
+        final Integer statusValue = values.getAsInteger(DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS);
+        status = statusValue == null ? DownloadState.NOT_STARTED : DownloadState.fromValue(statusValue);
+        mimeType = values.getAsString(DownloadQueueProvider.COLUMN_DOWNLOAD_MIME_TYPE);
+        eTag = values.getAsString(DownloadQueueProvider.COLUMN_DOWNLOAD_ETAG);
+        totalSize = asLong(values.getAsLong(DownloadQueueProvider.COLUMN_DOWNLOAD_TOTAL_SIZE));
+        currentSize = asLong(values.getAsLong(DownloadQueueProvider.COLUMN_DOWNLOAD_CURRENT_SIZE));
+        byteRange = values.getAsString(DownloadQueueProvider.COLUMN_DOWNLOAD_BYTE_RANGE);
+    }
+
+    /**
+     * Construct a record from a row queried with {@link #getColumnNames()}.
+     *
+     * @param row the cursor positioned at the row.
+     */
+    private DownloadRecord(final Cursor row) {
+        id = row.getLong(ColumnType.COL_ID.ordinal());
+        url = row.getString(ColumnType.COL_URL.ordinal());
+        fileLocation = row.getString(ColumnType.COL_FILE_LOCATION.ordinal());
+        intentUri = row.getString(ColumnType.COL_INTENT_URI.ordinal());
+        createTimestamp = row.getLong(ColumnType.COL_CREATION_TIME_STAMP.ordinal());
+        userFlags = row.getInt(ColumnType.COL_USER_FLAGS.ordinal());
+        final DownloadState state = DownloadState.fromColumnValue(
+            row.getString(ColumnType.COL_DOWNLOAD_STATUS.ordinal()));
+        if (state == null) {
+            Log.e(LOG_TAG, String.format("Download id (%d) has an invalid status; treating it as failed.", id));
+            status = DownloadState.FAILED;
+        } else {
+            status = state;
+        }
+        mimeType = row.getString(ColumnType.COL_MIME_TYPE.ordinal());
+        eTag = row.getString(ColumnType.COL_TAG.ordinal());
+        totalSize = row.getLong(ColumnType.COL_TOTAL_SIZE.ordinal());
+        currentSize = row.getLong(ColumnType.COL_CURRENT_SIZE.ordinal());
+        byteRange = row.getString(ColumnType.COL_BYTE_RANGE.ordinal());
+    }
+
+    /**
+     * Construct a record from a row queried with {@link #getColumnNames()}.
+     *
+     * @param row the cursor positioned at the row.
+     * @return the record.
+     */
+    /* package */ static DownloadRecord fromCursor(final Cursor row) {
+        return new DownloadRecord(row);
+    }
+
+    /**
+     * @param value a possibly null value.
+     * @return the value, or zero if it was null.
+     */
+    private static long asLong(final Long value) {
+        return value == null ? 0L : value;
+    }
+
+    /**
+     * @return the download id.
+     */
+    /* package */ long getId() {
+        return id;
+    }
+
+    /**
+     * @return the download url.
+     */
+    /* package */ String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the destination file location.
+     */
+    /* package */ String getFileLocation() {
+        return fileLocation;
+    }
+
+    /**
+     * @return the time at which the download was created.
+     */
+    /* package */ long getCreateTimestamp() {
+        return createTimestamp;
+    }
+
+    /**
+     * @return the byte range to download, as "first-last", or null for the whole file.
+     */
+    /* package */ String getByteRange() {
+        return byteRange;
+    }
+
+    /**
+     * @return the user interaction flags.
+     */
+    /* package */ synchronized int getUserFlags() {
+        return userFlags;
+    }
+
+    /**
+     * @return the status of the download.
+     */
+    /* package */ synchronized DownloadState getStatus() {
+        return status;
+    }
+
+    /**
+     * @param newStatus the new status of the download.
+     */
+    /* package */ synchronized void setStatus(final DownloadState newStatus) {
+        status = newStatus;
+    }
+
+    /**
+     * Set the status and user flags together.
+     *
+     * @param newStatus the new status of the download.
+     * @param newFlags the new user interaction flags.
+     */
+    /* package */ synchronized void setStatusAndFlags(final DownloadState newStatus, final int newFlags) {
+        status = newStatus;
+        userFlags = newFlags;
+    }
+
+    /**
+     * @return the eTag, or null if not known.
+     */
+    /* package */ synchronized String getETag() {
+        return eTag;
+    }
+
+    /**
+     * @return the size of the thing being downloaded.
+     */
+    /* package */ synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * @return the amount downloaded so far.
+     */
+    /* package */ synchronized long getCurrentSize() {
+        return currentSize;
+    }
+
+    /**
+     * Record download progress.
+     *
+     * @param bytesDownloaded the amount downloaded so far.
+     * @param total the size of the thing being downloaded.
+     */
+    /* package */ synchronized void setProgress(final long bytesDownloaded, final long total) {
+        currentSize = bytesDownloaded;
+        totalSize = total;
+    }
+
+    /**
+     * Record the values received in the response headers. Null or negative values leave the
+     * existing value unchanged.
+     *
+     * @param newETag the eTag, or null.
+     * @param length the content length, or -1.
+     * @param contentType the MIME type, or null.
+     */
+    /* package */ synchronized void setHeaders(final String newETag, final long length, final String contentType) {
+        if (null != newETag) {
+            eTag = newETag;
+        }
+        if (length >= 0) {
+            totalSize = length;
+        }
+        if (null != contentType) {
+            mimeType = contentType;
+        }
+    }
+
+    /**
+     * @return the download info for this record.
+     */
+    /* package */ synchronized BasicDownloadInfo toDownloadInfo() {
+        return BasicDownloadInfo.fromValues(String.valueOf(id), intentUri, url, fileLocation, mimeType,
+            totalSize, createTimestamp);
+    }
+}
@@ -1,7 +1,6 @@
 package com.dancingqueen.walladog.aws.downloader.service;
 
 import android.app.Service;
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Intent;
 import android.database.Cursor;
@@ -20,10 +19,15 @@ import com.dancingqueen.walladog.aws.downloader.query.DownloadQueueProvider;
 import com.dancingqueen.walladog.aws.downloader.query.DownloadState;
 import com.dancingqueen.walladog.aws.downloader.query.QueryHelper;
 import com.dancingqueen.walladog.aws.downloader.request.DownloadAddRequest;
+import com.dancingqueen.walladog.aws.downloader.request.DownloadBatchAddRequest;
 import com.dancingqueen.walladog.aws.downloader.request.DownloadRemoveRequest;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Service to manage downloads.
@@ -51,6 +55,9 @@ public class DownloadService extends Service {
     /** The intent action to request a download. */
     public static final String ACTION_REQUEST_DOWNLOAD = ACTION_PREFIX + "REQUEST_DOWNLOAD";
 
+    /** The intent action to request many downloads at once. */
+    public static final String ACTION_REQUEST_DOWNLOAD_BATCH = ACTION_PREFIX + "REQUEST_DOWNLOAD_BATCH";
+
     /** The intent action to request a download be paused. */
     public static final String ACTION_REQUEST_PAUSE = ACTION_PREFIX + "REQUEST_PAUSE";
 
@@ -69,12 +76,24 @@ public class DownloadService extends Service {
     /** The intent action that download is started. */
     public static final String ACTION_DOWNLOAD_STARTED = ACTION_PREFIX + "DOWNLOAD_STARTED";
 
-    /** The intent action that download has progressed. */
+    /**
+     * The intent action that download has progressed. This is only broadcast while no listener is
+     * registered with the {@link DownloadEventBus}, which in-process clients should use instead.
+     */
     public static final String ACTION_DOWNLOAD_PROGRESS = ACTION_PREFIX + "DOWNLOAD_PROGRESS";
 
     /** The intent action that download failed to be enqueued. */
     public static final String ACTION_DOWNLOAD_ENQUEUE_FAILED = ACTION_PREFIX + "DOWNLOAD_ENQUEUE_FAILED";
 
+    /**
+     * The intent action that a batch of downloads was processed. See {@link #EXTRA_LONG_ARRAY_IDS} for
+     * which of the downloads were enqueued.
+     */
+    public static final String ACTION_DOWNLOAD_BATCH_ENQUEUED = ACTION_PREFIX + "DOWNLOAD_BATCH_ENQUEUED";
+
+    /** The intent action that a batch of downloads failed to be enqueued. None of them were enqueued. */
+    public static final String ACTION_DOWNLOAD_BATCH_ENQUEUE_FAILED = ACTION_PREFIX + "DOWNLOAD_BATCH_ENQUEUE_FAILED";
+
     /** The intent action that a download is removed successfully. */
     public static final String ACTION_DOWNLOAD_REMOVED = ACTION_PREFIX + "DOWNLOAD_REMOVED";
 
@@ -158,12 +177,30 @@ public class DownloadService extends Service {
     /** The intent extra key for download errors. */
     public static final String EXTRA_DOWNLOAD_ERROR = EXTRA_PREFIX + "downloadError";
 
+    /** The intent extra key for the byte range to download, as "first-last", if not the whole file. */
+    public static final String EXTRA_BYTE_RANGE = EXTRA_PREFIX + "byteRange";
+
+    /** The intent extra key for the requests of a batch download request. */
+    public static final String EXTRA_BATCH_REQUESTS = EXTRA_PREFIX + "batchRequests";
+
+    /**
+     * The intent extra key for the download ids of a batch, in request order. Requests which were not
+     * enqueued, such as those for a location that is already being downloaded, have {@link #INVALID_ID}.
+     */
+    public static final String EXTRA_LONG_ARRAY_IDS = EXTRA_PREFIX + "downloadIds";
+
     /** The intent extra key for the download title. */
     public static final String EXTRA_DOWNLOAD_TITLE = "title";
 
     /** A download ID that will never be valid. */
     public static final long INVALID_ID = -1;
 
+    /** Why a download's streams ended, if it couldn't be enqueued. */
+    private static final String MSG_ENQUEUE_FAILED = "Download could not be enqueued.";
+
+    /** The most file locations to check for duplicates in a single query, to stay under SQLite's variable limit. */
+    private static final int MAX_LOCATIONS_PER_QUERY = 500;
+
     /** The amount of time after which a COMPLETED download can be cleanuped up from the queue. */
     public static final long COMPLETED_DOWNLOAD_CLEANUP_DELAY = 1000L * 60 * 60 * 24 * 7;
 
@@ -182,23 +219,55 @@ public class DownloadService extends Service {
     /** Our downloader object (Store statically to avoid recreating each time the service starts). */
     private static Downloader downloader;
 
+    /** The in-memory download queue shared with the downloader (Stored statically along with it). */
+    private static volatile DownloadTable downloadTable;
+
+    /** Reports status changes for the downloader and this service (Stored statically along with it). */
+    private static DownloadStatusUpdater statusUpdater;
+
+    /** How the downloader runs download tasks. */
+    private static volatile DownloadExecutionMode executionMode = DownloadExecutionMode.BLOCKING;
+
     /** Secure broadcast manager. */
     protected LocalBroadcastManager localBroadcastManager;
 
-    /** The content URI for the download queue. */
-    private Uri downloadQueueContentUri;
+    /**
+     * @return the in-memory download queue, or null if the service hasn't been created in this process.
+     */
+    /* package */ static DownloadTable getDownloadTable() {
+        return downloadTable;
+    }
 
+    /**
+     * Set how download tasks are run. This must be called before the service is first started in each
+     * process, since the downloader is created then and kept for the life of the process, and the mode
+     * isn't saved. Once the downloader has been created the mode can't be changed.
+     *
+     * @param mode the execution mode, {@link DownloadExecutionMode#BLOCKING} by default.
+     */
+    public static void setExecutionMode(final DownloadExecutionMode mode) {
+        if (null == mode) {
+            throw new IllegalArgumentException("An execution mode is required.");
+        }
+        if (null != downloader) {
+            Log.w(LOG_TAG, String.format("The downloader is already running in mode %s, ignoring mode %s.",
+                executionMode, mode));
+            return;
+        }
+        executionMode = mode;
+    }
 
     /** {@inheritDoc} */
     @Override
     public void onCreate() {
-        downloadQueueContentUri = DownloadQueueProvider.getDownloadContentUri(this);
         // Create a local broadcast manager to send status updates.
         localBroadcastManager = LocalBroadcastManager.getInstance(this.getApplicationContext());
         if (downloader == null) {
+            downloadTable = new DownloadTable(this.getApplicationContext());
+            statusUpdater = new DownloadStatusUpdater(this, localBroadcastManager, downloadTable);
             // No download policy provider by default (passing null for the policy provider).
-            downloader = new BasicDownloader(this.getApplicationContext(), null,
-                new DownloadStatusUpdater(this, localBroadcastManager));
+            downloader = new BasicDownloader(this.getApplicationContext(), null, statusUpdater, downloadTable,
+                executionMode);
         }
         final HandlerThread thread = new HandlerThread("DownloadService HandlerThread.");
         thread.start();
@@ -242,6 +311,9 @@ public class DownloadService extends Service {
             if (null != downloader) {
                 downloader.shutdownNow();
                 downloader = null;
+                // Let queued writes finish; any that arrive late are written by the caller.
+                downloadTable.shutdown();
+                downloadTable = null;
                 maxId = -1;
             }
         } finally {
@@ -296,6 +368,8 @@ public class DownloadService extends Service {
             throw new IllegalArgumentException("null or empty action");
         } else if (action.equals(DownloadService.ACTION_REQUEST_DOWNLOAD)) {
             enqueueDownload(intent);
+        } else if (action.equals(DownloadService.ACTION_REQUEST_DOWNLOAD_BATCH)) {
+            enqueueDownloadBatch(intent);
         } else if (action.equals(DownloadService.ACTION_REQUEST_PAUSE)) {
             pauseDownload(intent);
         } else if (action.equals(DownloadService.ACTION_RESUME_DOWNLOAD)) {
@@ -356,15 +430,10 @@ public class DownloadService extends Service {
 
             Log.d(LOG_TAG, String.format("Remove download for id (%d).", downloadId));
 
-            final int rowDeleted = getContentResolver().delete(downloadQueueContentUri,
-                DownloadQueueProvider.COLUMN_DOWNLOAD_ID + " = ? AND "
-                    + DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS + " in ('"
-                    + DownloadState.FAILED.toString() + "', '"
-                    + DownloadState.COMPLETE.toString() + "')",
-                new String[]{
-                    String.valueOf(downloadId)
-                });
-            if (rowDeleted > 0) {
+            final DownloadRecord record = downloadTable.get(downloadId);
+            final DownloadState downloadState = null == record ? null : record.getStatus();
+            if (DownloadState.FAILED == downloadState || DownloadState.COMPLETE == downloadState) {
+                downloadTable.delete(downloadId);
                 Log.i(LOG_TAG, String.format("Removed download with id (%d).",  downloadId));
                 notifyDownloadRemoved(intent);
             } else {
@@ -387,10 +456,8 @@ public class DownloadService extends Service {
             DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS + " not in (?, ?)";
         final String[] queryArgs = {
             downloadLocation,
-            DownloadState.COMPLETE
-                .toString(),
-            DownloadState.FAILED
-                .toString()
+            DownloadState.COMPLETE.getColumnValue(),
+            DownloadState.FAILED.getColumnValue()
         };
         String[] results = QueryHelper.runDownloadQueryForRow(this, projection, query, queryArgs);
         if (results != null) {
@@ -412,8 +479,10 @@ public class DownloadService extends Service {
         try {
             request = DownloadAddRequest.fromIntent(intent);
 
-            // Check that this file location is not already being downloaded.
+            // Check that this file location is not already being downloaded, once the queue is up to date.
+            downloadTable.flush();
             if (isDuplicateDownloadLocation(request.getFileLocation())) {
+                endStreamsOfRejectedDownload(request.getFileLocation());
                 notifyDownloadEnqueueFailed(intent);
                 Log.e(LOG_TAG, "A download already exists with file location: " + request.getFileLocation());
                 return;
@@ -421,18 +490,18 @@ public class DownloadService extends Service {
 
             final ContentValues values = request.toContentValues();
             values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS,
-                DownloadState.NOT_STARTED.toString());
+                DownloadState.NOT_STARTED.getValue());
             values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_CREATE_TIMESTAMP,
                 System.currentTimeMillis());
 
-            final Uri uri = getContentResolver().insert(downloadQueueContentUri, values);
-            if (null == uri) {
+            final DownloadRecord record = downloadTable.insert(values);
+            if (null == record) {
+                endStreamsOfRejectedDownload(request.getFileLocation());
                 notifyDownloadEnqueueFailed(intent);
-                Log.e(LOG_TAG, "contentResolver.insert() returned null.");
                 return;
             }
 
-            final long downloadId = Long.parseLong(uri.getLastPathSegment());
+            final long downloadId = record.getId();
             Log.i(LOG_TAG, "Enqueued download of package with downloadId " + downloadId);
             
             if (downloader.addDownloadTask(downloadId)) {
@@ -441,6 +510,7 @@ public class DownloadService extends Service {
                 // This should never happen for the BasicDownloader unless something is very badly
                 // wrong with the database.
                 Log.w(LOG_TAG, "Couldn't add a download task for a new download.");
+                DownloadStream.finished(request.getFileLocation(), false, MSG_ENQUEUE_FAILED);
                 notifyDownloadEnqueueFailed(intent);
             }
         } catch (final IllegalArgumentException ex) {
@@ -449,6 +519,151 @@ public class DownloadService extends Service {
         }
     }
 
+    /**
+     * End the streams opened for a download that couldn't be enqueued, unless they can follow a download
+     * to the same location which is queued or running. Otherwise nothing would ever end them.
+     *
+     * @param fileLocation the location of the download.
+     */
+    private void endStreamsOfRejectedDownload(final String fileLocation) {
+        final DownloadRecord existing = downloadTable.loadLatestByFileLocation(fileLocation);
+        if (null != existing) {
+            final DownloadState state = existing.getStatus();
+            if (DownloadState.NOT_STARTED == state || DownloadState.IN_PROGRESS == state) {
+                return;
+            }
+        }
+        DownloadStream.finished(fileLocation, false, MSG_ENQUEUE_FAILED);
+    }
+
+    /**
+     * Enqueue a batch of downloads. Requests for a location which is already being downloaded, or which
+     * appears earlier in the same batch, are skipped; the rest are inserted in a single transaction.
+     *
+     * @param intent
+     *            the intent to request the downloads.
+     */
+    private void enqueueDownloadBatch(final Intent intent) {
+        final DownloadBatchAddRequest batch;
+        try {
+            batch = DownloadBatchAddRequest.fromIntent(intent);
+        } catch (final IllegalArgumentException ex) {
+            notifyActionWithOriginalIntent(DownloadService.ACTION_DOWNLOAD_BATCH_ENQUEUE_FAILED, intent);
+            Log.e(LOG_TAG, "Invalid intent received", ex);
+            return;
+        }
+
+        final List<DownloadAddRequest> requests = batch.getRequests();
+        final long[] downloadIds = new long[requests.size()];
+        Arrays.fill(downloadIds, INVALID_ID);
+
+        // Check that none of the file locations are already being downloaded, once the queue is up to date.
+        downloadTable.flush();
+        final Set<String> locations = new HashSet<String>();
+        for (final DownloadAddRequest request : requests) {
+            locations.add(request.getFileLocation());
+        }
+        final Set<String> activeLocations = findActiveDownloadLocations(locations);
+
+        final long createTimestamp = System.currentTimeMillis();
+        final Set<String> batchLocations = new HashSet<String>();
+        final List<ContentValues> valuesList = new ArrayList<ContentValues>(requests.size());
+        final List<Integer> positions = new ArrayList<Integer>(requests.size());
+        for (int i = 0; i < requests.size(); ++i) {
+            final DownloadAddRequest request = requests.get(i);
+            final String location = request.getFileLocation();
+            if (activeLocations.contains(location) || !batchLocations.add(location)) {
+                Log.e(LOG_TAG, "A download already exists with file location: " + location);
+                if (activeLocations.contains(location)) {
+                    endStreamsOfRejectedDownload(location);
+                }
+                continue;
+            }
+            final ContentValues values = request.toContentValues();
+            values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS,
+                DownloadState.NOT_STARTED.getValue());
+            values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_CREATE_TIMESTAMP, createTimestamp);
+            valuesList.add(values);
+            positions.add(i);
+        }
+
+        final List<DownloadRecord> records = downloadTable.insertAll(valuesList);
+        if (null == records) {
+            for (final String location : batchLocations) {
+                endStreamsOfRejectedDownload(location);
+            }
+            notifyActionWithOriginalIntent(DownloadService.ACTION_DOWNLOAD_BATCH_ENQUEUE_FAILED, intent);
+            return;
+        }
+
+        for (int i = 0; i < records.size(); ++i) {
+            final long downloadId = records.get(i).getId();
+            if (downloader.addDownloadTask(downloadId)) {
+                downloadIds[positions.get(i)] = downloadId;
+            } else {
+                // This should never happen for the BasicDownloader unless something is very badly
+                // wrong with the database.
+                Log.w(LOG_TAG, "Couldn't add a download task for a new download.");
+                DownloadStream.finished(records.get(i).getFileLocation(), false, MSG_ENQUEUE_FAILED);
+            }
+        }
+        Log.i(LOG_TAG, String.format("Enqueued %d of %d downloads in batch.", records.size(), requests.size()));
+
+        final Intent batchEnqueuedIntent = new Intent(DownloadService.ACTION_DOWNLOAD_BATCH_ENQUEUED);
+        final Bundle extras = intent.getExtras();
+        if (null != extras) {
+            batchEnqueuedIntent.putExtras(extras);
+        }
+        // The requests have been handled, so there's no need to send them back.
+        batchEnqueuedIntent.removeExtra(DownloadService.EXTRA_BATCH_REQUESTS);
+        batchEnqueuedIntent.putExtra(DownloadService.EXTRA_LONG_ARRAY_IDS, downloadIds);
+        sendBroadcastAfterPendingWrites(batchEnqueuedIntent);
+    }
+
+    /**
+     * Find which of the given file locations are being downloaded by a download that isn't complete
+     * or failed.
+     *
+     * @param locations the file locations to check.
+     * @return the locations which are already being downloaded.
+     */
+    private Set<String> findActiveDownloadLocations(final Collection<String> locations) {
+        final Set<String> activeLocations = new HashSet<String>();
+        final List<String> pending = new ArrayList<String>(locations);
+        for (int start = 0; start < pending.size(); start += MAX_LOCATIONS_PER_QUERY) {
+            final List<String> chunk = pending.subList(start,
+                Math.min(start + MAX_LOCATIONS_PER_QUERY, pending.size()));
+
+            final StringBuilder query = new StringBuilder(DownloadQueueProvider.COLUMN_DOWNLOAD_FILE_LOCATION)
+                .append(" in (");
+            final String[] queryArgs = new String[chunk.size() + 2];
+            for (int i = 0; i < chunk.size(); ++i) {
+                query.append(i == 0 ? "?" : ", ?");
+                queryArgs[i] = chunk.get(i);
+            }
+            query.append(") AND ").append(DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS).append(" not in (?, ?)");
+            queryArgs[chunk.size()] = DownloadState.COMPLETE.getColumnValue();
+            queryArgs[chunk.size() + 1] = DownloadState.FAILED.getColumnValue();
+
+            final Cursor rows = getContentResolver().query(DownloadQueueProvider.getDownloadContentUri(this),
+                new String[] {
+                    DownloadQueueProvider.COLUMN_DOWNLOAD_FILE_LOCATION
+                },
+                query.toString(), queryArgs, null);
+            if (rows == null) {
+                continue;
+            }
+            try {
+                while (rows.moveToNext()) {
+                    activeLocations.add(rows.getString(0));
+                }
+            } finally {
+                rows.close();
+            }
+        }
+        return activeLocations;
+    }
+
     /**
      * Pause a download. This means if it is in progress, we will attempt
      * to interrupt the thread running it, and if it isn't up yet, it will be
@@ -468,22 +683,21 @@ public class DownloadService extends Service {
             return;
         }
 
-        final String strId = String.valueOf(id);
-        final String[] cols = getStateAndFlags(strId);
-        if (null == cols) {
+        final DownloadRecord record = downloadTable.get(id);
+        if (null == record) {
             notifyDownloadPauseFailed(intent);
             return;
         }
 
-        final String downloadState = cols[0];
+        final DownloadState downloadState = record.getStatus();
         // If the state is failed or complete, we must fail the pause request.
-        if (DownloadState.FAILED.toString().equals(downloadState) ||
-            DownloadState.COMPLETE.toString().equals(downloadState)) {
+        if (DownloadState.FAILED == downloadState || DownloadState.COMPLETE == downloadState) {
             notifyDownloadPauseFailed(intent);
+            return;
         }
 
-        Log.d(LOG_TAG, "Pausing download with id = " + strId);
-        final int currentFlags = DownloadFlags.parseUserFlags(cols[1]);
+        Log.d(LOG_TAG, "Pausing download with id = " + id);
+        final int currentFlags = record.getUserFlags();
         final int newFlags;
         if (byUserRequest) {
             newFlags = currentFlags | DownloadFlags.FLAG_BY_USER_REQUEST;
@@ -495,15 +709,15 @@ public class DownloadService extends Service {
         final boolean couldPauseDownloadTask = downloader.pauseDownloadTask(id);
         // if the download task couldn't be paused, and the state was previously set to paused
         // by user request, but is now being requested to pause not by user request.
-        if (!couldPauseDownloadTask && DownloadState.PAUSED.toString().equals(downloadState)
+        if (!couldPauseDownloadTask && DownloadState.PAUSED == downloadState
             && (DownloadFlags.isUserRequestFlagSet(currentFlags) && !byUserRequest)) {
             Log.w(LOG_TAG, "Ignoring attempt to downgrade a paused download task from being due to user request.");
         } else {
             // Set the user-request flag and update the state to paused.
-            updateStateAndFlags(strId, DownloadState.PAUSED.toString(), newFlags);
+            updateStateAndFlags(record, DownloadState.PAUSED, newFlags);
         }
 
-        if (!couldPauseDownloadTask && !DownloadState.PAUSED.toString().equals(downloadState)) {
+        if (!couldPauseDownloadTask && DownloadState.PAUSED != downloadState) {
             Log.w(LOG_TAG, "Fixed download state to Paused. No task was running, but one was expected.");
         }
 
@@ -527,29 +741,24 @@ public class DownloadService extends Service {
             return;
         }
 
-        final ContentResolver resolver = getContentResolver();
+        final DownloadRecord record = downloadTable.get(id);
+        if (null == record) {
+            Log.d(LOG_TAG, String.format("Can't find download id (%d) in database.", id));
+            notifyDownloadResumeFailed(intent);
+            return;
+        }
 
-        // Ensure the database is locked to prevent the possibility of a download that completes while this
+        // Hold the record to prevent the possibility of a download that completes while this
         // is being called from having its state erroneously changed back to in progress.
-        resolver.query(DownloadQueueProvider.getDownloadOpenTransactionUri(this), null, null, null, null);
-        try {
-            final String strId = String.valueOf(id);
-            final String[] cols = getStateAndFlags(strId);
-            if (null == cols) {
-                Log.d(LOG_TAG, String.format("Can't find download id (%d) in database.", id));
-                notifyDownloadResumeFailed(intent);
-                return;
-            }
-
-            final String downloadState = cols[0];
+        synchronized (record) {
+            final DownloadState downloadState = record.getStatus();
             // If the state is failed or complete, we must fail the resume request.
-            if (DownloadState.FAILED.toString().equals(downloadState) ||
-                DownloadState.COMPLETE.toString().equals(downloadState)) {
+            if (DownloadState.FAILED == downloadState || DownloadState.COMPLETE == downloadState) {
                 notifyDownloadResumeFailed(intent);
                 return;
             }
 
-            final int currentFlags = DownloadFlags.parseUserFlags(cols[1]);
+            final int currentFlags = record.getUserFlags();
             if (DownloadFlags.isUserRequestFlagSet(currentFlags) && !byUserRequest) {
                 // user-paused can only be resumed by user request
                 notifyDownloadResumeFailed(intent);
@@ -559,16 +768,13 @@ public class DownloadService extends Service {
             // Clear the user-request flag.
             final int newFlags = currentFlags & ~DownloadFlags.FLAG_BY_USER_REQUEST;
 
-            updateStateAndFlags(strId, DownloadState.IN_PROGRESS.toString(), newFlags);
+            updateStateAndFlags(record, DownloadState.IN_PROGRESS, newFlags);
+        }
 
-            if (downloader.resumeDownloadTask(id)) {
-                notifyDownloadResumeSucceeded(intent);
-            } else {
-                notifyDownloadResumeFailed(intent);
-            }
-        } finally {
-            // Unlock the database
-            resolver.query(DownloadQueueProvider.getDownloadCompleteTransactionUri(this), null, null, null, null);
+        if (downloader.resumeDownloadTask(id)) {
+            notifyDownloadResumeSucceeded(intent);
+        } else {
+            notifyDownloadResumeFailed(intent);
         }
     }
 
@@ -602,23 +808,8 @@ public class DownloadService extends Service {
     private void cleanupDownloadQueue() {
         final long currentTime = System.currentTimeMillis();
         Log.d(LOG_TAG, "Cleaning up download queue.");
-        final int rowDeleted =
-            getContentResolver().delete(downloadQueueContentUri,
-                "( ? - " + DownloadQueueProvider.COLUMN_DOWNLOAD_CREATE_TIMESTAMP + " >= "
-                    + " CAST(? AS INTEGER) AND "
-                    + DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS + " =? " + ") OR ( ? - "
-                    + DownloadQueueProvider.COLUMN_DOWNLOAD_CREATE_TIMESTAMP + " >= "
-                    + " CAST(? AS INTEGER) AND "
-                    + DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS + " =? )",
-                new String[]{
-                    String.valueOf(currentTime),
-                    String.valueOf(COMPLETED_DOWNLOAD_CLEANUP_DELAY),
-                    DownloadState.COMPLETE.toString(),
-                    String.valueOf(currentTime),
-                    String.valueOf(FAILED_DOWNLOAD_CLEANUP_DELAY),
-                    DownloadState.FAILED.toString()
-                });
-        Log.d(LOG_TAG, rowDeleted + " row(s) deleted during download queue cleanup.");
+        downloadTable.deleteFinishedBefore(currentTime - COMPLETED_DOWNLOAD_CLEANUP_DELAY,
+            currentTime - FAILED_DOWNLOAD_CLEANUP_DELAY);
 
         downloader.onCleanupAction();
     }
@@ -631,7 +822,7 @@ public class DownloadService extends Service {
      */
     private void notifyDownloadEnqueued(final Intent intent, final long downloadId) {
         final Intent downloadEnqueuedIntent = createDownloadEnqueuedIntent(intent, downloadId);
-        localBroadcastManager.sendBroadcast(downloadEnqueuedIntent);
+        sendBroadcastAfterPendingWrites(downloadEnqueuedIntent);
     }
 
     /**
@@ -727,29 +918,43 @@ public class DownloadService extends Service {
         if (null != extras) {
             intent.putExtras(extras);
         }
-        localBroadcastManager.sendBroadcast(intent);
+        sendBroadcastAfterPendingWrites(intent);
     }
 
     /**
-     * Update the state and flags for a given row.
+     * Send a broadcast once the changes made so far have been written to the download queue, so that
+     * clients reading the queue in response see the state the broadcast describes.
+     *
+     * @param intent the intent to broadcast
+     */
+    private void sendBroadcastAfterPendingWrites(final Intent intent) {
+        downloadTable.runAfterPendingWrites(new Runnable() {
+            @Override
+            public void run() {
+                localBroadcastManager.sendBroadcast(intent);
+            }
+        });
+    }
+
+    /**
+     * Update the state and flags for a given download, in memory and behind in the download queue,
+     * and tell listeners on the event bus once it has been written.
      * 
-     * @param id
-     *            the row ID to update
+     * @param record
+     *            the download record to update
      * @param state
      *            the new value for the state column
      * @param flags
      *            the new value for the flags column
      */
-    private void updateStateAndFlags(final String id, final String state, final int flags) {
+    private void updateStateAndFlags(final DownloadRecord record, final DownloadState state, final int flags) {
+        record.setStatusAndFlags(state, flags);
+
         final ContentValues values = new ContentValues();
-        values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS, state);
+        values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS, state.getValue());
         values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_USER_FLAGS, flags);
-
-        final ContentResolver resolver = getContentResolver();
-        resolver.update(downloadQueueContentUri, values,
-            DownloadQueueProvider.COLUMN_DOWNLOAD_ID + " = ?", new String[] {
-                id
-            });
+        downloadTable.persistValues(record.getId(), values);
+        statusUpdater.stateChanged(record.getId(), state, flags);
     }
 
     /**
@@ -762,15 +967,36 @@ public class DownloadService extends Service {
      */
     private Collection<Long> getDownloadIdsByPath(final String path) {
         final ArrayList<Long> ids = new ArrayList<Long>();
-        final String query = DownloadQueueProvider.COLUMN_DOWNLOAD_FILE_LOCATION + " like ? AND "
+        if (path.isEmpty()) {
+            return ids;
+        }
+        // Match the prefix as a range rather than with LIKE, so that the file location index can be used
+        // and so that '%' or '_' in the path are not treated as wildcards.
+        final String pathUpperBound = getPrefixUpperBound(path);
+        final String query;
+        final String[] selectionArgs;
+        if (pathUpperBound == null) {
+            query = DownloadQueueProvider.COLUMN_DOWNLOAD_FILE_LOCATION + " >= ? AND "
+                + DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS + " in (?, ?)";
+            selectionArgs = new String[] {
+                path,
+                DownloadState.IN_PROGRESS.getColumnValue(),
+                DownloadState.NOT_STARTED.getColumnValue()
+            };
+        } else {
+            query = DownloadQueueProvider.COLUMN_DOWNLOAD_FILE_LOCATION + " >= ? AND "
+                + DownloadQueueProvider.COLUMN_DOWNLOAD_FILE_LOCATION + " < ? AND "
                 + DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS + " in (?, ?)";
+            selectionArgs = new String[] {
+                path,
+                pathUpperBound,
+                DownloadState.IN_PROGRESS.getColumnValue(),
+                DownloadState.NOT_STARTED.getColumnValue()
+            };
+        }
         final Cursor cursor = QueryHelper.runQueryForDownloadRow(
                 query,
-                new String[] {
-                        path + "%",
-                        DownloadState.IN_PROGRESS.toString(),
-                        DownloadState.NOT_STARTED.toString()
-                },
+                selectionArgs,
                 this,
                 new String[] {
                         DownloadQueueProvider.COLUMN_DOWNLOAD_ID,
@@ -785,8 +1011,12 @@ public class DownloadService extends Service {
         }
         try {
             while (!cursor.isAfterLast()) {
-                ids.add(cursor.getLong(0));
-                Log.d(LOG_TAG, "found download id: " + cursor.getLong(0) + " path " + cursor.getString(1));
+                // The range may be wider than the prefix when the path ends in U+FFFF.
+                final String fileLocation = cursor.getString(1);
+                if (fileLocation != null && fileLocation.startsWith(path)) {
+                    ids.add(cursor.getLong(0));
+                    Log.d(LOG_TAG, "found download id: " + cursor.getLong(0) + " path " + fileLocation);
+                }
                 cursor.moveToNext();
             }
         } finally {
@@ -797,23 +1027,22 @@ public class DownloadService extends Service {
     }
 
     /**
-     * Get the state and flags for a given row.
-     * 
-     * @param id
-     *            the id of the row to get.
-     * @return an array containing the status in element zero and the flags in element one
+     * Get the least string greater than every string beginning with a prefix. Trailing U+FFFF
+     * characters can't be incremented, so they are dropped first, which makes the bound cover some
+     * strings that don't begin with the prefix.
+     *
+     * @param prefix the prefix.
+     * @return the bound, or null if the prefix is all U+FFFF and there is none.
      */
-    private String[] getStateAndFlags(final String id) {
-        final String[] projection = {
-            DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS,
-            DownloadQueueProvider.COLUMN_DOWNLOAD_USER_FLAGS,
-        };
-        final String query = "_id = ?";
-        final String[] args = {
-            id,
-        };
-
-        return QueryHelper.runDownloadQueryForRow(this, projection, query, args);
+    private static String getPrefixUpperBound(final String prefix) {
+        int last = prefix.length() - 1;
+        while (last >= 0 && prefix.charAt(last) == Character.MAX_VALUE) {
+            last--;
+        }
+        if (last < 0) {
+            return null;
+        }
+        return prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
     }
 
     /**
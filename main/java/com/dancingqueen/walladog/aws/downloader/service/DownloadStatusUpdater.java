@@ -1,11 +1,8 @@
 package com.dancingqueen.walladog.aws.downloader.service;
 
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
-import android.net.Uri;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
@@ -42,8 +39,11 @@ public class DownloadStatusUpdater {
     /** Secure broadcast manager. */
     private final LocalBroadcastManager secureBroadcastManager;
 
-    /** The content URI for the download queue. */
-    private final Uri downloadQueueContentUri;
+    /** The in-memory download queue. */
+    private final DownloadTable downloadTable;
+
+    /** Delivers status and progress to listeners in this process. */
+    private final DownloadEventBus eventBus = DownloadEventBus.getInstance();
 
     /** Keeps track of downloads by ID for which we don't want to send progress. */
     private final HashSet<Long> mutedDownloadIds = new HashSet<Long>();
@@ -54,11 +54,13 @@ public class DownloadStatusUpdater {
      * @param context
      *            Android context
      * @param localBroadcastManager the broadcast manager to send updates.
+     * @param downloadTable the in-memory download queue.
      */
-    public DownloadStatusUpdater(final Context context, final LocalBroadcastManager localBroadcastManager) {
+    /* package */ DownloadStatusUpdater(final Context context, final LocalBroadcastManager localBroadcastManager,
+                                        final DownloadTable downloadTable) {
         this.context = context;
         this.secureBroadcastManager = localBroadcastManager;
-        downloadQueueContentUri = DownloadQueueProvider.getDownloadContentUri(context);
+        this.downloadTable = downloadTable;
         downloadStatuses = new ConcurrentHashMap<String, DownloadStatus>();
     }
 
@@ -74,28 +76,55 @@ public class DownloadStatusUpdater {
         final DownloadStatus downloadStatus = getDownloadStatus(downloadId);
 
         synchronized (downloadStatus.lock) {
-            // update state in content provider
-            final ContentValues values = new ContentValues();
-            final String newState = DownloadState.IN_PROGRESS
-                .toString();
-            values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS, newState);
-            final ContentResolver resolver = context.getContentResolver();
-            resolver.update(downloadQueueContentUri, values,
-                DownloadQueueProvider.COLUMN_DOWNLOAD_ID + " = ?",
-                new String[] {
-                    downloadId
-                });
+            // update state in memory, and behind in the content provider
+            final DownloadRecord record = downloadTable.get(longDownloadId);
+            if (null != record) {
+                record.setStatus(DownloadState.IN_PROGRESS);
+                downloadTable.persistStatus(record, null);
+            }
 
             // broadcast a notification
             final Intent notification = getDownloadIntent(longDownloadId, downloadStatus);
             notification.setAction(DownloadService.ACTION_DOWNLOAD_STARTED);
             notification.putExtra(DownloadService.EXTRA_LONG_ID, longDownloadId);
 
-            secureBroadcastManager.sendBroadcast(notification);
+            notifyStateChangedAfterPendingWrites(longDownloadId, DownloadState.IN_PROGRESS, notification);
                 // Mute this if silent? answer from patb for now is no.
         }
     }
 
+    /**
+     * Receive notification that the DownloadService changed a download's state or flags itself, as it
+     * does when pausing or resuming, so that listeners on the event bus don't go stale. Nothing is
+     * broadcast, since the DownloadService answers the request with its own broadcast.
+     *
+     * @param longDownloadId
+     *            the ID
+     * @param state
+     *            the new state
+     * @param flags
+     *            the new user flags
+     */
+    public void stateChanged(final long longDownloadId, final DownloadState state, final int flags) {
+        final String downloadId = String.valueOf(longDownloadId);
+
+        final DownloadStatus downloadStatus = getDownloadStatus(downloadId);
+
+        synchronized (downloadStatus.lock) {
+            // The cached intent is reused for later notifications, so send a copy.
+            final Intent details = new Intent(getDownloadIntent(longDownloadId, downloadStatus));
+            details.putExtra(DownloadService.EXTRA_LONG_ID, longDownloadId);
+            details.putExtra(DownloadService.EXTRA_DOWNLOAD_FLAGS, flags);
+            downloadTable.runAfterPendingWrites(new Runnable() {
+                @Override
+                public void run() {
+                    eventBus.postStateChanged(longDownloadId,
+                        details.getStringExtra(DownloadService.EXTRA_LOCATION), state, details);
+                }
+            });
+        }
+    }
+
     /**
      * Receive notification that we got headers etc. example headers: [ Date:
      * Thu, 01 Nov 2012 20:21:54 GMT, Server: Apache/2.2.22 (Fedora),
@@ -136,15 +165,14 @@ public class DownloadStatusUpdater {
             }
 
             if (0 < values.size()) {
-                final ContentResolver resolver = context.getContentResolver();
-                resolver.update(downloadQueueContentUri, values,
-                    DownloadQueueProvider.COLUMN_DOWNLOAD_ID + " = ?",
-                    new String[] {
-                        downloadId
-                    });
+                final DownloadRecord record = downloadTable.get(longDownloadId);
+                if (null != record) {
+                    record.setHeaders(eTag, length, contentType);
+                }
+                downloadTable.persistValues(longDownloadId, values);
             }
 
-            // Ensure that headers (such as mime type) will be updated from ContentResolver
+            // Ensure that headers (such as mime type) will be updated from the download record
             downloadStatus.setDownloadInfo(null);
 
             downloadStatus.setProgressMeasurer(new DownloadSpeedMeasurer(0, length));
@@ -206,8 +234,9 @@ public class DownloadStatusUpdater {
     }
 
     /**
-     * Receive notification that progress happened. We send a progress
-     * broadcast, and optionally update the content provider.
+     * Receive notification that progress happened. We deliver the progress to
+     * listeners on the event bus, or broadcast it if there are none, and
+     * optionally update the content provider.
      * 
      * @param longDownloadId
      *            the task of which to update progress
@@ -229,7 +258,23 @@ public class DownloadStatusUpdater {
                 bytesDownloaded = totalBytes;
             }
 
-            if (shouldBroadcastProgress(downloadStatus, longDownloadId, bytesRead, totalBytes)) {
+            final DownloadRecord record = downloadTable.get(longDownloadId);
+            if (null != record) {
+                record.setProgress(bytesDownloaded, totalBytes);
+            }
+
+            final boolean shouldSend = shouldBroadcastProgress(downloadStatus, longDownloadId, bytesRead, totalBytes);
+            if (shouldSend && eventBus.hasListeners()) {
+                // In-process listeners get the progress directly, without building an intent.
+                ProgressDispatch dispatch = downloadStatus.getProgressDispatch();
+                if (dispatch == null && null != record) {
+                    dispatch = new ProgressDispatch(eventBus, longDownloadId, record.getFileLocation());
+                    downloadStatus.setProgressDispatch(dispatch);
+                }
+                if (dispatch != null && dispatch.update(bytesDownloaded, totalBytes)) {
+                    downloadTable.runAfterPendingWrites(dispatch);
+                }
+            } else if (shouldSend) {
                 final Intent notification = getDownloadIntent(longDownloadId, downloadStatus);
                 notification.setAction(DownloadService.ACTION_DOWNLOAD_PROGRESS);
                 notification.putExtra(DownloadService.EXTRA_LONG_ID,
@@ -241,22 +286,13 @@ public class DownloadStatusUpdater {
                     DownloadService.EXTRA_LONG_PROGRESS_TOTAL_SIZE,
                     totalBytes);
 
-                secureBroadcastManager.sendBroadcast(notification);
+                sendBroadcastAfterPendingWrites(notification);
             }
 
             if (mayUpdateDatabase()) {
-                final ContentValues values = new ContentValues();
-                values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_CURRENT_SIZE,
-                    bytesDownloaded);
-                values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_TOTAL_SIZE,
-                    totalBytes);
-                final ContentResolver resolver = context.getContentResolver();
-                resolver.update(downloadQueueContentUri,
-                    values,
-                    DownloadQueueProvider.COLUMN_DOWNLOAD_ID + " = ?",
-                    new String[] {
-                        downloadId
-                    });
+                if (null != record) {
+                    downloadTable.persistProgress(record);
+                }
 
                 // update the cache for the size of the download
                 if (intentValuesAreCached(downloadStatus)) {
@@ -295,70 +331,54 @@ public class DownloadStatusUpdater {
         synchronized (downloadStatus.lock) {
             Log.i(LOG_TAG, "downloadTaskComplete, id = " + downloadId + " status: " + withStatus);
 
-            String newState = null;
-            String oldState = null;
+            DownloadState newState = null;
+            DownloadState oldState = null;
             String action = null;
 
             switch (withStatus) {
                 case SUCCEEDED:
-                    newState = DownloadState.COMPLETE.toString();
+                    newState = DownloadState.COMPLETE;
                     action = DownloadService.ACTION_DOWNLOAD_COMPLETE;
                     break;
                 case PAUSED:
                 case PAUSED_BY_USER:
-                    newState = DownloadState.PAUSED.toString();
+                    newState = DownloadState.PAUSED;
                     action = DownloadService.ACTION_DOWNLOAD_PAUSED;
                     break;
                 case FAILED:
-                    newState = DownloadState.FAILED.toString();
+                    newState = DownloadState.FAILED;
                     action = DownloadService.ACTION_DOWNLOAD_FAILED;
                     break;
             }
 
             // Do not send out notification if the value before and after update is the same
             // since we already sent the broadcast before.
-            final ContentResolver resolver = context.getContentResolver();
-            final Cursor cursor = resolver.query(downloadQueueContentUri,
-                new String[] {
-                    DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS
-                }, DownloadQueueProvider.COLUMN_DOWNLOAD_ID + " = ?",
-                new String[] {
-                    downloadId
-                }, null);
-
-            if (cursor != null) {
-                try {
-                    if (cursor.moveToFirst()) {
-                        oldState = cursor.getString(0);
+            final DownloadRecord record = downloadTable.get(longDownloadId);
+            if (null != record) {
+                // Hold the record so that the check and the update happen together.
+                synchronized (record) {
+                    oldState = record.getStatus();
+
+                    if (newState != null && newState == oldState &&
+                            // Don't detect duplicate state for paused by user, since in
+                            // that scenario the state is set to paused immediately.
+                            CompletionStatus.PAUSED_BY_USER != withStatus) {
+                        Log.v(LOG_TAG, "Duplicate update request download state: " + oldState
+                             + ". Skip update again for downloadId: " + downloadId);
+                        return;
                     }
-                } finally {
-                    cursor.close();
-                }
-            }
 
-            if (newState != null && newState.equals(oldState) &&
-                    // Don't detect duplicate state for paused by user, since in
-                    // that scenario the state is set to paused immediately.
-                    CompletionStatus.PAUSED_BY_USER != withStatus) {
-                Log.v(LOG_TAG, "Duplicate update request download state: " + oldState
-                     + ". Skip update again for downloadId: " + downloadId);
-                return;
-            }
-
-            // Update content provider status.
-            final ContentValues values = new ContentValues();
-            values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS, newState);
-            if (null != completionMessage) {
-                values.put(DownloadQueueProvider.COLUMN_DOWNLOAD_STOP_REASON,
-                    completionMessage);
+                    // Update the status in memory, and behind in the content provider. A cancel leaves
+                    // the state as it is, but its reason is still recorded.
+                    if (null != newState) {
+                        record.setStatus(newState);
+                    }
+                    if (null != newState || null != completionMessage) {
+                        downloadTable.persistStatus(record, completionMessage);
+                    }
+                }
             }
 
-            resolver.update(downloadQueueContentUri, values,
-                DownloadQueueProvider.COLUMN_DOWNLOAD_ID + " = ?",
-                new String[] {
-                    downloadId
-                });
-
             // Broadcast a notification.
             final Intent notification = getDownloadIntent(longDownloadId, downloadStatus);
             notification.putExtra(DownloadService.EXTRA_LONG_ID, longDownloadId);
@@ -385,14 +405,24 @@ public class DownloadStatusUpdater {
                     true);
             }
 
-            secureBroadcastManager.sendBroadcast(notification);
-
             // Start DownloadService.
             final Intent notifyDownloadFinishedIntent = new Intent();
             notifyDownloadFinishedIntent.setAction(action);
             notifyDownloadFinishedIntent.setClass(context,
                 DownloadService.class);
-            context.startService(notifyDownloadFinishedIntent);
+
+            // Clients may read the queue as soon as they hear about the new state, so wait for it to be written.
+            if (null != newState) {
+                notifyStateChangedAfterPendingWrites(longDownloadId, newState, notification);
+            } else {
+                sendBroadcastAfterPendingWrites(notification);
+            }
+            downloadTable.runAfterPendingWrites(new Runnable() {
+                @Override
+                public void run() {
+                    context.startService(notifyDownloadFinishedIntent);
+                }
+            });
 
             // Remove muted download if appropriate (not bothering to check if it was a silent request
             // because this method will only remove if necessary)
@@ -405,6 +435,49 @@ public class DownloadStatusUpdater {
         }
     }
 
+    /**
+     * Send a broadcast once the changes made so far have been written to the content provider, so that
+     * broadcasts are delivered in order and never ahead of the state they announce.
+     *
+     * @param notification
+     *            the broadcast to send
+     */
+    private void sendBroadcastAfterPendingWrites(final Intent notification) {
+        // The cached intent is reused for later notifications, so send a copy.
+        final Intent copy = new Intent(notification);
+        downloadTable.runAfterPendingWrites(new Runnable() {
+            @Override
+            public void run() {
+                secureBroadcastManager.sendBroadcast(copy);
+            }
+        });
+    }
+
+    /**
+     * Broadcast a state change, and deliver it to listeners on the event bus, once the changes made so
+     * far have been written to the content provider.
+     *
+     * @param longDownloadId
+     *            the id
+     * @param state
+     *            the new state
+     * @param notification
+     *            the broadcast to send
+     */
+    private void notifyStateChangedAfterPendingWrites(final long longDownloadId, final DownloadState state,
+                                                      final Intent notification) {
+        // The cached intent is reused for later notifications, so send a copy.
+        final Intent copy = new Intent(notification);
+        downloadTable.runAfterPendingWrites(new Runnable() {
+            @Override
+            public void run() {
+                secureBroadcastManager.sendBroadcast(copy);
+                eventBus.postStateChanged(longDownloadId, copy.getStringExtra(DownloadService.EXTRA_LOCATION),
+                    state, copy);
+            }
+        });
+    }
+
     /**
      * Add all the serialized values to the intent. May use cached version is
      * available.
@@ -467,7 +540,7 @@ public class DownloadStatusUpdater {
     }
 
     /**
-     * Update the cache with values from the content provider for both extras
+     * Update the cache with values from the download record for both extras
      * and categories.
      * 
      * @param downloadId
@@ -476,8 +549,8 @@ public class DownloadStatusUpdater {
      *            the download status
      */
     /* package */ void cacheIntentValues(final long downloadId, final DownloadStatus downloadStatus) {
-        final String id = String.valueOf(downloadId);
-        final BasicDownloadInfo basicDownloadInfo = BasicDownloadInfo.getNewDownloadInfo(context, id);
+        final DownloadRecord record = downloadTable.get(downloadId);
+        final BasicDownloadInfo basicDownloadInfo = null == record ? null : record.toDownloadInfo();
         downloadStatus.setDownloadInfo(basicDownloadInfo);
         if (basicDownloadInfo != null) {
             downloadStatus.setDownloadSize(basicDownloadInfo.getDownloadSize());
@@ -557,6 +630,9 @@ public class DownloadStatusUpdater {
         /** DownloadSpeedMeasurer. */
         private DownloadSpeedMeasurer progressMeasurer;
 
+        /** Delivers progress to the event bus. */
+        private ProgressDispatch progressDispatch;
+
         private final Object lock = new Object();
 
         /**
@@ -622,5 +698,87 @@ public class DownloadStatusUpdater {
         public void setProgressMeasurer(final DownloadSpeedMeasurer progressMeasurer) {
             this.progressMeasurer = progressMeasurer;
         }
+
+        /**
+         * Gets the progress dispatch.
+         * @return the progress dispatch, or null if not created yet
+         */
+        /* package */ ProgressDispatch getProgressDispatch() {
+            return progressDispatch;
+        }
+
+        /**
+         * Sets the progress dispatch.
+         * @param progressDispatch the new progress dispatch
+         */
+        /* package */ void setProgressDispatch(final ProgressDispatch progressDispatch) {
+            this.progressDispatch = progressDispatch;
+        }
+    }
+
+    /**
+     * Delivers the latest progress of one download to the event bus. One instance is reused for the
+     * life of the download, and progress that arrives while a delivery is already queued just replaces
+     * the values it will deliver, so a slow listener never causes a backlog.
+     */
+    /* package */ static final class ProgressDispatch implements Runnable {
+        /** The event bus to deliver to. */
+        private final DownloadEventBus eventBus;
+
+        /** The download id. */
+        private final long downloadId;
+
+        /** The destination file location. */
+        private final String fileLocation;
+
+        /** The latest bytes downloaded, guarded by this. */
+        private long bytesCurrent;
+
+        /** The latest total bytes, guarded by this. */
+        private long bytesTotal;
+
+        /** Whether a delivery is queued, guarded by this. */
+        private boolean scheduled;
+
+        /**
+         * Create a new instance.
+         * @param eventBus the event bus to deliver to
+         * @param downloadId the download id
+         * @param fileLocation the destination file location
+         */
+        /* package */ ProgressDispatch(final DownloadEventBus eventBus, final long downloadId,
+                                       final String fileLocation) {
+            this.eventBus = eventBus;
+            this.downloadId = downloadId;
+            this.fileLocation = fileLocation;
+        }
+
+        /**
+         * Record the latest progress.
+         * @param current the bytes downloaded so far
+         * @param total the total bytes
+         * @return true if the caller must queue this for delivery, false if a delivery is already queued
+         */
+        /* package */ synchronized boolean update(final long current, final long total) {
+            bytesCurrent = current;
+            bytesTotal = total;
+            if (scheduled) {
+                return false;
+            }
+            scheduled = true;
+            return true;
+        }
+
+        @Override
+        public void run() {
+            final long current;
+            final long total;
+            synchronized (this) {
+                current = bytesCurrent;
+                total = bytesTotal;
+                scheduled = false;
+            }
+            eventBus.postProgress(downloadId, fileLocation, current, total);
+        }
     }
 }
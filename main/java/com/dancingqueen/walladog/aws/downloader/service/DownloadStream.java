@@ -0,0 +1,339 @@
+package com.dancingqueen.walladog.aws.downloader.service;
+
+import android.util.Log;
+
+import com.dancingqueen.walladog.aws.downloader.query.DownloadState;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A stream of the bytes of a download as they arrive, so that a consumer such as a progressive image
+ * decoder can start before the download has finished.
+ *
+ * The download task keeps writing to its destination file as usual, and this stream reads that file
+ * behind it, so the file and the consumer see exactly the same bytes without buffering them in memory
+ * or slowing the download down. Reads block until more bytes have been written. The stream ends once
+ * the download completes, and fails with an IOException if the download fails or pauses, or if it has
+ * to restart from before what was already read. A consumer should close the stream if it stops
+ * reading.
+ */
+public final class DownloadStream extends InputStream {
+
+    /** Our logger, for informational and error messages. */
+    private static final String LOG_TAG = DownloadStream.class.getSimpleName();
+
+    /** Message for reading a closed stream. */
+    private static final String MSG_CLOSED = "Download stream is closed.";
+
+    /** Message for a download that restarted before the bytes already read. */
+    private static final String MSG_RESTARTED = "Download restarted before the bytes already read.";
+
+    /** Message for a download that stopped without completing. */
+    private static final String MSG_NOT_COMPLETED = "Download did not complete.";
+
+    /** Message for a download that was already paused when the stream was opened. */
+    private static final String MSG_PAUSED = "Download is paused.";
+
+    /** The open streams by download file location. Lock this before any stream. */
+    private static final Map<String, List<DownloadStream>> openStreams = new HashMap<>();
+
+    /** The number of open streams, so that downloads nobody is streaming can skip the registry. */
+    private static volatile int openStreamCount;
+
+    /** The download file location. */
+    private final String fileLocation;
+
+    /** The download file, once it exists. */
+    private RandomAccessFile file;
+
+    /** The position of the next byte to read. */
+    private long position;
+
+    /** The number of bytes at the start of the file which hold downloaded data. */
+    private long bytesAvailable;
+
+    /** Whether the download has stopped. */
+    private boolean finished;
+
+    /** Why the stream failed, if it did. */
+    private IOException failure;
+
+    /** Whether the consumer closed the stream. */
+    private boolean closed;
+
+    /**
+     * Open a stream of the download to a file location. The download may already be running, or may be
+     * enqueued after the stream is opened. If the latest download to the location has already completed,
+     * the stream reads the downloaded file, so a stream for a new download to a location that was
+     * downloaded before should be opened after the new download is enqueued. If the latest download
+     * failed or is paused, the stream fails. This may read the download queue, so it should be called
+     * off of the main thread.
+     *
+     * @param fileLocation the location the download is being written to.
+     * @return the stream.
+     */
+    public static DownloadStream open(final String fileLocation) {
+        if (null == fileLocation) {
+            throw new IllegalArgumentException("A file location is required.");
+        }
+        final DownloadStream stream = new DownloadStream(fileLocation);
+        final DownloadTable downloadTable = DownloadService.getDownloadTable();
+        if (null != downloadTable) {
+            // Bring the download into memory first, so the check below doesn't read the queue.
+            downloadTable.loadLatestByFileLocation(fileLocation);
+        }
+        synchronized (openStreams) {
+            // A download records its final state before it ends its streams, which needs this lock, so
+            // the stream either sees the final state here or is registered in time to be ended.
+            final DownloadRecord record = null == downloadTable ? null
+                : downloadTable.getLatestByFileLocation(fileLocation);
+            if (null != record && stream.startFrom(record.getStatus())) {
+                return stream;
+            }
+            List<DownloadStream> streams = openStreams.get(fileLocation);
+            if (null == streams) {
+                streams = new ArrayList<>(1);
+                openStreams.put(fileLocation, streams);
+            }
+            streams.add(stream);
+            openStreamCount++;
+        }
+        return stream;
+    }
+
+    /**
+     * Construct a stream.
+     *
+     * @param fileLocation the download file location.
+     */
+    private DownloadStream(final String fileLocation) {
+        this.fileLocation = fileLocation;
+    }
+
+    /**
+     * Start the stream from the state of a download which may already have stopped.
+     *
+     * @param state the download's state.
+     * @return true if the download has stopped, so the stream won't hear from it again.
+     */
+    private synchronized boolean startFrom(final DownloadState state) {
+        if (DownloadState.COMPLETE == state) {
+            final File downloaded = new File(fileLocation);
+            if (!downloaded.isFile()) {
+                fail(new FileNotFoundException("Downloaded file is missing: " + fileLocation));
+                return true;
+            }
+            bytesAvailable = downloaded.length();
+            finished = true;
+            ensureFileOpen();
+            return true;
+        }
+        if (DownloadState.FAILED == state) {
+            fail(new IOException(MSG_NOT_COMPLETED));
+            return true;
+        }
+        if (DownloadState.PAUSED == state) {
+            fail(new IOException(MSG_PAUSED));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Report that a download attempt is starting, with the file's contents valid up to an offset.
+     *
+     * @param fileLocation the download file location.
+     * @param offset the number of bytes at the start of the file that will be kept.
+     */
+    /* package */ static void restarted(final String fileLocation, final long offset) {
+        if (0 == openStreamCount || null == fileLocation) {
+            return;
+        }
+        synchronized (openStreams) {
+            final List<DownloadStream> streams = openStreams.get(fileLocation);
+            if (null != streams) {
+                for (final DownloadStream stream : streams) {
+                    stream.onRestarted(offset);
+                }
+            }
+        }
+    }
+
+    /**
+     * Report that more bytes have been written to a download file.
+     *
+     * @param fileLocation the download file location.
+     * @param bytesWritten the number of bytes at the start of the file which now hold downloaded data.
+     */
+    /* package */ static void written(final String fileLocation, final long bytesWritten) {
+        if (0 == openStreamCount || null == fileLocation) {
+            return;
+        }
+        synchronized (openStreams) {
+            final List<DownloadStream> streams = openStreams.get(fileLocation);
+            if (null != streams) {
+                for (final DownloadStream stream : streams) {
+                    stream.onWritten(bytesWritten);
+                }
+            }
+        }
+    }
+
+    /**
+     * Report that a download stopped, and end its streams.
+     *
+     * @param fileLocation the download file location.
+     * @param completed true if the whole file was downloaded.
+     * @param message a description of why the download stopped, if it did not complete.
+     */
+    /* package */ static void finished(final String fileLocation, final boolean completed, final String message) {
+        if (0 == openStreamCount || null == fileLocation) {
+            return;
+        }
+        synchronized (openStreams) {
+            final List<DownloadStream> streams = openStreams.remove(fileLocation);
+            if (null != streams) {
+                openStreamCount -= streams.size();
+                for (final DownloadStream stream : streams) {
+                    stream.onFinished(completed, message);
+                }
+            }
+        }
+    }
+
+    private synchronized void onRestarted(final long offset) {
+        if (closed || finished) {
+            return;
+        }
+        if (offset < position) {
+            fail(new IOException(MSG_RESTARTED));
+            return;
+        }
+        bytesAvailable = offset;
+        ensureFileOpen();
+        notifyAll();
+    }
+
+    private synchronized void onWritten(final long bytesWritten) {
+        if (closed || finished) {
+            return;
+        }
+        bytesAvailable = bytesWritten;
+        ensureFileOpen();
+        notifyAll();
+    }
+
+    private synchronized void onFinished(final boolean completed, final String message) {
+        if (closed || finished) {
+            return;
+        }
+        if (!completed && null == failure) {
+            failure = new IOException(null == message ? MSG_NOT_COMPLETED : message);
+        }
+        finished = true;
+        notifyAll();
+    }
+
+    /**
+     * Open the download file for reading, if it isn't open yet. The file is opened as soon as the
+     * download writes to it, so that the stream can still be read after the completed file is moved.
+     */
+    private void ensureFileOpen() {
+        if (null != file || 0L == bytesAvailable) {
+            return;
+        }
+        try {
+            file = new RandomAccessFile(fileLocation, "r");
+        } catch (final FileNotFoundException ex) {
+            Log.e(LOG_TAG, "Couldn't open download file for streaming.", ex);
+            fail(ex);
+        }
+    }
+
+    private void fail(final IOException ex) {
+        failure = ex;
+        finished = true;
+        notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] single = new byte[1];
+        final int count = read(single, 0, 1);
+        return count < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(final byte[] buffer, final int offset, final int length) throws IOException {
+        if (offset < 0 || length < 0 || length > buffer.length - offset) {
+            throw new IndexOutOfBoundsException();
+        }
+        try {
+            while (!closed && null == failure && position >= bytesAvailable && !finished) {
+                wait();
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for download bytes.");
+        }
+        if (closed) {
+            throw new IOException(MSG_CLOSED);
+        }
+        if (null != failure) {
+            throw failure;
+        }
+        if (position >= bytesAvailable) {
+            return -1;
+        }
+        if (0 == length) {
+            return 0;
+        }
+        file.seek(position);
+        final int count = file.read(buffer, offset, (int) Math.min(length, bytesAvailable - position));
+        if (count > 0) {
+            position += count;
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        if (closed) {
+            throw new IOException(MSG_CLOSED);
+        }
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0L, bytesAvailable - position));
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (openStreams) {
+            final List<DownloadStream> streams = openStreams.get(fileLocation);
+            if (null != streams && streams.remove(this)) {
+                openStreamCount--;
+                if (streams.isEmpty()) {
+                    openStreams.remove(fileLocation);
+                }
+            }
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+            if (null != file) {
+                file.close();
+                file = null;
+            }
+        }
+    }
+}
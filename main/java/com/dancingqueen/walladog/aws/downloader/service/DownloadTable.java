@@ -0,0 +1,469 @@
+package com.dancingqueen.walladog.aws.downloader.service;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.v4.util.LongSparseArray;
+import android.util.Log;
+
+import com.dancingqueen.walladog.aws.downloader.query.DownloadQueueProvider;
+import com.dancingqueen.walladog.aws.downloader.query.DownloadState;
+import com.dancingqueen.walladog.aws.downloader.query.QueryHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The download service's authoritative in-memory view of the download queue.
+ *
+ * Records are loaded once, either when they are inserted or when the queue is read at start up, and
+ * from then on all reads are served from memory. Changes are applied to the record immediately and
+ * written behind to the {@link DownloadQueueProvider} by a single writer thread, which applies them in
+ * the order they were made. Work that must only happen once the database reflects earlier changes,
+ * such as broadcasting a status change to clients that will read the queue, can be queued behind
+ * those writes with {@link #runAfterPendingWrites(Runnable)}.
+ */
+/* package */ final class DownloadTable {
+
+    /** Our logger, for informational and error messages. */
+    private static final String LOG_TAG = DownloadTable.class.getSimpleName();
+
+    /** The context to use. */
+    private final Context context;
+
+    /** The content URI for the download queue. */
+    private final Uri downloadQueueContentUri;
+
+    /** The records by download id. Access must be synchronized on this object. */
+    private final LongSparseArray<DownloadRecord> records = new LongSparseArray<>();
+
+    /** The single thread which writes changes to the download queue, in order. */
+    private final ExecutorService writer;
+
+    /**
+     * Create a new instance.
+     *
+     * @param context the android context.
+     */
+    /* package */ DownloadTable(final Context context) {
+        this.context = context;
+        downloadQueueContentUri = DownloadQueueProvider.getDownloadContentUri(context);
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(runnable, LOG_TAG + " writer");
+            }
+        });
+    }
+
+    /**
+     * Get the record for a download. If the record isn't already in memory, it is read from the download
+     * queue, which should only happen for downloads this service instance hasn't seen yet.
+     *
+     * @param id the download id.
+     * @return the record, or null if the download doesn't exist.
+     */
+    /* package */ DownloadRecord get(final long id) {
+        synchronized (records) {
+            final DownloadRecord record = records.get(id);
+            if (null != record) {
+                return record;
+            }
+        }
+
+        Log.d(LOG_TAG, String.format("Download id (%d) not in memory; reading it from the queue.", id));
+        final Cursor row = QueryHelper.runQueryForDownloadId(String.valueOf(id), context,
+            DownloadRecord.getColumnNames());
+        if (null == row) {
+            return null;
+        }
+        final DownloadRecord loaded;
+        try {
+            loaded = DownloadRecord.fromCursor(row);
+        } finally {
+            row.close();
+        }
+        return putIfAbsent(loaded);
+    }
+
+    /**
+     * Get the newest download to a file location that is in memory. This only reads memory.
+     *
+     * @param fileLocation the file location.
+     * @return the record with the highest id for the location, or null if none is in memory.
+     */
+    /* package */ DownloadRecord getLatestByFileLocation(final String fileLocation) {
+        synchronized (records) {
+            // Ids only grow, so the last match is the newest.
+            for (int i = records.size() - 1; i >= 0; --i) {
+                final DownloadRecord record = records.valueAt(i);
+                if (fileLocation.equals(record.getFileLocation())) {
+                    return record;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the newest download to a file location, reading it from the download queue if no download to
+     * the location is in memory yet.
+     *
+     * @param fileLocation the file location.
+     * @return the record with the highest id for the location, or null if there is none.
+     */
+    /* package */ DownloadRecord loadLatestByFileLocation(final String fileLocation) {
+        final DownloadRecord record = getLatestByFileLocation(fileLocation);
+        if (null != record) {
+            return record;
+        }
+
+        final Cursor rows = context.getContentResolver().query(downloadQueueContentUri,
+            DownloadRecord.getColumnNames(),
+            DownloadQueueProvider.COLUMN_DOWNLOAD_FILE_LOCATION + " = ?",
+            new String[] {
+                fileLocation
+            },
+            DownloadQueueProvider.COLUMN_DOWNLOAD_ID + " DESC");
+        if (null == rows) {
+            return null;
+        }
+        try {
+            return rows.moveToFirst() ? putIfAbsent(DownloadRecord.fromCursor(rows)) : null;
+        } finally {
+            rows.close();
+        }
+    }
+
+    /**
+     * Read all the downloads that aren't complete or failed into memory. Records already in memory are
+     * kept, since they may be newer than what has been written to the queue.
+     *
+     * @return the records for the active downloads.
+     */
+    /* package */ List<DownloadRecord> loadActive() {
+        final List<DownloadRecord> active = new ArrayList<DownloadRecord>();
+        final Cursor rows = context.getContentResolver().query(downloadQueueContentUri,
+            DownloadRecord.getColumnNames(),
+            DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS + " in (?, ?, ?)",
+            new String[] {
+                DownloadState.NOT_STARTED.getColumnValue(),
+                DownloadState.IN_PROGRESS.getColumnValue(),
+                DownloadState.PAUSED.getColumnValue(),
+            },
+            null);
+        if (null == rows) {
+            return active;
+        }
+        try {
+            while (rows.moveToNext()) {
+                active.add(putIfAbsent(DownloadRecord.fromCursor(rows)));
+            }
+        } finally {
+            rows.close();
+        }
+        return active;
+    }
+
+    /**
+     * Insert a new download. This writes through to the queue, since the id comes from the database,
+     * but only once all earlier changes have been written.
+     *
+     * @param values the values to insert.
+     * @return the new record, or null if the insert failed.
+     */
+    /* package */ DownloadRecord insert(final ContentValues values) {
+        final Uri uri = callOnWriter(new Callable<Uri>() {
+            @Override
+            public Uri call() {
+                return context.getContentResolver().insert(downloadQueueContentUri, values);
+            }
+        });
+        if (null == uri) {
+            Log.e(LOG_TAG, "contentResolver.insert() returned null.");
+            return null;
+        }
+
+        final DownloadRecord record = new DownloadRecord(Long.parseLong(uri.getLastPathSegment()), values);
+        return putIfAbsent(record);
+    }
+
+    /**
+     * Insert a batch of new downloads in a single transaction. Like {@link #insert(ContentValues)}, this
+     * writes through to the queue once all earlier changes have been written.
+     *
+     * @param valuesList the values to insert, one entry per download.
+     * @return the new records in the same order as the values, or null if the batch failed, in which
+     *         case none of the downloads were inserted.
+     */
+    /* package */ List<DownloadRecord> insertAll(final List<ContentValues> valuesList) {
+        final List<DownloadRecord> inserted = new ArrayList<DownloadRecord>(valuesList.size());
+        if (valuesList.isEmpty()) {
+            return inserted;
+        }
+
+        final ArrayList<ContentProviderOperation> operations =
+            new ArrayList<ContentProviderOperation>(valuesList.size());
+        for (final ContentValues values : valuesList) {
+            operations.add(ContentProviderOperation.newInsert(downloadQueueContentUri).withValues(values).build());
+        }
+        final ContentProviderResult[] results = callOnWriter(new Callable<ContentProviderResult[]>() {
+            @Override
+            public ContentProviderResult[] call() throws Exception {
+                return context.getContentResolver().applyBatch(
+                    DownloadQueueProvider.getAuthority(context), operations);
+            }
+        });
+        if (null == results) {
+            Log.e(LOG_TAG, String.format("Failed to insert a batch of %d downloads.", valuesList.size()));
+            return null;
+        }
+
+        for (int i = 0; i < results.length; ++i) {
+            final long id = ContentUris.parseId(results[i].uri);
+            inserted.add(putIfAbsent(new DownloadRecord(id, valuesList.get(i))));
+        }
+        return inserted;
+    }
+
+    /**
+     * Write a download's progress behind.
+     *
+     * @param record the record, already updated in memory.
+     */
+    /* package */ void persistProgress(final DownloadRecord record) {
+        final String downloadId = String.valueOf(record.getId());
+        final Bundle values = new Bundle();
+        synchronized (record) {
+            values.putLong(DownloadQueueProvider.KEY_CURRENT_SIZE, record.getCurrentSize());
+            values.putLong(DownloadQueueProvider.KEY_TOTAL_SIZE, record.getTotalSize());
+        }
+        write(new Runnable() {
+            @Override
+            public void run() {
+                context.getContentResolver().call(downloadQueueContentUri,
+                    DownloadQueueProvider.METHOD_UPDATE_PROGRESS, downloadId, values);
+            }
+        });
+    }
+
+    /**
+     * Write a download's status behind.
+     *
+     * @param record the record, already updated in memory.
+     * @param stopReason the pause/fail reason, or null to leave it unchanged.
+     */
+    /* package */ void persistStatus(final DownloadRecord record, final String stopReason) {
+        final String downloadId = String.valueOf(record.getId());
+        final Bundle values = new Bundle();
+        values.putInt(DownloadQueueProvider.KEY_STATUS, record.getStatus().getValue());
+        if (null != stopReason) {
+            values.putString(DownloadQueueProvider.KEY_STOP_REASON, stopReason);
+        }
+        write(new Runnable() {
+            @Override
+            public void run() {
+                context.getContentResolver().call(downloadQueueContentUri,
+                    DownloadQueueProvider.METHOD_UPDATE_STATUS, downloadId, values);
+            }
+        });
+    }
+
+    /**
+     * Write arbitrary column values for a download behind.
+     *
+     * @param id the download id.
+     * @param values the column values, already applied to the record in memory.
+     */
+    /* package */ void persistValues(final long id, final ContentValues values) {
+        write(new Runnable() {
+            @Override
+            public void run() {
+                context.getContentResolver().update(downloadQueueContentUri, values,
+                    DownloadQueueProvider.COLUMN_DOWNLOAD_ID + " = ?",
+                    new String[] {
+                        String.valueOf(id)
+                    });
+            }
+        });
+    }
+
+    /**
+     * Remove a download from memory and delete its row behind.
+     *
+     * @param id the download id.
+     */
+    /* package */ void delete(final long id) {
+        synchronized (records) {
+            records.remove(id);
+        }
+        write(new Runnable() {
+            @Override
+            public void run() {
+                context.getContentResolver().delete(downloadQueueContentUri,
+                    DownloadQueueProvider.COLUMN_DOWNLOAD_ID + " = ?",
+                    new String[] {
+                        String.valueOf(id)
+                    });
+            }
+        });
+    }
+
+    /**
+     * Remove completed and failed downloads created before the given cutoffs, from memory and from the
+     * queue.
+     *
+     * @param completeCutoff completed downloads created at or before this time are removed.
+     * @param failedCutoff failed downloads created at or before this time are removed.
+     */
+    /* package */ void deleteFinishedBefore(final long completeCutoff, final long failedCutoff) {
+        synchronized (records) {
+            for (int i = records.size() - 1; i >= 0; --i) {
+                final DownloadRecord record = records.valueAt(i);
+                final DownloadState state = record.getStatus();
+                if ((DownloadState.COMPLETE == state && record.getCreateTimestamp() <= completeCutoff)
+                    || (DownloadState.FAILED == state && record.getCreateTimestamp() <= failedCutoff)) {
+                    records.removeAt(i);
+                }
+            }
+        }
+        write(new Runnable() {
+            @Override
+            public void run() {
+                // Compare the timestamp column against precomputed cutoffs so the status/timestamp index
+                // can be used.
+                final int rowDeleted = context.getContentResolver().delete(downloadQueueContentUri,
+                    "( " + DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS + " = ? AND "
+                        + DownloadQueueProvider.COLUMN_DOWNLOAD_CREATE_TIMESTAMP + " <= ? ) OR ( "
+                        + DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS + " = ? AND "
+                        + DownloadQueueProvider.COLUMN_DOWNLOAD_CREATE_TIMESTAMP + " <= ? )",
+                    new String[]{
+                        DownloadState.COMPLETE.getColumnValue(),
+                        String.valueOf(completeCutoff),
+                        DownloadState.FAILED.getColumnValue(),
+                        String.valueOf(failedCutoff)
+                    });
+                Log.d(LOG_TAG, rowDeleted + " row(s) deleted during download queue cleanup.");
+            }
+        });
+    }
+
+    /**
+     * Run a task on the writer thread once all the changes made so far have been written.
+     *
+     * @param task the task to run.
+     */
+    /* package */ void runAfterPendingWrites(final Runnable task) {
+        write(task);
+    }
+
+    /**
+     * Block until all the changes made so far have been written.
+     */
+    /* package */ void flush() {
+        try {
+            writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (final RejectedExecutionException ex) {
+            // Already shut down, so everything has been written.
+            return;
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException ex) {
+            Log.e(LOG_TAG, "Unexpected failure flushing the download queue.", ex.getCause());
+        }
+    }
+
+    /**
+     * Stop accepting work on the writer thread. Changes already queued are still written; any changes
+     * made after this are written on the calling thread.
+     */
+    /* package */ void shutdown() {
+        writer.shutdown();
+    }
+
+    /**
+     * Run a task on the writer thread, after all earlier changes have been written, and wait for its
+     * result. If the writer has been shut down, the task is run on the calling thread.
+     *
+     * @param task the task to run.
+     * @param <T> the type of the result.
+     * @return the result of the task, or null if it failed.
+     */
+    private <T> T callOnWriter(final Callable<T> task) {
+        try {
+            final Future<T> receipt = writer.submit(task);
+            return receipt.get();
+        } catch (final RejectedExecutionException ex) {
+            // Already shut down, so everything has been written.
+            try {
+                return task.call();
+            } catch (final Exception callEx) {
+                Log.e(LOG_TAG, "Failed to write to the download queue.", callEx);
+                return null;
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            Log.e(LOG_TAG, "Interrupted while writing to the download queue.", ex);
+            return null;
+        } catch (final ExecutionException ex) {
+            Log.e(LOG_TAG, "Failed to write to the download queue.", ex.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Queue a write, or run it inline if the writer has been shut down.
+     *
+     * @param write the write to perform.
+     */
+    private void write(final Runnable write) {
+        final Runnable guarded = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write.run();
+                } catch (final RuntimeException ex) {
+                    Log.e(LOG_TAG, "Failed to write to the download queue.", ex);
+                }
+            }
+        };
+        try {
+            writer.execute(guarded);
+        } catch (final RejectedExecutionException ex) {
+            guarded.run();
+        }
+    }
+
+    /**
+     * Add a record unless one with the same id is already in memory.
+     *
+     * @param record the record to add.
+     * @return the record now in memory for its id.
+     */
+    private DownloadRecord putIfAbsent(final DownloadRecord record) {
+        synchronized (records) {
+            final DownloadRecord existing = records.get(record.getId());
+            if (null != existing) {
+                return existing;
+            }
+            records.put(record.getId(), record);
+            return record;
+        }
+    }
+}
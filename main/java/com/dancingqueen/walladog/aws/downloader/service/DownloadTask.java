@@ -11,8 +11,10 @@ import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.concurrent.Callable;
+import java.util.zip.GZIPInputStream;
 
 /**
  * A class to represent a single file to download.
@@ -51,6 +53,21 @@ public final class DownloadTask implements Callable<Boolean> {
     public static final String MSG_UNEXPECTED_INTERRUPTION =
         "Download task was interrupted unexpectedly.";
 
+    /** Prefix for a host which has been failing. */
+    public static final String MSG_HOST_UNAVAILABLE = "Too many recent failures from host: ";
+
+    /** Message denoting a response which ended before its length. */
+    public static final String MSG_TRUNCATED = "Download ended before its expected length.";
+
+    /** Message denoting a download which doesn't match its ETag. */
+    public static final String MSG_DIGEST_MISMATCH = "Downloaded content does not match its ETag.";
+
+    /** Message denoting a byte range request which was answered with the whole file. */
+    public static final String MSG_RANGE_IGNORED = "Server did not return the requested byte range.";
+
+    /** Prefix for a content encoding we can't decode. */
+    public static final String MSG_UNSUPPORTED_ENCODING = "Unsupported content encoding: ";
+
     /** Prefix for HTTP status codes. */
     public static final String MSG_PREFIX_HTTP = "Unsuccessful response, HTTP status code: ";
 
@@ -63,21 +80,39 @@ public final class DownloadTask implements Callable<Boolean> {
     /** The Content-Type header. */
     private static final String HEADER_CONTENT_TYPE = "Content-Type";
 
+    /** The Content-Range header. */
+    private static final String HEADER_CONTENT_RANGE = "Content-Range";
+
+    /** The Content-Encoding header. */
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+
+    /** The Accept-Encoding header. */
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+
+    /** The gzip content encoding. */
+    private static final String ENCODING_GZIP = "gzip";
+
+    /** The identity content encoding, for no encoding. */
+    private static final String ENCODING_IDENTITY = "identity";
+
     /** The Range header. */
     private static final String HEADER_RANGE = "Range";
 
     /** The If-Range header. */
     private static final String IF_RANGE_HEADER = "If-Range";
 
+    /** The Retry-After header. */
+    private static final String HEADER_RETRY_AFTER = "Retry-After";
+
     /** The format for a range header. */
     private static final String RANGE_FORMAT = "bytes=%d-";
 
+    /** The format for a range header with an end. */
+    private static final String BOUNDED_RANGE_FORMAT = "bytes=%d-%d";
+
     /** Default buffer size. */
     private static final int BUFFER_SIZE = 32 * 1024;
 
-    /** The number of retries for IOExceptions. */
-    private static final int NUM_RETRIES = 3;
-
     /** The ID we're downloading for. */
     private final long downloadId;
 
@@ -87,6 +122,12 @@ public final class DownloadTask implements Callable<Boolean> {
     /** The destination to download to. */
     private final String destination;
 
+    /** The offset of the first byte of the range to download, or -1 to download the whole file. */
+    private final long rangeFirst;
+
+    /** The offset of the last byte of the range to download, or -1 to download the whole file. */
+    private final long rangeLast;
+
     /** The eTag of this download. */
     private String downloadTag;
 
@@ -99,6 +140,9 @@ public final class DownloadTask implements Callable<Boolean> {
     /** The amount read so far. */
     private long cumulativeBytesRead;
 
+    /** The digest of what has been written so far, if the download can be verified. */
+    private DownloadDigest digest;
+
     /** Our download listener. */
     private final WeakReference<DownloadListener> listener;
 
@@ -120,6 +164,21 @@ public final class DownloadTask implements Callable<Boolean> {
     /** An object to help us know if the network is up. */
     private final NetworkStatusProvider networkStatusProvider;
 
+    /** Shares bandwidth between downloads, if set. */
+    private final BandwidthScheduler bandwidthScheduler;
+
+    /** The traffic class of this download, for the bandwidth scheduler. */
+    private final BandwidthScheduler.TrafficClass trafficClass;
+
+    /** Holds back downloads from failing hosts, if set. */
+    private final HostCircuitBreaker circuitBreaker;
+
+    /** The number of attempts which have failed in a row. */
+    private int attempt;
+
+    /** How long to wait before the next attempt, or {@link RetryPolicy#NO_RETRY} to finish instead. */
+    private long retryDelay;
+
     /** Whether this was auto-restarted. */
     private final boolean autoRestart;
 
@@ -139,6 +198,21 @@ public final class DownloadTask implements Callable<Boolean> {
         downloadId = builder.id;
         uri = builder.downloadUri;
         destination = builder.dest;
+        long first = -1L;
+        long last = -1L;
+        if (null != builder.byteRange) {
+            try {
+                final int dash = builder.byteRange.indexOf('-');
+                first = Long.parseLong(builder.byteRange.substring(0, dash));
+                last = Long.parseLong(builder.byteRange.substring(dash + 1));
+            } catch (final RuntimeException ex) {
+                Log.e(LOG_TAG, "Error trying to figure out the byte range to download: " + builder.byteRange, ex);
+                first = -1L;
+                last = -1L;
+            }
+        }
+        rangeFirst = first;
+        rangeLast = last;
         listener = new WeakReference<>(builder.listener);
         provider = new WeakReference<>(builder.provider);
         downloadTag = builder.eTag;
@@ -164,6 +238,10 @@ public final class DownloadTask implements Callable<Boolean> {
         isSilent = DownloadFlags.isSilentFlagSet(builder.downloadFlags);
         isMobileNetworkProhibited = DownloadFlags.isCellNetworkProhibited(builder.downloadFlags);
         networkStatusProvider = builder.networkStatusProvider;
+        bandwidthScheduler = builder.bandwidthScheduler;
+        circuitBreaker = builder.circuitBreaker;
+        retryDelay = RetryPolicy.NO_RETRY;
+        trafficClass = BandwidthScheduler.TrafficClass.fromDownloadFlags(builder.downloadFlags);
         autoRestart = builder.autoRestart;
         downloadErrorCode = DownloadError.NO_ERROR.getValue();
         cancelReason = TaskCancelReason.UNEXPECTED;
@@ -176,17 +254,46 @@ public final class DownloadTask implements Callable<Boolean> {
      */
     @Override
     public Boolean call() {
+        CompletionStatus result = CompletionStatus.FAILED;
+        boolean isRetrying = false;
+        try {
+            result = runAttempt();
+
+            // Run this task again later rather than finish it, unless that's not possible. This happens
+            // once the attempt has released everything, since the retry may start right away.
+            if (RetryPolicy.NO_RETRY != retryDelay && !Thread.currentThread().isInterrupted()
+                && scheduleRetry(retryDelay)) {
+                isRetrying = true;
+                return false;
+            }
+
+            finish(result, failureMessage, cumulativeBytesRead, totalBytes, autoRestart, downloadErrorCode);
+            return CompletionStatus.SUCCEEDED == result;
+        } finally {
+            // End any streams of this download, however the task ends. This happens after the final state
+            // is recorded, so that a stream opened meanwhile either sees that state or is ended here.
+            if (!isRetrying) {
+                DownloadStream.finished(destination, CompletionStatus.SUCCEEDED == result, failureMessage);
+            }
+        }
+    }
+
+    /**
+     * Make one attempt at the download.
+     *
+     * @return the completion status, which is only used if the attempt isn't retried.
+     */
+    private CompletionStatus runAttempt() {
         final long start = System.nanoTime();
         CompletionStatus result = CompletionStatus.FAILED;
+        retryDelay = RetryPolicy.NO_RETRY;
         try {
             Log.d(LOG_TAG, "Download Task started for download id = " + downloadId);
             failureMessage = MSG_OKAY;
             downloadErrorCode = DownloadError.NO_ERROR.getValue();
 
             if (!ensureFolderExists(destination)) {
-                finish(CompletionStatus.FAILED, failureMessage, cumulativeBytesRead, totalBytes, autoRestart,
-                    downloadErrorCode);
-                return false;
+                return result;
             }
 
             if (null != downloadTag && 0L < downloadOffset) {
@@ -194,11 +301,14 @@ public final class DownloadTask implements Callable<Boolean> {
                     // if we don't have the partial file any more, we have to start again
                     downloadOffset = 0L;
                 }
+            } else if (isRangeRequest()) {
+                // The server returns whatever part of a range is asked for, so without an ETag to make
+                // sure the rest is of the same version, start the range again.
+                downloadOffset = 0L;
             }
 
             result = readFromUri(destination);
-            finish(result, failureMessage, cumulativeBytesRead, totalBytes, autoRestart, downloadErrorCode);
-            return CompletionStatus.SUCCEEDED == result;
+            return result;
         } finally {
             // Make sure we release wifi lock (if any)
             networkStatusProvider.releaseWifiLock(downloadId);
@@ -320,7 +430,8 @@ public final class DownloadTask implements Callable<Boolean> {
      * @return true if we read the entire stream.
      */
     /* package */ CompletionStatus readFromUri(final String dest) {
-        cumulativeBytesRead = 0L;
+        // Count what was kept from earlier attempts, so that a failure before reading keeps it too.
+        cumulativeBytesRead = downloadOffset;
         if (null == uri) {
             failureMessage = MSG_BAD_URI;
             downloadErrorCode = DownloadError.BAD_URI.getValue();
@@ -352,136 +463,368 @@ public final class DownloadTask implements Callable<Boolean> {
             }
         }
 
+        // Hold back if the host has been failing, rather than spend radio time on another failure.
+        final String host = getHost();
+        if (null != circuitBreaker && null != host) {
+            final long blockedTime = circuitBreaker.getBlockedTime(host);
+            if (blockedTime > 0L) {
+                Log.i(LOG_TAG, String.format("Host(%s) has been failing, holding back download id(%d).",
+                    host, downloadId));
+                failureMessage = MSG_HOST_UNAVAILABLE + host;
+                downloadErrorCode = DownloadError.HOST_UNAVAILABLE.getValue();
+                // Try again once the circuit lets a trial through. This is paused if the retry can't be
+                // scheduled, and then only a network change restarts it.
+                retryDelay = blockedTime;
+                return CompletionStatus.PAUSED;
+            }
+        }
+
         // Acquire a wifi lock if required.
         networkStatusProvider.acquireWifiLock(downloadId);
-        int retryAttempt = 0;
-        while (retryAttempt < NUM_RETRIES) {
-            start();
-            InputStream stream = null;
-            RandomAccessFile output = null;
-            try {
-                output = new RandomAccessFile(dest, "rw");
-
-                final URL url = new URL(uri);
-                final HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
-                setupRequest(httpURLConnection);
-
-                // Open connection and send headers.
-                stream = httpURLConnection.getInputStream();
-
-                // check response
-                final int responseCode = httpURLConnection.getResponseCode();
-
-                if (!gotSuccessResponse(responseCode)) {
-                    Log.w(LOG_TAG, "Did not get a 2xx response code back from request.");
-                    // Could use getErrorStream to read back error info.
-                    failureMessage = MSG_PREFIX_HTTP + responseCode;
-                    // get error code string
+        start();
+        InputStream stream = null;
+        RandomAccessFile output = null;
+        boolean transferring = false;
+        boolean responseReceived = false;
+        boolean encoded = false;
+        final long attemptOffset = downloadOffset;
+        try {
+            output = new RandomAccessFile(dest, "rw");
+
+            final URL url = new URL(uri);
+            final HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
+            setupRequest(httpURLConnection);
+
+            // Open connection, send headers and read the response headers.
+            final int responseCode = httpURLConnection.getResponseCode();
+            responseReceived = true;
+
+            if (!gotSuccessResponse(responseCode)) {
+                Log.w(LOG_TAG, "Did not get a 2xx response code back from request.");
+                safeClose(httpURLConnection.getErrorStream());
+                failureMessage = MSG_PREFIX_HTTP + responseCode;
+                // get error code string
+                downloadErrorCode = DownloadError.HTTP_ERROR.getValue();
+                return retryOrGiveUp(RetryPolicy.classifyResponse(responseCode), host,
+                    RetryPolicy.parseRetryAfter(httpURLConnection.getHeaderField(HEADER_RETRY_AFTER)));
+            }
+            final CountingInputStream wireStream = new CountingInputStream(httpURLConnection.getInputStream());
+            stream = wireStream;
+            final String contentEncoding = getContentEncoding(httpURLConnection);
+            if (null != contentEncoding) {
+                if (!ENCODING_GZIP.equalsIgnoreCase(contentEncoding)) {
+                    Log.e(LOG_TAG, "Got a content encoding that wasn't asked for: " + contentEncoding);
+                    failureMessage = MSG_UNSUPPORTED_ENCODING + contentEncoding;
                     downloadErrorCode = DownloadError.HTTP_ERROR.getValue();
                     return CompletionStatus.FAILED;
                 }
+                // Decode as we go, so that the file holds the content itself.
+                stream = new GZIPInputStream(wireStream, BUFFER_SIZE);
+                encoded = true;
+            }
+            // Compressed responses don't give the decoded length, so estimate the total from the wire.
+            final long wireLength = null == contentEncoding ? -1L : getContentLength(httpURLConnection);
+
+            final boolean partial = gotValidRangeResponse(responseCode);
+            if (partial && encoded) {
+                // The range is of the encoded content, which can't continue the decoded partial file, so
+                // start again. The next attempt doesn't ask for a range.
+                Log.w(LOG_TAG, "Got an encoded range response, which can't be resumed from.");
+                failureMessage = MSG_UNSUPPORTED_ENCODING + contentEncoding;
+                downloadErrorCode = DownloadError.HTTP_ERROR.getValue();
+                restartFromBeginning();
+                return retryOrGiveUp(RetryPolicy.FailureType.OTHER, host, RetryPolicy.NO_RETRY);
+            }
+            if (!partial && isRangeRequest()) {
+                // The whole file isn't what was asked for, and a resumed range whose file changed can't
+                // be continued.
+                Log.w(LOG_TAG, String.format("Download id(%d) asked for bytes %d-%d but got HTTP status %d.",
+                    downloadId, rangeFirst, rangeLast, responseCode));
+                failureMessage = MSG_RANGE_IGNORED;
+                downloadErrorCode = DownloadError.HTTP_ERROR.getValue();
+                restartFromBeginning();
+                return CompletionStatus.FAILED;
+            }
+            if (!partial) {
+                // we didn't get a 206, but instead a 200 indicating to re-read the entire entity
+                Log.w(LOG_TAG, "Did not get a 206 response code back from request.");
+                downloadOffset = 0L;
+            }
 
-                if (!gotValidRangeResponse(responseCode)) {
-                    // we didn't get a 206, but instead a 200 indicating to re-read the entire entity
-                    Log.w(LOG_TAG, "Did not get a 206 response code back from request.");
-                    downloadOffset = 0L;
-                }
-
-                // if we don't currently have an eTag for this download, try to set from the response headers.
-                if (downloadTag == null) {
-                    downloadTag = httpURLConnection.getHeaderField(Downloader.HEADER_ETAG);
-                }
-
-                // update the mime type and other fields in the content provider whether the actual
-                // read is vetoed or not
-                updateProviderFromHeaders(httpURLConnection);
+            // if we don't currently have an eTag for this download, or the entity is being re-read and may
+            // have changed, set it from the response headers.
+            final String responseTag = httpURLConnection.getHeaderField(Downloader.HEADER_ETAG);
+            if (downloadTag == null || !partial) {
+                downloadTag = responseTag;
+            }
+            prepareDigest(responseTag, dest);
+            if (encoded) {
+                // The ETag is the hash of the content as sent, so hash it before it is decoded.
+                wireStream.setDigest(digest);
+            }
 
-                // Give the download policy a chance to veto based on the URI and file type and size
-                if (totalBytes == 0L) {
-                    totalBytes = getTotalLengthFromHeader(httpURLConnection);
-                }
-                final String mt = getMimeType(httpURLConnection);
-                if (null != dpp) {
-                    final DownloadPolicyProvider.Response policyResponse =
-                        dpp.mayReadStream(forUser, uri, totalBytes, mt);
-                    if (policyResponse != null) {
-                        final boolean policyResponseResponse = policyResponse.getResponse();
-                        if (!policyResponseResponse) {
-                            // We are aborting the request, since the finally block closes the stream,
-                            // there is nothing additional to do here.
-                            failureMessage = MSG_VETO + policyResponse.getReason();
-                            downloadErrorCode = DownloadError.POLICY_ERROR.getValue();
-                            if (policyResponse.getShouldPause()) {
-                                return CompletionStatus.PAUSED;
-                            }
-                            return CompletionStatus.FAILED;
+            // update the mime type and other fields in the content provider whether the actual
+            // read is vetoed or not
+            updateProviderFromHeaders(httpURLConnection);
+
+            // Give the download policy a chance to veto based on the URI and file type and size
+            final long headerLength = getTotalLengthFromHeader(httpURLConnection);
+            if (isRangeRequest()) {
+                // The file holds only the range, and the header gives the length of the whole file.
+                totalBytes = rangeLast - rangeFirst + 1;
+            } else if (headerLength >= 0L || !partial || totalBytes == 0L) {
+                totalBytes = headerLength;
+            }
+            final String mt = getMimeType(httpURLConnection);
+            if (null != dpp) {
+                final DownloadPolicyProvider.Response policyResponse =
+                    dpp.mayReadStream(forUser, uri, totalBytes, mt);
+                if (policyResponse != null) {
+                    final boolean policyResponseResponse = policyResponse.getResponse();
+                    if (!policyResponseResponse) {
+                        // We are aborting the request, since the finally block closes the stream,
+                        // there is nothing additional to do here.
+                        failureMessage = MSG_VETO + policyResponse.getReason();
+                        downloadErrorCode = DownloadError.POLICY_ERROR.getValue();
+                        if (policyResponse.getShouldPause()) {
+                            return CompletionStatus.PAUSED;
                         }
-                    } else {
-                        Log.w(LOG_TAG, "DownloadPolicyProvider response was null!");
+                        return CompletionStatus.FAILED;
                     }
+                } else {
+                    Log.w(LOG_TAG, "DownloadPolicyProvider response was null!");
                 }
+            }
+
+            output.seek(downloadOffset);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            cumulativeBytesRead = downloadOffset;
+            DownloadStream.restarted(destination, downloadOffset);
+            int bytesRead;
+            long wireBytesCounted = 0L;
 
-                output.seek(downloadOffset);
-                final byte[] buffer = new byte[BUFFER_SIZE];
-                cumulativeBytesRead = downloadOffset;
-                int bytesRead;
-                boolean interrupted = false;
+            if (null != bandwidthScheduler) {
+                bandwidthScheduler.transferStarted(trafficClass);
+                transferring = true;
+            }
+            while ((bytesRead = stream.read(buffer)) > 0) {
+                output.write(buffer, 0, bytesRead);
+                cumulativeBytesRead += bytesRead;
+                if (null != digest && !encoded) {
+                    digest.update(buffer, 0, bytesRead);
+                }
+                DownloadStream.written(destination, cumulativeBytesRead);
 
-                while ((bytesRead = stream.read(buffer)) > 0) {
-                    cumulativeBytesRead += bytesRead;
-                    output.write(buffer, 0, bytesRead);
+                final long wireBytesRead = wireStream.getCount();
+                if (null != bandwidthScheduler) {
+                    // Wait here if this download's traffic class is over its share of the bandwidth.
+                    bandwidthScheduler.acquire(trafficClass, (int) (wireBytesRead - wireBytesCounted));
+                }
+                wireBytesCounted = wireBytesRead;
 
-                    if (!isSilent) {
+                if (!isSilent) {
+                    if (wireLength > 0L && wireBytesRead > 0L) {
+                        // Scale the decoded bytes by the progress over the wire.
+                        sendProgress(cumulativeBytesRead,
+                            Math.max(cumulativeBytesRead, cumulativeBytesRead * wireLength / wireBytesRead));
+                    } else {
                         sendProgress(cumulativeBytesRead, totalBytes);
                     }
+                }
 
-                    if (Thread.interrupted()) {
-                        Log.i(LOG_TAG, "Download task is interrupted");
-                        switch (getCancelReason()) {
-                            case UNEXPECTED:
-                                Log.w(LOG_TAG, "Unexpected interruption of download task.");
-                                failureMessage = MSG_UNEXPECTED_INTERRUPTION;
-                                downloadErrorCode = DownloadError.DOWNLOAD_INTERRUPTED.getValue();
-                                retryAttempt = NUM_RETRIES;
-                                break;
-                            case PAUSED_BY_USER:
-                                // Set the failure message since this gets passed back as a completion description.
-                                failureMessage = MSG_PAUSED_DOWNLOAD;
-                                downloadErrorCode = DownloadError.USER_PAUSED.getValue();
-                                return CompletionStatus.PAUSED_BY_USER;
-                            case CANCELED_BY_USER:
-                                failureMessage = MSG_CANCELED_DOWNLOAD;
-                                downloadErrorCode = DownloadError.USER_CANCELED.getValue();
-                                interrupted = true;
-                                retryAttempt = Integer.MAX_VALUE;
-                                break;
-                        }
-                        break;
-                    }
+                if (Thread.interrupted()) {
+                    return getInterruptedStatus();
                 }
+            }
 
-                if (!interrupted) {
-                    return CompletionStatus.SUCCEEDED;
+            if (null != contentEncoding) {
+                // The gzip trailer has checked the length, which is only now known.
+                totalBytes = cumulativeBytesRead;
+            }
+            if (totalBytes >= 0L && cumulativeBytesRead != totalBytes) {
+                // The connection closed early, or the length was wrong, without an exception.
+                Log.w(LOG_TAG, String.format("Download id(%d) read %d bytes, expected %d.",
+                    downloadId, cumulativeBytesRead, totalBytes));
+                failureMessage = MSG_TRUNCATED;
+                downloadErrorCode = DownloadError.INTEGRITY_ERROR.getValue();
+                if (cumulativeBytesRead > totalBytes || encoded) {
+                    // A decoded file can't be resumed with a range of the encoded content.
+                    restartFromBeginning();
+                } else {
+                    downloadOffset = cumulativeBytesRead;
                 }
-            } catch (final IOException ex) {
-                Log.e(LOG_TAG, "Caught IO exception while downloading", ex);
-                failureMessage = ex.getClass().getSimpleName() + ": " + ex.getMessage();
-                downloadErrorCode = DownloadError.IO_EXCEPTION.getValue();
-                retryAttempt++;
+                return retryOrGiveUp(RetryPolicy.FailureType.CONNECTION_RESET, host, RetryPolicy.NO_RETRY);
+            }
+            // Drop anything left past the end by an earlier, longer attempt.
+            output.setLength(cumulativeBytesRead);
+            if (null != digest && !digest.verify()) {
+                Log.e(LOG_TAG, String.format("Download id(%d) does not match its ETag(%s).", downloadId, responseTag));
+                failureMessage = MSG_DIGEST_MISMATCH;
+                downloadErrorCode = DownloadError.INTEGRITY_ERROR.getValue();
+                restartFromBeginning();
+                retryOrGiveUp(RetryPolicy.FailureType.OTHER, host, RetryPolicy.NO_RETRY);
+                // None of the file can be trusted, so don't leave it to be resumed.
+                return CompletionStatus.FAILED;
+            }
+
+            attempt = 0;
+            if (null != circuitBreaker && null != host) {
+                circuitBreaker.recordSuccess(host);
+            }
+            return CompletionStatus.SUCCEEDED;
+        } catch (final IOException ex) {
+            if (RetryPolicy.isInterruption(ex) || Thread.interrupted()) {
+                return getInterruptedStatus();
+            }
+            Log.e(LOG_TAG, "Caught IO exception while downloading", ex);
+            failureMessage = ex.getClass().getSimpleName() + ": " + ex.getMessage();
+            downloadErrorCode = DownloadError.IO_EXCEPTION.getValue();
+            if (cumulativeBytesRead > attemptOffset) {
+                // This attempt got somewhere, so only count failures in a row from here.
+                attempt = 0;
+            }
+            if (encoded) {
+                // A decoded file can't be resumed with a range of the encoded content.
+                restartFromBeginning();
+            } else {
                 downloadOffset = cumulativeBytesRead;
-            } finally {
-                safeClose(stream);
-                safeClose(output);
             }
+            return retryOrGiveUp(RetryPolicy.classify(ex, responseReceived), host, RetryPolicy.NO_RETRY);
+        } finally {
+            if (transferring) {
+                bandwidthScheduler.transferStopped(trafficClass);
+            }
+            safeClose(stream);
+            safeClose(output);
+        }
+    }
 
-            // if we succeeded in getting any of the file, report a pause so that it can be resumed.
-            if (haveDownloadProgress() && retryAttempt == NUM_RETRIES) {
-                return CompletionStatus.PAUSED;
+    /**
+     * Set up the digest to verify this attempt against the response's ETag. A retry of this task that
+     * resumes where the last attempt stopped continues the same digest, and otherwise the part of the
+     * file being kept is hashed again.
+     *
+     * @param responseTag the response's ETag, may be null.
+     * @param dest the download file.
+     */
+    private void prepareDigest(final String responseTag, final String dest) {
+        if (isRangeRequest()) {
+            // The ETag is the hash of the whole file, which a range of it can't be checked against.
+            digest = null;
+            return;
+        }
+        if (null == digest || !digest.isFor(responseTag)) {
+            digest = DownloadDigest.forETag(responseTag);
+        }
+        if (null != digest && !digest.seekTo(dest, downloadOffset)) {
+            Log.w(LOG_TAG, String.format("Couldn't hash %d bytes of partial file, download id(%d) won't be "
+                + "verified.", downloadOffset, downloadId));
+            digest = null;
+        }
+    }
+
+    /**
+     * @return true if this task downloads a range of the file rather than the whole file.
+     */
+    private boolean isRangeRequest() {
+        return rangeFirst >= 0L;
+    }
+
+    /**
+     * Make the next attempt download the whole file, or the whole range, again.
+     */
+    private void restartFromBeginning() {
+        downloadOffset = 0L;
+        cumulativeBytesRead = 0L;
+        digest = null;
+    }
+
+    /**
+     * Count a failed attempt, and decide whether to retry it.
+     *
+     * @param failureType the kind of failure.
+     * @param host the host the attempt was made to.
+     * @param retryAfter how long the server asked us to wait, or {@link RetryPolicy#NO_RETRY}.
+     * @return the status to finish with if the download is not retried.
+     */
+    private CompletionStatus retryOrGiveUp(final RetryPolicy.FailureType failureType, final String host,
+                                           final long retryAfter) {
+        attempt++;
+        if (null != circuitBreaker && null != host && failureType.isHostFailure()) {
+            final long openTime = circuitBreaker.recordFailure(host);
+            if (openTime > 0L) {
+                Log.w(LOG_TAG, String.format("Holding back downloads from host(%s) for %d ms.", host, openTime));
             }
         }
+        if (RetryPolicy.shouldRetry(failureType, attempt)) {
+            retryDelay = RetryPolicy.getRetryDelay(attempt, retryAfter);
+            Log.i(LOG_TAG, String.format("Download id(%d) failed with %s on attempt %d, retrying in %d ms.",
+                downloadId, failureType, attempt, retryDelay));
+        }
+        // if we succeeded in getting any of the file, report a pause so that it can be resumed.
+        if (failureType.isRetryable() && haveDownloadProgress()) {
+            return CompletionStatus.PAUSED;
+        }
         return CompletionStatus.FAILED;
     }
 
+    /**
+     * Decide how to finish after the task was interrupted, based on why it was interrupted.
+     *
+     * @return the completion status.
+     */
+    private CompletionStatus getInterruptedStatus() {
+        Log.i(LOG_TAG, "Download task is interrupted");
+        switch (getCancelReason()) {
+            case PAUSED_BY_USER:
+                // Set the failure message since this gets passed back as a completion description.
+                failureMessage = MSG_PAUSED_DOWNLOAD;
+                downloadErrorCode = DownloadError.USER_PAUSED.getValue();
+                return CompletionStatus.PAUSED_BY_USER;
+            case CANCELED_BY_USER:
+                failureMessage = MSG_CANCELED_DOWNLOAD;
+                downloadErrorCode = DownloadError.USER_CANCELED.getValue();
+                return CompletionStatus.FAILED;
+            default:
+                Log.w(LOG_TAG, "Unexpected interruption of download task.");
+                failureMessage = MSG_UNEXPECTED_INTERRUPTION;
+                downloadErrorCode = DownloadError.DOWNLOAD_INTERRUPTED.getValue();
+                return haveDownloadProgress() ? CompletionStatus.PAUSED : CompletionStatus.FAILED;
+        }
+    }
+
+    /**
+     * Finish a task which was stopped while it was waiting to retry, and so isn't running to notice.
+     */
+    /* package */ void finishStopped() {
+        final CompletionStatus result = getInterruptedStatus();
+        try {
+            finish(result, failureMessage, cumulativeBytesRead, totalBytes, autoRestart, downloadErrorCode);
+        } finally {
+            DownloadStream.finished(destination, false, failureMessage);
+        }
+    }
+
+    /**
+     * End the streams of this download once it has been stopped, since a task cancelled before it
+     * starts running never ends them itself. A running task ends them again, which has no effect.
+     */
+    /* package */ void endStreams() {
+        DownloadStream.finished(destination, false, TaskCancelReason.PAUSED_BY_USER == getCancelReason()
+            ? MSG_PAUSED_DOWNLOAD : MSG_CANCELED_DOWNLOAD);
+    }
+
+    /**
+     * @return the host this task downloads from, or null if the URI isn't valid.
+     */
+    private String getHost() {
+        try {
+            return new URL(uri).getHost();
+        } catch (final MalformedURLException ex) {
+            return null;
+        }
+    }
+
     /** Setup the web request. */
     private void setupRequest(final HttpURLConnection httpURLConnection) {
         // Set default method to get
@@ -490,19 +833,47 @@ public final class DownloadTask implements Callable<Boolean> {
         //httpURLConnection.setConnectTimeout(15000 /* milliseconds */);
         //httpURLConnection.setDoInput(true);
 
-        if (null != downloadTag && 0L < downloadOffset) {
+        if (isRangeRequest()) {
+            httpURLConnection.setRequestProperty(HEADER_RANGE,
+                String.format(BOUNDED_RANGE_FORMAT, rangeFirst + downloadOffset, rangeLast));
+            if (0L < downloadOffset) {
+                httpURLConnection.setRequestProperty(IF_RANGE_HEADER, downloadTag);
+            }
+            // A range of encoded content can't be decoded on its own.
+            httpURLConnection.setRequestProperty(HEADER_ACCEPT_ENCODING, ENCODING_IDENTITY);
+        } else if (null != downloadTag && 0L < downloadOffset) {
             httpURLConnection.setRequestProperty(HEADER_RANGE, String.format(RANGE_FORMAT, downloadOffset));
             httpURLConnection.setRequestProperty(IF_RANGE_HEADER, downloadTag);
+            // The partial file is decoded, so a range of the encoded content wouldn't continue it.
+            httpURLConnection.setRequestProperty(HEADER_ACCEPT_ENCODING, ENCODING_IDENTITY);
+        } else {
+            // Ask for compression ourselves, which also stops the connection decoding it for us, so
+            // that we can follow the progress over the wire.
+            httpURLConnection.setRequestProperty(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
         }
     }
 
     /**
-     * Get the total length of the file, if known. If not, we return -1
-     * 
+     * Get the content encoding of a response.
+     *
+     * @param connection the http url connection to use to examine relevant headers
+     * @return the encoding, or null if the content isn't encoded
+     */
+    /* package */ static String getContentEncoding(final HttpURLConnection connection) {
+        final String contentEncoding = connection.getHeaderField(HEADER_CONTENT_ENCODING);
+        if (null == contentEncoding || ENCODING_IDENTITY.equalsIgnoreCase(contentEncoding.trim())) {
+            return null;
+        }
+        return contentEncoding.trim();
+    }
+
+    /**
+     * Get the length of the response body as sent, if known. If not, we return -1.
+     *
      * @param connection the http url connection to use to examine relevant headers
      * @return the length or -1
      */
-     /* package */ static long getTotalLengthFromHeader(final HttpURLConnection connection) {
+    private static long getContentLength(final HttpURLConnection connection) {
         long result = -1L;
         final String contentLength = connection.getHeaderField(HEADER_CONTENT_LENGTH);
         if (null != contentLength) {
@@ -515,6 +886,34 @@ public final class DownloadTask implements Callable<Boolean> {
         return result;
     }
 
+    /**
+     * Get the total length of the file, if known. If not, we return -1. For a range response this is
+     * the length of the whole file from the Content-Range header, not the length of the range, and
+     * for an encoded response it isn't known until the content is decoded.
+     * 
+     * @param connection the http url connection to use to examine relevant headers
+     * @return the length or -1
+     */
+     /* package */ static long getTotalLengthFromHeader(final HttpURLConnection connection) {
+        long result = -1L;
+        final String contentRange = connection.getHeaderField(HEADER_CONTENT_RANGE);
+        if (null != contentRange) {
+            // e.g. "bytes 100-199/200", where the total may be "*" if unknown.
+            final int slash = contentRange.lastIndexOf('/');
+            if (slash >= 0) {
+                try {
+                    return Long.parseLong(contentRange.substring(slash + 1).trim());
+                } catch (final NumberFormatException ex) {
+                    return result;
+                }
+            }
+        }
+        if (null != getContentEncoding(connection)) {
+            return result;
+        }
+        return getContentLength(connection);
+    }
+
     /**
      * Get the MIME type from the headers, if known. If not, we return null.
      * 
@@ -552,6 +951,17 @@ public final class DownloadTask implements Callable<Boolean> {
         }
     }
 
+    /**
+     * Ask our listener to run this task again after a delay.
+     *
+     * @param delay the delay in milliseconds.
+     * @return true if the retry was scheduled.
+     */
+    /* package */ boolean scheduleRetry(final long delay) {
+        final DownloadListener listenerObj = listener.get();
+        return null != listenerObj && listenerObj.scheduleRetry(downloadId, delay);
+    }
+
     /**
      * Check whether we got a 2xx response back from a request.
      * 
@@ -653,6 +1063,9 @@ public final class DownloadTask implements Callable<Boolean> {
         /** The offset, if any. */
         private String offset;
 
+        /** The byte range, if any. */
+        private String byteRange;
+
         /** The total bytes, if any. */
         private String totalBytes;
 
@@ -671,6 +1084,12 @@ public final class DownloadTask implements Callable<Boolean> {
         /** Whether we are an auto-restarted task. */
         private boolean autoRestart;
 
+        /** Our bandwidth scheduler. */
+        private BandwidthScheduler bandwidthScheduler;
+
+        /** Our circuit breaker for failing hosts. */
+        private HostCircuitBreaker circuitBreaker;
+
         /**
          * Create a new instance.
          *
@@ -717,6 +1136,18 @@ public final class DownloadTask implements Callable<Boolean> {
             return this;
         }
 
+        /**
+         * Set the byte range to download, rather than the whole file.
+         *
+         * @param range
+         *            the range as "first-last", or null for the whole file.
+         * @return the builder
+         */
+        public Builder withByteRange(final String range) {
+            this.byteRange = range;
+            return this;
+        }
+
         /**
          * Set the offset.
          *
@@ -792,6 +1223,28 @@ public final class DownloadTask implements Callable<Boolean> {
             return this;
         }
 
+        /**
+         * Set the bandwidth scheduler.
+         *
+         * @param scheduler the bandwidth scheduler
+         * @return the builder
+         */
+        /* package */ Builder withBandwidthScheduler(final BandwidthScheduler scheduler) {
+            this.bandwidthScheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * Set the circuit breaker for failing hosts.
+         *
+         * @param breaker the circuit breaker
+         * @return the builder
+         */
+        /* package */ Builder withCircuitBreaker(final HostCircuitBreaker breaker) {
+            this.circuitBreaker = breaker;
+            return this;
+        }
+
         /**
          * Build a DownloadTask.
          * 
@@ -838,6 +1291,18 @@ public final class DownloadTask implements Callable<Boolean> {
          */
         void sendProgress(final long downloadId, final long bytesRead, final long totalBytes);
 
+        /**
+         * Ask for a download task to be run again after a delay, without tying up a thread while it
+         * waits. The download stays in progress meanwhile.
+         *
+         * @param downloadId
+         *            the id of the download
+         * @param delay
+         *            the delay in milliseconds
+         * @return true if the task will be run again, false if it should finish now instead.
+         */
+        boolean scheduleRetry(final long downloadId, final long delay);
+
         /**
          * Report that a download task terminated, whether successfully or not.
          * 
@@ -0,0 +1,100 @@
+package com.dancingqueen.walladog.aws.downloader.service;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stops downloads from a host that keeps failing, rather than spending radio time on attempts that
+ * are almost certain to fail too.
+ *
+ * After several failures in a row the host's circuit opens, and attempts are held back until it has
+ * been open for a while. Then a single trial attempt is let through. If it succeeds the circuit closes,
+ * and if it fails the circuit opens again for twice as long.
+ */
+/* package */ class HostCircuitBreaker {
+
+    /** The number of failures in a row which opens the circuit. */
+    private static final int FAILURE_THRESHOLD = 5;
+
+    /** How long the circuit stays open the first time. */
+    private static final long BASE_OPEN_TIME = 30000L; // 30 s in ms
+
+    /** The longest the circuit stays open. */
+    private static final long MAX_OPEN_TIME = 600000L; // 10 min in ms
+
+    /** What we know about hosts that have failed recently, by host name. */
+    private final Map<String, HostState> hosts = new HashMap<>();
+
+    /**
+     * The failure history of a host.
+     */
+    private static final class HostState {
+        /** Failures in a row. */
+        private int consecutiveFailures;
+        /** The number of times the circuit has opened in a row. */
+        private int timesOpened;
+        /** When attempts may be made again, in elapsed realtime. */
+        private long closedAt;
+    }
+
+    /**
+     * Check whether an attempt may be made to a host. If the circuit's open time is up, this lets one
+     * trial attempt through and holds back any others until the trial has had time to finish.
+     *
+     * @param host the host name.
+     * @return 0 if an attempt may be made now, otherwise how long to wait in milliseconds.
+     */
+    /* package */ synchronized long getBlockedTime(final String host) {
+        final HostState state = hosts.get(host);
+        if (null == state || state.consecutiveFailures < FAILURE_THRESHOLD) {
+            return 0L;
+        }
+        final long now = elapsedRealtime();
+        if (now < state.closedAt) {
+            return state.closedAt - now;
+        }
+        // Let this attempt through as the trial, and hold back others while it runs.
+        state.closedAt = now + BASE_OPEN_TIME;
+        return 0L;
+    }
+
+    /**
+     * @return the time in milliseconds since boot, which circuits are timed by.
+     */
+    /* package */ long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Record that an attempt to a host succeeded, which closes its circuit.
+     *
+     * @param host the host name.
+     */
+    /* package */ synchronized void recordSuccess(final String host) {
+        hosts.remove(host);
+    }
+
+    /**
+     * Record that an attempt to a host failed.
+     *
+     * @param host the host name.
+     * @return how long in milliseconds the host's circuit is now open for, or 0 if it is closed.
+     */
+    /* package */ synchronized long recordFailure(final String host) {
+        HostState state = hosts.get(host);
+        if (null == state) {
+            state = new HostState();
+            hosts.put(host, state);
+        }
+        state.consecutiveFailures++;
+        if (state.consecutiveFailures >= FAILURE_THRESHOLD) {
+            final long openTime = Math.min(MAX_OPEN_TIME, BASE_OPEN_TIME << Math.min(state.timesOpened, 10));
+            state.timesOpened++;
+            state.closedAt = elapsedRealtime() + openTime;
+            return openTime;
+        }
+        return 0L;
+    }
+}
@@ -1,11 +1,7 @@
 package com.dancingqueen.walladog.aws.downloader.service;
 
-import android.content.ContentResolver;
-import android.content.Context;
-import android.database.Cursor;
 import android.util.Log;
 
-import com.dancingqueen.walladog.aws.downloader.query.DownloadQueueProvider;
 import com.dancingqueen.walladog.aws.downloader.query.DownloadState;
 
 import java.lang.ref.WeakReference;
@@ -22,19 +18,19 @@ import java.util.concurrent.Callable;
     /** Our parent downloader. */
     private final WeakReference<Downloader> parent;
 
-    /** The context to use. */
-    private final Context context;
+    /** The in-memory download queue to load. */
+    private final DownloadTable downloadTable;
 
     /**
      * Create a new instance.
      * 
      * @param downloader the parent Downloader that created this task.
-     * @param context the android context.
+     * @param downloadTable the in-memory download queue to load.
      */
     /* package */QueueReaderTask(final Downloader downloader,
-        final Context context) {
+        final DownloadTable downloadTable) {
         this.parent = new WeakReference<Downloader>(downloader);
-        this.context = context;
+        this.downloadTable = downloadTable;
     }
 
     /**
@@ -45,49 +41,25 @@ import java.util.concurrent.Callable;
     @Override
     public Integer call() {
         Log.d(LOG_TAG, "initializing the download queue.");
-        final ContentResolver resolver = context.getContentResolver();
-
-        // get all the rows that aren't complete or failed.
-        final Cursor rows = resolver.query(DownloadQueueProvider.getDownloadContentUri(context),
-            new String[] {
-                DownloadQueueProvider.COLUMN_DOWNLOAD_ID,
-                DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS,
-                DownloadQueueProvider.COLUMN_DOWNLOAD_USER_FLAGS
-            },
-            DownloadQueueProvider.COLUMN_DOWNLOAD_STATUS + " not in (?, ?)",
-            new String[] {
-                DownloadState.COMPLETE
-                    .toString(),
-                DownloadState.FAILED
-                    .toString(),
-            },
-            null);
-
-        // Iterate through rows, adding them as download tasks.
+        // Load all the rows that aren't complete or failed into memory, and iterate through them,
+        // adding them as download tasks.
         int count = 0;
-        try {
-            if (rows.moveToFirst()) {
-                do {
-                    Log.i(LOG_TAG, "Processing a row!");
-                    final Downloader parentObj = parent.get();
-                    if (null != parentObj) {
-                        // If a request is paused by user request, it can only be restarted by user request.
-                        // If it got paused for some other reason, it can be re-queued.
-                        final int flags = rows.getInt(2);
-                        if (DownloadState.PAUSED.toString().equals(rows.getString(1))
-                            && DownloadFlags.isUserRequestFlagSet(flags)) {
-                            continue;
-                        }
+        for (final DownloadRecord record : downloadTable.loadActive()) {
+            Log.i(LOG_TAG, "Processing a row!");
+            final Downloader parentObj = parent.get();
+            if (null != parentObj) {
+                // If a request is paused by user request, it can only be restarted by user request.
+                // If it got paused for some other reason, it can be re-queued.
+                if (DownloadState.PAUSED == record.getStatus()
+                    && DownloadFlags.isUserRequestFlagSet(record.getUserFlags())) {
+                    continue;
+                }
 
-                        // Add the qualifying row.
-                        parentObj.addDownloadTask(rows.getLong(0));
-                    }
-                    ++count;
-                    Log.i(LOG_TAG, "Done processing a row!");
-                } while (rows.moveToNext());
+                // Add the qualifying row.
+                parentObj.addDownloadTask(record.getId());
             }
-        } finally {
-            rows.close();
+            ++count;
+            Log.i(LOG_TAG, "Done processing a row!");
         }
         Log.i(LOG_TAG, count + "rows read.");
 
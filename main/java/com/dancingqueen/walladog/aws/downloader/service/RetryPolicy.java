@@ -0,0 +1,173 @@
+package com.dancingqueen.walladog.aws.downloader.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+/**
+ * Decides whether and when a failed download attempt should be retried, based on what kind of failure
+ * it was. Retries back off exponentially with jitter, so that downloads that failed together don't
+ * all retry together.
+ */
+/* package */ final class RetryPolicy {
+
+    /** Value for no retry. */
+    /* package */ static final long NO_RETRY = -1L;
+
+    /** The delay before the first retry. */
+    private static final long BASE_DELAY = 1000L; // 1 s in ms
+
+    /** The longest delay before retrying a failed attempt. */
+    /* package */ static final long MAX_DELAY = 60000L; // 60 s in ms
+
+    /** Milliseconds per second. */
+    private static final long MILLIS_PER_SECOND = 1000L;
+
+    /** HTTP status code for too many requests. */
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /** Source of jitter. */
+    private static final Random random = new Random();
+
+    /**
+     * The kinds of failure a download attempt may have.
+     */
+    /* package */ enum FailureType {
+        /** The host name couldn't be resolved. */
+        DNS(2, true),
+        /** The connection couldn't be made, or timed out before the response. */
+        CONNECT(4, true),
+        /** The connection broke while reading the response. */
+        CONNECTION_RESET(5, true),
+        /** The server had an error or was busy, with a 5xx, 408 or 429 status. */
+        SERVER_ERROR(4, true),
+        /** The request was refused with a 4xx status, which retrying won't change. */
+        CLIENT_ERROR(1, false),
+        /** Any other IO failure. */
+        OTHER(3, false);
+
+        /** The number of attempts to make in a row when failing this way, including the first. */
+        private final int maxAttempts;
+
+        /** Whether this failure suggests something is wrong with the host. */
+        private final boolean hostFailure;
+
+        FailureType(final int maxAttempts, final boolean hostFailure) {
+            this.maxAttempts = maxAttempts;
+            this.hostFailure = hostFailure;
+        }
+
+        /**
+         * @return true if this failure may be temporary.
+         */
+        /* package */ boolean isRetryable() {
+            return maxAttempts > 1;
+        }
+
+        /**
+         * @return true if this failure should count against the host's circuit breaker.
+         */
+        /* package */ boolean isHostFailure() {
+            return hostFailure;
+        }
+    }
+
+    /**
+     * Constructor, not called.
+     */
+    private RetryPolicy() {
+    }
+
+    /**
+     * Classify an exception thrown by a download attempt.
+     *
+     * @param ex the exception.
+     * @param responseReceived whether the response headers had been received.
+     * @return the kind of failure.
+     */
+    /* package */ static FailureType classify(final IOException ex, final boolean responseReceived) {
+        if (ex instanceof UnknownHostException) {
+            return FailureType.DNS;
+        }
+        if (responseReceived) {
+            return FailureType.CONNECTION_RESET;
+        }
+        if (ex instanceof ConnectException || ex instanceof NoRouteToHostException
+            || ex instanceof SocketTimeoutException) {
+            return FailureType.CONNECT;
+        }
+        return FailureType.OTHER;
+    }
+
+    /**
+     * Classify an unsuccessful HTTP response.
+     *
+     * @param responseCode the HTTP status code.
+     * @return the kind of failure.
+     */
+    /* package */ static FailureType classifyResponse(final int responseCode) {
+        if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR
+            || responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+            || responseCode == HTTP_TOO_MANY_REQUESTS) {
+            return FailureType.SERVER_ERROR;
+        }
+        return FailureType.CLIENT_ERROR;
+    }
+
+    /**
+     * @param ex an exception thrown by a download attempt.
+     * @return true if the exception was caused by the thread being interrupted.
+     */
+    /* package */ static boolean isInterruption(final IOException ex) {
+        return ex instanceof InterruptedIOException && !(ex instanceof SocketTimeoutException);
+    }
+
+    /**
+     * @param failureType the kind of failure.
+     * @param attempt the number of attempts which have failed in a row.
+     * @return true if another attempt should be made.
+     */
+    /* package */ static boolean shouldRetry(final FailureType failureType, final int attempt) {
+        return attempt < failureType.maxAttempts;
+    }
+
+    /**
+     * Get how long to wait before retrying. Each retry waits up to twice as long as the one before,
+     * and a random half of that is taken off.
+     *
+     * @param attempt the number of attempts which have failed in a row.
+     * @param retryAfter how long the server asked us to wait, or {@link #NO_RETRY} if it didn't.
+     * @return the delay in milliseconds.
+     */
+    /* package */ static long getRetryDelay(final int attempt, final long retryAfter) {
+        final long backoff = Math.min(MAX_DELAY, BASE_DELAY << Math.min(attempt - 1, 16));
+        final long half = backoff / 2;
+        final long delay;
+        synchronized (random) {
+            delay = half + (long) (random.nextDouble() * half);
+        }
+        return Math.min(MAX_DELAY, Math.max(delay, retryAfter));
+    }
+
+    /**
+     * Parse a Retry-After header given in seconds. Dates are not supported.
+     *
+     * @param value the header value, may be null.
+     * @return the delay in milliseconds, or {@link #NO_RETRY} if there was none.
+     */
+    /* package */ static long parseRetryAfter(final String value) {
+        if (null == value) {
+            return NO_RETRY;
+        }
+        try {
+            return Long.parseLong(value.trim()) * MILLIS_PER_SECOND;
+        } catch (final NumberFormatException ex) {
+            return NO_RETRY;
+        }
+    }
+}
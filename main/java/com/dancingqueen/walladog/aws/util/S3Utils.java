@@ -1,11 +1,35 @@
 package com.dancingqueen.walladog.aws.util;
 
+import java.util.Comparator;
+
 /**
  * A helper class that handles S3 key with '/' as delimiter.
  */
 public final class S3Utils {
     private static final char DELIMITER_CHARATER = '/';
 
+    /**
+     * Orders keys the way S3 lists them, by their UTF-8 bytes. Comparing code points gives the same
+     * order, while String.compareTo differs for characters outside the basic multilingual plane.
+     */
+    public static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(final String lhs, final String rhs) {
+            final int length = Math.min(lhs.length(), rhs.length());
+            for (int i = 0; i < length; i++) {
+                final char lhsChar = lhs.charAt(i);
+                final char rhsChar = rhs.charAt(i);
+                if (lhsChar != rhsChar) {
+                    if (Character.isSurrogate(lhsChar) || Character.isSurrogate(rhsChar)) {
+                        return lhs.codePointAt(i) - rhs.codePointAt(i);
+                    }
+                    return lhsChar - rhsChar;
+                }
+            }
+            return lhs.length() - rhs.length();
+        }
+    };
+
     /**
      * Gets the base name of an S3 key, e.g. foo -> foo, foo/bar -> bar.
      *
@@ -0,0 +1,256 @@
+package com.dancingqueen.walladog.aws.content;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AvailableContentPublisherTest {
+
+    /** Runs each task on the calling thread, so pages are read and delivered within request(). */
+    private static final class DirectExecutorService extends AbstractExecutorService {
+        private boolean isShutdown;
+
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+
+        @Override
+        public void shutdown() {
+            isShutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            isShutdown = true;
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return isShutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return isShutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(final long timeout, final TimeUnit unit) {
+            return true;
+        }
+    }
+
+    private static final class ListSource implements AvailableContentPublisher.ContentSource {
+        private final List<ContentItem> items;
+        private int next;
+        private int itemsRead;
+        private boolean isCanceled;
+
+        private ListSource(final int count) {
+            items = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                items.add(new S3ContentSummary("file" + i, i, i, null));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !isCanceled && next < items.size();
+        }
+
+        @Override
+        public ContentItem next() {
+            itemsRead++;
+            return items.get(next++);
+        }
+
+        @Override
+        public boolean willNextBlock() {
+            return false;
+        }
+
+        @Override
+        public void cancel() {
+            isCanceled = true;
+        }
+    }
+
+    private static final class TestPublisher extends AvailableContentPublisher {
+        private final ListSource source;
+        private int sourcesCreated;
+
+        private TestPublisher(final int pageSize, final ListSource source) {
+            super(null, "", "", "/", pageSize, new DirectExecutorService());
+            this.source = source;
+        }
+
+        @Override
+        ContentSource createContentSource() {
+            sourcesCreated++;
+            return source;
+        }
+
+        @Override
+        void runOnUiThread(final Runnable runnable) {
+            runnable.run();
+        }
+    }
+
+    private static final class RecordingSubscriber implements ContentFlow.Subscriber<List<ContentItem>> {
+        private final List<List<ContentItem>> pages = new ArrayList<>();
+        private ContentFlow.Subscription subscription;
+        private Exception error;
+        private boolean isComplete;
+
+        @Override
+        public void onSubscribe(final ContentFlow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(final List<ContentItem> item) {
+            pages.add(item);
+        }
+
+        @Override
+        public void onError(final Exception ex) {
+            error = ex;
+        }
+
+        @Override
+        public void onComplete() {
+            isComplete = true;
+        }
+    }
+
+    @Test
+    public void subscribingDoesNotStartListing() {
+        final TestPublisher publisher = new TestPublisher(2, new ListSource(5));
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+
+        publisher.subscribe(subscriber);
+
+        assertNotNull(subscriber.subscription);
+        assertEquals(0, publisher.sourcesCreated);
+        assertTrue(subscriber.pages.isEmpty());
+    }
+
+    @Test
+    public void deliversOnlyTheRequestedPages() {
+        final ListSource source = new ListSource(5);
+        final TestPublisher publisher = new TestPublisher(2, source);
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        subscriber.subscription.request(1);
+
+        assertEquals(1, publisher.sourcesCreated);
+        assertEquals(1, subscriber.pages.size());
+        assertEquals(2, subscriber.pages.get(0).size());
+        assertEquals("file0", subscriber.pages.get(0).get(0).getFilePath());
+        assertEquals(2, source.itemsRead);
+        assertFalse(subscriber.isComplete);
+
+        subscriber.subscription.request(1);
+
+        assertEquals(1, publisher.sourcesCreated);
+        assertEquals(2, subscriber.pages.size());
+        assertEquals("file2", subscriber.pages.get(1).get(0).getFilePath());
+        assertEquals(4, source.itemsRead);
+        assertFalse(subscriber.isComplete);
+    }
+
+    @Test
+    public void completesWithTheLastPage() {
+        final TestPublisher publisher = new TestPublisher(2, new ListSource(5));
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        assertEquals(3, subscriber.pages.size());
+        assertEquals(1, subscriber.pages.get(2).size());
+        assertTrue(subscriber.isComplete);
+        assertNull(subscriber.error);
+    }
+
+    @Test
+    public void completesWithoutWaitingForDemandAfterAFullLastPage() {
+        final TestPublisher publisher = new TestPublisher(2, new ListSource(4));
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        subscriber.subscription.request(2);
+
+        assertEquals(2, subscriber.pages.size());
+        assertTrue(subscriber.isComplete);
+    }
+
+    @Test
+    public void demandAddsUpWithoutOverflowing() {
+        final TestPublisher publisher = new TestPublisher(1, new ListSource(3));
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        assertEquals(3, subscriber.pages.size());
+        assertTrue(subscriber.isComplete);
+        assertNull(subscriber.error);
+    }
+
+    @Test
+    public void cancelStopsListing() {
+        final ListSource source = new ListSource(5);
+        final TestPublisher publisher = new TestPublisher(2, source);
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(1);
+
+        subscriber.subscription.cancel();
+        subscriber.subscription.request(1);
+
+        assertTrue(source.isCanceled);
+        assertEquals(1, subscriber.pages.size());
+        assertEquals(2, source.itemsRead);
+        assertFalse(subscriber.isComplete);
+    }
+
+    @Test
+    public void cancelBeforeRequestingNeverStartsListing() {
+        final TestPublisher publisher = new TestPublisher(2, new ListSource(5));
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        subscriber.subscription.cancel();
+        subscriber.subscription.request(1);
+
+        assertEquals(0, publisher.sourcesCreated);
+        assertTrue(subscriber.pages.isEmpty());
+    }
+
+    @Test
+    public void nonPositiveRequestFailsAndStopsListing() {
+        final ListSource source = new ListSource(5);
+        final TestPublisher publisher = new TestPublisher(2, source);
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(1);
+
+        subscriber.subscription.request(0);
+        subscriber.subscription.request(1);
+
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertTrue(source.isCanceled);
+        assertEquals(1, subscriber.pages.size());
+    }
+}
@@ -0,0 +1,165 @@
+package com.dancingqueen.walladog.aws.content;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ContentCatalogTest {
+
+    private File dir;
+    private File catalogFile;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("catalog", "test");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        catalogFile = new File(dir, "catalog");
+    }
+
+    @After
+    public void tearDown() {
+        for (final File file : dir.listFiles()) {
+            assertTrue(file.delete());
+        }
+        assertTrue(dir.delete());
+    }
+
+    private static S3ContentSummary file(final String filePath, final long size, final String eTag) {
+        return new S3ContentSummary(filePath, size, 1000L, eTag);
+    }
+
+    private static List<String> paths(final List<S3ContentSummary> summaries) {
+        final List<String> filePaths = new ArrayList<>();
+        for (final S3ContentSummary summary : summaries) {
+            filePaths.add(summary.getFilePath());
+        }
+        return filePaths;
+    }
+
+    @Test
+    public void isNotSyncedUntilReplaced() {
+        final ContentCatalog catalog = new ContentCatalog(catalogFile.getPath());
+
+        assertFalse(catalog.isSynced());
+        assertEquals(0L, catalog.getSyncTime());
+        assertTrue(catalog.list("", null, true).isEmpty());
+
+        catalog.replace(Collections.singletonList(file("a", 1, "x")));
+
+        assertTrue(catalog.isSynced());
+        assertTrue(catalog.getSyncTime() > 0L);
+    }
+
+    @Test
+    public void reportsWhatEachSyncChanged() {
+        final ContentCatalog catalog = new ContentCatalog(catalogFile.getPath());
+        final ContentCatalog.Changes first = catalog.replace(Arrays.asList(file("a", 1, "x"), file("b", 1, "x"),
+            file("c", 1, "x"), new S3ContentSummary("d/")));
+
+        assertEquals(Arrays.asList("a", "b", "c"), first.addedFilePaths);
+        assertTrue(first.changedFilePaths.isEmpty());
+        assertTrue(first.removedFilePaths.isEmpty());
+
+        final ContentCatalog.Changes second = catalog.replace(Arrays.asList(file("b", 2, "x"), file("c", 1, "x"),
+            file("e", 1, "x")));
+
+        assertEquals(Collections.singletonList("e"), second.addedFilePaths);
+        assertEquals(Collections.singletonList("b"), second.changedFilePaths);
+        assertEquals(Collections.singletonList("a"), second.removedFilePaths);
+
+        final ContentCatalog.Changes third = catalog.replace(Arrays.asList(file("b", 2, "y"), file("c", 1, "x"),
+            file("e", 1, "x")));
+
+        assertEquals(Collections.singletonList("b"), third.changedFilePaths);
+        assertTrue(catalog.replace(Arrays.asList(file("b", 2, "y"), file("c", 1, "x"), file("e", 1, "x")))
+            .isEmpty());
+    }
+
+    @Test
+    public void listsLikeS3() {
+        final ContentCatalog catalog = new ContentCatalog(catalogFile.getPath());
+        catalog.replace(Arrays.asList(file("a/1", 1, null), file("a/b/2", 1, null), file("a/b/3", 1, null),
+            file("a/c", 1, null), file("d", 1, null)));
+
+        assertEquals(Arrays.asList("a/", "d"), paths(catalog.list("", "/", true)));
+        assertEquals(Collections.singletonList("d"), paths(catalog.list("", "/", false)));
+        assertEquals(Arrays.asList("a/1", "a/b/", "a/c"), paths(catalog.list("a/", "/", true)));
+        assertEquals(Arrays.asList("a/1", "a/b/2", "a/b/3", "a/c"), paths(catalog.list("a/", null, true)));
+        assertTrue(catalog.list("x", "/", true).isEmpty());
+    }
+
+    @Test
+    public void listedFilesKeepTheirAttributes() {
+        final ContentCatalog catalog = new ContentCatalog(catalogFile.getPath());
+        catalog.replace(Collections.singletonList(new S3ContentSummary("a", 5, 1234L, "tag")));
+
+        final S3ContentSummary summary = catalog.list("", "/", true).get(0);
+        assertEquals(5, summary.getSize());
+        assertEquals(1234L, summary.getLastModifiedTime());
+        assertEquals("tag", summary.getETag());
+        assertEquals("tag", catalog.getETag("a"));
+        assertNull(catalog.getETag("b"));
+    }
+
+    @Test
+    public void readsTheLastSyncBack() throws IOException {
+        final ContentCatalog catalog = new ContentCatalog(catalogFile.getPath());
+        catalog.replace(Arrays.asList(new S3ContentSummary("a/tab\tname", 5, 1234L, "tag"),
+            new S3ContentSummary("b", 6, 5678L, null)));
+
+        final ContentCatalog reread = new ContentCatalog(catalogFile.getPath());
+        assertFalse(reread.isSynced());
+        reread.load();
+
+        assertTrue(reread.isSynced());
+        final List<S3ContentSummary> summaries = reread.list("", null, true);
+        assertEquals(Arrays.asList("a/tab\tname", "b"), paths(summaries));
+        assertEquals(5, summaries.get(0).getSize());
+        assertEquals(1234L, summaries.get(0).getLastModifiedTime());
+        assertEquals("tag", summaries.get(0).getETag());
+        assertNull(summaries.get(1).getETag());
+        assertTrue(reread.replace(Arrays.asList(new S3ContentSummary("a/tab\tname", 5, 1234L, "tag"),
+            new S3ContentSummary("b", 6, 5678L, null))).isEmpty());
+    }
+
+    @Test
+    public void ignoresAnUnreadableCatalog() throws IOException {
+        final OutputStream out = new FileOutputStream(catalogFile);
+        try {
+            out.write("catalog\t2\nF\t1\t2\t\ta\n".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        final ContentCatalog catalog = new ContentCatalog(catalogFile.getPath());
+        try {
+            catalog.load();
+            fail("Expected the catalog to be unreadable.");
+        } catch (final IOException ex) {
+            // The catalog stays empty until it is synced.
+        }
+
+        assertFalse(catalog.isSynced());
+        assertTrue(catalog.list("", null, true).isEmpty());
+    }
+
+    @Test
+    public void loadingWithoutACatalogLeavesItUnsynced() throws IOException {
+        final ContentCatalog catalog = new ContentCatalog(catalogFile.getPath());
+        catalog.load();
+
+        assertFalse(catalog.isSynced());
+    }
+}
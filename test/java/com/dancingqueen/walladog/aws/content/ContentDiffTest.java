@@ -0,0 +1,169 @@
+package com.dancingqueen.walladog.aws.content;
+
+import com.dancingqueen.walladog.aws.util.S3Utils;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class ContentDiffTest {
+
+    /** Cached files kept in memory, in the order S3 lists keys. */
+    private static final class TestIndex implements ContentDiff.LocalIndex {
+        private final TreeMap<String, FileContent> files = new TreeMap<>(S3Utils.KEY_ORDER);
+        private final Map<String, String> eTags = new HashMap<>();
+
+        private TestIndex add(final String filePath, final long size, final long lastModifiedTime,
+                              final String eTag) {
+            files.put(filePath, new FileContent(new File(filePath), filePath, size, lastModifiedTime));
+            if (eTag != null) {
+                eTags.put(filePath, eTag);
+            }
+            return this;
+        }
+
+        @Override
+        public FileContent getNextFile(final String filePath, final boolean isInclusive) {
+            final Map.Entry<String, FileContent> entry = isInclusive ? files.ceilingEntry(filePath) :
+                files.higherEntry(filePath);
+            return entry == null ? null : entry.getValue();
+        }
+
+        @Override
+        public String getETag(final String filePath) {
+            return eTags.get(filePath);
+        }
+    }
+
+    private static S3ContentSummary remote(final String filePath, final long size, final long lastModifiedTime,
+                                           final String eTag) {
+        return new S3ContentSummary(filePath, size, lastModifiedTime, eTag);
+    }
+
+    /** Run a diff to the end, describing each file as its change and path, such as "ADDED a". */
+    private static List<String> diff(final List<S3ContentSummary> remoteSummaries, final TestIndex index,
+                                     final String prefix, final String delimiter) {
+        final ContentDiff diff = new ContentDiff(remoteSummaries.iterator(), index, prefix, delimiter);
+        final List<String> changes = new ArrayList<>();
+        while (diff.next()) {
+            final ContentItem item = diff.getRemote() != null ? diff.getRemote() : diff.getLocal();
+            changes.add(diff.getChange() + " " + item.getFilePath());
+        }
+        assertNull(diff.getChange());
+        return changes;
+    }
+
+    @Test
+    public void joinsTheListingWithTheCache() {
+        final TestIndex index = new TestIndex()
+            .add("b", 1, 100, null)
+            .add("c", 1, 100, null)
+            .add("d", 1, 100, null);
+        final List<S3ContentSummary> remoteSummaries = Arrays.asList(remote("a", 1, 100, null),
+            remote("b", 2, 100, null), remote("c", 1, 100, null));
+
+        assertEquals(Arrays.asList("ADDED a", "CHANGED b", "UNCHANGED c", "REMOVED d"),
+            diff(remoteSummaries, index, "", null));
+    }
+
+    @Test
+    public void eitherSideMayBeEmpty() {
+        final TestIndex index = new TestIndex().add("a", 1, 100, null);
+
+        assertEquals(Collections.singletonList("REMOVED a"),
+            diff(Collections.<S3ContentSummary>emptyList(), index, "", null));
+        assertEquals(Collections.singletonList("ADDED a"),
+            diff(Collections.singletonList(remote("a", 1, 100, null)), new TestIndex(), "", null));
+        assertTrue(diff(Collections.<S3ContentSummary>emptyList(), new TestIndex(), "", null).isEmpty());
+    }
+
+    @Test
+    public void comparesETagsWhenBothAreKnown() {
+        final TestIndex index = new TestIndex()
+            .add("revalidated", 1, 100, "x")
+            .add("replaced", 1, 100, "x")
+            .add("untagged", 1, 100, null)
+            .add("older", 1, 100, null)
+            .add("newer", 1, 200, null);
+        final List<S3ContentSummary> remoteSummaries = Arrays.asList(remote("newer", 1, 100, null),
+            remote("older", 1, 200, "y"), remote("replaced", 1, 100, "y"), remote("revalidated", 1, 200, "x"),
+            remote("untagged", 1, 100, "x"));
+
+        // Without a cached ETag, a remote file that is newer or a different size is a change.
+        assertEquals(Arrays.asList("UNCHANGED newer", "CHANGED older", "CHANGED replaced",
+            "UNCHANGED revalidated", "UNCHANGED untagged"), diff(remoteSummaries, index, "", null));
+    }
+
+    @Test
+    public void walksOnlyTheCachedFilesTheListingWouldInclude() {
+        final TestIndex index = new TestIndex()
+            .add("a/1", 1, 100, null)
+            .add("a/b/2", 1, 100, null)
+            .add("a/b/3", 1, 100, null)
+            .add("a/c", 1, 100, null)
+            .add("ab", 1, 100, null)
+            .add("z", 1, 100, null);
+        final List<S3ContentSummary> remoteSummaries = Arrays.asList(remote("a/1", 1, 100, null),
+            new S3ContentSummary("a/b/"));
+
+        assertEquals(Arrays.asList("UNCHANGED a/1", "ADDED a/b/", "REMOVED a/c"),
+            diff(remoteSummaries, index, "a/", "/"));
+        assertEquals(Arrays.asList("UNCHANGED a/1", "REMOVED a/b/2", "REMOVED a/b/3", "REMOVED a/c"),
+            diff(Collections.singletonList(remote("a/1", 1, 100, null)), index, "a/", null));
+    }
+
+    @Test
+    public void passesDirectoriesThroughInAnyOrder() {
+        final TestIndex index = new TestIndex().add("m", 1, 100, null);
+        final List<S3ContentSummary> remoteSummaries = Arrays.asList(new S3ContentSummary("z/"),
+            remote("a", 1, 100, null), new S3ContentSummary("b/"), remote("m", 1, 100, null));
+
+        assertEquals(Arrays.asList("ADDED z/", "ADDED a", "ADDED b/", "UNCHANGED m"),
+            diff(remoteSummaries, index, "", "/"));
+    }
+
+    @Test
+    public void joinsInTheOrderS3ListsKeys() {
+        // S3 lists U+FFFD before U+1F600, though String.compareTo puts the surrogate pair first.
+        final String replacement = "\uFFFD";
+        final String emoji = "\uD83D\uDE00";
+        final TestIndex index = new TestIndex()
+            .add(replacement, 1, 100, null)
+            .add(emoji, 1, 100, null);
+        final List<S3ContentSummary> remoteSummaries = Arrays.asList(remote(replacement, 1, 100, null),
+            remote(emoji, 1, 100, null));
+
+        assertEquals(Arrays.asList("UNCHANGED " + replacement, "UNCHANGED " + emoji),
+            diff(remoteSummaries, index, "", null));
+    }
+
+    @Test
+    public void setsTheStateOfEachContentItem() {
+        final TestIndex index = new TestIndex()
+            .add("changed", 1, 100, null)
+            .add("same", 1, 100, null);
+        final List<S3ContentSummary> remoteSummaries = Arrays.asList(new S3ContentSummary("a/"),
+            remote("changed", 2, 100, null), remote("downloading", 1, 100, null), remote("new", 1, 100, null),
+            remote("same", 1, 100, null));
+        final Map<String, ContentState> transferStates = new HashMap<>();
+        transferStates.put("downloading", ContentState.TRANSFERRING);
+
+        final ContentDiff diff = new ContentDiff(remoteSummaries.iterator(), index, "", "/");
+        final List<ContentState> states = new ArrayList<>();
+        while (diff.next()) {
+            states.add(diff.getContentItem(transferStates).getContentState());
+        }
+
+        assertEquals(Arrays.asList(ContentState.REMOTE_DIRECTORY, ContentState.CACHED_WITH_NEWER_VERSION_AVAILABLE,
+            ContentState.TRANSFERRING, ContentState.REMOTE, ContentState.CACHED), states);
+    }
+}
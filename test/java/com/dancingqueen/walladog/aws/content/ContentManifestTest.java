@@ -0,0 +1,204 @@
+package com.dancingqueen.walladog.aws.content;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ContentManifestTest {
+
+    private static final List<String> PATHS = Arrays.asList("a/1.jpg", "a/b/x", "a/b/y", "a/d.txt", "b.txt",
+        "c/", "c/q");
+
+    private File dir;
+    private File indexFile;
+    private File uncompressedFile;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("manifest", "test");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        indexFile = new File(dir, "index.bin");
+        uncompressedFile = new File(dir, "index");
+    }
+
+    @After
+    public void tearDown() {
+        for (final File file : dir.listFiles()) {
+            assertTrue(file.delete());
+        }
+        assertTrue(dir.delete());
+    }
+
+    /**
+     * Build an index of paths, which must be sorted, where each file's size is its path's length and
+     * its ETag is "e" followed by the path, except for paths ending in "y", which have no ETag.
+     */
+    private static byte[] buildIndex(final List<String> paths) throws IOException {
+        final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        final DataOutputStream entriesOut = new DataOutputStream(entries);
+        final int[] offsets = new int[paths.size()];
+        for (int i = 0; i < paths.size(); i++) {
+            offsets[i] = entriesOut.size();
+            final byte[] path = paths.get(i).getBytes("UTF-8");
+            entriesOut.writeShort(path.length);
+            entriesOut.write(path);
+            entriesOut.writeLong(path.length);
+            entriesOut.writeLong(1000L + i);
+            final byte[] eTag = paths.get(i).endsWith("y") ? new byte[0] : ("e" + paths.get(i)).getBytes("US-ASCII");
+            entriesOut.writeByte(eTag.length);
+            entriesOut.write(eTag);
+        }
+
+        final ByteArrayOutputStream index = new ByteArrayOutputStream();
+        final DataOutputStream indexOut = new DataOutputStream(index);
+        indexOut.writeInt(ContentManifest.MAGIC);
+        indexOut.writeInt(ContentManifest.VERSION);
+        indexOut.writeInt(paths.size());
+        for (final int offset : offsets) {
+            indexOut.writeInt(offset);
+        }
+        indexOut.write(entries.toByteArray());
+        return index.toByteArray();
+    }
+
+    private void write(final byte[] bytes, final boolean compress) throws IOException {
+        final OutputStream out = compress ? new GZIPOutputStream(new FileOutputStream(indexFile)) :
+            new FileOutputStream(indexFile);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private ContentManifest load(final byte[] bytes) throws IOException {
+        write(bytes, false);
+        return ContentManifest.load(indexFile, uncompressedFile, null);
+    }
+
+    private static List<String> list(final Iterable<S3ContentSummary> summaries) {
+        final List<String> filePaths = new ArrayList<>();
+        for (final S3ContentSummary summary : summaries) {
+            filePaths.add(summary.getFilePath());
+        }
+        return filePaths;
+    }
+
+    @Test
+    public void listsEverythingUnderAPrefix() throws IOException {
+        final ContentManifest manifest = load(buildIndex(PATHS));
+
+        assertEquals(Arrays.asList("a/1.jpg", "a/b/x", "a/b/y", "a/d.txt", "b.txt", "c/q"),
+            list(manifest.list("", null, false)));
+        assertEquals(Arrays.asList("a/b/x", "a/b/y"), list(manifest.list("a/b", null, false)));
+        assertTrue(list(manifest.list("z", null, true)).isEmpty());
+    }
+
+    @Test
+    public void delimitedListingSummarizesFolders() throws IOException {
+        final ContentManifest manifest = load(buildIndex(PATHS));
+
+        assertEquals(Arrays.asList("a/", "b.txt", "c/"), list(manifest.list("", "/", true)));
+        assertEquals(Collections.singletonList("b.txt"), list(manifest.list("", "/", false)));
+        assertEquals(Arrays.asList("a/1.jpg", "a/b/", "a/d.txt"), list(manifest.list("a/", "/", true)));
+    }
+
+    @Test
+    public void findsFilesByPath() throws IOException {
+        final ContentManifest manifest = load(buildIndex(PATHS));
+
+        final S3ContentSummary summary = manifest.find("a/d.txt");
+        assertNotNull(summary);
+        assertEquals(7, summary.getSize());
+        assertEquals(1003L, summary.getLastModifiedTime());
+        assertEquals("ea/d.txt", summary.getETag());
+        assertNull(manifest.find("a/b/y").getETag());
+        assertNull(manifest.find("a/b"));
+        assertNull(manifest.find("zzz"));
+    }
+
+    @Test
+    public void loadsACompressedIndex() throws IOException {
+        write(buildIndex(PATHS), true);
+
+        final ContentManifest manifest = ContentManifest.load(indexFile, uncompressedFile, "tag");
+
+        assertTrue(uncompressedFile.exists());
+        assertEquals("tag", manifest.getETag());
+        assertEquals(6, list(manifest.list("", null, false)).size());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAnIndexWithoutTheMagicNumber() throws IOException {
+        final byte[] bytes = buildIndex(PATHS);
+        bytes[0] = 0;
+        load(bytes);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAnOffsetTableLongerThanTheIndex() throws IOException {
+        final byte[] bytes = buildIndex(PATHS);
+        ByteBuffer.wrap(bytes).putInt(8, 1000);
+        load(bytes);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsANegativeEntryOffset() throws IOException {
+        final byte[] bytes = buildIndex(PATHS);
+        ByteBuffer.wrap(bytes).putInt(12 + 4 * 2, -1);
+        load(bytes);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAnEntryOffsetPastTheEnd() throws IOException {
+        final byte[] bytes = buildIndex(PATHS);
+        ByteBuffer.wrap(bytes).putInt(12 + 4 * 3, bytes.length);
+        load(bytes);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAPathPastTheEnd() throws IOException {
+        final byte[] bytes = buildIndex(PATHS);
+        final int lastEntry = 12 + 4 * PATHS.size() + ByteBuffer.wrap(bytes).getInt(12 + 4 * (PATHS.size() - 1));
+        ByteBuffer.wrap(bytes).putShort(lastEntry, Short.MAX_VALUE);
+        load(bytes);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAnETagPastTheEnd() throws IOException {
+        final byte[] bytes = buildIndex(PATHS);
+        load(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    @Test
+    public void comparesVersionsByETagOrByFile() throws IOException {
+        write(buildIndex(PATHS), false);
+        final ContentManifest withETag = ContentManifest.load(indexFile, uncompressedFile, "v1");
+        final ContentManifest withoutETag = ContentManifest.load(indexFile, uncompressedFile, null);
+
+        assertTrue(withETag.isLoadedFrom(indexFile, "v1"));
+        assertFalse(withETag.isLoadedFrom(indexFile, "v2"));
+        // Without an ETag on both sides, the file itself is compared.
+        assertTrue(withETag.isLoadedFrom(indexFile, null));
+        assertTrue(withoutETag.isLoadedFrom(indexFile, "v1"));
+
+        write(buildIndex(PATHS.subList(0, 3)), false);
+        assertFalse(withoutETag.isLoadedFrom(indexFile, "v1"));
+    }
+}
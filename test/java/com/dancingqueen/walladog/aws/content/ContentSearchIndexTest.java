@@ -0,0 +1,120 @@
+package com.dancingqueen.walladog.aws.content;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ContentSearchIndexTest {
+
+    private static List<String> search(final ContentSearchIndex index, final String query, final int offset,
+                                       final int limit) {
+        final List<String> filePaths = new ArrayList<>();
+        for (final ContentSearchIndex.Document document : index.search(query, offset, limit)) {
+            filePaths.add(document.getFilePath());
+        }
+        return filePaths;
+    }
+
+    private static List<String> search(final ContentSearchIndex index, final String query) {
+        return search(index, query, 0, Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void tokenizesAtEveryCharacterThatIsNotALetterOrDigit() {
+        assertEquals(Arrays.asList("photos", "2019", "summer", "trip", "img", "0042", "jpg"),
+            ContentSearchIndex.tokenize("Photos/2019_Summer-Trip/IMG 0042.JPG"));
+        assertEquals(Arrays.asList("été", "über"), ContentSearchIndex.tokenize("/Été//ÜBER/"));
+        assertEquals(Arrays.asList("a", "a"), ContentSearchIndex.tokenize("a.a"));
+        assertTrue(ContentSearchIndex.tokenize("").isEmpty());
+        assertTrue(ContentSearchIndex.tokenize("-_./ ").isEmpty());
+    }
+
+    @Test
+    public void ranksExactWordsAboveBeginningsAndNamesAboveFolders() {
+        final ContentSearchIndex index = new ContentSearchIndex();
+        index.add("cats/x.jpg", 1, 4);
+        index.add("animals/cats.jpg", 1, 1);
+        index.add("cat/dog.jpg", 1, 2);
+        index.add("cat.jpg", 1, 3);
+        index.add("concat.jpg", 1, 5);
+
+        // A prefix of a name ties with a whole folder, so the newer of the two comes first.
+        assertEquals(Arrays.asList("cat.jpg", "cat/dog.jpg", "animals/cats.jpg", "cats/x.jpg"),
+            search(index, "cat"));
+        assertEquals(Arrays.asList("animals/cats.jpg", "cats/x.jpg"), search(index, "CATS"));
+        assertTrue(search(index, "cow").isEmpty());
+    }
+
+    @Test
+    public void everyWordMustMatchAndScoresAddUp() {
+        final ContentSearchIndex index = new ContentSearchIndex();
+        index.add("beach/2019.jpg", 1, 1);
+        index.add("2019/beach.jpg", 1, 2);
+        index.add("beach.jpg", 1, 3);
+        index.add("2019/beaches/sand.jpg", 1, 4);
+
+        assertEquals(Arrays.asList("2019/beach.jpg", "beach/2019.jpg", "2019/beaches/sand.jpg"),
+            search(index, "beach 2019"));
+        assertEquals(search(index, "beach 2019"), search(index, "2019, beach"));
+        assertTrue(search(index, "beach 2020").isEmpty());
+    }
+
+    @Test
+    public void equalScoresRankNewestFirstThenByPath() {
+        final ContentSearchIndex index = new ContentSearchIndex();
+        index.add("b/song.mp3", 1, 10);
+        index.add("a/song.mp3", 1, 10);
+        index.add("c/song.mp3", 1, 20);
+
+        assertEquals(Arrays.asList("c/song.mp3", "a/song.mp3", "b/song.mp3"), search(index, "song"));
+    }
+
+    @Test
+    public void pagesThroughTheRankedFiles() {
+        final ContentSearchIndex index = new ContentSearchIndex();
+        for (int i = 0; i < 5; i++) {
+            index.add("file" + i, 1, i);
+        }
+
+        assertEquals(Arrays.asList("file4", "file3"), search(index, "file", 0, 2));
+        assertEquals(Arrays.asList("file2", "file1"), search(index, "file", 2, 2));
+        assertEquals(Collections.singletonList("file0"), search(index, "file", 4, 2));
+        assertTrue(search(index, "file", 5, 2).isEmpty());
+        assertTrue(search(index, "file", 0, 0).isEmpty());
+        assertTrue(search(index, "", 0, 2).isEmpty());
+    }
+
+    @Test
+    public void replacesAndRemovesFiles() {
+        final ContentSearchIndex index = new ContentSearchIndex();
+        index.add("old.txt", 1, 1);
+        index.add("new.txt", 1, 2);
+        index.add("old.txt", 5, 3);
+
+        assertEquals(2, index.size());
+        assertEquals(Arrays.asList("old.txt", "new.txt"), search(index, "txt"));
+        assertEquals(5, index.search("old", 0, 1).get(0).getSize());
+
+        index.remove("old.txt");
+        index.remove("missing.txt");
+
+        assertEquals(1, index.size());
+        assertTrue(search(index, "old").isEmpty());
+        assertEquals(Collections.singletonList("new.txt"), search(index, "txt"));
+    }
+
+    @Test
+    public void ignoresDirectories() {
+        final ContentSearchIndex index = new ContentSearchIndex();
+        index.add(new S3ContentSummary("photos/"));
+        index.add(new S3ContentSummary("photos/a.jpg", 1, 1, null));
+
+        assertEquals(1, index.size());
+        assertEquals(Collections.singletonList("photos/a.jpg"), search(index, "photos"));
+    }
+}
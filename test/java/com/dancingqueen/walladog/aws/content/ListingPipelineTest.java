@@ -0,0 +1,214 @@
+package com.dancingqueen.walladog.aws.content;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ListingPipelineTest {
+
+    /** How long a thread is given to block before the test checks that it is still waiting. */
+    private static final long BLOCK_MILLIS = 100;
+
+    private static List<Integer> drain(final ListingPipeline<Integer> pipeline) {
+        final List<Integer> items = new ArrayList<>();
+        while (pipeline.hasNext()) {
+            items.add(pipeline.next());
+        }
+        return items;
+    }
+
+    private static Thread start(final Runnable runnable) {
+        final Thread thread = new Thread(runnable);
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void handsOffBatchesInOrder() throws InterruptedException {
+        final ListingPipeline<Integer> pipeline = new ListingPipeline<>(10);
+
+        assertTrue(pipeline.put(Arrays.asList(1, 2)));
+        assertTrue(pipeline.put(Collections.<Integer>emptyList()));
+        assertTrue(pipeline.put(Collections.singletonList(3)));
+        pipeline.close();
+
+        assertTrue(pipeline.isClosed());
+        assertEquals(Arrays.asList(1, 2, 3), drain(pipeline));
+        assertFalse(pipeline.hasNext());
+        assertFalse(pipeline.willNextBlock());
+    }
+
+    @Test
+    public void consumerWaitsForTheProducer() throws InterruptedException {
+        final ListingPipeline<Integer> pipeline = new ListingPipeline<>(10);
+        final List<Integer> consumed = Collections.synchronizedList(new ArrayList<Integer>());
+        assertTrue(pipeline.willNextBlock());
+
+        final Thread consumer = start(new Runnable() {
+            @Override
+            public void run() {
+                consumed.addAll(drain(pipeline));
+            }
+        });
+        consumer.join(BLOCK_MILLIS);
+        assertTrue(consumer.isAlive());
+
+        pipeline.put(Arrays.asList(1, 2));
+        pipeline.close();
+        consumer.join(TimeUnit.SECONDS.toMillis(5));
+
+        assertFalse(consumer.isAlive());
+        assertEquals(Arrays.asList(1, 2), consumed);
+    }
+
+    @Test
+    public void producerWaitsWhileThePipelineIsFull() throws InterruptedException {
+        final ListingPipeline<Integer> pipeline = new ListingPipeline<>(2);
+        final AtomicInteger batchesPut = new AtomicInteger();
+
+        final Thread producer = start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 3; i++) {
+                        pipeline.put(Arrays.asList(2 * i, 2 * i + 1));
+                        batchesPut.incrementAndGet();
+                    }
+                    pipeline.close();
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        producer.join(BLOCK_MILLIS);
+
+        // The first batch fills the pipeline, so the second waits.
+        assertTrue(producer.isAlive());
+        assertEquals(1, batchesPut.get());
+        assertFalse(pipeline.willNextBlock());
+
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), drain(pipeline));
+        producer.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(producer.isAlive());
+        assertEquals(3, batchesPut.get());
+    }
+
+    @Test
+    public void failureFollowsTheQueuedItems() throws InterruptedException {
+        final ListingPipeline<Integer> pipeline = new ListingPipeline<>(10);
+        final IllegalStateException failure = new IllegalStateException("listing failed");
+        pipeline.put(Arrays.asList(1, 2));
+        pipeline.fail(failure);
+
+        assertFalse(pipeline.willNextBlock());
+        assertTrue(pipeline.hasNext());
+        assertEquals(Integer.valueOf(1), pipeline.next());
+        assertTrue(pipeline.hasNext());
+        assertEquals(Integer.valueOf(2), pipeline.next());
+        try {
+            pipeline.hasNext();
+            fail("Expected the producer's failure.");
+        } catch (final IllegalStateException ex) {
+            assertSame(failure, ex);
+        }
+    }
+
+    @Test
+    public void cancelReleasesAWaitingProducer() throws InterruptedException {
+        final ListingPipeline<Integer> pipeline = new ListingPipeline<>(1);
+        final AtomicBoolean secondPut = new AtomicBoolean(true);
+        pipeline.put(Collections.singletonList(1));
+
+        final Thread producer = start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    secondPut.set(pipeline.put(Collections.singletonList(2)));
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        producer.join(BLOCK_MILLIS);
+        assertTrue(producer.isAlive());
+
+        pipeline.cancel();
+        producer.join(TimeUnit.SECONDS.toMillis(5));
+
+        assertFalse(producer.isAlive());
+        assertFalse(secondPut.get());
+        assertTrue(pipeline.isCanceled());
+        assertFalse(pipeline.put(Collections.singletonList(3)));
+        // The item queued before canceling may still be iterated.
+        assertEquals(Collections.singletonList(1), drain(pipeline));
+    }
+
+    @Test
+    public void cancelReleasesAWaitingConsumer() throws InterruptedException {
+        final ListingPipeline<Integer> pipeline = new ListingPipeline<>(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicBoolean hadNext = new AtomicBoolean(true);
+
+        start(new Runnable() {
+            @Override
+            public void run() {
+                hadNext.set(pipeline.hasNext());
+                finished.countDown();
+            }
+        });
+        assertFalse(finished.await(BLOCK_MILLIS, TimeUnit.MILLISECONDS));
+
+        pipeline.cancel();
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertFalse(hadNext.get());
+    }
+
+    @Test
+    public void overlapsProducingWithConsuming() throws InterruptedException {
+        final int pageCount = 10;
+        final ListingPipeline<Integer> pipeline = new ListingPipeline<>(4);
+        // Counted down once the producer has queued each page.
+        final CountDownLatch[] pagesPut = new CountDownLatch[pageCount];
+        for (int i = 0; i < pageCount; i++) {
+            pagesPut[i] = new CountDownLatch(1);
+        }
+
+        start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < pageCount; i++) {
+                        pipeline.put(Arrays.asList(2 * i, 2 * i + 1));
+                        pagesPut[i].countDown();
+                    }
+                    pipeline.close();
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        int itemCount = 0;
+        while (pipeline.hasNext()) {
+            pipeline.next();
+            final int page = itemCount++ / 2;
+            if (itemCount % 2 == 0 && page + 1 < pageCount) {
+                // The consumer is still handling this page, so the producer must be able to queue the
+                // next one meanwhile.
+                assertTrue("Page " + (page + 1) + " wasn't queued while page " + page + " was handled",
+                    pagesPut[page + 1].await(5, TimeUnit.SECONDS));
+            }
+        }
+
+        assertEquals(2 * pageCount, itemCount);
+    }
+}
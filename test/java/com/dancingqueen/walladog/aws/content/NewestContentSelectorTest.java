@@ -0,0 +1,111 @@
+package com.dancingqueen.walladog.aws.content;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class NewestContentSelectorTest {
+
+    private static final Comparator<ContentItem> NEWEST_FIRST = new Comparator<ContentItem>() {
+        @Override
+        public int compare(final ContentItem lhs, final ContentItem rhs) {
+            if (lhs.getLastModifiedTime() != rhs.getLastModifiedTime()) {
+                return lhs.getLastModifiedTime() > rhs.getLastModifiedTime() ? -1 : 1;
+            }
+            return lhs.getFilePath().compareTo(rhs.getFilePath());
+        }
+    };
+
+    private static ContentItem item(final String filePath, final long lastModifiedTime, final long size) {
+        return new S3ContentSummary(filePath, size, lastModifiedTime, null);
+    }
+
+    private static List<String> select(final int maxCount, final long maxTotalSize, final List<ContentItem> items) {
+        final NewestContentSelector selector = new NewestContentSelector(maxCount, maxTotalSize, NEWEST_FIRST);
+        for (final ContentItem contentItem : items) {
+            selector.offer(contentItem, contentItem.getSize());
+        }
+        final List<String> filePaths = new ArrayList<>();
+        for (final ContentItem contentItem : selector.getSelected()) {
+            filePaths.add(contentItem.getFilePath());
+        }
+        return filePaths;
+    }
+
+    @Test
+    public void selectsTheNewestItemsNewestFirst() {
+        final List<ContentItem> items = Arrays.asList(item("b", 2, 1), item("d", 4, 1), item("a", 1, 1),
+            item("c", 3, 1), item("e", 5, 1));
+
+        assertEquals(Arrays.asList("e", "d", "c"), select(3, Long.MAX_VALUE, items));
+    }
+
+    @Test
+    public void stopsAtTheFirstItemThatDoesNotFit() {
+        // "b" doesn't fit after "c", so the smaller, older "a" isn't selected either.
+        final List<ContentItem> items = Arrays.asList(item("a", 1, 1), item("b", 2, 5), item("c", 3, 3));
+
+        assertEquals(Collections.singletonList("c"), select(10, 6, items));
+    }
+
+    @Test
+    public void matchesSelectingFromNewestToOldestInAnyOrder() {
+        final List<ContentItem> items = new ArrayList<>();
+        final Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            items.add(item(String.format("file%03d", i), random.nextInt(1000), random.nextInt(10) + 1));
+        }
+
+        // Select by sorting everything, which the selector avoids.
+        final List<ContentItem> sorted = new ArrayList<>(items);
+        Collections.sort(sorted, NEWEST_FIRST);
+        final List<String> expected = new ArrayList<>();
+        long totalSize = 0;
+        for (final ContentItem contentItem : sorted) {
+            if (expected.size() == 50 || totalSize + contentItem.getSize() > 120) {
+                break;
+            }
+            expected.add(contentItem.getFilePath());
+            totalSize += contentItem.getSize();
+        }
+
+        assertEquals(expected, select(50, 120, items));
+        Collections.shuffle(items, random);
+        assertEquals(expected, select(50, 120, items));
+    }
+
+    @Test
+    public void weightMayBeLessThanSize() {
+        final NewestContentSelector selector = new NewestContentSelector(10, 5, NEWEST_FIRST);
+        final ContentItem pinned = item("pinned", 1, 100);
+        selector.offer(pinned, 0);
+        selector.offer(item("new", 2, 5), 5);
+
+        assertEquals(2, selector.getSelected().size());
+    }
+
+    @Test
+    public void rejectsItemsOlderThanOneRemoved() {
+        final NewestContentSelector selector = new NewestContentSelector(1, Long.MAX_VALUE, NEWEST_FIRST);
+        selector.offer(item("b", 2, 1), 1);
+        selector.offer(item("c", 3, 1), 1);
+        selector.offer(item("a", 1, 1), 1);
+
+        final List<ContentItem> selected = selector.getSelected();
+        assertEquals(1, selected.size());
+        assertEquals("c", selected.get(0).getFilePath());
+    }
+
+    @Test
+    public void selectsNothingWhenNothingFits() {
+        assertTrue(select(0, Long.MAX_VALUE, Collections.singletonList(item("a", 1, 1))).isEmpty());
+        assertTrue(select(10, 0, Collections.singletonList(item("a", 1, 1))).isEmpty());
+    }
+}
@@ -0,0 +1,72 @@
+package com.dancingqueen.walladog.aws.downloader.service;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class CountingInputStreamTest {
+
+    @Test
+    public void countsAndHashesTheBytesOverTheWireRatherThanTheDecodedBytes() throws Exception {
+        final byte[] content = new byte[100000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 7);
+        }
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        final GZIPOutputStream gzip = new GZIPOutputStream(encoded);
+        gzip.write(content);
+        gzip.close();
+        final byte[] wire = encoded.toByteArray();
+
+        final DownloadDigest digest = DownloadDigest.forETag("\"" + md5(wire) + "\"");
+        final CountingInputStream wireStream = new CountingInputStream(new ByteArrayInputStream(wire));
+        wireStream.setDigest(digest);
+        final InputStream decoded = new GZIPInputStream(wireStream);
+
+        final byte[] buffer = new byte[4096];
+        long decodedCount = 0L;
+        int count;
+        while ((count = decoded.read(buffer)) > 0) {
+            decodedCount += count;
+        }
+
+        assertEquals(content.length, decodedCount);
+        assertEquals(wire.length, wireStream.getCount());
+        assertTrue(digest.verify());
+    }
+
+    @Test
+    public void skippedBytesAreHashed() throws Exception {
+        final byte[] wire = "0123456789".getBytes("US-ASCII");
+        final DownloadDigest digest = DownloadDigest.forETag(md5(wire));
+        final CountingInputStream wireStream = new CountingInputStream(new ByteArrayInputStream(wire));
+        wireStream.setDigest(digest);
+
+        long skipped = 0L;
+        while (skipped < 4) {
+            skipped += wireStream.skip(4 - skipped);
+        }
+        while (wireStream.read() >= 0) {
+            // Read the rest.
+        }
+
+        assertEquals(wire.length, wireStream.getCount());
+        assertTrue(digest.verify());
+    }
+
+    private static String md5(final byte[] bytes) throws Exception {
+        final byte[] hash = MessageDigest.getInstance("MD5").digest(bytes);
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b : hash) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,151 @@
+package com.dancingqueen.walladog.aws.downloader.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DownloadDigestTest {
+
+    private byte[] content;
+    private String eTag;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException, NoSuchAlgorithmException {
+        content = new byte[100000];
+        new Random(7).nextBytes(content);
+        eTag = "\"" + toHex(MessageDigest.getInstance("MD5").digest(content)) + "\"";
+        file = File.createTempFile("digest", "test");
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        assertTrue(file.delete());
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    @Test
+    public void onlyVerifiesStrongSinglePartETags() {
+        final String md5 = eTag.substring(1, eTag.length() - 1);
+
+        assertNotNull(DownloadDigest.forETag(eTag));
+        assertNotNull(DownloadDigest.forETag(md5));
+        assertNotNull(DownloadDigest.forETag(md5.toUpperCase()));
+        assertNull(DownloadDigest.forETag(null));
+        assertNull(DownloadDigest.forETag("W/" + eTag));
+        assertNull(DownloadDigest.forETag("\"" + md5.substring(0, 30) + "-2\""));
+        assertNull(DownloadDigest.forETag("\"" + md5.substring(0, 31) + "g\""));
+        assertNull(DownloadDigest.forETag("\"\""));
+    }
+
+    @Test
+    public void isForTheETagItWasMadeFor() {
+        final DownloadDigest digest = DownloadDigest.forETag(eTag);
+
+        assertTrue(digest.isFor(eTag));
+        assertFalse(digest.isFor(eTag.toUpperCase()));
+        assertFalse(digest.isFor(null));
+    }
+
+    @Test
+    public void verifiesTheBytesAsTheyAreWritten() {
+        final DownloadDigest digest = DownloadDigest.forETag(eTag);
+        for (int start = 0; start < content.length; start += 4096) {
+            digest.update(content, start, Math.min(4096, content.length - start));
+        }
+
+        assertTrue(digest.verify());
+    }
+
+    @Test
+    public void catchesCorruptedOrMissingBytes() {
+        final DownloadDigest corrupted = DownloadDigest.forETag(eTag);
+        final byte[] corruptedContent = Arrays.copyOf(content, content.length);
+        corruptedContent[500] ^= 1;
+        corrupted.update(corruptedContent, 0, corruptedContent.length);
+
+        assertFalse(corrupted.verify());
+
+        final DownloadDigest truncated = DownloadDigest.forETag(eTag);
+        truncated.update(content, 0, content.length - 1);
+
+        assertFalse(truncated.verify());
+    }
+
+    @Test
+    public void resumesFromAPartialFile() {
+        final DownloadDigest digest = DownloadDigest.forETag(eTag);
+
+        assertTrue(digest.seekTo(file.getPath(), 40000));
+        digest.update(content, 40000, content.length - 40000);
+
+        assertTrue(digest.verify());
+    }
+
+    @Test
+    public void seekingToWhereItIsDoesNotReadTheFile() {
+        final DownloadDigest digest = DownloadDigest.forETag(eTag);
+        digest.update(content, 0, 1000);
+
+        assertTrue(digest.seekTo(new File(file.getParentFile(), "missing").getPath(), 1000));
+        digest.update(content, 1000, content.length - 1000);
+
+        assertTrue(digest.verify());
+    }
+
+    @Test
+    public void seekingBackRehashesThePartialFile() {
+        final DownloadDigest digest = DownloadDigest.forETag(eTag);
+        digest.update(content, 0, 60000);
+
+        // A retry that resumes from fewer bytes than were hashed, such as after a failed write.
+        assertTrue(digest.seekTo(file.getPath(), 50000));
+        digest.update(content, 50000, content.length - 50000);
+
+        assertTrue(digest.verify());
+    }
+
+    @Test
+    public void canBeSeekedAgainAfterVerifying() {
+        final DownloadDigest digest = DownloadDigest.forETag(eTag);
+        digest.update(content, 0, 10);
+        assertFalse(digest.verify());
+
+        assertTrue(digest.seekTo(file.getPath(), 0));
+        digest.update(content, 0, content.length);
+
+        assertTrue(digest.verify());
+    }
+
+    @Test
+    public void failsWhenThePartialFileIsShortOrMissing() {
+        final DownloadDigest digest = DownloadDigest.forETag(eTag);
+
+        assertFalse(digest.seekTo(file.getPath(), content.length + 1));
+        assertFalse(digest.seekTo(new File(file.getParentFile(), "missing").getPath(), 10));
+    }
+}
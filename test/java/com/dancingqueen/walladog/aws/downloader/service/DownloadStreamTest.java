@@ -0,0 +1,145 @@
+package com.dancingqueen.walladog.aws.downloader.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class DownloadStreamTest {
+
+    private File file;
+    private String location;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("download", ".bin");
+        location = file.getAbsolutePath();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        DownloadStream.finished(location, false, null);
+        file.delete();
+    }
+
+    @Test
+    public void readsBytesAsTheyAreWrittenAndEndsWhenComplete() throws Exception {
+        final DownloadStream stream = DownloadStream.open(location);
+        write(new byte[] {1, 2, 3});
+        DownloadStream.written(location, 3);
+
+        final byte[] buffer = new byte[8];
+        assertEquals(3, stream.read(buffer, 0, buffer.length));
+        assertEquals(3, buffer[2]);
+
+        write(new byte[] {1, 2, 3, 4});
+        DownloadStream.written(location, 4);
+        assertEquals(4, stream.read());
+
+        DownloadStream.finished(location, true, null);
+        assertEquals(-1, stream.read());
+        stream.close();
+    }
+
+    @Test
+    public void blockedReadWakesWhenBytesArrive() throws Exception {
+        final DownloadStream stream = DownloadStream.open(location);
+        final AtomicReference<Object> result = new AtomicReference<>();
+        final Thread reader = startReader(stream, result);
+
+        write(new byte[] {42});
+        DownloadStream.written(location, 1);
+        reader.join(5000);
+
+        assertFalse(reader.isAlive());
+        assertEquals(42, result.get());
+        stream.close();
+    }
+
+    @Test
+    public void blockedReadFailsWhenTheDownloadStopsWithoutWriting() throws Exception {
+        final DownloadStream stream = DownloadStream.open(location);
+        final AtomicReference<Object> result = new AtomicReference<>();
+        final Thread reader = startReader(stream, result);
+
+        DownloadStream.finished(location, false, "Download is cancelled.");
+        reader.join(5000);
+
+        assertFalse(reader.isAlive());
+        assertTrue(result.get() instanceof IOException);
+        assertEquals("Download is cancelled.", ((IOException) result.get()).getMessage());
+        stream.close();
+    }
+
+    @Test
+    public void closeWakesABlockedRead() throws Exception {
+        final DownloadStream stream = DownloadStream.open(location);
+        final AtomicReference<Object> result = new AtomicReference<>();
+        final Thread reader = startReader(stream, result);
+
+        stream.close();
+        reader.join(5000);
+
+        assertFalse(reader.isAlive());
+        assertTrue(result.get() instanceof IOException);
+    }
+
+    @Test
+    public void restartBeforeTheBytesAlreadyReadFails() throws Exception {
+        final DownloadStream stream = DownloadStream.open(location);
+        write(new byte[] {1, 2, 3, 4});
+        DownloadStream.written(location, 4);
+        assertEquals(4, stream.read(new byte[4], 0, 4));
+
+        DownloadStream.restarted(location, 2);
+        try {
+            stream.read();
+            fail("Expected the restart to fail the stream.");
+        } catch (final IOException ex) {
+            // Expected.
+        }
+        stream.close();
+    }
+
+    @Test
+    public void restartAfterTheBytesAlreadyReadContinues() throws Exception {
+        final DownloadStream stream = DownloadStream.open(location);
+        write(new byte[] {1, 2, 3, 4});
+        DownloadStream.written(location, 2);
+        assertEquals(2, stream.read(new byte[4], 0, 4));
+
+        DownloadStream.restarted(location, 4);
+        assertEquals(3, stream.read());
+        stream.close();
+    }
+
+    private void write(final byte[] bytes) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Thread startReader(final DownloadStream stream, final AtomicReference<Object> result) {
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.set(stream.read());
+                } catch (final IOException ex) {
+                    result.set(ex);
+                }
+            }
+        });
+        reader.start();
+        return reader;
+    }
+}
@@ -0,0 +1,97 @@
+package com.dancingqueen.walladog.aws.downloader.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HostCircuitBreakerTest {
+
+    private static final String HOST = "example.com";
+
+    /** A circuit breaker timed by a clock the test moves. */
+    private static final class TestCircuitBreaker extends HostCircuitBreaker {
+        private long now = 1000000L;
+
+        @Override
+        long elapsedRealtime() {
+            return now;
+        }
+
+        private void fail(final String host, final int times) {
+            for (int i = 0; i < times; i++) {
+                recordFailure(host);
+            }
+        }
+    }
+
+    @Test
+    public void opensAfterFiveFailuresInARow() {
+        final TestCircuitBreaker breaker = new TestCircuitBreaker();
+        for (int i = 0; i < 4; i++) {
+            assertEquals(0L, breaker.recordFailure(HOST));
+        }
+
+        assertEquals(0L, breaker.getBlockedTime(HOST));
+
+        assertEquals(30000L, breaker.recordFailure(HOST));
+
+        assertEquals(30000L, breaker.getBlockedTime(HOST));
+        breaker.now += 10000L;
+        assertEquals(20000L, breaker.getBlockedTime(HOST));
+    }
+
+    @Test
+    public void successClosesTheCircuit() {
+        final TestCircuitBreaker breaker = new TestCircuitBreaker();
+        breaker.fail(HOST, 4);
+        breaker.recordSuccess(HOST);
+        breaker.fail(HOST, 4);
+
+        assertEquals(0L, breaker.getBlockedTime(HOST));
+
+        breaker.fail(HOST, 1);
+        breaker.recordSuccess(HOST);
+
+        assertEquals(0L, breaker.getBlockedTime(HOST));
+    }
+
+    @Test
+    public void letsOneTrialThroughOnceTheOpenTimeIsUp() {
+        final TestCircuitBreaker breaker = new TestCircuitBreaker();
+        breaker.fail(HOST, 5);
+        breaker.now += 30000L;
+
+        assertEquals(0L, breaker.getBlockedTime(HOST));
+        // Others are held back while the trial runs.
+        assertEquals(30000L, breaker.getBlockedTime(HOST));
+
+        breaker.recordSuccess(HOST);
+
+        assertEquals(0L, breaker.getBlockedTime(HOST));
+        assertEquals(0L, breaker.getBlockedTime(HOST));
+    }
+
+    @Test
+    public void failedTrialsOpenTheCircuitForLongerUpToTheLongest() {
+        final TestCircuitBreaker breaker = new TestCircuitBreaker();
+        breaker.fail(HOST, 5);
+        final long[] openTimes = {60000L, 120000L, 240000L, 480000L, 600000L, 600000L};
+        for (final long openTime : openTimes) {
+            breaker.now += 600000L;
+            assertEquals(0L, breaker.getBlockedTime(HOST));
+            breaker.fail(HOST, 1);
+            assertEquals(openTime, breaker.getBlockedTime(HOST));
+        }
+    }
+
+    @Test
+    public void tracksHostsSeparately() {
+        final TestCircuitBreaker breaker = new TestCircuitBreaker();
+        breaker.fail(HOST, 5);
+        breaker.fail("other.example.com", 4);
+
+        assertTrue(breaker.getBlockedTime(HOST) > 0L);
+        assertEquals(0L, breaker.getBlockedTime("other.example.com"));
+        assertEquals(0L, breaker.getBlockedTime("unknown.example.com"));
+    }
+}
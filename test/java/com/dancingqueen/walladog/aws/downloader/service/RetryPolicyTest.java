@@ -0,0 +1,100 @@
+package com.dancingqueen.walladog.aws.downloader.service;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void classifiesExceptions() {
+        assertEquals(RetryPolicy.FailureType.DNS, RetryPolicy.classify(new UnknownHostException(), false));
+        assertEquals(RetryPolicy.FailureType.DNS, RetryPolicy.classify(new UnknownHostException(), true));
+        assertEquals(RetryPolicy.FailureType.CONNECT, RetryPolicy.classify(new ConnectException(), false));
+        assertEquals(RetryPolicy.FailureType.CONNECT, RetryPolicy.classify(new NoRouteToHostException(), false));
+        assertEquals(RetryPolicy.FailureType.CONNECT, RetryPolicy.classify(new SocketTimeoutException(), false));
+        // Once the response has started, any failure is the connection breaking.
+        assertEquals(RetryPolicy.FailureType.CONNECTION_RESET,
+            RetryPolicy.classify(new SocketTimeoutException(), true));
+        assertEquals(RetryPolicy.FailureType.CONNECTION_RESET, RetryPolicy.classify(new IOException(), true));
+        assertEquals(RetryPolicy.FailureType.OTHER, RetryPolicy.classify(new IOException(), false));
+    }
+
+    @Test
+    public void classifiesResponses() {
+        assertEquals(RetryPolicy.FailureType.SERVER_ERROR, RetryPolicy.classifyResponse(500));
+        assertEquals(RetryPolicy.FailureType.SERVER_ERROR, RetryPolicy.classifyResponse(503));
+        assertEquals(RetryPolicy.FailureType.SERVER_ERROR, RetryPolicy.classifyResponse(408));
+        assertEquals(RetryPolicy.FailureType.SERVER_ERROR, RetryPolicy.classifyResponse(429));
+        assertEquals(RetryPolicy.FailureType.CLIENT_ERROR, RetryPolicy.classifyResponse(403));
+        assertEquals(RetryPolicy.FailureType.CLIENT_ERROR, RetryPolicy.classifyResponse(404));
+    }
+
+    @Test
+    public void retriesOnlyTemporaryFailuresAndOnlySoManyTimes() {
+        assertFalse(RetryPolicy.FailureType.CLIENT_ERROR.isRetryable());
+        assertFalse(RetryPolicy.shouldRetry(RetryPolicy.FailureType.CLIENT_ERROR, 1));
+
+        assertTrue(RetryPolicy.shouldRetry(RetryPolicy.FailureType.DNS, 1));
+        assertFalse(RetryPolicy.shouldRetry(RetryPolicy.FailureType.DNS, 2));
+        assertTrue(RetryPolicy.shouldRetry(RetryPolicy.FailureType.CONNECTION_RESET, 4));
+        assertFalse(RetryPolicy.shouldRetry(RetryPolicy.FailureType.CONNECTION_RESET, 5));
+    }
+
+    @Test
+    public void onlyHostFailuresCountAgainstTheHost() {
+        assertTrue(RetryPolicy.FailureType.DNS.isHostFailure());
+        assertTrue(RetryPolicy.FailureType.CONNECT.isHostFailure());
+        assertTrue(RetryPolicy.FailureType.CONNECTION_RESET.isHostFailure());
+        assertTrue(RetryPolicy.FailureType.SERVER_ERROR.isHostFailure());
+        assertFalse(RetryPolicy.FailureType.CLIENT_ERROR.isHostFailure());
+        assertTrue(RetryPolicy.FailureType.OTHER.isRetryable());
+        assertFalse(RetryPolicy.FailureType.OTHER.isHostFailure());
+    }
+
+    @Test
+    public void recognizesInterruptionsButNotTimeouts() {
+        assertTrue(RetryPolicy.isInterruption(new InterruptedIOException()));
+        assertFalse(RetryPolicy.isInterruption(new SocketTimeoutException()));
+        assertFalse(RetryPolicy.isInterruption(new IOException()));
+    }
+
+    @Test
+    public void backsOffExponentiallyWithJitter() {
+        for (int attempt = 1; attempt <= 40; attempt++) {
+            final long backoff = Math.min(RetryPolicy.MAX_DELAY, 1000L << Math.min(attempt - 1, 16));
+            long least = Long.MAX_VALUE;
+            long most = 0;
+            for (int i = 0; i < 100; i++) {
+                final long delay = RetryPolicy.getRetryDelay(attempt, RetryPolicy.NO_RETRY);
+                least = Math.min(least, delay);
+                most = Math.max(most, delay);
+            }
+            assertTrue("attempt " + attempt + " waited " + least, least >= backoff / 2);
+            assertTrue("attempt " + attempt + " waited " + most, most <= backoff);
+            assertTrue("attempt " + attempt + " had no jitter", least < most);
+        }
+    }
+
+    @Test
+    public void waitsAtLeastAsLongAsTheServerAsksUpToTheLongestDelay() {
+        assertEquals(20000L, RetryPolicy.getRetryDelay(1, 20000L));
+        assertEquals(RetryPolicy.MAX_DELAY, RetryPolicy.getRetryDelay(1, 3600000L));
+        assertTrue(RetryPolicy.getRetryDelay(3, 1L) >= 2000L);
+    }
+
+    @Test
+    public void parsesRetryAfterInSeconds() {
+        assertEquals(120000L, RetryPolicy.parseRetryAfter(" 120 "));
+        assertEquals(0L, RetryPolicy.parseRetryAfter("0"));
+        assertEquals(RetryPolicy.NO_RETRY, RetryPolicy.parseRetryAfter(null));
+        assertEquals(RetryPolicy.NO_RETRY, RetryPolicy.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+    }
+}